@@ -0,0 +1,144 @@
+package com.iobeam.api.client;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+/**
+ * Stops a {@link RestClient} from sending requests while the API appears to be down, so that
+ * clients do not spend CPU, sockets and battery on requests that will time out anyway.
+ *
+ * The breaker is CLOSED to start with, and requests are sent as usual. After
+ * `failureThreshold` requests in a row fail (with an I/O error, or a 429 or 5xx response), it
+ * OPENs: requests then fail right away with an {@link OpenException}, without being sent. After
+ * `openMillis`, it is HALF_OPEN, and lets a single probe request through. If the probe succeeds,
+ * the breaker closes again; otherwise it opens for another `openMillis`.
+ */
+public class CircuitBreaker {
+
+    private static final Logger logger = Logger.getLogger(CircuitBreaker.class.getName());
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_OPEN_MILLIS = 30 * 1000;
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    /**
+     * Exception for requests that are not sent because the circuit breaker is open.
+     */
+    public static class OpenException extends IOException {
+
+        public OpenException() {
+            super("Circuit breaker open, request not sent.");
+        }
+    }
+
+    private final int failureThreshold;
+    private final long openMillis;
+    // All guarded by this.
+    private State state = State.CLOSED;
+    private int failures = 0;
+    private long openedAt = 0;
+    private boolean probing = false;
+
+    public CircuitBreaker() {
+        this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_MILLIS);
+    }
+
+    /**
+     * @param failureThreshold Number of failed requests in a row that opens the breaker.
+     * @param openMillis       Time the breaker stays open before a probe request is sent.
+     */
+    public CircuitBreaker(int failureThreshold, long openMillis) {
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException("failureThreshold must be at least 1");
+        }
+        if (openMillis < 0) {
+            throw new IllegalArgumentException("openMillis must not be negative");
+        }
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * @return The current state, which is HALF_OPEN once an open breaker's time is up.
+     */
+    public synchronized State getState() {
+        if (state == State.OPEN && System.currentTimeMillis() - openedAt >= openMillis) {
+            return State.HALF_OPEN;
+        }
+        return state;
+    }
+
+    /**
+     * Tells whether a request would be let through now, without taking the probe.
+     *
+     * @return True if the breaker is closed, or half-open with no probe in flight.
+     */
+    public synchronized boolean allowsRequests() {
+        final State s = getState();
+        return s == State.CLOSED || (s == State.HALF_OPEN && !probing);
+    }
+
+    /**
+     * Asks to send a request. Every request let through must be followed by a call to {@link
+     * #onSuccess()} or {@link #onFailure()} once its outcome is known.
+     *
+     * @return Whether the request may be sent.
+     */
+    synchronized boolean tryAcquire() {
+        if (!allowsRequests()) {
+            return false;
+        }
+        if (getState() == State.HALF_OPEN) {
+            state = State.HALF_OPEN;
+            probing = true;
+            logger.info("Circuit breaker half-open, sending probe request");
+        }
+        return true;
+    }
+
+    /**
+     * Records that a request reached the API.
+     */
+    synchronized void onSuccess() {
+        if (state != State.CLOSED) {
+            logger.info("Circuit breaker closed");
+        }
+        state = State.CLOSED;
+        failures = 0;
+        probing = false;
+    }
+
+    /**
+     * Records that a request failed, because the API could not be reached or is unavailable.
+     */
+    synchronized void onFailure() {
+        failures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+            logger.warning("Circuit breaker open after " + failures + " failed requests");
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+        probing = false;
+    }
+
+    /**
+     * Records that a request let through was not sent after all, so its outcome says nothing
+     * about the API.
+     */
+    synchronized void release() {
+        probing = false;
+    }
+
+    /**
+     * @param statusCode Status code of a response
+     * @return Whether the response means the API is unavailable, rather than that the request was
+     * handled.
+     */
+    static boolean isFailure(int statusCode) {
+        return statusCode == 429 || statusCode >= 500;
+    }
+}
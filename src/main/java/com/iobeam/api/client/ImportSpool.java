@@ -0,0 +1,100 @@
+package com.iobeam.api.client;
+
+import com.iobeam.api.resource.ImportBatch;
+import com.iobeam.util.io.SegmentLog;
+
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * On-disk spool of ImportBatches that have not been sent yet, so that they survive the process
+ * dying. Batches are appended as JSON to a {@link SegmentLog} before they are sent and
+ * acknowledged once they have been imported.
+ */
+final class ImportSpool {
+
+    private static final Logger logger = Logger.getLogger(ImportSpool.class.getName());
+    static final String DIRECTORY = "iobeam-spool";
+    private static final long SEGMENT_BYTES = 1024 * 1024;
+
+    private final SegmentLog log;
+    private final Map<ImportBatch, Long> ids = new IdentityHashMap<ImportBatch, Long>();
+
+    ImportSpool(File parent, long maxBytes) throws IOException {
+        this.log = new SegmentLog(new File(parent, DIRECTORY),
+                                  Math.min(SEGMENT_BYTES, maxBytes), maxBytes);
+    }
+
+    /**
+     * @return Batches left in the spool by a previous run, oldest first.
+     */
+    synchronized List<ImportBatch> recover() {
+        List<ImportBatch> ret = new ArrayList<ImportBatch>();
+        for (SegmentLog.Record r : log.getRecovered()) {
+            try {
+                ImportBatch batch =
+                    ImportBatch.fromJson(new JSONObject(new String(r.getData(), "UTF-8")));
+                ids.put(batch, r.getId());
+                ret.add(batch);
+            } catch (Exception e) {
+                // JSONException, ParseException or a bad encoding: nothing to recover.
+                logger.warning("Dropping unreadable spooled batch: " + e.getMessage());
+                log.ack(r.getId());
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Appends batches that are not in the spool yet, and syncs them to disk together.
+     *
+     * @param batches Batches about to be sent
+     * @throws IOException If writing to the spool fails.
+     */
+    synchronized void append(List<ImportBatch> batches) throws IOException {
+        for (ImportBatch batch : batches) {
+            if (!ids.containsKey(batch)) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                batch.writeJson(out);
+                ids.put(batch, log.append(out.toByteArray()));
+            }
+        }
+        log.sync();
+    }
+
+    synchronized boolean contains(ImportBatch batch) {
+        return ids.containsKey(batch);
+    }
+
+    /**
+     * Removes a batch from the spool, e.g. after it has been imported successfully.
+     *
+     * @param batch Batch to remove; ignored if it is not in the spool.
+     */
+    synchronized void ack(ImportBatch batch) {
+        Long id = ids.remove(batch);
+        if (id != null) {
+            log.ack(id);
+        }
+    }
+
+    synchronized int getPendingCount() {
+        return log.getPendingCount();
+    }
+
+    void close() {
+        try {
+            log.close();
+        } catch (IOException e) {
+            logger.warning("Could not close spool: " + e.getMessage());
+        }
+    }
+}
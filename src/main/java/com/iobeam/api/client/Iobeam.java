@@ -5,13 +5,20 @@ import com.iobeam.api.IobeamException;
 import com.iobeam.api.RestException;
 import com.iobeam.api.auth.AuthHandler;
 import com.iobeam.api.auth.DefaultAuthHandler;
+import com.iobeam.api.http.Http2Transport;
+import com.iobeam.api.http.HttpTransport;
+import com.iobeam.api.http.PooledHttpTransport;
+import com.iobeam.api.resource.BufferLimit;
 import com.iobeam.api.resource.DataPoint;
 import com.iobeam.api.resource.DataStore;
 import com.iobeam.api.resource.Device;
 import com.iobeam.api.resource.Import;
 import com.iobeam.api.resource.ImportBatch;
+import com.iobeam.api.resource.Rollup;
 import com.iobeam.api.service.DeviceService;
+import com.iobeam.api.service.ImportCodec;
 import com.iobeam.api.service.ImportService;
+import com.iobeam.util.concurrent.VirtualThreads;
 
 import java.io.BufferedReader;
 import java.io.File;
@@ -25,7 +32,18 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 /**
@@ -38,6 +56,9 @@ public class Iobeam {
     @Deprecated
     public static final String API_URL = DEFAULT_API_URL;
     static final String DEVICE_FILENAME = "iobeam-device-id";
+    private static final long IDLE_THREAD_TIMEOUT_SECS = 60;
+    static final long AUTO_FLUSH_CHECK_MILLIS = 250;
+    public static final long DEFAULT_SPOOL_MAX_BYTES = 16 * 1024 * 1024;
 
     /**
      * Exception when actions involving the network (registration, sending data) are called before
@@ -75,6 +96,7 @@ public class Iobeam {
 
         @Override
         public void onSuccess(ImportBatch data) {
+            client.autoFlushBackoff(false);
             if (userCB != null) {
                 userCB.onSuccess(data);
             }
@@ -83,6 +105,7 @@ public class Iobeam {
         @Override
         public void onFailure(Throwable exc, ImportBatch data) {
             client.addBulkData(data);
+            client.autoFlushBackoff(true);
 
             if (userCB != null) {
                 userCB.onFailure(exc, data);
@@ -90,6 +113,72 @@ public class Iobeam {
         }
     }
 
+    /**
+     * SendCallback used when autoRetry is not set but the client has a circuit breaker: data of
+     * requests that were not sent because the breaker is open is kept, as it would be if the
+     * breaker had been open before the send.
+     */
+    static final class UnsentSendCallback extends SendCallback {
+
+        private final SendCallback userCB;
+        private final Iobeam client;
+
+        public UnsentSendCallback(Iobeam iobeam, SendCallback userCB) {
+            this.client = iobeam;
+            this.userCB = userCB;
+        }
+
+        @Override
+        public void onSuccess(ImportBatch data) {
+            if (userCB != null) {
+                userCB.onSuccess(data);
+            }
+        }
+
+        @Override
+        public void onFailure(Throwable exc, ImportBatch data) {
+            if (exc instanceof CircuitBreaker.OpenException) {
+                client.addBulkData(data);
+            }
+
+            if (userCB != null) {
+                userCB.onFailure(exc, data);
+            }
+        }
+    }
+
+    /**
+     * SendCallback that removes data from the spool once it has been imported. Data of failed
+     * requests stays in the spool; if it is put back in memory (when autoRetry is set, or the
+     * request was not sent because the circuit breaker is open), it is removed once it has been
+     * spooled again as part of a later send.
+     */
+    static final class SpoolSendCallback extends SendCallback {
+
+        private final SendCallback userCB;
+        private final ImportSpool spool;
+
+        public SpoolSendCallback(ImportSpool spool, SendCallback userCB) {
+            this.spool = spool;
+            this.userCB = userCB;
+        }
+
+        @Override
+        public void onSuccess(ImportBatch data) {
+            spool.ack(data);
+            if (userCB != null) {
+                userCB.onSuccess(data);
+            }
+        }
+
+        @Override
+        public void onFailure(Throwable exc, ImportBatch data) {
+            if (userCB != null) {
+                userCB.onFailure(exc, data);
+            }
+        }
+    }
+
     private static final class IgnoreDupeRegisterCallback extends RegisterCallback {
 
         private final RegisterCallback userCB;
@@ -131,6 +220,26 @@ public class Iobeam {
         private String backendUrl;
         private String deviceId;
         private boolean autoRetry;
+        private DataStore.Storage storage;
+        private String storagePath;
+        private boolean gzipRequests;
+        private long gzipRequestThreshold;
+        private int gzipRequestLevel;
+        private int maxInFlight;
+        private long autoFlushSize;
+        private long autoFlushIntervalMillis;
+        private int ingestStripes;
+        private int maxRequestPoints;
+        private long maxRequestBytes;
+        private boolean coalesceRequests;
+        private ImportCodec importCodec;
+        private long spoolMaxBytes;
+        private BufferLimit bufferLimit;
+        private HttpTransport transport;
+        private RetryPolicy retryPolicy;
+        private CircuitBreaker circuitBreaker;
+        private boolean virtualThreads;
+        private Iobeam sharedWith;
 
         public Builder(long projectId, String projectToken) {
             this.projectId = projectId;
@@ -139,6 +248,25 @@ public class Iobeam {
             this.backendUrl = DEFAULT_API_URL;
             this.deviceId = null;
             this.autoRetry = false;
+            this.storage = DataStore.Storage.MAP;
+            this.storagePath = null;
+            this.gzipRequests = false;
+            this.gzipRequestThreshold = RestClient.DEFAULT_GZIP_REQUEST_THRESHOLD;
+            this.gzipRequestLevel = RestClient.DEFAULT_GZIP_REQUEST_LEVEL;
+            this.maxInFlight = 1;
+            this.autoFlushSize = 0;
+            this.autoFlushIntervalMillis = 0;
+            this.ingestStripes = 1;
+            this.maxRequestPoints = ImportService.DEFAULT_REQ_MAX_POINTS;
+            this.maxRequestBytes = ImportService.DEFAULT_REQ_MAX_BYTES;
+            this.coalesceRequests = false;
+            this.importCodec = ImportCodec.JSON;
+            this.spoolMaxBytes = 0;
+            this.transport = null;
+            this.retryPolicy = null;
+            this.circuitBreaker = null;
+            this.virtualThreads = false;
+            this.sharedWith = null;
         }
 
         public Builder saveIdToPath(String path) {
@@ -170,18 +298,399 @@ public class Iobeam {
             return this;
         }
 
+        /**
+         * Sets the storage layout used for DataStores created by the client, e.g., {@link
+         * DataStore.Storage#COLUMNAR} to keep values in primitive arrays instead of per-row maps,
+         * or {@link DataStore.Storage#COMPRESSED} to also compress them.
+         *
+         * @param storage Storage layout for created DataStores.
+         * @return This Builder
+         */
+        public Builder storage(DataStore.Storage storage) {
+            this.storage = storage;
+            return this;
+        }
+
+        /**
+         * Keeps the rows of DataStores created by the client off-heap, in memory-mapped files in
+         * the given directory (see {@link DataStore.Storage#MAPPED}).
+         *
+         * @param path Directory for the mapped files, or null for the default temporary
+         *             directory.
+         * @return This Builder
+         */
+        public Builder mappedStorage(String path) {
+            this.storage = DataStore.Storage.MAPPED;
+            this.storagePath = path;
+            return this;
+        }
+
+        public Builder gzipRequests() {
+            return this.gzipRequests(true);
+        }
+
+        public Builder gzipRequests(boolean gzip) {
+            this.gzipRequests = gzip;
+            return this;
+        }
+
+        /**
+         * Enables gzip compression of request bodies, e.g., data imports, for bodies of at least
+         * `minBytes` bytes.
+         *
+         * @param minBytes Smallest (estimated) body size to compress.
+         * @param level    Compression level from 0 to 9, or Deflater.DEFAULT_COMPRESSION.
+         * @return This Builder
+         */
+        public Builder gzipRequests(long minBytes, int level) {
+            this.gzipRequestThreshold = minBytes;
+            this.gzipRequestLevel = level;
+            return this.gzipRequests(true);
+        }
+
+        /**
+         * Sets how many import requests `sendAsync()` may have in flight at once. By default,
+         * requests are sent one at a time. With a larger window, requests are sent concurrently
+         * and further requests wait in a queue; `sendAsync()` never sends a request on the calling
+         * thread. With {@link #http2()}, requests in flight do not hold a thread each, so a large
+         * window is cheap.
+         *
+         * @param requests Maximum number of concurrent requests.
+         * @return This Builder
+         */
+        public Builder maxInFlight(int requests) {
+            if (requests < 1) {
+                throw new IllegalArgumentException("requests must be at least 1");
+            }
+            this.maxInFlight = requests;
+            return this;
+        }
+
+        /**
+         * Automatically sends data in the background (as with `sendAsync()`) once the client holds
+         * at least `values` data values. Can be combined with {@link #autoFlushInterval(long)},
+         * in which case data is sent on whichever happens first.
+         *
+         * @param values Number of buffered values that triggers a send; 0 disables.
+         * @return This Builder
+         */
+        public Builder autoFlushSize(long values) {
+            this.autoFlushSize = values;
+            return this;
+        }
+
+        /**
+         * Automatically sends any buffered data in the background (as with `sendAsync()`) every
+         * `millis` milliseconds.
+         *
+         * @param millis Time between sends in milliseconds; 0 disables.
+         * @return This Builder
+         */
+        public Builder autoFlushInterval(long millis) {
+            this.autoFlushIntervalMillis = millis;
+            return this;
+        }
+
+        /**
+         * Sets the number of write stripes for DataStores created by the client. With more than
+         * one stripe, threads adding to the same DataStore at the same time mostly take different
+         * locks, which helps when many threads produce data. See {@link DataStore}.
+         *
+         * @param stripes Number of write stripes per DataStore.
+         * @return This Builder
+         */
+        public Builder ingestStripes(int stripes) {
+            if (stripes < 1) {
+                throw new IllegalArgumentException("stripes must be at least 1");
+            }
+            this.ingestStripes = stripes;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of values (rows times columns) sent in a single import request;
+         * more data is split over several requests.
+         *
+         * @param maxPoints Maximum number of values per request.
+         * @return This Builder
+         */
+        public Builder maxRequestPoints(int maxPoints) {
+            if (maxPoints < 1) {
+                throw new IllegalArgumentException("maxPoints must be at least 1");
+            }
+            this.maxRequestPoints = maxPoints;
+            return this;
+        }
+
+        /**
+         * Sets the maximum size of the (uncompressed) body of a single import request; more data
+         * is split over several requests. Requests are filled up to this size, measured as they
+         * would be encoded, so long String values are split into more requests than numbers.
+         *
+         * @param maxBytes Maximum body size in bytes, or 0 to limit by number of values only.
+         * @return This Builder
+         */
+        public Builder maxRequestBytes(long maxBytes) {
+            if (maxBytes < 0) {
+                throw new IllegalArgumentException("maxBytes must not be negative");
+            }
+            this.maxRequestBytes = maxBytes;
+            return this;
+        }
+
+        public Builder coalesceRequests() {
+            return this.coalesceRequests(true);
+        }
+
+        /**
+         * Sets whether the data of DataStores with different columns (including series added
+         * with {@link Iobeam#addData(String, DataPoint)}) is combined into wider tables when sent,
+         * so that many small DataStores take few requests instead of one each. See {@link
+         * DataStore#coalesce(List)} for which DataStores are combined.
+         *
+         * @param coalesce Whether to combine DataStores into fewer requests.
+         * @return This Builder
+         */
+        public Builder coalesceRequests(boolean coalesce) {
+            this.coalesceRequests = coalesce;
+            return this;
+        }
+
+        /**
+         * Sets the wire format of import requests, e.g. {@link ImportCodec#CBOR} for a compact
+         * binary encoding instead of the default JSON.
+         *
+         * @param codec Codec to encode import requests with.
+         * @return This Builder
+         */
+        public Builder importCodec(ImportCodec codec) {
+            if (codec == null) {
+                throw new IllegalArgumentException("codec cannot be null");
+            }
+            this.importCodec = codec;
+            return this;
+        }
+
+        public Builder spool() {
+            return this.spool(DEFAULT_SPOOL_MAX_BYTES);
+        }
+
+        /**
+         * Keeps data that is being sent in an on-disk spool in the `saveIdToPath` directory until
+         * it has been imported, so that it is not lost if the process dies. Data left in the spool
+         * is sent again by the next client built with the same directory (at-least-once
+         * delivery). Data of failed sends stays in the spool, also while `autoRetry` keeps it in
+         * memory for the next send. Requires {@link #saveIdToPath(String)}.
+         *
+         * @param maxBytes Maximum size of the spool; the oldest data is dropped beyond it.
+         * @return This Builder
+         */
+        public Builder spool(long maxBytes) {
+            this.spoolMaxBytes = maxBytes;
+            return this;
+        }
+
+        /**
+         * Bounds the data buffered in the client's DataStores, including data put back after a
+         * failed send with `autoRetry`, so that a long outage cannot run the process out of
+         * memory. Data beyond the limit is dropped, downsampled, spilled to disk, or makes adds
+         * wait, as the limit's policy says; its counters tell how much. See {@link BufferLimit}.
+         *
+         * @param limit Limit, e.g. `new BufferLimit.Builder().maxValues(1000000).build()`
+         * @return This Builder
+         */
+        public Builder bufferLimit(BufferLimit limit) {
+            if (limit == null) {
+                throw new IllegalArgumentException("limit cannot be null");
+            }
+            this.bufferLimit = limit;
+            return this;
+        }
+
+        /**
+         * Keeps idle connections to iobeam alive between requests in a pool of this client (see
+         * {@link PooledHttpTransport}), and sets how many are kept and for how long. By default,
+         * the platform's HttpURLConnection keeps connections alive as it sees fit.
+         *
+         * @param maxIdleConnections Maximum number of idle connections; 0 closes every connection
+         *                           after its request.
+         * @param idleTimeoutMillis  Time after which an idle connection is closed.
+         * @return This Builder
+         */
+        public Builder connectionPool(int maxIdleConnections, long idleTimeoutMillis) {
+            return this.transport(new PooledHttpTransport(maxIdleConnections, idleTimeoutMillis));
+        }
+
+        /**
+         * Sends requests over HTTP/2 where the platform supports it (Java 11 and later), so that
+         * concurrent requests share one connection. Elsewhere, e.g. on Android, the default
+         * HTTP/1.1 transport is kept.
+         *
+         * @return This Builder
+         */
+        public Builder http2() {
+            if (Http2Transport.isAvailable()) {
+                return this.transport(new Http2Transport());
+            }
+            logger.info("HTTP/2 is not available on this platform, using HTTP/1.1");
+            return this;
+        }
+
+        /**
+         * Sets the transport that connections to iobeam are opened with. By default, a {@link
+         * com.iobeam.api.http.UrlConnectionTransport} leaves connection handling to the platform.
+         *
+         * @param transport Transport to use
+         * @return This Builder
+         */
+        public Builder transport(HttpTransport transport) {
+            if (transport == null) {
+                throw new IllegalArgumentException("transport cannot be null");
+            }
+            this.transport = transport;
+            return this;
+        }
+
+        /**
+         * Sets when and how soon failed requests are retried, with backoff between retries and a
+         * retry budget (see {@link RetryPolicy}). By default, they are not retried. With
+         * `autoRetry`, auto-flushes after a failed send also back off by the policy's delays,
+         * rather than sending the re-inserted data again right away.
+         *
+         * @param policy Retry policy, e.g. `new RetryPolicy.Builder().build()`
+         * @return This Builder
+         */
+        public Builder retryPolicy(RetryPolicy policy) {
+            if (policy == null) {
+                throw new IllegalArgumentException("policy cannot be null");
+            }
+            this.retryPolicy = policy;
+            return this;
+        }
+
+        public Builder circuitBreaker() {
+            return this.circuitBreaker(CircuitBreaker.DEFAULT_FAILURE_THRESHOLD,
+                                       CircuitBreaker.DEFAULT_OPEN_MILLIS);
+        }
+
+        /**
+         * Stops sending requests for `openMillis` milliseconds after `failures` requests in a row
+         * fail, e.g. while iobeam cannot be reached, then sends a single request to find out
+         * whether it is back (see {@link CircuitBreaker}). Meanwhile, sends fail right away and
+         * the data stays buffered in the client.
+         *
+         * @param failures   Number of failed requests in a row that stops sending.
+         * @param openMillis Time to stop sending for.
+         * @return This Builder
+         */
+        public Builder circuitBreaker(int failures, long openMillis) {
+            this.circuitBreaker = new CircuitBreaker(failures, openMillis);
+            return this;
+        }
+
+        public Builder virtualThreads() {
+            return this.virtualThreads(true);
+        }
+
+        /**
+         * Sets whether the client runs its blocking work (requests sent with `sendAsync()` and
+         * `registerDeviceAsync()`, and auto-flushing) on virtual threads where the platform has
+         * them (Java 21 and later), instead of on platform threads of its own. This makes it
+         * cheap to have many clients in one JVM, e.g. one per device on a gateway. Elsewhere,
+         * platform threads are used.
+         *
+         * @param virtual Whether to use virtual threads.
+         * @return This Builder
+         */
+        public Builder virtualThreads(boolean virtual) {
+            this.virtualThreads = virtual;
+            return this;
+        }
+
+        /**
+         * Builds the client as one more device context of an existing client in the same project:
+         * it uses the existing client's connection to iobeam (including its connection pool and
+         * project token) and its threads for sending and auto-flushing, and keeps only its own
+         * device ID and data. This makes it cheap to run many devices in one process, e.g. on a
+         * gateway that forwards data for thousands of them.
+         *
+         * Settings of the connection and threads (`backend`, `gzipRequests`, `maxInFlight`,
+         * `connectionPool`, `http2`, `transport`, `retryPolicy`, `circuitBreaker` and
+         * `virtualThreads`) are those of the shared client, and are ignored here. Contexts that
+         * persist their device ID need a `saveIdToPath` directory of their own.
+         *
+         * @param client Initialized client of the same project to share.
+         * @return This Builder
+         */
+        public Builder shareClient(Iobeam client) {
+            if (client == null || !client.isInitialized()) {
+                throw new IllegalArgumentException("client must be initialized");
+            }
+            if (client.projectId != this.projectId) {
+                throw new IllegalArgumentException("client is for project " + client.projectId +
+                                                   ", not " + this.projectId);
+            }
+            this.sharedWith = client;
+            return this;
+        }
+
         public Iobeam build() {
             try {
+                if (this.sharedWith != null) {
+                    return buildShared();
+                }
+                ThreadFactory threadFactory = null;
+                if (this.virtualThreads && VirtualThreads.isAvailable()) {
+                    threadFactory = VirtualThreads.newThreadFactory("iobeam-");
+                } else if (this.virtualThreads) {
+                    logger.info("Virtual threads are not available, using platform threads");
+                }
                 Iobeam client = new Iobeam(this.projectId, this.token, this.savePath,
-                                           this.deviceId, this.backendUrl);
-                client.setAutoRetry(this.autoRetry);
-
-                return client;
+                                           this.deviceId, this.backendUrl, this.maxInFlight,
+                                           threadFactory, null);
+                client.client.setGzipRequests(this.gzipRequests)
+                    .setGzipRequestThreshold(this.gzipRequestThreshold)
+                    .setGzipRequestLevel(this.gzipRequestLevel);
+                if (this.transport != null) {
+                    client.client.setTransport(this.transport);
+                }
+                if (this.retryPolicy != null) {
+                    client.client.setRetryPolicy(this.retryPolicy);
+                }
+                if (this.circuitBreaker != null) {
+                    client.client.setCircuitBreaker(this.circuitBreaker);
+                }
+                return configure(client);
             } catch (ApiException e) {
                 e.printStackTrace();
                 return null;
             }
         }
+
+        private Iobeam buildShared() throws ApiException {
+            final Iobeam base = this.sharedWith;
+            Iobeam client = new Iobeam(this.projectId, this.token, this.savePath, this.deviceId,
+                                       null, base.maxInFlight, base.threadFactory, base);
+            return configure(client);
+        }
+
+        // Applies the settings that are kept per client, rather than per RestClient.
+        private Iobeam configure(Iobeam client) throws ApiException {
+            client.setAutoRetry(this.autoRetry);
+            client.storage = this.storage;
+            client.storageDir = this.storagePath == null ? null : new File(this.storagePath);
+            client.ingestStripes = this.ingestStripes;
+            client.maxRequestPoints = this.maxRequestPoints;
+            client.maxRequestBytes = this.maxRequestBytes;
+            client.coalesceRequests = this.coalesceRequests;
+            client.importCodec = this.importCodec;
+            client.bufferLimit = this.bufferLimit;
+            if (this.spoolMaxBytes > 0) {
+                client.openSpool(this.spoolMaxBytes);
+            }
+            client.startAutoFlush(this.autoFlushSize, this.autoFlushIntervalMillis);
+            return client;
+        }
     }
 
     String path = null;
@@ -193,12 +702,52 @@ public class Iobeam {
     private final Object dataStoreLock = new Object();
     @Deprecated
     private Import dataStore;
-    private final List<DataStore> dataBatches = new ArrayList<DataStore>();
+    // Copy-on-write, since DataStores are tracked rarely but iterated on every size check and send.
+    private final List<DataStore> dataBatches = new CopyOnWriteArrayList<DataStore>();
     private Map<String, DataStore> seriesToBatch = new HashMap<String, DataStore>();
     private boolean autoRetry = false;
-
-    private Iobeam(long projectId, String projectToken, String path, String deviceId, String url)
+    private DataStore.Storage storage = DataStore.Storage.MAP;
+    private File storageDir = null;
+    private int ingestStripes = 1;
+    private int maxRequestPoints = ImportService.DEFAULT_REQ_MAX_POINTS;
+    private long maxRequestBytes = ImportService.DEFAULT_REQ_MAX_BYTES;
+    private boolean coalesceRequests = false;
+    private ImportCodec importCodec = ImportCodec.JSON;
+    private BufferLimit bufferLimit = null;
+    private final int maxInFlight;
+    // Creates the client's threads; null for the default (platform) threads.
+    private final ThreadFactory threadFactory;
+    // Client whose RestClient and threads this one shares, or null if it has its own.
+    private final Iobeam sharedWith;
+    // Whether other clients share this one's threads; guarded by this.
+    private boolean shared = false;
+    private ScheduledExecutorService flushScheduler = null;
+    private final List<ScheduledFuture<?>> flushTasks = new ArrayList<ScheduledFuture<?>>();
+    // Number of buffered values that triggers an auto-flush; 0 if there is none.
+    private volatile long autoFlushSize = 0;
+    // Clients using this one's flush scheduler that auto-flush on size, all of which a single
+    // task checks; guarded by this.
+    private final List<Iobeam> sizeFlushClients = new CopyOnWriteArrayList<Iobeam>();
+    private ScheduledFuture<?> sizeFlushTask = null;
+    // Consecutive failed sends with autoRetry, and the time before which auto-flushes are skipped.
+    private final AtomicInteger flushFailures = new AtomicInteger();
+    private volatile long autoFlushNotBefore = 0;
+    private ImportSpool spool = null;
+    // Batches recovered from the spool that still need to be sent; guarded by dataStoreLock.
+    private final List<ImportBatch> spoolRecovered = new ArrayList<ImportBatch>();
+    // Spooled batches whose data was put back in memory after a failed send; guarded by
+    // dataStoreLock. They stay in the spool until that data has been spooled again.
+    private final List<ImportBatch> spoolReinserted = new ArrayList<ImportBatch>();
+
+    private Iobeam(long projectId, String projectToken, String path, String deviceId, String url,
+                   int maxInFlight, ThreadFactory threadFactory, Iobeam sharedWith)
         throws ApiException {
+        this.maxInFlight = maxInFlight;
+        this.threadFactory = threadFactory;
+        this.sharedWith = sharedWith;
+        if (sharedWith != null) {
+            sharedWith.markShared();
+        }
         init(path, projectId, projectToken, deviceId, url);
     }
 
@@ -210,7 +759,8 @@ public class Iobeam {
      * @param projectId    The numeric project ID to associate with.
      * @param projectToken The token to use when communicating with iobeam cloud.
      * @param deviceId     The device ID that should be used by the iobeam client.
-     * @param backendUrl   The base URL of API services to talk to
+     * @param backendUrl   The base URL of API services to talk to. Not used by clients that share
+     *                     another client's RestClient.
      * @throws ApiException Thrown if something goes wrong with initializing the device ID.
      */
     void init(String path, long projectId, String projectToken, String deviceId, String backendUrl)
@@ -223,12 +773,56 @@ public class Iobeam {
         }
         setDeviceId(deviceId);
 
-        client = new RestClient(backendUrl, Executors.newSingleThreadExecutor());
+        if (sharedWith != null) {
+            if (sharedWith.client == null) {
+                throw new NotInitializedException();
+            }
+            client = sharedWith.client;
+            return;
+        }
+        client = new RestClient(backendUrl, createSendExecutor(maxInFlight, threadFactory));
+        client.setMaxAsyncRequests(maxInFlight);
         File dir = path != null ? new File(path) : null;
         AuthHandler handler = new DefaultAuthHandler(client, projectId, projectToken, dir);
         client.setAuthenticationHandler(handler);
     }
 
+    /**
+     * Creates the executor that runs async requests, with `maxInFlight` threads, which bound how
+     * many run at once. Further requests wait in an unbounded queue, so that submitting one never
+     * runs it on, or blocks, the submitting thread; what is queued is bounded by the buffered
+     * data it was drained from.
+     *
+     * @param maxInFlight Maximum number of requests run concurrently.
+     * @return ExecutorService for the RestClient.
+     */
+    static ExecutorService createSendExecutor(int maxInFlight) {
+        return createSendExecutor(maxInFlight, null);
+    }
+
+    /**
+     * Creates the executor that runs async requests, as {@link #createSendExecutor(int)}, with
+     * threads from a given factory.
+     *
+     * @param maxInFlight   Maximum number of requests run concurrently.
+     * @param threadFactory Factory for the threads, or null for the default one.
+     * @return ExecutorService for the RestClient.
+     */
+    static ExecutorService createSendExecutor(int maxInFlight, ThreadFactory threadFactory) {
+        if (threadFactory == null) {
+            threadFactory = Executors.defaultThreadFactory();
+        }
+        if (maxInFlight <= 1) {
+            return Executors.newSingleThreadExecutor(threadFactory);
+        }
+
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            maxInFlight, maxInFlight, IDLE_THREAD_TIMEOUT_SECS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), threadFactory);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
     /**
      * Tells whether the iobeam client has been initialized.
      *
@@ -258,10 +852,23 @@ public class Iobeam {
         this.deviceId = null;
 
         this.client = null;
+        stopAutoFlush();
 
+        final List<DataStore> tracked;
         synchronized (dataStoreLock) {
             dataStore = null;
+            tracked = new ArrayList<DataStore>(dataBatches);
             dataBatches.clear();
+            spoolRecovered.clear();
+            spoolReinserted.clear();
+        }
+        // Otherwise the buffer limit keeps counting the discarded DataStores.
+        for (DataStore store : tracked) {
+            store.clearBufferLimit();
+        }
+        if (spool != null) {
+            spool.close();
+            spool = null;
         }
 
         if (deleteFile) {
@@ -272,6 +879,183 @@ public class Iobeam {
         }
     }
 
+    /**
+     * Starts sending data in the background when at least `maxValues` values are buffered, or
+     * every `intervalMillis` milliseconds, whichever comes first. Replaces any previous auto-flush
+     * policy.
+     *
+     * @param maxValues      Number of buffered values that triggers a send; 0 disables.
+     * @param intervalMillis Time between sends in milliseconds; 0 disables.
+     */
+    synchronized void startAutoFlush(final long maxValues, final long intervalMillis) {
+        stopAutoFlush();
+        if (maxValues <= 0 && intervalMillis <= 0) {
+            return;
+        }
+
+        final ScheduledExecutorService scheduler = getFlushScheduler();
+        if (maxValues > 0) {
+            autoFlushSize = maxValues;
+            flushOwner().addSizeFlush(this);
+        }
+        if (intervalMillis > 0) {
+            flushTasks.add(scheduler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    if (getDataSize() > 0) {
+                        autoFlush();
+                    }
+                }
+            }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    /**
+     * @return The client that owns the scheduler that runs this one's auto-flushes.
+     */
+    private Iobeam flushOwner() {
+        return sharedWith != null ? sharedWith.flushOwner() : this;
+    }
+
+    /**
+     * Has the size of a client checked every {@link #AUTO_FLUSH_CHECK_MILLIS}, by the one task
+     * that checks all clients using this client's scheduler. Thousands of clients that share a
+     * client thus cost one scheduled task rather than one each.
+     */
+    private synchronized void addSizeFlush(Iobeam client) {
+        sizeFlushClients.add(client);
+        if (sizeFlushTask == null) {
+            sizeFlushTask = getFlushScheduler().scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    for (Iobeam c : sizeFlushClients) {
+                        final long max = c.autoFlushSize;
+                        if (max > 0 && c.getDataSize() >= max) {
+                            c.autoFlush();
+                        }
+                    }
+                }
+            }, AUTO_FLUSH_CHECK_MILLIS, AUTO_FLUSH_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void removeSizeFlush(Iobeam client) {
+        sizeFlushClients.remove(client);
+        if (sizeFlushClients.isEmpty() && sizeFlushTask != null) {
+            sizeFlushTask.cancel(false);
+            sizeFlushTask = null;
+        }
+    }
+
+    /**
+     * @return The scheduler that runs auto-flushes, which is the shared client's for clients built
+     * with {@link Builder#shareClient(Iobeam)}.
+     */
+    private synchronized ScheduledExecutorService getFlushScheduler() {
+        if (sharedWith != null) {
+            return sharedWith.getFlushScheduler();
+        }
+        if (flushScheduler == null) {
+            flushScheduler = Executors.newSingleThreadScheduledExecutor(
+                threadFactory != null ? threadFactory : new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "iobeam-auto-flush");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        }
+        return flushScheduler;
+    }
+
+    private synchronized void markShared() {
+        shared = true;
+    }
+
+    /**
+     * Stops sending data automatically in the background, if the client was built with an
+     * auto-flush policy. Data that is still buffered is kept and can be sent with `send()`.
+     */
+    public synchronized void stopAutoFlush() {
+        for (ScheduledFuture<?> task : flushTasks) {
+            task.cancel(false);
+        }
+        flushTasks.clear();
+        if (autoFlushSize > 0) {
+            autoFlushSize = 0;
+            flushOwner().removeSizeFlush(this);
+        }
+        // Other clients may still have auto-flushes on a shared scheduler.
+        if (flushScheduler != null && !shared) {
+            flushScheduler.shutdownNow();
+            flushScheduler = null;
+        }
+    }
+
+    private void autoFlush() {
+        if (System.currentTimeMillis() < autoFlushNotBefore) {
+            return;
+        }
+        try {
+            sendAsync();
+        } catch (RuntimeException e) {
+            // Must not escape, or the scheduled flush is cancelled.
+            logger.warning("Auto-flush failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Backs off auto-flushes after a failed send with autoRetry, by the delays of the retry policy,
+     * so that re-inserted data is not sent again right away; a successful send ends the backoff.
+     *
+     * @param failed Whether a send failed.
+     */
+    void autoFlushBackoff(boolean failed) {
+        final RestClient client = this.client;
+        if (!failed) {
+            flushFailures.set(0);
+            autoFlushNotBefore = 0;
+        } else if (client != null && client.getRetryPolicy().getMaxRetries() > 0) {
+            final long delay = client.getRetryPolicy().getDelayMillis(
+                flushFailures.incrementAndGet(), -1);
+            autoFlushNotBefore = System.currentTimeMillis() + delay;
+        }
+    }
+
+    /**
+     * Opens the on-disk spool in the client's path and queues any data left in it by a previous
+     * run to be sent.
+     *
+     * @param maxBytes Maximum size of the spool.
+     * @throws ApiException If there is no path or the spool cannot be opened.
+     */
+    void openSpool(long maxBytes) throws ApiException {
+        if (path == null) {
+            throw new ApiException("Spooling requires a path (saveIdToPath).");
+        }
+        try {
+            spool = new ImportSpool(new File(path), maxBytes);
+        } catch (IOException e) {
+            throw new ApiException("Could not open spool: " + e.getMessage());
+        }
+        List<ImportBatch> recovered = spool.recover();
+        if (!recovered.isEmpty()) {
+            logger.info("Recovered " + recovered.size() + " unsent batches from spool.");
+        }
+        synchronized (dataStoreLock) {
+            spoolRecovered.addAll(recovered);
+        }
+    }
+
+    ImportSpool getSpool() {
+        return spool;
+    }
+
+    RestClient getRestClient() {
+        return client;
+    }
+
     public boolean getAutoRetry() {
         return this.autoRetry;
     }
@@ -727,8 +1511,10 @@ public class Iobeam {
         return ret;
     }
 
-    /* A lock should always be acquired before calling this method! */
-    private void _addDataWithoutLock(String seriesName, DataPoint dataPoint) {
+    /* A lock should always be acquired before calling this method! The point still has to be
+     * added to the returned DataStore, without the lock, since a buffer limit may make the add
+     * wait for a send, which needs the lock. */
+    private DataStore _addDataWithoutLock(String seriesName, DataPoint dataPoint) {
         if (dataStore == null) {
             dataStore = new Import(deviceId, projectId);
         }
@@ -736,11 +1522,11 @@ public class Iobeam {
 
         DataStore store = seriesToBatch.get(seriesName);
         if (store == null) {
-            store = new DataStore(seriesName);
+            store = new DataStore(Arrays.asList(seriesName), storage, 1, storageDir);
             seriesToBatch.put(seriesName, store);
-            dataBatches.add(store);
+            trackDataStore(store);
         }
-        store.add(dataPoint.getTime(), seriesName, dataPoint.getValue());
+        return store;
     }
 
     /**
@@ -752,9 +1538,11 @@ public class Iobeam {
      */
     @Deprecated
     public void addData(String seriesName, DataPoint dataPoint) {
+        final DataStore store;
         synchronized (dataStoreLock) {
-            _addDataWithoutLock(seriesName, dataPoint);
+            store = _addDataWithoutLock(seriesName, dataPoint);
         }
+        store.add(dataPoint.getTime(), seriesName, dataPoint.getValue());
     }
 
     /**
@@ -774,11 +1562,15 @@ public class Iobeam {
             return false;
         }
 
+        final DataStore[] stores = new DataStore[seriesNames.length];
         synchronized (dataStoreLock) {
             for (int i = 0; i < seriesNames.length; i++) {
-                _addDataWithoutLock(seriesNames[i], points[i]);
+                stores[i] = _addDataWithoutLock(seriesNames[i], points[i]);
             }
         }
+        for (int i = 0; i < seriesNames.length; i++) {
+            stores[i].add(points[i].getTime(), seriesNames[i], points[i].getValue());
+        }
         return true;
     }
 
@@ -793,13 +1585,46 @@ public class Iobeam {
                     dataStore = new Import(deviceId, projectId);
                 }
 
-                String key = data.getData().getColumns().get(0);
-                DataStore db = seriesToBatch.get(key);
-                db.merge(data.getData());
+                // Coalesced legacy batches hold several series.
+                final List<String> columns = data.getData().getColumns();
+                for (String key : columns) {
+                    DataStore db = seriesToBatch.get(key);
+                    db.merge(columns.size() == 1 ? data.getData() :
+                             data.getData().project(Collections.singleton(key)));
+                }
+                trackReinserted(data);
             }
         } else {
-            final DataStore ds = getDataStore(data.getData().getColumns());
-            ds.merge(data.getData());
+            // Failed requests may complete concurrently, so merge back under the lock.
+            synchronized (dataStoreLock) {
+                final List<String> columns = data.getData().getColumns();
+                final DataStore exact = getDataStore(columns);
+                if (exact != null) {
+                    exact.merge(data.getData());
+                    trackReinserted(data);
+                    return;
+                }
+                // A coalesced batch: give each tracked DataStore its columns back. Batches
+                // recovered from the spool may not have a tracked DataStore yet.
+                final Set<String> left = new TreeSet<String>(columns);
+                for (DataStore ds : dataBatches) {
+                    if (!left.isEmpty() && left.containsAll(ds.getColumns())) {
+                        ds.merge(data.getData().project(ds.getColumns()));
+                        left.removeAll(ds.getColumns());
+                    }
+                }
+                if (!left.isEmpty()) {
+                    getOrAddDataStore(left).merge(data.getData().project(left));
+                }
+                trackReinserted(data);
+            }
+        }
+    }
+
+    // Must hold dataStoreLock, so that the batch is tracked together with its data being put back.
+    private void trackReinserted(final ImportBatch data) {
+        if (spool != null && spool.contains(data)) {
+            spoolReinserted.add(data);
         }
     }
 
@@ -811,7 +1636,7 @@ public class Iobeam {
      * @return DataStore for storing data for a given set of columns.
      */
     public DataStore createDataStore(Collection<String> columns) {
-        DataStore b = new DataStore(columns);
+        DataStore b = new DataStore(columns, storage, ingestStripes, storageDir);
         trackDataStore(b);
 
         return b;
@@ -828,6 +1653,46 @@ public class Iobeam {
         return createDataStore(Arrays.asList(columns));
     }
 
+    /**
+     * Creates a DataStore that aggregates the rows added to it over windows of time, e.g. to send
+     * the mean of a sensor sampled at 100 Hz once a second, and tracks it so that the aggregated
+     * rows will be sent on subsequent send calls. See {@link Rollup}.
+     *
+     * @param rollup Rollup to aggregate rows with; its output columns are the DataStore's columns.
+     * @return DataStore to add rows to, with the rollup's input columns.
+     */
+    public DataStore createDataStore(Rollup rollup) {
+        DataStore b = new DataStore(rollup, storage, ingestStripes, storageDir);
+        trackDataStore(b);
+
+        return b;
+    }
+
+    /**
+     * Creates a client that buffers and sends data for many devices at once, keyed by device ID,
+     * on top of this client's RestClient. It splits and coalesces requests as this client does,
+     * and keeps its data in {@link DataStore.Storage#COLUMNAR} DataStores unless this client was
+     * built with another non-default storage. See {@link MultiDeviceClient}.
+     *
+     * @return New multi-device client.
+     * @throws ApiException Thrown if the iobeam client is not initialized.
+     */
+    public MultiDeviceClient createMultiDeviceClient() throws ApiException {
+        if (!isInitialized()) {
+            throw new NotInitializedException();
+        }
+        final DataStore.Storage s =
+            storage == DataStore.Storage.MAP ? DataStore.Storage.COLUMNAR : storage;
+        MultiDeviceClient ret = new MultiDeviceClient(client, projectId, maxRequestPoints,
+                                                      maxRequestBytes, s, ingestStripes,
+                                                      storageDir, coalesceRequests, importCodec);
+        ret.setAutoRetry(autoRetry);
+        if (bufferLimit != null) {
+            ret.setBufferLimit(bufferLimit);
+        }
+        return ret;
+    }
+
     /**
      * Track a DataStore so that any data stored in it will be sent on subsequent send calls.
      *
@@ -840,14 +1705,24 @@ public class Iobeam {
     }
 
     /**
-     * Track a DataStore so that any data stored in it will be sent on subsequent send calls.
+     * Track a DataStore so that any data stored in it will be sent on subsequent send calls. If
+     * the client has a buffer limit, the DataStore counts against it.
      *
      * @param store DataStore to be tracked by this client.
      */
     public void trackDataStore(DataStore store) {
-        synchronized (dataStoreLock) {
-            dataBatches.add(store);
+        if (bufferLimit != null) {
+            store.setBufferLimit(bufferLimit);
         }
+        dataBatches.add(store);
+    }
+
+    /**
+     * @return The limit on the data buffered by this client, with counters of what it dropped,
+     * or null if it has none.
+     */
+    public BufferLimit getBufferLimit() {
+        return bufferLimit;
     }
 
     /**
@@ -857,10 +1732,8 @@ public class Iobeam {
      */
     public long getDataSize() {
         long size = 0;
-        synchronized (dataStoreLock) {
-            for (DataStore b : dataBatches) {
-                size += b.getDataSize();
-            }
+        for (DataStore b : dataBatches) {
+            size += b.getDataSize();
         }
         return size;
     }
@@ -905,42 +1778,101 @@ public class Iobeam {
             throw new ApiException("Device id not set, cannot send data.");
         }
 
-        // Synchronize so no more data is added to this object while we send.
-        final List<DataStore> stores;
+        // The lock keeps legacy series adds out. Each DataStore swaps its rows for empty storage
+        // in constant time, so the lock is held briefly regardless of how much data is buffered;
+        // the drained rows are encoded later, outside any lock. Concurrent adds go either into
+        // this send or the next one.
+        final List<DataStore> stores = new ArrayList<DataStore>(dataBatches.size());
+        final List<ImportBatch> reinserted;
         synchronized (dataStoreLock) {
             dataStore = null;
 
-            if (dataBatches != null) {
-                stores = new ArrayList<DataStore>(dataBatches.size());
-                for (DataStore b : dataBatches) {
-                    if (b.getRows().size() > 0) {
-                        stores.add(DataStore.snapshot(b));
-                        b.reset();
-                    }
+            for (DataStore b : dataBatches) {
+                DataStore drained = b.drain();
+                if (drained.getDataSize() > 0) {
+                    stores.add(drained);
                 }
-            } else {
-                stores = Collections.<DataStore>emptyList();
             }
+            // Their data was just drained, so it is spooled again below.
+            reinserted = new ArrayList<ImportBatch>(spoolReinserted);
+            spoolReinserted.clear();
+        }
+        final List<ImportBatch> recovered;
+        synchronized (dataStoreLock) {
+            recovered = new ArrayList<ImportBatch>(spoolRecovered);
+            spoolRecovered.clear();
         }
         // No data to send, log a warning and return an empty list.
-        if (stores.size() == 0) {
+        if (stores.size() == 0 && recovered.isEmpty()) {
+            // Any data put back was dropped since, e.g. by the buffer limit.
+            for (ImportBatch b : reinserted) {
+                spool.ack(b);
+            }
             logger.warning("No data to send.");
             return new ArrayList<ImportService.Submit>();
         }
 
-        List<ImportBatch> impBatches = new ArrayList<ImportBatch>();
+        final List<DataStore> legacyStores = new ArrayList<DataStore>();
+        final List<DataStore> bulkStores = new ArrayList<DataStore>();
         for (final DataStore store : stores) {
             boolean legacy = store.getColumns().size() == 1 &&
                              seriesToBatch.containsKey(store.getColumns().get(0));
             if (legacy) {
-                impBatches.add(ImportBatch.createLegacy(projectId, deviceId, store));
+                legacyStores.add(store);
             } else {
-                impBatches.add(new ImportBatch(projectId, deviceId, store));
+                bulkStores.add(store);
             }
         }
 
-        ImportService service = new ImportService(client);
-        return service.submit(impBatches);
+        List<ImportBatch> impBatches = new ArrayList<ImportBatch>(recovered);
+        for (final DataStore store : coalesceRequests ? DataStore.coalesce(legacyStores) :
+                                     legacyStores) {
+            impBatches.add(ImportBatch.createLegacy(projectId, deviceId, store));
+        }
+        for (final DataStore store : coalesceRequests ? DataStore.coalesce(bulkStores) :
+                                     bulkStores) {
+            impBatches.add(new ImportBatch(projectId, deviceId, store));
+        }
+
+        ImportService service = new ImportService(client, maxRequestPoints, maxRequestBytes,
+                                                  importCodec);
+        List<ImportService.Submit> reqs = service.submit(impBatches);
+        if (spool != null) {
+            spoolRequests(reqs, recovered, reinserted);
+        }
+        return reqs;
+    }
+
+    /**
+     * Writes the batches of requests about to be sent to the spool. Recovered batches that were
+     * split into several requests are replaced in the spool by their parts, and batches whose
+     * data was put back in memory by the requests that hold that data now.
+     */
+    private void spoolRequests(List<ImportService.Submit> reqs, List<ImportBatch> recovered,
+                               List<ImportBatch> reinserted) {
+        List<ImportBatch> batches = new ArrayList<ImportBatch>(reqs.size());
+        for (ImportService.Submit req : reqs) {
+            batches.add((ImportBatch) req.getBuilder().getContent());
+        }
+        try {
+            spool.append(batches);
+        } catch (IOException e) {
+            // Still worth sending; the data is just not protected against a crash. The old copies
+            // of put back data are kept until it is spooled again.
+            logger.warning("Could not write to spool: " + e.getMessage());
+            synchronized (dataStoreLock) {
+                spoolReinserted.addAll(reinserted);
+            }
+            return;
+        }
+        for (ImportBatch b : recovered) {
+            if (!batches.contains(b)) {
+                spool.ack(b);
+            }
+        }
+        for (ImportBatch b : reinserted) {
+            spool.ack(b);
+        }
     }
 
     /**
@@ -950,19 +1882,30 @@ public class Iobeam {
      * will be to a NEW data store.
      *
      * If `autoRetry` is set, failed requests will add the previous data to the new data store.
+     * While the client's circuit breaker is open, no data is sent, and a {@link
+     * CircuitBreaker.OpenException} is thrown.
      *
      * @throws ApiException Thrown is the client is not initialized or if the device id has not been
      *                      set.
      * @throws IOException  Thrown if there are network issues connecting to iobeam cloud.
      */
     public void send() throws ApiException, IOException {
+        if (isCircuitOpen()) {
+            throw new CircuitBreaker.OpenException();
+        }
         List<ImportService.Submit> reqs = prepareDataRequests();
         for (ImportService.Submit req : reqs) {
             try {
                 req.execute();
+                if (spool != null) {
+                    spool.ack((ImportBatch) req.getBuilder().getContent());
+                }
             } catch (Exception e) {
-                if (autoRetry) {
-                    ReinsertSendCallback cb = new ReinsertSendCallback(this, null);
+                SendCallback cb = sendCallback(null);
+                if (spool != null) {
+                    cb = new SpoolSendCallback(spool, cb);
+                }
+                if (cb != null) {
                     cb.innerCallback.failed(e, req);
                 }
 
@@ -995,6 +1938,8 @@ public class Iobeam {
      * will be run on the background thread when the operation completes.
      *
      * If `autoRetry` is set, failed requests will add the previous data to the new data store.
+     * While the client's circuit breaker is open, no data is sent; it stays buffered, and the
+     * callback's `onFailure()` is called with a {@link CircuitBreaker.OpenException} and no data.
      *
      * @param callback Callback for when the operation completes.
      * @throws IobeamException Thrown is the client is not initialized or if the device id has not
@@ -1002,6 +1947,13 @@ public class Iobeam {
      *                         the callback.
      */
     public void sendAsync(SendCallback callback) {
+        if (isCircuitOpen()) {
+            logger.fine("Circuit breaker open, keeping data buffered.");
+            if (callback != null) {
+                callback.onFailure(new CircuitBreaker.OpenException(), null);
+            }
+            return;
+        }
         List<ImportService.Submit> reqs;
         try {
             reqs = prepareDataRequests();
@@ -1015,14 +1967,37 @@ public class Iobeam {
             }
         }
 
+        SendCallback cb = sendCallback(callback);
+        if (spool != null) {
+            cb = new SpoolSendCallback(spool, cb);
+        }
         for (ImportService.Submit req : reqs) {
-            if (callback == null && !autoRetry) {
+            if (cb == null) {
                 req.executeAsync();
-            } else if (callback != null && !autoRetry) {
-                req.executeAsync(callback.innerCallback);
             } else {
-                req.executeAsync(new ReinsertSendCallback(this, callback).innerCallback);
+                req.executeAsync(cb.innerCallback);
             }
         }
     }
+
+    /**
+     * Wraps a user's callback for sent data in one that puts data back into the client when it
+     * needs to be sent again, if any.
+     */
+    private SendCallback sendCallback(SendCallback callback) {
+        if (autoRetry) {
+            return new ReinsertSendCallback(this, callback);
+        }
+        final RestClient client = this.client;
+        if (client != null && client.getCircuitBreaker() != null) {
+            return new UnsentSendCallback(this, callback);
+        }
+        return callback;
+    }
+
+    private boolean isCircuitOpen() {
+        final RestClient client = this.client;
+        return client != null && client.getCircuitBreaker() != null &&
+               !client.getCircuitBreaker().allowsRequests();
+    }
 }
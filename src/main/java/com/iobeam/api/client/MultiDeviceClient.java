@@ -0,0 +1,393 @@
+package com.iobeam.api.client;
+
+import com.iobeam.api.ApiException;
+import com.iobeam.api.IobeamException;
+import com.iobeam.api.resource.BufferLimit;
+import com.iobeam.api.resource.DataStore;
+import com.iobeam.api.resource.ImportBatch;
+import com.iobeam.api.service.ImportCodec;
+import com.iobeam.api.service.ImportService;
+import com.iobeam.util.concurrent.ListenableFuture;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Logger;
+
+/**
+ * Buffers and sends data for many devices of a project, e.g. on a gateway that aggregates the
+ * data of hundreds of downstream sensors, without an {@link Iobeam} object per device. Data is
+ * added per device ID to DataStores of that device, and `send()` drains the DataStores of all
+ * devices and sends them concurrently through one {@link ImportService}, as one import request
+ * (or more, if large) per device.
+ *
+ * Created with {@link Iobeam#createMultiDeviceClient()}, and sends with that client's RestClient,
+ * so the two share their connections, project token and threads. How many requests are in flight
+ * at once is set with {@link Iobeam.Builder#maxInFlight(int)}. Devices are not registered by this
+ * client; register them beforehand, e.g. with {@link com.iobeam.api.service.DeviceService}.
+ */
+public class MultiDeviceClient {
+
+    private static final Logger logger = Logger.getLogger(MultiDeviceClient.class.getName());
+
+    private final RestClient client;
+    private final long projectId;
+    private final ImportService service;
+    private final DataStore.Storage storage;
+    private final int ingestStripes;
+    private final File storageDir;
+    private final boolean coalesceRequests;
+    private volatile boolean autoRetry = false;
+    private volatile BufferLimit bufferLimit = null;
+    // The DataStores of each device. Lists are copy-on-write, since DataStores are added rarely
+    // but iterated on every send; adding to a list is synchronized on it.
+    private final ConcurrentMap<String, List<DataStore>> devices =
+        new ConcurrentHashMap<String, List<DataStore>>();
+
+    MultiDeviceClient(RestClient client, long projectId, int maxRequestPoints,
+                      long maxRequestBytes, DataStore.Storage storage, int ingestStripes,
+                      File storageDir, boolean coalesceRequests, ImportCodec importCodec) {
+        this.client = client;
+        this.projectId = projectId;
+        this.service = new ImportService(client, maxRequestPoints, maxRequestBytes, importCodec);
+        this.storage = storage;
+        this.ingestStripes = ingestStripes;
+        this.storageDir = storageDir;
+        this.coalesceRequests = coalesceRequests;
+    }
+
+    public boolean getAutoRetry() {
+        return this.autoRetry;
+    }
+
+    /**
+     * Sets whether the data of failed requests is put back into the buffers of its device, to be
+     * sent again with the next send.
+     *
+     * @param retry Whether to retry or not.
+     */
+    public void setAutoRetry(boolean retry) {
+        this.autoRetry = retry;
+    }
+
+    public BufferLimit getBufferLimit() {
+        return this.bufferLimit;
+    }
+
+    /**
+     * Sets a limit on the data buffered for all devices. The DataStores of the devices, those
+     * already added as well as those added from then on, count against it instead of any
+     * previous limit. See {@link BufferLimit}.
+     *
+     * @param limit Limit to count against, or null for none
+     */
+    public void setBufferLimit(BufferLimit limit) {
+        this.bufferLimit = limit;
+        for (List<DataStore> stores : devices.values()) {
+            // Stores are created and added under this lock, so none are missed.
+            final List<DataStore> existing;
+            synchronized (stores) {
+                existing = new ArrayList<DataStore>(stores);
+            }
+            for (DataStore ds : existing) {
+                if (ds.getBufferLimit() != limit) {
+                    ds.clearBufferLimit();
+                    if (limit != null) {
+                        ds.setBufferLimit(limit);
+                    }
+                }
+            }
+        }
+    }
+
+    private DataStore newDataStore(Collection<String> columns) {
+        final DataStore ret = new DataStore(columns, storage, ingestStripes, storageDir);
+        final BufferLimit limit = this.bufferLimit;
+        if (limit != null) {
+            ret.setBufferLimit(limit);
+        }
+        return ret;
+    }
+
+    private List<DataStore> getStores(String deviceId) {
+        if (deviceId == null) {
+            throw new IllegalArgumentException("deviceId cannot be null");
+        }
+        List<DataStore> stores = devices.get(deviceId);
+        if (stores == null) {
+            final List<DataStore> added = new CopyOnWriteArrayList<DataStore>();
+            stores = devices.putIfAbsent(deviceId, added);
+            if (stores == null) {
+                stores = added;
+            }
+        }
+        return stores;
+    }
+
+    /**
+     * Get the DataStore of a device for a collection of column names.
+     *
+     * @param deviceId Device the data belongs to
+     * @param columns  Collection of columns to find a corresponding DataStore for.
+     * @return DataStore corresponding to the columns, or null if not found.
+     */
+    public DataStore getDataStore(String deviceId, Collection<String> columns) {
+        final List<DataStore> stores = devices.get(deviceId);
+        if (stores != null) {
+            for (DataStore ds : stores) {
+                if (ds.hasColumns(columns)) {
+                    return ds;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the DataStore of a device for a collection of column names, adding a new one if
+     * necessary. Data added to it is sent on subsequent send calls.
+     *
+     * @param deviceId Device the data belongs to
+     * @param columns  Collection of columns to find a corresponding DataStore for.
+     * @return DataStore corresponding to the columns.
+     */
+    public DataStore getOrAddDataStore(String deviceId, Collection<String> columns) {
+        final List<DataStore> stores = getStores(deviceId);
+        synchronized (stores) {
+            DataStore ret = getDataStore(deviceId, columns);
+            if (ret == null) {
+                ret = newDataStore(columns);
+                stores.add(ret);
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * Get the DataStore of a device for a set of column names, adding a new one if necessary.
+     *
+     * @param deviceId Device the data belongs to
+     * @param columns  Columns of the DataStore
+     * @return DataStore corresponding to the columns.
+     */
+    public DataStore getOrAddDataStore(String deviceId, String... columns) {
+        return getOrAddDataStore(deviceId, Arrays.asList(columns));
+    }
+
+    /**
+     * Adds a row of data for a device, to the device's DataStore for the row's columns.
+     *
+     * @param deviceId  Device the data belongs to
+     * @param timestamp Time of the row
+     * @param data      Values of the row, by column
+     */
+    public void add(String deviceId, long timestamp, Map<String, Object> data) {
+        getOrAddDataStore(deviceId, data.keySet()).add(timestamp, data);
+    }
+
+    /**
+     * @return IDs of the devices that data has been added for.
+     */
+    public Set<String> getDeviceIds() {
+        return new TreeSet<String>(devices.keySet());
+    }
+
+    /**
+     * Returns the size of all of the data buffered for all devices.
+     *
+     * @return Number of buffered data values.
+     */
+    public long getDataSize() {
+        long size = 0;
+        for (String deviceId : devices.keySet()) {
+            size += getDataSize(deviceId);
+        }
+        return size;
+    }
+
+    /**
+     * Returns the size of the data buffered for a device.
+     *
+     * @param deviceId Device to query
+     * @return Number of buffered data values, or 0 for an unknown device.
+     */
+    public long getDataSize(String deviceId) {
+        final List<DataStore> stores = devices.get(deviceId);
+        if (stores == null) {
+            return 0;
+        }
+        long size = 0;
+        for (DataStore ds : stores) {
+            size += ds.getDataSize();
+        }
+        return size;
+    }
+
+    List<ImportService.Submit> prepareDataRequests() {
+        // Each DataStore swaps its rows for empty storage in constant time, so adds are not held
+        // up; the drained rows are encoded later, when the requests are sent.
+        final List<ImportBatch> batches = new ArrayList<ImportBatch>();
+        for (Map.Entry<String, List<DataStore>> device : devices.entrySet()) {
+            final List<DataStore> drained = new ArrayList<DataStore>();
+            for (DataStore ds : device.getValue()) {
+                final DataStore d = ds.drain();
+                if (d.getDataSize() > 0) {
+                    drained.add(d);
+                }
+            }
+            for (DataStore d : coalesceRequests ? DataStore.coalesce(drained) : drained) {
+                batches.add(new ImportBatch(projectId, device.getKey(), d));
+            }
+        }
+        if (batches.isEmpty()) {
+            logger.warning("No data to send.");
+        }
+        return service.submit(batches);
+    }
+
+    /**
+     * Puts the data of a failed request back into the buffers of its device.
+     */
+    private void addBulkData(final ImportBatch data) {
+        final List<DataStore> stores = getStores(data.getDeviceId());
+        final DataStore failed = data.getData();
+        final List<String> columns = failed.getColumns();
+        synchronized (stores) {
+            final DataStore exact = getDataStore(data.getDeviceId(), columns);
+            if (exact != null) {
+                exact.merge(failed);
+                return;
+            }
+            // A coalesced batch: give each DataStore of the device its columns back.
+            final Set<String> left = new TreeSet<String>(columns);
+            for (DataStore ds : stores) {
+                if (!left.isEmpty() && left.containsAll(ds.getColumns())) {
+                    ds.merge(failed.project(ds.getColumns()));
+                    left.removeAll(ds.getColumns());
+                }
+            }
+            if (!left.isEmpty()) {
+                final DataStore ds = newDataStore(left);
+                ds.merge(failed.project(left));
+                stores.add(ds);
+            }
+        }
+    }
+
+    /**
+     * Sends the buffered data of all devices to the iobeam cloud, with requests for different
+     * devices in flight concurrently. This call is <b>BLOCKING</b> until all requests have
+     * completed. Data added while sending goes into the next send.
+     *
+     * If `autoRetry` is set, the data of failed requests is put back into the buffers. While the
+     * RestClient's circuit breaker is open, no data is sent, and a {@link
+     * CircuitBreaker.OpenException} is thrown.
+     *
+     * @throws ApiException If a request is rejected; the first such failure is thrown once all
+     *                      requests have completed.
+     * @throws IOException  If there are network issues connecting to iobeam cloud.
+     */
+    public void send() throws ApiException, IOException {
+        if (isCircuitOpen()) {
+            throw new CircuitBreaker.OpenException();
+        }
+        final List<ImportService.Submit> reqs = prepareDataRequests();
+        final List<ListenableFuture<Void>> futures =
+            new ArrayList<ListenableFuture<Void>>(reqs.size());
+        for (ImportService.Submit req : reqs) {
+            futures.add(req.executeListenable());
+        }
+
+        Throwable failure = null;
+        for (int i = 0; i < reqs.size(); i++) {
+            try {
+                futures.get(i).get();
+            } catch (ExecutionException e) {
+                if (autoRetry || e.getCause() instanceof CircuitBreaker.OpenException) {
+                    addBulkData((ImportBatch) reqs.get(i).getBuilder().getContent());
+                }
+                if (failure == null) {
+                    failure = e.getCause();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while sending data");
+            }
+        }
+
+        if (failure instanceof ApiException) {
+            throw (ApiException) failure;
+        } else if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure != null) {
+            throw new IobeamException("Sending data failed: " + failure);
+        }
+    }
+
+    /**
+     * Asynchronous version of send() that will not block the calling thread. No callback provided,
+     * same as calling sendAsync(null).
+     */
+    public void sendAsync() {
+        sendAsync(null);
+    }
+
+    /**
+     * Asynchronous version of send() that will not block the calling thread. Any provided callback
+     * is called once for each request, on the thread that completes it; {@link
+     * ImportBatch#getDeviceId()} tells which device's data it holds.
+     *
+     * If `autoRetry` is set, the data of failed requests is put back into the buffers. While the
+     * RestClient's circuit breaker is open, no data is sent; it stays buffered, and the
+     * callback's `onFailure()` is called with a {@link CircuitBreaker.OpenException} and no data.
+     *
+     * @param callback Callback for when each request completes.
+     */
+    public void sendAsync(final SendCallback callback) {
+        if (isCircuitOpen()) {
+            logger.fine("Circuit breaker open, keeping data buffered.");
+            if (callback != null) {
+                callback.onFailure(new CircuitBreaker.OpenException(), null);
+            }
+            return;
+        }
+        final boolean keepAll = autoRetry;
+        final SendCallback cb = new SendCallback() {
+            @Override
+            public void onSuccess(ImportBatch data) {
+                if (callback != null) {
+                    callback.onSuccess(data);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable exc, ImportBatch data) {
+                if (keepAll || exc instanceof CircuitBreaker.OpenException) {
+                    addBulkData(data);
+                }
+                if (callback != null) {
+                    callback.onFailure(exc, data);
+                }
+            }
+        };
+        for (ImportService.Submit req : prepareDataRequests()) {
+            req.executeAsync(cb.innerCallback);
+        }
+    }
+
+    private boolean isCircuitOpen() {
+        final CircuitBreaker breaker = client.getCircuitBreaker();
+        return breaker != null && !breaker.allowsRequests();
+    }
+}
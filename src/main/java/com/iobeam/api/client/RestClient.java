@@ -7,32 +7,49 @@ import com.iobeam.api.auth.AuthHandler;
 import com.iobeam.api.auth.AuthToken;
 import com.iobeam.api.auth.ProjectBearerAuthToken;
 import com.iobeam.api.auth.UserBearerAuthToken;
+import com.iobeam.api.http.AsyncHttpTransport;
 import com.iobeam.api.http.ContentType;
+import com.iobeam.api.http.GzipRequestBody;
+import com.iobeam.api.http.HttpTransport;
+import com.iobeam.api.http.PooledHttpTransport;
+import com.iobeam.api.http.RequestBody;
 import com.iobeam.api.http.RequestBuilder;
 import com.iobeam.api.http.StatusCode;
+import com.iobeam.api.http.UrlConnectionTransport;
 import com.iobeam.api.resource.ResourceException;
 import com.iobeam.api.resource.ResourceMapper;
+import com.iobeam.util.concurrent.ListenableFuture;
+import com.iobeam.util.concurrent.ListenableFutureTask;
 import com.iobeam.util.concurrent.SameThreadExecutorService;
+import com.iobeam.util.concurrent.SettableFuture;
+import com.iobeam.util.concurrent.VirtualThreads;
+import com.iobeam.util.io.DeflaterPool;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.BufferedReader;
-import java.io.DataOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.net.CookieManager;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.LinkedList;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Logger;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPInputStream;
 
 /**
@@ -44,7 +61,14 @@ public class RestClient {
     public static final String DEFAULT_DEV_API_HOST = "https://api-dev.iobeam.com";
     public static final String DEFAULT_API_HOST = "https://api.iobeam.com";
     private static final int MAX_HTTP_RETRIES = 3;
+    // Largest error response body that is read to keep its connection alive for a retry.
+    private static final long MAX_DISCARDED_BYTES = 64 * 1024;
     private static final int DEFAULT_MAX_AUTH_ATTEMPTS = 3;
+    public static final long DEFAULT_CHUNKED_STREAMING_THRESHOLD = 64 * 1024;
+    public static final long DEFAULT_GZIP_REQUEST_THRESHOLD = 1024;
+    public static final int DEFAULT_GZIP_REQUEST_LEVEL = Deflater.DEFAULT_COMPRESSION;
+    private static final int MAX_IDLE_DEFLATERS = 4;
+    private static final Executor DIRECT_EXECUTOR = new SameThreadExecutorService();
     private final URL url;
     private final CookieManager cookieManager;
     private final ExecutorService executor;
@@ -54,6 +78,18 @@ public class RestClient {
     private AtomicReference<AuthToken> authToken = new AtomicReference<AuthToken>(null);
     private volatile int maxAuthAttempts = DEFAULT_MAX_AUTH_ATTEMPTS;
     private volatile boolean enableGzip = true;
+    private volatile long chunkedStreamingThreshold = DEFAULT_CHUNKED_STREAMING_THRESHOLD;
+    private volatile boolean gzipRequests = false;
+    private volatile long gzipRequestThreshold = DEFAULT_GZIP_REQUEST_THRESHOLD;
+    private volatile DeflaterPool deflaters =
+        new DeflaterPool(DEFAULT_GZIP_REQUEST_LEVEL, MAX_IDLE_DEFLATERS);
+    private volatile HttpTransport transport = new UrlConnectionTransport();
+    private volatile RetryPolicy retryPolicy = RetryPolicy.NONE;
+    private volatile CircuitBreaker circuitBreaker = null;
+    private volatile int maxAsyncRequests = 0;
+    // Requests waiting for one in flight to complete; guarded by itself, as is asyncInFlight.
+    private final LinkedList<AsyncSend> asyncQueue = new LinkedList<AsyncSend>();
+    private int asyncInFlight = 0;
 
     public RestClient() {
         // Executor that executes on the calling thread.
@@ -69,6 +105,11 @@ public class RestClient {
         this(DEFAULT_API_HOST, manager, new SameThreadExecutorService());
     }
 
+    /**
+     * @param executor Executor that async requests are run on, e.g., {@link
+     *                 VirtualThreads#newThreadPerTaskExecutor()} to run each on a virtual thread
+     *                 of its own.
+     */
     public RestClient(final ExecutorService executor) {
         this(DEFAULT_API_HOST, null, executor);
     }
@@ -100,6 +141,121 @@ public class RestClient {
         return this;
     }
 
+    /**
+     * Sets the estimated body size, in bytes, above which request bodies are sent with chunked
+     * transfer encoding. Such bodies are encoded straight into the connection while it sends,
+     * instead of first being measured or buffered to find their length. Bodies whose size cannot
+     * be estimated are always sent chunked.
+     *
+     * @param bytes Threshold in bytes; zero or less disables chunked streaming.
+     * @return This RestClient
+     */
+    public RestClient setChunkedStreamingThreshold(final long bytes) {
+        this.chunkedStreamingThreshold = bytes;
+        return this;
+    }
+
+    public long getChunkedStreamingThreshold() {
+        return chunkedStreamingThreshold;
+    }
+
+    /**
+     * Sets whether request bodies are gzip-compressed and sent with `Content-Encoding: gzip`.
+     * Only bodies estimated to be at least the gzip threshold in size are compressed.
+     *
+     * @param gzip Whether to compress request bodies.
+     * @return This RestClient
+     */
+    public RestClient setGzipRequests(final boolean gzip) {
+        this.gzipRequests = gzip;
+        return this;
+    }
+
+    public boolean getGzipRequests() {
+        return gzipRequests;
+    }
+
+    /**
+     * Sets the estimated body size, in bytes, below which request bodies are not compressed even
+     * if gzip requests are enabled.
+     *
+     * @param bytes Minimum body size to compress.
+     * @return This RestClient
+     */
+    public RestClient setGzipRequestThreshold(final long bytes) {
+        this.gzipRequestThreshold = bytes;
+        return this;
+    }
+
+    /**
+     * Sets the compression level for gzip request bodies.
+     *
+     * @param level Level from 0 (no compression) to 9 (best compression), or
+     *              Deflater.DEFAULT_COMPRESSION.
+     * @return This RestClient
+     */
+    public RestClient setGzipRequestLevel(final int level) {
+        if (level != deflaters.getLevel()) {
+            this.deflaters = new DeflaterPool(level, MAX_IDLE_DEFLATERS);
+        }
+        return this;
+    }
+
+    /**
+     * Sets the transport that connections for requests are opened with, e.g. a {@link
+     * PooledHttpTransport} to keep connections alive in a pool of this client. By default, the
+     * platform's HttpURLConnection keeps them alive (see {@link UrlConnectionTransport}).
+     *
+     * @param transport Transport to use
+     * @return This RestClient
+     */
+    public RestClient setTransport(final HttpTransport transport) {
+        if (transport == null) {
+            throw new IllegalArgumentException("transport cannot be null");
+        }
+        this.transport = transport;
+        return this;
+    }
+
+    public HttpTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Sets when and how soon failed requests are retried. By default, they are not (see {@link
+     * RetryPolicy#NONE}).
+     *
+     * @param policy Retry policy to use
+     * @return This RestClient
+     */
+    public RestClient setRetryPolicy(final RetryPolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException("policy cannot be null");
+        }
+        this.retryPolicy = policy;
+        return this;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Sets a circuit breaker that stops requests from being sent while the API appears to be down;
+     * they fail with a {@link CircuitBreaker.OpenException} instead. By default, there is none.
+     *
+     * @param breaker Circuit breaker to use, or null for none
+     * @return This RestClient
+     */
+    public RestClient setCircuitBreaker(final CircuitBreaker breaker) {
+        this.circuitBreaker = breaker;
+        return this;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
     public RestClient setAuthToken(final AuthToken token) {
         this.authToken.set(token);
         return this;
@@ -277,134 +433,677 @@ public class RestClient {
         return null;
     }
 
+    private RequestBody createRequestBody(final RequestBuilder builder) throws IOException {
+        final Object content = builder.getContent();
+
+        if (content == null) {
+            return null;
+        } else if (builder.getBody() != null) {
+            return builder.getBody();
+        } else if (builder.getContentType() == ContentType.JSON && mapper.canStreamJson(content)) {
+            // Encoded straight into the connection; only measured if a fixed length is needed.
+            return new RequestBody() {
+                @Override
+                public void writeTo(OutputStream out) throws IOException {
+                    mapper.writeJson(content, out);
+                }
+
+                @Override
+                public long getEstimatedLength() {
+                    return mapper.estimateJsonLength(content);
+                }
+
+                @Override
+                public long getContentLength() throws IOException {
+                    return mapper.getJsonLength(content);
+                }
+            };
+        } else if (builder.getContentType() == ContentType.JSON) {
+            return RequestBody.create(mapper.toJsonBytes(content));
+        } else if (builder.getContentType() == ContentType.URLENCODED) {
+            return RequestBody.create(content.toString().getBytes("UTF-8"));
+        }
+        return null;
+    }
+
+    private RequestBody compressRequestBody(final RequestBuilder builder, final RequestBody body) {
+        if (body != null && gzipRequests) {
+            final long estimate = body.getEstimatedLength();
+
+            if (estimate < 0 || estimate >= gzipRequestThreshold) {
+                builder.setHeader("Content-Encoding", "gzip");
+                return new GzipRequestBody(body, deflaters);
+            } else {
+                builder.removeHeader("Content-Encoding");
+            }
+        }
+        return body;
+    }
+
+    private void authorize(final HttpURLConnection conn, final boolean forceRefreshToken) {
+        AuthToken token = authToken.get();
+        final AuthHandler handler = authHandler.get();
+
+        if ((token == null || !token.isValid()) && handler != null) {
+            refreshAuthToken(handler, forceRefreshToken);
+        }
+
+        token = authToken.get();
+
+        if (token != null && token.isValid()) {
+            conn.setRequestProperty("Authorization",
+                                    token.getType() + " " +
+                                    token.getToken());
+        }
+    }
+
+    // Reads the content of a response, which must have the expected status code.
+    private <T> T readResponse(final HttpURLConnection conn,
+                               final StatusCode statusCode,
+                               final StatusCode expectedStatusCode,
+                               final Class<T> responseClass)
+        throws ApiException, IOException {
+        // Read the content. This will return null if no content,
+        // throw an exception in case of error message,
+        // or return the expected content object
+        final T result = readContent(conn, statusCode, responseClass);
+
+        if (statusCode != expectedStatusCode) {
+            logger.fine("Status code: " + statusCode);
+            throw new ApiException("Expected response code "
+                                   + expectedStatusCode
+                                   + " got " + statusCode);
+        }
+        return result;
+    }
+
     public <T> T executeRequest(final RequestBuilder builder,
                                 final StatusCode expectedStatusCode,
                                 final Class<T> responseClass,
                                 final boolean needAuth)
         throws IOException, ApiException {
+        retryPolicy.onRequest();
+        return executeRequest(builder, expectedStatusCode, responseClass, needAuth, 0, 0, false);
+    }
 
-        final Object content = builder.getContent();
-        byte[] output = null;
+    /**
+     * Executes a request, which may be a retry of a failed one.
+     *
+     * @param retries     Number of retries already made under the retry policy
+     * @param delayMillis Time to wait before sending the request
+     * @param acquired    Whether the circuit breaker has already let the request through
+     */
+    private <T> T executeRequest(final RequestBuilder builder,
+                                 final StatusCode expectedStatusCode,
+                                 final Class<T> responseClass,
+                                 final boolean needAuth,
+                                 int retries,
+                                 long delayMillis,
+                                 final boolean acquired)
+        throws IOException, ApiException {
 
-        if (content == null) {
-            builder.setContentLength(0)
-                .addHeader("Content-Length", "0");
-        } else if (builder.getContentType() == ContentType.JSON) {
-            output = mapper.toJsonBytes(content);
-            builder.setContentLength(output.length);
-        } else if (builder.getContentType() == ContentType.URLENCODED) {
-            output = content.toString().getBytes("UTF-8");
-            builder.setContentLength(output.length);
+        final CircuitBreaker breaker = this.circuitBreaker;
+        if (breaker != null && !acquired && !breaker.tryAcquire()) {
+            throw new CircuitBreaker.OpenException();
         }
 
-        builder.setEnableGzip(enableGzip);
+        final RequestBody body;
+        final boolean writeBody;
+        try {
+            body = compressRequestBody(builder, createRequestBody(builder));
 
-        /*
-            Do connection retries due to weird behavior in Android's HttpURLConnection.
-            Apparently, a connection can be reused although the server has closed it, causing
-            a EOFException when trying to read the response.
+            if (body == null) {
+                builder.setContentLength(0)
+                    .addHeader("Content-Length", "0");
+            } else {
+                final long estimate = body.getEstimatedLength();
+                final long threshold = chunkedStreamingThreshold;
 
-            http://stackoverflow.com/questions/17208336/getting-java-io-eofexception-using-httpurlconnection
-         */
-        T result = null;
-        HttpURLConnection conn = null;
-        DataOutputStream out = null;
-        int retryCount = 0;
-        boolean forceRefreshToken = false;
+                if (threshold > 0 && (estimate < 0 || estimate > threshold)) {
+                    builder.setChunkedStreaming(true);
+                } else {
+                    builder.setContentLength(body.getContentLength());
+                }
+            }
+            writeBody = body != null &&
+                        (builder.isChunkedStreaming() || builder.getContentLength() > 0);
+
+            builder.setEnableGzip(enableGzip);
+        } catch (IOException e) {
+            releaseBreaker(breaker);
+            throw e;
+        } catch (RuntimeException e) {
+            releaseBreaker(breaker);
+            throw e;
+        }
 
-        while (!Thread.currentThread().isInterrupted()) {
-            try {
-                conn = builder.build();
+        // Whether the API handled the last attempt, which is what the circuit breaker records.
+        boolean reached = false;
+        try {
+            /*
+                Do connection retries due to weird behavior in Android's HttpURLConnection.
+                Apparently, a connection can be reused although the server has closed it, causing
+                a EOFException when trying to read the response.
+
+                https://stackoverflow.com/q/17208336
+             */
+            T result = null;
+            final HttpTransport transport = this.transport;
+            final RetryPolicy policy = this.retryPolicy;
+            HttpURLConnection conn = null;
+            OutputStream out = null;
+            int retryCount = 0;
+            boolean forceRefreshToken = false;
+
+            while (!Thread.currentThread().isInterrupted()) {
+                if (delayMillis > 0) {
+                    sleep(delayMillis);
+                    delayMillis = 0;
+                    // Other requests may have opened the breaker in the meantime.
+                    if (breaker != null && breaker.getState() == CircuitBreaker.State.OPEN) {
+                        throw new CircuitBreaker.OpenException();
+                    }
+                }
+                reached = false;
+                // Whether the exchange failed midway, so the connection cannot be reused.
+                boolean broken = false;
+                try {
+                    conn = transport.open(builder);
 
-                if (needAuth) {
-                    AuthToken token = authToken.get();
-                    final AuthHandler handler = authHandler.get();
+                    if (needAuth) {
+                        authorize(conn, forceRefreshToken);
+                    }
+
+                    conn.connect();
+                    logger.info(conn.getRequestMethod() + " " + conn.getURL());
 
-                    if ((token == null || !token.isValid()) && handler != null) {
-                        refreshAuthToken(handler, forceRefreshToken);
+                    if (writeBody) {
+                        out = conn.getOutputStream();
+                        body.writeTo(out);
+                        out.flush();
+                        out.close();
+                        out = null;
                     }
 
-                    token = authToken.get();
+                    if (conn.getDoInput()) {
+                        final int code = conn.getResponseCode();
+                        final StatusCode statusCode = StatusCode.fromValue(code);
+                        reached = !CircuitBreaker.isFailure(code);
+
+                        if (statusCode == StatusCode.UNAUTHORIZED) {
+                            logger.info("Authentication failure (401)");
+                            if ((retryCount++ < MAX_HTTP_RETRIES)) {
+                                forceRefreshToken = true;
+                                setAuthToken(null);
+                                broken = !discardErrorResponse(conn);
+                                continue;
+                            }
+                        }
 
-                    if (token != null && token.isValid()) {
-                        conn.setRequestProperty("Authorization",
-                                                token.getType() + " " +
-                                                token.getToken());
+                        delayMillis = retryDelay(policy, retries, policy.isRetryable(code), conn);
+                        if (delayMillis >= 0) {
+                            retries++;
+                            logger.warning("Request failed (" + code + "), retrying in " +
+                                           delayMillis + " ms (" + retries + ")");
+                            broken = !discardErrorResponse(conn);
+                            continue;
+                        }
+                        delayMillis = 0;
+
+                        result = readResponse(conn, statusCode, expectedStatusCode, responseClass);
+                    } else {
+                        logger.fine("Connection can't do input");
+                    }
+                    logger.fine("Request successful.");
+                    reached = true;
+                    break;
+                } catch (IOException e) {
+                    broken = true;
+                    if (e instanceof EOFException && retryCount++ < MAX_HTTP_RETRIES) {
+                        logger.warning("Request failed, retrying... (" + retryCount + ")");
+                        continue;
+                    }
+                    delayMillis = retryDelay(policy, retries, policy.isRetryable(e), null);
+                    if (delayMillis < 0) {
+                        throw e;
+                    }
+                    retries++;
+                    logger.warning("Request failed (" + e + "), retrying in " + delayMillis +
+                                   " ms (" + retries + ")");
+                } catch (RuntimeException e) {
+                    broken = true;
+                    logger.fine("Got exception: " + e.getMessage());
+                    throw e;
+                } finally {
+
+                    if (out != null) {
+                        out.close();
+                        out = null;
+                    }
+
+                    // Not disconnected, so that the transport can keep the connection alive.
+                    if (conn != null) {
+                        transport.release(conn, !broken);
+                        conn = null;
                     }
                 }
+            }
 
-                conn.connect();
-                logger.info(conn.getRequestMethod() + " " + conn.getURL());
+            if (result == null && !responseClass.equals(Void.class)) {
+                throw new ApiException("Unexpected empty response");
+            }
+            return result;
+        } finally {
+            if (breaker != null) {
+                if (reached) {
+                    breaker.onSuccess();
+                } else {
+                    breaker.onFailure();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads and closes the body of an error response that is not going to be used, so that the
+     * transport can keep the connection alive.
+     *
+     * @param conn Connection with the error response
+     * @return Whether the whole body was read, i.e., the connection can be reused.
+     */
+    private static boolean discardErrorResponse(final HttpURLConnection conn) {
+        final InputStream in = conn.getErrorStream();
+        if (in == null) {
+            return true;
+        }
+        try {
+            final byte[] buf = new byte[1024];
+            long left = MAX_DISCARDED_BYTES;
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                left -= n;
+                if (left < 0) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // Ignore, the connection is released next.
+            }
+        }
+    }
+
+    /**
+     * Returns how long to wait before retrying a failed request, taking the retry from the
+     * policy's budget, or -1 if it is not to be retried.
+     *
+     * @param policy    Retry policy
+     * @param retries   Number of retries already made
+     * @param retryable Whether the policy retries this kind of failure
+     * @param conn      Connection with the failed response, or null if there is none
+     */
+    private static long retryDelay(final RetryPolicy policy, final int retries,
+                                   final boolean retryable, final HttpURLConnection conn) {
+        if (!retryable || retries >= policy.getMaxRetries()) {
+            return -1;
+        }
+        final long retryAfter = conn == null ? -1 :
+                                RetryPolicy.parseRetryAfter(conn.getHeaderField("Retry-After"),
+                                                            System.currentTimeMillis());
+        final long delay = policy.getDelayMillis(retries + 1, retryAfter);
+        if (delay < 0) {
+            logger.info("Server asked to retry after " + retryAfter + " ms, not retrying");
+            return -1;
+        }
+        if (!policy.tryAcquireRetry()) {
+            logger.info("Retry budget exhausted, not retrying");
+            return -1;
+        }
+        return delay;
+    }
+
+    // The request was not sent, so the breaker learns nothing from it.
+    private static void releaseBreaker(final CircuitBreaker breaker) {
+        if (breaker != null) {
+            breaker.release();
+        }
+    }
+
+    private static void sleep(final long millis) throws InterruptedIOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry");
+        }
+    }
+
+    /**
+     * Executes a request without blocking the calling thread. If the transport is an {@link
+     * AsyncHttpTransport}, the request does not block any thread while it is in flight, and at
+     * most {@link #setMaxAsyncRequests(int)} such requests are sent at once. Otherwise, or if the
+     * auth token first needs to be refreshed, the request is executed on the executor service.
+     * <p>
+     * An asynchronous transport needs the whole request body in memory, so only bodies up to the
+     * {@link #setChunkedStreamingThreshold(long) chunked streaming threshold} are sent that way;
+     * larger ones, and those of unknown size, are streamed from the executor service instead.
+     *
+     * @param builder            Request to execute
+     * @param expectedStatusCode Status code of a successful response
+     * @param responseClass      Class of the response content
+     * @param needAuth           Whether the request is authorized with the auth token
+     * @return Future result of the request.
+     */
+    public <T> ListenableFuture<T> executeRequestAsync(final RequestBuilder builder,
+                                                       final StatusCode expectedStatusCode,
+                                                       final Class<T> responseClass,
+                                                       final boolean needAuth) {
+        final HttpTransport transport = this.transport;
+        final Callable<T> blocking = new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                return executeRequest(builder, expectedStatusCode, responseClass, needAuth);
+            }
+        };
+
+        if (!(transport instanceof AsyncHttpTransport) ||
+            (needAuth && !hasValidAuthToken() && authHandler.get() != null)) {
+            return submitListenable(blocking);
+        }
+        final CircuitBreaker breaker = this.circuitBreaker;
+        if (breaker != null && !breaker.tryAcquire()) {
+            final SettableFuture<T> failed = new SettableFuture<T>();
+            failed.setException(new CircuitBreaker.OpenException());
+            return failed;
+        }
+        retryPolicy.onRequest();
+
+        final SettableFuture<T> future = new SettableFuture<T>();
+        startAsync(new AsyncSend() {
+            @Override
+            boolean start() {
+                return sendAsync((AsyncHttpTransport) transport, builder, expectedStatusCode,
+                                 responseClass, needAuth, future);
+            }
+
+            @Override
+            void fail(final Exception e) {
+                releaseBreaker(breaker);
+                future.setException(e);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Sets how many requests sent with {@link #executeRequestAsync(RequestBuilder, StatusCode,
+     * Class, boolean)} over an asynchronous transport may be in flight at once; further requests
+     * wait for one of them to complete. A request that is retried keeps its place until its last
+     * attempt completes.
+     *
+     * @param max Maximum number of requests in flight; 0 for no limit.
+     * @return This RestClient
+     */
+    public RestClient setMaxAsyncRequests(final int max) {
+        this.maxAsyncRequests = max;
+        return this;
+    }
+
+    // A request sent with sendAsync(), which may have to wait for one in flight to complete.
+    private abstract class AsyncSend implements Runnable {
+
+        // Starts sending the request; returns false if it failed before it was sent.
+        abstract boolean start();
+
+        // Fails the request without sending it.
+        abstract void fail(Exception e);
+
+        @Override
+        public final void run() {
+            // Requests that fail before they are sent pass their place on here, rather than
+            // through asyncDone(), so that a run of them does not recurse.
+            AsyncSend send = this;
+            while (send != null && !send.start()) {
+                send = pollAsync();
+            }
+        }
+    }
 
-                if (output != null) {
-                    out = new DataOutputStream(conn.getOutputStream());
-                    out.write(output);
-                    out.flush();
-                    out.close();
-                    out = null;
+    private void startAsync(final AsyncSend send) {
+        synchronized (asyncQueue) {
+            final int max = maxAsyncRequests;
+            if (max > 0 && asyncInFlight >= max) {
+                asyncQueue.add(send);
+                return;
+            }
+            asyncInFlight++;
+        }
+        send.run();
+    }
+
+    // Passes the place of a request that is done on to the next queued one, which is returned,
+    // or frees it if there is none.
+    private AsyncSend pollAsync() {
+        synchronized (asyncQueue) {
+            final AsyncSend next = asyncQueue.poll();
+            if (next == null) {
+                asyncInFlight--;
+            }
+            return next;
+        }
+    }
+
+    // Called once a request in flight is done. The next queued request is started on the
+    // executor, not on the transport thread that completed this one.
+    private void asyncDone() {
+        AsyncSend next = pollAsync();
+        while (next != null) {
+            try {
+                executor.execute(next);
+                return;
+            } catch (RejectedExecutionException e) {
+                next.fail(e);
+                next = pollAsync();
+            }
+        }
+    }
+
+    // Sends a request on the executor, e.g., to retry it; it keeps its place among those in
+    // flight until that completes. Returns false if the executor rejected it.
+    private <T> boolean sendOnExecutor(final Callable<T> send,
+                                       final CircuitBreaker breaker,
+                                       final SettableFuture<T> future) {
+        final ListenableFuture<T> result;
+        try {
+            result = submitListenable(send);
+        } catch (RejectedExecutionException e) {
+            releaseBreaker(breaker);
+            future.setException(e);
+            return false;
+        }
+        forward(result, future);
+        result.addListener(new Runnable() {
+            @Override
+            public void run() {
+                asyncDone();
+            }
+        }, DIRECT_EXECUTOR);
+        return true;
+    }
+
+    // Starts sending a request; returns false if it failed before it was sent.
+    private <T> boolean sendAsync(final AsyncHttpTransport transport,
+                               final RequestBuilder builder,
+                               final StatusCode expectedStatusCode,
+                               final Class<T> responseClass,
+                               final boolean needAuth,
+                               final SettableFuture<T> future) {
+        final RetryPolicy policy = this.retryPolicy;
+        // Let the request through in executeRequestAsync(); told the outcome once it is known.
+        final CircuitBreaker breaker = this.circuitBreaker;
+        final HttpURLConnection conn;
+        final ListenableFuture<HttpURLConnection> sent;
+        try {
+            final RequestBody raw = createRequestBody(builder);
+            final long threshold = chunkedStreamingThreshold;
+            if (raw != null && threshold > 0) {
+                final long estimate = raw.getEstimatedLength();
+                if (estimate < 0 || estimate > threshold) {
+                    // Too large to buffer; executeRequest() streams it instead.
+                    return sendOnExecutor(retry(builder, expectedStatusCode, responseClass,
+                                                needAuth, 0, 0),
+                                          breaker, future);
                 }
+            }
+            final RequestBody body = compressRequestBody(builder, raw);
+            byte[] bytes = null;
+            if (body != null) {
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                body.writeTo(out);
+                bytes = out.toByteArray();
+            }
+            builder.setContentLength(bytes != null ? bytes.length : 0)
+                .setEnableGzip(enableGzip);
 
-                if (conn.getDoInput()) {
+            conn = transport.open(builder);
+            if (needAuth) {
+                authorize(conn, false);
+            }
+            logger.info(conn.getRequestMethod() + " " + conn.getURL());
+            sent = transport.sendAsync(conn, bytes);
+        } catch (Exception e) {
+            releaseBreaker(breaker);
+            future.setException(e);
+            return false;
+        }
+
+        sent.addListener(new Runnable() {
+            @Override
+            public void run() {
+                boolean broken = false;
+                // Whether the request was handed to the executor, which frees its place.
+                boolean handedOff = false;
+                try {
+                    sent.get();
                     final StatusCode statusCode = StatusCode.fromValue(conn.getResponseCode());
 
-                    if (statusCode == StatusCode.UNAUTHORIZED) {
+                    if (needAuth && statusCode == StatusCode.UNAUTHORIZED) {
+                        // The token was rejected; refreshing it blocks, so retry on the executor.
                         logger.info("Authentication failure (401)");
-                        if ((retryCount++ < MAX_HTTP_RETRIES)) {
-                            forceRefreshToken = true;
-                            setAuthToken(null);
-                            continue;
+                        setAuthToken(null);
+                        handedOff = sendOnExecutor(retry(builder, expectedStatusCode,
+                                                         responseClass, needAuth, 0, 0),
+                                                   breaker, future);
+                        return;
+                    }
+                    final long delay = retryDelay(policy, 0,
+                                                  policy.isRetryable(conn.getResponseCode()),
+                                                  conn);
+                    if (delay >= 0) {
+                        logger.warning("Request failed (" + conn.getResponseCode() +
+                                       "), retrying in " + delay + " ms (1)");
+                        handedOff = sendOnExecutor(retry(builder, expectedStatusCode,
+                                                         responseClass, needAuth, 1, delay),
+                                                   breaker, future);
+                        return;
+                    }
+                    if (breaker != null) {
+                        if (CircuitBreaker.isFailure(conn.getResponseCode())) {
+                            breaker.onFailure();
+                        } else {
+                            breaker.onSuccess();
                         }
                     }
 
-                    // Read the content. This will return null if no content,
-                    // throw an exception in case of error message,
-                    // or return the expected content object
-                    result = readContent(conn,
-                                         statusCode,
-                                         responseClass);
-
-                    if (statusCode != expectedStatusCode) {
-                        logger.fine("Status code: " + statusCode);
-                        throw new ApiException("Expected response code "
-                                               + expectedStatusCode
-                                               + " got " + statusCode);
+                    final T result = readResponse(conn, statusCode, expectedStatusCode,
+                                                  responseClass);
+                    if (result == null && !responseClass.equals(Void.class)) {
+                        throw new ApiException("Unexpected empty response");
+                    }
+                    future.set(result);
+                } catch (ExecutionException e) {
+                    broken = true;
+                    final Throwable cause = e.getCause();
+                    final long delay = !(cause instanceof IOException) ? -1 :
+                                       retryDelay(policy, 0,
+                                                  policy.isRetryable((IOException) cause), null);
+                    if (delay >= 0) {
+                        logger.warning("Request failed (" + cause + "), retrying in " + delay +
+                                       " ms (1)");
+                        handedOff = sendOnExecutor(retry(builder, expectedStatusCode,
+                                                         responseClass, needAuth, 1, delay),
+                                                   breaker, future);
+                    } else {
+                        if (breaker != null) {
+                            breaker.onFailure();
+                        }
+                        future.setException(cause);
+                    }
+                } catch (Exception e) {
+                    future.setException(e);
+                } finally {
+                    transport.release(conn, !broken);
+                    if (!handedOff) {
+                        asyncDone();
                     }
-                } else {
-                    logger.fine("Connection can't do input");
-                }
-                logger.fine("Request successful.");
-                break;
-            } catch (EOFException e) {
-                if (retryCount++ == MAX_HTTP_RETRIES) {
-                    throw e;
-                }
-                logger.warning("Request failed, retrying... (" + retryCount + ")");
-            } catch (RuntimeException e) {
-                logger.fine("Got exception: " + e.getMessage());
-                throw e;
-            } finally {
-
-                if (out != null) {
-                    out.close();
-                    out = null;
                 }
+            }
+        }, DIRECT_EXECUTOR);
+        return true;
+    }
 
-                if (conn != null) {
-                    conn.disconnect();
-                    conn = null;
-                }
+    // Sends a request again on the executor (which waits out the delay), as part of the same
+    // request for the circuit breaker.
+    private <T> Callable<T> retry(final RequestBuilder builder,
+                                  final StatusCode expectedStatusCode,
+                                  final Class<T> responseClass,
+                                  final boolean needAuth,
+                                  final int retries,
+                                  final long delayMillis) {
+        return new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                return executeRequest(builder, expectedStatusCode, responseClass, needAuth,
+                                      retries, delayMillis, true);
             }
-        }
+        };
+    }
 
-        if (result == null && !responseClass.equals(Void.class)) {
-            throw new ApiException("Unexpected empty response");
-        }
-        return result;
+    // Completes a future with the result of another.
+    private static <T> void forward(final ListenableFuture<T> from, final SettableFuture<T> to) {
+        from.addListener(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    to.set(from.get());
+                } catch (ExecutionException e) {
+                    to.setException(e.getCause());
+                } catch (Exception e) {
+                    to.setException(e);
+                }
+            }
+        }, DIRECT_EXECUTOR);
     }
 
     public <V> Future<V> submit(final Callable<V> callable) {
-        return executor.submit(callable);
+        return submitListenable(callable);
+    }
 
+    /**
+     * Like {@link #submit(Callable)}, but returns a future that listeners can be added to.
+     *
+     * @param callable Task to run on this client's executor service
+     * @return A future result of the task.
+     */
+    public <V> ListenableFuture<V> submitListenable(final Callable<V> callable) {
+        final ListenableFutureTask<V> task = new ListenableFutureTask<V>(callable);
+        executor.execute(task);
+        return task;
     }
 
     public ExecutorService getExecutorService() {
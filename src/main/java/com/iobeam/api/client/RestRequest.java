@@ -5,9 +5,12 @@ import com.iobeam.api.http.ContentType;
 import com.iobeam.api.http.RequestBuilder;
 import com.iobeam.api.http.RequestMethod;
 import com.iobeam.api.http.StatusCode;
+import com.iobeam.util.concurrent.ListenableFuture;
+import com.iobeam.util.concurrent.SameThreadExecutorService;
+import com.iobeam.util.concurrent.SettableFuture;
 
 import java.io.IOException;
-import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
 
@@ -16,6 +19,8 @@ import java.util.concurrent.Future;
  */
 public abstract class RestRequest<T> {
 
+    private static final Executor DIRECT_EXECUTOR = new SameThreadExecutorService();
+
     private final RestClient client;
     private final RequestBuilder builder;
     private final StatusCode expectedCode;
@@ -92,65 +97,89 @@ public abstract class RestRequest<T> {
 
     /**
      * Execute the REST request asynchronously and call the given handler when the operation
-     * completes. While the request itself is executed on the client's executor service, the handler
-     * runs on the executor service given as a parameter.
+     * completes. While the request itself is executed by the client, the handler runs on the
+     * executor service given as a parameter.
      *
      * @param handler  the handler to run once the request completes, or failure occurs.
      * @param executor the executor to run the handler on.
      * @return A future result of the asynchronous operation.
      */
-    public Future<T> executeAsync(final RestCallback<T> handler,
-                                  final Executor executor) {
-
-        return client.submit(new Callable<T>() {
+    public Future<T> executeAsync(final RestCallback<T> handler, final Executor executor) {
+        return executeListenable(handler, executor);
+    }
 
+    /**
+     * Like {@link #executeAsync(RestCallback, Executor)}, but returns a future that listeners can
+     * be added to.
+     *
+     * @param handler  the handler to run once the request completes, or failure occurs.
+     * @param executor the executor to run the handler on.
+     * @return A future result of the asynchronous operation.
+     */
+    public ListenableFuture<T> executeListenable(final RestCallback<T> handler,
+                                                 final Executor executor) {
+        final ListenableFuture<T> future = executeListenable();
+        future.addListener(new Runnable() {
             @Override
-            public T call() throws Exception {
-                try {
-                    final T result = execute();
-                    executor.execute(new Runnable() {
-                        @Override
-                        public void run() {
-                            handler.completed(result, RestRequest.this);
-                        }
-                    });
-                    return result;
-                } catch (final Exception e) {
-                    executor.execute(new Runnable() {
-                        @Override
-                        public void run() {
-                            handler.failed(e, RestRequest.this);
-                        }
-                    });
-                    throw e;
-                }
+            public void run() {
+                callHandler(future, handler);
             }
-        });
+        }, executor);
+        return future;
     }
 
     /**
      * Execute the REST request asynchronously and call the given handler when the operation
-     * completes. The handler runs on the REST client's executor service.
+     * completes. The handler runs on the thread that completes the request, i.e., on the REST
+     * client's executor service unless the client's transport is asynchronous. The returned
+     * future completes after the handler has run.
      *
      * @param handler the handler to run once the request completes, or failure occurs.
      * @return A future result of the asynchronous operation.
      */
     public Future<T> executeAsync(final RestCallback<T> handler) {
+        return executeListenable(handler);
+    }
 
-        return client.submit(new Callable<T>() {
-
+    /**
+     * Like {@link #executeAsync(RestCallback)}, but returns a future that listeners can be added
+     * to.
+     *
+     * @param handler the handler to run once the request completes, or failure occurs.
+     * @return A future result of the asynchronous operation.
+     */
+    public ListenableFuture<T> executeListenable(final RestCallback<T> handler) {
+        final ListenableFuture<T> request = executeListenable();
+        final SettableFuture<T> future = new SettableFuture<T>();
+        request.addListener(new Runnable() {
             @Override
-            public T call() throws Exception {
+            public void run() {
+                callHandler(request, handler);
                 try {
-                    final T result = execute();
-                    handler.completed(result, RestRequest.this);
-                    return result;
+                    future.set(request.get());
+                } catch (ExecutionException e) {
+                    future.setException(e.getCause());
                 } catch (Exception e) {
-                    handler.failed(e, RestRequest.this);
-                    throw e;
+                    future.setException(e);
                 }
             }
-        });
+        }, DIRECT_EXECUTOR);
+        return future;
+    }
+
+    // Passes the result of a completed request to a handler.
+    private void callHandler(final ListenableFuture<T> request, final RestCallback<T> handler) {
+        final T result;
+        try {
+            result = request.get();
+        } catch (ExecutionException e) {
+            handler.failed(e.getCause(), this);
+            return;
+        } catch (Exception e) {
+            handler.failed(e, this);
+            return;
+        }
+        handler.completed(result, this);
     }
 
     /**
@@ -159,13 +188,15 @@ public abstract class RestRequest<T> {
      * @return A future result of the asynchronous operation.
      */
     public Future<T> executeAsync() {
+        return executeListenable();
+    }
 
-        return client.submit(new Callable<T>() {
-
-            @Override
-            public T call() throws Exception {
-                return execute();
-            }
-        });
+    /**
+     * Like {@link #executeAsync()}, but returns a future that listeners can be added to.
+     *
+     * @return A future result of the asynchronous operation.
+     */
+    public ListenableFuture<T> executeListenable() {
+        return client.executeRequestAsync(this.builder, expectedCode, responseClass, needAuth);
     }
 }
@@ -0,0 +1,262 @@
+package com.iobeam.api.client;
+
+import com.iobeam.api.http.StatusCode;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeSet;
+
+/**
+ * When and how soon a {@link RestClient} retries failed requests. Requests that fail with an I/O
+ * error, or with a status code the policy lists (by default 429, 502, 503 and 504), are retried
+ * up to `maxRetries` times. Before retry n, the client waits a random time of up to `baseDelay *
+ * 2^(n-1)`, capped at `maxDelay` ("full jitter"), so that clients that failed together do not
+ * retry together. A `Retry-After` header on the response is honored as the least wait; if it asks
+ * for more than `maxDelay`, the request is not retried.
+ *
+ * Retries also draw from a retry budget: every request adds `budgetRatio` of a retry to the
+ * budget, up to `budgetReserve`, and each retry takes one. During an outage, retries thus add at
+ * most `budgetRatio` to the load the clients put on the API, rather than multiplying it. The
+ * budget is kept by the policy, so clients that share a policy share their budget.
+ *
+ * Note that a request whose response was lost may have been processed, so retrying an import
+ * can import the same data twice.
+ */
+public final class RetryPolicy {
+
+    public static final int DEFAULT_MAX_RETRIES = 3;
+    public static final long DEFAULT_BASE_DELAY_MILLIS = 500;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 30 * 1000;
+    public static final double DEFAULT_BUDGET_RATIO = 0.1;
+    public static final int DEFAULT_BUDGET_RESERVE = 10;
+
+    /**
+     * Policy that does not retry. Connections that the server closed while they were idle are
+     * still retried right away, since no request reached the server.
+     */
+    public static final RetryPolicy NONE = new Builder().maxRetries(0).build();
+
+    private static final Random random = new Random();
+
+    public static class Builder {
+
+        private int maxRetries = DEFAULT_MAX_RETRIES;
+        private long baseDelayMillis = DEFAULT_BASE_DELAY_MILLIS;
+        private long maxDelayMillis = DEFAULT_MAX_DELAY_MILLIS;
+        private final Set<Integer> statusCodes = new TreeSet<Integer>();
+        private boolean retryIOErrors = true;
+        private double budgetRatio = DEFAULT_BUDGET_RATIO;
+        private int budgetReserve = DEFAULT_BUDGET_RESERVE;
+
+        public Builder() {
+            statusCodes.add(StatusCode.TOO_MANY_REQUESTS.getCode());
+            statusCodes.add(StatusCode.BAD_GATEWAY.getCode());
+            statusCodes.add(StatusCode.SERVICE_UNAVAILABLE.getCode());
+            statusCodes.add(504); // Gateway Timeout
+        }
+
+        /**
+         * @param retries Maximum number of retries per request; 0 disables retrying.
+         * @return This Builder
+         */
+        public Builder maxRetries(int retries) {
+            if (retries < 0) {
+                throw new IllegalArgumentException("retries must not be negative");
+            }
+            this.maxRetries = retries;
+            return this;
+        }
+
+        /**
+         * Sets the range of the backoff between retries.
+         *
+         * @param baseDelayMillis Longest wait before the first retry; doubled for each further one.
+         * @param maxDelayMillis  Longest wait before any retry.
+         * @return This Builder
+         */
+        public Builder backoff(long baseDelayMillis, long maxDelayMillis) {
+            if (baseDelayMillis < 0 || maxDelayMillis < baseDelayMillis) {
+                throw new IllegalArgumentException("need 0 <= baseDelayMillis <= maxDelayMillis");
+            }
+            this.baseDelayMillis = baseDelayMillis;
+            this.maxDelayMillis = maxDelayMillis;
+            return this;
+        }
+
+        /**
+         * Sets the response status codes that are retried, replacing the default ones.
+         *
+         * @param codes Status codes to retry
+         * @return This Builder
+         */
+        public Builder retryStatusCodes(int... codes) {
+            statusCodes.clear();
+            for (int code : codes) {
+                statusCodes.add(code);
+            }
+            return this;
+        }
+
+        public Builder retryIOErrors() {
+            return this.retryIOErrors(true);
+        }
+
+        /**
+         * @param retry Whether requests that fail with an I/O error (e.g., a connection that
+         *              cannot be made, or a timeout) are retried.
+         * @return This Builder
+         */
+        public Builder retryIOErrors(boolean retry) {
+            this.retryIOErrors = retry;
+            return this;
+        }
+
+        /**
+         * Sets the retry budget.
+         *
+         * @param ratio   Retries earned per request, e.g. 0.1 for at most one retry per ten
+         *                requests in the long run.
+         * @param reserve Maximum number of retries saved up, available for bursts (and at
+         *                start).
+         * @return This Builder
+         */
+        public Builder budget(double ratio, int reserve) {
+            if (ratio < 0 || reserve < 1) {
+                throw new IllegalArgumentException("need ratio >= 0 and reserve >= 1");
+            }
+            this.budgetRatio = ratio;
+            this.budgetReserve = reserve;
+            return this;
+        }
+
+        public RetryPolicy build() {
+            return new RetryPolicy(this);
+        }
+    }
+
+    private final int maxRetries;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final Set<Integer> statusCodes;
+    private final boolean retryIOErrors;
+    private final double budgetRatio;
+    private final int budgetReserve;
+    // Retries available; guarded by this.
+    private double budget;
+
+    private RetryPolicy(final Builder builder) {
+        this.maxRetries = builder.maxRetries;
+        this.baseDelayMillis = builder.baseDelayMillis;
+        this.maxDelayMillis = builder.maxDelayMillis;
+        this.statusCodes = new TreeSet<Integer>(builder.statusCodes);
+        this.retryIOErrors = builder.retryIOErrors;
+        this.budgetRatio = builder.budgetRatio;
+        this.budgetReserve = builder.budgetReserve;
+        this.budget = builder.budgetReserve;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public long getMaxDelayMillis() {
+        return maxDelayMillis;
+    }
+
+    /**
+     * @param statusCode Status code of a response
+     * @return Whether responses with the status code are retried.
+     */
+    public boolean isRetryable(final int statusCode) {
+        return maxRetries > 0 && statusCodes.contains(statusCode);
+    }
+
+    /**
+     * @param e Failure of a request
+     * @return Whether requests that fail this way are retried.
+     */
+    public boolean isRetryable(final IOException e) {
+        // Other InterruptedIOExceptions mean the thread was interrupted.
+        return maxRetries > 0 && retryIOErrors && !(e instanceof CircuitBreaker.OpenException) &&
+               (!(e instanceof InterruptedIOException) || e instanceof SocketTimeoutException);
+    }
+
+    /**
+     * Adds a request to the retry budget. Policies that never retry keep no budget, so that
+     * requests sharing {@link #NONE} do not contend on it.
+     */
+    void onRequest() {
+        if (maxRetries == 0) {
+            return;
+        }
+        synchronized (this) {
+            budget = Math.min(budgetReserve, budget + budgetRatio);
+        }
+    }
+
+    /**
+     * Takes a retry from the retry budget.
+     *
+     * @return Whether there was one to take.
+     */
+    synchronized boolean tryAcquireRetry() {
+        if (budget < 1) {
+            return false;
+        }
+        budget -= 1;
+        return true;
+    }
+
+    /**
+     * Returns how long to wait before a retry.
+     *
+     * @param retry           Number of the retry, starting at 1.
+     * @param retryAfterMillis Wait asked for by the server, or -1 if none.
+     * @return Time to wait in milliseconds, or -1 if the server asks to wait longer than the
+     * maximum delay.
+     */
+    public long getDelayMillis(final int retry, final long retryAfterMillis) {
+        if (retryAfterMillis > maxDelayMillis) {
+            return -1;
+        }
+        final int shift = Math.min(Math.max(retry - 1, 0), 30);
+        final long ceiling = Math.min(maxDelayMillis, baseDelayMillis << shift);
+        final long delay = (long) (random.nextDouble() * ceiling);
+        return Math.max(delay, retryAfterMillis);
+    }
+
+    /**
+     * Parses the value of a `Retry-After` header, either a number of seconds or an HTTP date.
+     *
+     * @param value Header value, or null
+     * @param now   Current time in milliseconds
+     * @return Time to wait in milliseconds, or -1 if there is no valid value.
+     */
+    public static long parseRetryAfter(final String value, final long now) {
+        if (value == null || value.trim().isEmpty()) {
+            return -1;
+        }
+        final String v = value.trim();
+        try {
+            final long seconds = Long.parseLong(v);
+            return seconds < 0 ? -1 : seconds * 1000;
+        } catch (NumberFormatException e) {
+            // Not seconds, so try a date.
+        }
+        final SimpleDateFormat format =
+            new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return Math.max(0, format.parse(v).getTime() - now);
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.iobeam.api.http;
+
+import com.iobeam.util.concurrent.ListenableFuture;
+
+import java.net.HttpURLConnection;
+
+/**
+ * Transport that can also send requests without blocking a thread for each of them.
+ */
+public interface AsyncHttpTransport extends HttpTransport {
+
+    /**
+     * Sends the request of a connection without blocking. Once the returned future completes,
+     * the connection's response code, headers and streams can be read without blocking; it must
+     * then be released like any other connection.
+     *
+     * @param conn Connection opened by {@link #open(RequestBuilder)}, configured but not yet
+     *             connected
+     * @param body Request body, or null for none
+     * @return Future that completes with the connection once its response has been read, or
+     * fails with the IOException that ended the request.
+     */
+    ListenableFuture<HttpURLConnection> sendAsync(HttpURLConnection conn, byte[] body);
+}
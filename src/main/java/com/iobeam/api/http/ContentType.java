@@ -6,6 +6,7 @@ package com.iobeam.api.http;
 public enum ContentType {
     NONE(""),
     JSON("application/json"),
+    CBOR("application/cbor"),
     URLENCODED("application/x-www-form-urlencoded");
 
     private final String value;
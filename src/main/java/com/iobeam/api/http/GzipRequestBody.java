@@ -0,0 +1,61 @@
+package com.iobeam.api.http;
+
+import com.iobeam.util.io.DeflaterPool;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Request body that gzip-compresses another body while it is written, to be sent with
+ * `Content-Encoding: gzip`. The gzip framing is written here rather than with GZIPOutputStream so
+ * that the Deflater can come from a {@link DeflaterPool}.
+ */
+public final class GzipRequestBody extends RequestBody {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final byte[] HEADER = {
+        (byte) 0x1f, (byte) 0x8b, // Magic number
+        Deflater.DEFLATED,        // Compression method
+        0,                        // Flags
+        0, 0, 0, 0,               // Modification time
+        0,                        // Extra flags
+        0                         // Operating system
+    };
+
+    private final RequestBody body;
+    private final DeflaterPool pool;
+
+    public GzipRequestBody(final RequestBody body, final DeflaterPool pool) {
+        this.body = body;
+        this.pool = pool;
+    }
+
+    @Override
+    public void writeTo(final OutputStream out) throws IOException {
+        final Deflater deflater = pool.acquire();
+        try {
+            out.write(HEADER);
+            final CRC32 crc = new CRC32();
+            final DeflaterOutputStream deflated =
+                new DeflaterOutputStream(out, deflater, BUFFER_SIZE);
+            body.writeTo(new CheckedOutputStream(deflated, crc));
+            deflated.finish();
+            writeInt(out, crc.getValue());
+            writeInt(out, deflater.getBytesRead());
+        } finally {
+            pool.release(deflater);
+        }
+    }
+
+    // Little-endian, as required by the gzip trailer.
+    private static void writeInt(final OutputStream out, final long value) throws IOException {
+        out.write((int) (value & 0xff));
+        out.write((int) ((value >> 8) & 0xff));
+        out.write((int) ((value >> 16) & 0xff));
+        out.write((int) ((value >> 24) & 0xff));
+    }
+}
@@ -0,0 +1,205 @@
+package com.iobeam.api.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Connection whose request is sent by an {@link Http2Transport} once the response is first asked
+ * for. Until then, the request body is buffered.
+ */
+final class Http2Connection extends HttpURLConnection {
+
+    private final Http2Transport transport;
+    private Map<String, List<String>> requestHeaders = null;
+    private ByteArrayOutputStream requestBody = null;
+    private Http2Transport.Response response = null;
+    private IOException failure = null;
+    private final List<String> headerKeys = new ArrayList<String>();
+    private final List<String> headerValues = new ArrayList<String>();
+
+    Http2Connection(final URL url, final Http2Transport transport) {
+        super(url);
+        this.transport = transport;
+    }
+
+    @Override
+    public void connect() {
+        if (connected) {
+            return;
+        }
+        // Request properties can no longer be read once connected.
+        requestHeaders = getRequestProperties();
+        connected = true;
+    }
+
+    /**
+     * @return The request headers, once connected.
+     */
+    Map<String, List<String>> getRequestHeaders() {
+        return requestHeaders;
+    }
+
+    @Override
+    public boolean usingProxy() {
+        return false;
+    }
+
+    @Override
+    public void disconnect() {
+        // Nothing is held once the response has been read.
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        if (!doOutput) {
+            throw new ProtocolException("Output not enabled; call setDoOutput(true)");
+        }
+        if (response != null || failure != null) {
+            throw new ProtocolException("Cannot write output after reading input");
+        }
+        connect();
+        if (requestBody == null) {
+            requestBody = new ByteArrayOutputStream(Math.max(fixedContentLength, 32));
+        }
+        return requestBody;
+    }
+
+    private void readResponse() throws IOException {
+        if (failure != null) {
+            throw failure;
+        } else if (response != null) {
+            return;
+        }
+        connect();
+        try {
+            setResponse(transport.send(this, requestBody != null ? requestBody.toByteArray()
+                                                                 : null));
+        } catch (IOException e) {
+            failure = e;
+            throw e;
+        }
+    }
+
+    /**
+     * Sets the response to a request that was sent by other means.
+     *
+     * @param response Response to the request
+     */
+    void setResponse(final Http2Transport.Response response) {
+        this.response = response;
+        requestBody = null;
+        responseCode = response.code;
+        responseMessage = "";
+
+        headerKeys.add(null);
+        headerValues.add("HTTP/2 " + response.code);
+        boolean hasLength = false;
+        for (final Map.Entry<String, List<String>> entry : response.headers.entrySet()) {
+            if (entry.getKey() == null || entry.getKey().startsWith(":")) {
+                continue;
+            }
+            hasLength |= entry.getKey().equalsIgnoreCase("Content-Length");
+            for (final String value : entry.getValue()) {
+                headerKeys.add(entry.getKey());
+                headerValues.add(value);
+            }
+        }
+        // HTTP/2 responses need not have a length, but the body is already read.
+        if (!hasLength) {
+            headerKeys.add("Content-Length");
+            headerValues.add(String.valueOf(response.body.length));
+        }
+    }
+
+    @Override
+    public int getResponseCode() throws IOException {
+        readResponse();
+        return responseCode;
+    }
+
+    @Override
+    public String getResponseMessage() throws IOException {
+        readResponse();
+        return responseMessage;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        if (!doInput) {
+            throw new ProtocolException("Input not enabled; call setDoInput(true)");
+        }
+        readResponse();
+        if (responseCode == HTTP_NOT_FOUND || responseCode == HTTP_GONE) {
+            throw new FileNotFoundException(url.toString());
+        } else if (responseCode >= 400) {
+            throw new IOException("Server returned HTTP response code: " + responseCode +
+                                  " for URL: " + url);
+        }
+        return new ByteArrayInputStream(response.body);
+    }
+
+    @Override
+    public InputStream getErrorStream() {
+        if (response == null || responseCode < 400) {
+            return null;
+        }
+        return new ByteArrayInputStream(response.body);
+    }
+
+    private boolean haveHeaders() {
+        try {
+            readResponse();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public String getHeaderField(final String name) {
+        if (!haveHeaders()) {
+            return null;
+        }
+        for (int i = headerKeys.size() - 1; i > 0; i--) {
+            if (headerKeys.get(i).equalsIgnoreCase(name)) {
+                return headerValues.get(i);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String getHeaderFieldKey(final int n) {
+        if (!haveHeaders() || n < 0 || n >= headerKeys.size()) {
+            return null;
+        }
+        return headerKeys.get(n);
+    }
+
+    @Override
+    public String getHeaderField(final int n) {
+        if (!haveHeaders() || n < 0 || n >= headerValues.size()) {
+            return null;
+        }
+        return headerValues.get(n);
+    }
+
+    @Override
+    public Map<String, List<String>> getHeaderFields() {
+        if (!haveHeaders()) {
+            return Collections.emptyMap();
+        }
+        return response.headers;
+    }
+}
@@ -0,0 +1,328 @@
+package com.iobeam.api.http;
+
+import com.iobeam.util.concurrent.ListenableFuture;
+import com.iobeam.util.concurrent.SettableFuture;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Transport that sends requests with the JDK's java.net.http.HttpClient (Java 11 and later),
+ * which negotiates HTTP/2 with the server and multiplexes concurrent requests over a single
+ * connection. The client is used through reflection, so that this library still builds and runs
+ * on Java 6 and Android; check {@link #isAvailable()} before creating one.
+ *
+ * Request bodies are buffered before they are sent, and responses are read completely when the
+ * response code is first asked for. Requests sent with {@link #sendAsync(HttpURLConnection,
+ * byte[])} do not block any thread while they are in flight.
+ */
+public final class Http2Transport implements AsyncHttpTransport {
+
+    private static final Logger logger = Logger.getLogger(Http2Transport.class.getName());
+    private static final Api API = Api.load();
+
+    /**
+     * Handles to the java.net.http classes, looked up once.
+     */
+    static final class Api {
+
+        final Method newBuilder;
+        final Method builderVersion;
+        final Method builderConnectTimeout;
+        final Method builderFollowRedirects;
+        final Method builderBuild;
+        final Method send;
+        final Method sendAsync;
+        final Method whenComplete;
+        final Class<?> biConsumer;
+        final Method requestNewBuilder;
+        final Method requestTimeout;
+        final Method requestMethod;
+        final Method requestHeader;
+        final Method requestBuild;
+        final Method ofByteArray;
+        final Method noBody;
+        final Method ofByteArrayHandler;
+        final Method statusCode;
+        final Method headers;
+        final Method headersMap;
+        final Method body;
+        final Method ofMillis;
+        final Object http2;
+        final Object redirectNever;
+
+        private Api() throws Exception {
+            final Class<?> client = Class.forName("java.net.http.HttpClient");
+            final Class<?> clientBuilder = Class.forName("java.net.http.HttpClient$Builder");
+            final Class<?> version = Class.forName("java.net.http.HttpClient$Version");
+            final Class<?> redirect = Class.forName("java.net.http.HttpClient$Redirect");
+            final Class<?> request = Class.forName("java.net.http.HttpRequest");
+            final Class<?> requestBuilder = Class.forName("java.net.http.HttpRequest$Builder");
+            final Class<?> publisher = Class.forName("java.net.http.HttpRequest$BodyPublisher");
+            final Class<?> publishers = Class.forName("java.net.http.HttpRequest$BodyPublishers");
+            final Class<?> handler = Class.forName("java.net.http.HttpResponse$BodyHandler");
+            final Class<?> handlers = Class.forName("java.net.http.HttpResponse$BodyHandlers");
+            final Class<?> response = Class.forName("java.net.http.HttpResponse");
+            final Class<?> httpHeaders = Class.forName("java.net.http.HttpHeaders");
+            final Class<?> duration = Class.forName("java.time.Duration");
+            final Class<?> completionStage =
+                Class.forName("java.util.concurrent.CompletionStage");
+
+            newBuilder = client.getMethod("newBuilder");
+            builderVersion = clientBuilder.getMethod("version", version);
+            builderConnectTimeout = clientBuilder.getMethod("connectTimeout", duration);
+            builderFollowRedirects = clientBuilder.getMethod("followRedirects", redirect);
+            builderBuild = clientBuilder.getMethod("build");
+            send = client.getMethod("send", request, handler);
+            sendAsync = client.getMethod("sendAsync", request, handler);
+            biConsumer = Class.forName("java.util.function.BiConsumer");
+            whenComplete = completionStage.getMethod("whenComplete", biConsumer);
+            requestNewBuilder = request.getMethod("newBuilder", URI.class);
+            requestTimeout = requestBuilder.getMethod("timeout", duration);
+            requestMethod = requestBuilder.getMethod("method", String.class, publisher);
+            requestHeader = requestBuilder.getMethod("header", String.class, String.class);
+            requestBuild = requestBuilder.getMethod("build");
+            ofByteArray = publishers.getMethod("ofByteArray", byte[].class);
+            noBody = publishers.getMethod("noBody");
+            ofByteArrayHandler = handlers.getMethod("ofByteArray");
+            statusCode = response.getMethod("statusCode");
+            headers = response.getMethod("headers");
+            headersMap = httpHeaders.getMethod("map");
+            body = response.getMethod("body");
+            ofMillis = duration.getMethod("ofMillis", long.class);
+            http2 = version.getField("HTTP_2").get(null);
+            redirectNever = redirect.getField("NEVER").get(null);
+        }
+
+        static Api load() {
+            try {
+                return new Api();
+            } catch (Exception e) {
+                return null;
+            } catch (LinkageError e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * The parts of a response that the connection needs.
+     */
+    static final class Response {
+
+        final int code;
+        final Map<String, List<String>> headers;
+        final byte[] body;
+
+        Response(int code, Map<String, List<String>> headers, byte[] body) {
+            this.code = code;
+            this.headers = headers;
+            this.body = body;
+        }
+    }
+
+    private final Object lock = new Object();
+    private Object client = null;
+
+    /**
+     * @throws UnsupportedOperationException If java.net.http is not available.
+     */
+    public Http2Transport() {
+        if (API == null) {
+            throw new UnsupportedOperationException("java.net.http.HttpClient not available");
+        }
+    }
+
+    /**
+     * @return Whether java.net.http.HttpClient is available on this platform.
+     */
+    public static boolean isAvailable() {
+        return API != null;
+    }
+
+    @Override
+    public HttpURLConnection open(final RequestBuilder request) throws IOException {
+        return request.build(new Http2Connection(request.getUrl(), this));
+    }
+
+    @Override
+    public void release(final HttpURLConnection conn, final boolean reusable) {
+        // Streams are not tied to connections of their own; the client manages the connection.
+        conn.disconnect();
+    }
+
+    // The client's connect timeout is fixed when it is built, so the first request's is used.
+    private Object getClient(final int connectTimeoutMillis) throws IOException {
+        synchronized (lock) {
+            if (client == null) {
+                Object builder = invoke(API.newBuilder, null);
+                builder = invoke(API.builderVersion, builder, API.http2);
+                builder = invoke(API.builderFollowRedirects, builder, API.redirectNever);
+                if (connectTimeoutMillis > 0) {
+                    builder = invoke(API.builderConnectTimeout, builder,
+                                     invoke(API.ofMillis, null, (long) connectTimeoutMillis));
+                }
+                client = invoke(API.builderBuild, builder);
+                logger.fine("Created HTTP/2 client");
+            }
+            return client;
+        }
+    }
+
+    /**
+     * Sends the request of a connection and reads its response.
+     *
+     * @param conn Connection with the request's method, URL, timeouts and headers
+     * @param body Request body, or null for none
+     * @return The response.
+     * @throws IOException If the request fails.
+     */
+    Response send(final Http2Connection conn, final byte[] body) throws IOException {
+        final Object client = getClient(conn.getConnectTimeout());
+        return toResponse(invoke(API.send, client, buildRequest(conn, body),
+                                 invoke(API.ofByteArrayHandler, null)));
+    }
+
+    @Override
+    public ListenableFuture<HttpURLConnection> sendAsync(final HttpURLConnection conn,
+                                                         final byte[] body) {
+        final SettableFuture<HttpURLConnection> future = new SettableFuture<HttpURLConnection>();
+        final Http2Connection c = (Http2Connection) conn;
+        try {
+            c.connect();
+            final Object client = getClient(c.getConnectTimeout());
+            final Object stage = invoke(API.sendAsync, client, buildRequest(c, body),
+                                        invoke(API.ofByteArrayHandler, null));
+            // A BiConsumer<HttpResponse, Throwable>, called when the response has been read.
+            final Object action = Proxy.newProxyInstance(Http2Transport.class.getClassLoader(),
+                                                         new Class<?>[]{API.biConsumer},
+                                                         new Completion(future, c));
+            invoke(API.whenComplete, stage, action);
+        } catch (IOException e) {
+            future.setException(e);
+        } catch (RuntimeException e) {
+            future.setException(e);
+        }
+        return future;
+    }
+
+    /**
+     * Completes the future of an async request with its connection, once the response is read.
+     */
+    private static final class Completion implements InvocationHandler {
+
+        private final SettableFuture<HttpURLConnection> future;
+        private final Http2Connection conn;
+
+        Completion(SettableFuture<HttpURLConnection> future, Http2Connection conn) {
+            this.future = future;
+            this.conn = conn;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            final String name = method.getName();
+            if (name.equals("accept")) {
+                complete(args[0], (Throwable) args[1]);
+                return null;
+            } else if (name.equals("equals")) {
+                return proxy == args[0];
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            }
+            return "Completion{" + conn.getURL() + "}";
+        }
+
+        private void complete(final Object response, Throwable failure) {
+            if (failure == null) {
+                try {
+                    conn.setResponse(toResponse(response));
+                    future.set(conn);
+                    return;
+                } catch (IOException e) {
+                    failure = e;
+                } catch (RuntimeException e) {
+                    failure = e;
+                }
+            }
+            // Unwrap the CompletionException around the actual failure.
+            while (failure.getCause() != null && !(failure instanceof IOException)) {
+                failure = failure.getCause();
+            }
+            future.setException(failure);
+        }
+    }
+
+    private Object buildRequest(final Http2Connection conn, final byte[] body)
+        throws IOException {
+        final URI uri;
+        try {
+            uri = conn.getURL().toURI();
+        } catch (URISyntaxException e) {
+            throw new IOException("Bad URL: " + conn.getURL());
+        }
+
+        Object builder = invoke(API.requestNewBuilder, null, uri);
+        if (conn.getReadTimeout() > 0) {
+            builder = invoke(API.requestTimeout, builder,
+                             invoke(API.ofMillis, null, (long) conn.getReadTimeout()));
+        }
+        final Object publisher = body != null ? invoke(API.ofByteArray, null, (Object) body)
+                                              : invoke(API.noBody, null);
+        builder = invoke(API.requestMethod, builder, conn.getRequestMethod(), publisher);
+        for (final Map.Entry<String, List<String>> entry : conn.getRequestHeaders().entrySet()) {
+            final String name = entry.getKey();
+            // Set by the client itself, and rejected if given.
+            if (name == null || name.equalsIgnoreCase("Host") ||
+                name.equalsIgnoreCase("Connection") || name.equalsIgnoreCase("Content-Length") ||
+                name.equalsIgnoreCase("Transfer-Encoding") || name.equalsIgnoreCase("Expect") ||
+                name.equalsIgnoreCase("Upgrade")) {
+                continue;
+            }
+            for (final String value : entry.getValue()) {
+                builder = invoke(API.requestHeader, builder, name, value);
+            }
+        }
+        return invoke(API.requestBuild, builder);
+    }
+
+    private static Response toResponse(final Object response) throws IOException {
+        @SuppressWarnings("unchecked")
+        final Map<String, List<String>> headers = (Map<String, List<String>>)
+            invoke(API.headersMap, invoke(API.headers, response));
+        return new Response((Integer) invoke(API.statusCode, response), headers,
+                            (byte[]) invoke(API.body, response));
+    }
+
+    private static Object invoke(final Method method, final Object target, final Object... args)
+        throws IOException {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while sending request");
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.iobeam.api.http;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+
+/**
+ * Opens the connections that requests are sent over. A transport decides where connections come
+ * from (e.g. a pool of kept-alive sockets) and what happens to them once a request is done.
+ *
+ * Implementations must be thread-safe.
+ */
+public interface HttpTransport {
+
+    /**
+     * Opens a connection for a request. The connection is configured by the request, but not yet
+     * connected.
+     *
+     * @param request Request to open a connection for
+     * @return Unconnected connection for the request.
+     * @throws IOException If the connection cannot be opened.
+     */
+    HttpURLConnection open(RequestBuilder request) throws IOException;
+
+    /**
+     * Releases a connection opened by {@link #open(RequestBuilder)} once its request is done. The
+     * connection must not be used afterwards.
+     *
+     * @param conn     Connection to release
+     * @param reusable Whether the request completed normally, so that the underlying socket may
+     *                 be kept for another request; false after an I/O error.
+     */
+    void release(HttpURLConnection conn, boolean reusable);
+}
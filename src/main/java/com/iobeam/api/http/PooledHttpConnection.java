@@ -0,0 +1,682 @@
+package com.iobeam.api.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * HTTP/1.1 connection that sends its request over a socket taken from a {@link
+ * PooledHttpTransport}, and hands the socket back to the pool once the response has been read
+ * completely. The request body may be sent with a fixed length, chunked, or (if neither mode is
+ * set) buffered to find its length.
+ */
+final class PooledHttpConnection extends HttpURLConnection {
+
+    private static final String CRLF = "\r\n";
+    // Unread response bytes that are read and discarded to keep a connection, rather than
+    // closing it.
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+    private final PooledHttpTransport transport;
+    private PooledHttpTransport.Connection connection = null;
+    private Map<String, List<String>> requestHeaders = null;
+    private OutputStream requestBody = null;
+    private ByteArrayOutputStream bufferedBody = null;
+    private boolean headSent = false;
+    private boolean responseRead = false;
+    private final List<String> headerKeys = new ArrayList<String>();
+    private final List<String> headerValues = new ArrayList<String>();
+    private ResponseStream responseBody = null;
+    private boolean keepAlive = false;
+    private long keepAliveMillis = -1;
+
+    PooledHttpConnection(final URL url, final PooledHttpTransport transport) {
+        super(url);
+        this.transport = transport;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        if (connected) {
+            return;
+        }
+        // Request properties can no longer be read once connected.
+        requestHeaders = getRequestProperties();
+        connection = transport.acquire(url, getConnectTimeout());
+        connection.socket.setSoTimeout(getReadTimeout());
+        connection.requests++;
+        connected = true;
+    }
+
+    @Override
+    public boolean usingProxy() {
+        return false;
+    }
+
+    @Override
+    public void disconnect() {
+        if (connection != null) {
+            connection.close();
+            connection = null;
+        }
+    }
+
+    /**
+     * Ends the use of this connection: the socket goes back to the pool if the exchange completed
+     * and the rest of the response can be read cheaply, and is closed otherwise.
+     *
+     * @param reusable Whether the exchange completed without errors.
+     */
+    void release(final boolean reusable) {
+        if (connection == null) {
+            return;
+        }
+        if (reusable && responseRead && responseBody != null) {
+            // Drains the rest of the body, and then recycles or closes the socket.
+            responseBody.close();
+        } else {
+            disconnect();
+        }
+    }
+
+    private void finish(final boolean bodyComplete) {
+        if (connection == null) {
+            return;
+        }
+        if (bodyComplete && keepAlive) {
+            transport.recycle(connection, keepAliveMillis);
+            connection = null;
+        } else {
+            disconnect();
+        }
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        if (!doOutput) {
+            throw new ProtocolException("Output not enabled; call setDoOutput(true)");
+        }
+        if (responseRead) {
+            throw new ProtocolException("Cannot write output after reading input");
+        }
+        if (requestBody != null) {
+            return requestBody;
+        }
+        connect();
+        if (fixedContentLength >= 0) {
+            sendHead("Content-Length: " + fixedContentLength);
+            requestBody = new FixedLengthOutputStream(connection.out, fixedContentLength);
+        } else if (chunkLength > 0) {
+            sendHead("Transfer-Encoding: chunked");
+            requestBody = new ChunkedOutputStream(connection.out, chunkLength);
+        } else {
+            bufferedBody = new ByteArrayOutputStream();
+            requestBody = bufferedBody;
+        }
+        return requestBody;
+    }
+
+    private void sendHead(final String lengthHeader) throws IOException {
+        final StringBuilder head = new StringBuilder();
+        final String path = url.getFile();
+        head.append(method).append(' ').append(path.length() > 0 ? path : "/")
+            .append(" HTTP/1.1").append(CRLF);
+        head.append("Host: ").append(url.getHost());
+        if (url.getPort() != -1 && url.getPort() != url.getDefaultPort()) {
+            head.append(':').append(url.getPort());
+        }
+        head.append(CRLF);
+        if (lengthHeader != null) {
+            head.append(lengthHeader).append(CRLF);
+        }
+        for (final Map.Entry<String, List<String>> entry : requestHeaders.entrySet()) {
+            final String name = entry.getKey();
+            if (name == null || name.equalsIgnoreCase("Host") ||
+                name.equalsIgnoreCase("Connection") ||
+                name.equalsIgnoreCase("Transfer-Encoding") ||
+                (lengthHeader != null && name.equalsIgnoreCase("Content-Length"))) {
+                continue;
+            }
+            for (final String value : entry.getValue()) {
+                head.append(name).append(": ").append(value).append(CRLF);
+            }
+        }
+        head.append(CRLF);
+        connection.out.write(head.toString().getBytes("ISO-8859-1"));
+        headSent = true;
+    }
+
+    private void readResponse() throws IOException {
+        if (responseRead) {
+            if (responseCode == -1) {
+                throw new IOException("No response from " + url);
+            }
+            return;
+        }
+        connect();
+        responseRead = true;
+
+        // Whether the whole request has reached the socket, after which the server may have
+        // acted on it.
+        boolean sent = false;
+        try {
+            if (!headSent) {
+                if (bufferedBody != null) {
+                    sendHead("Content-Length: " + bufferedBody.size());
+                    bufferedBody.writeTo(connection.out);
+                } else if (doOutput || method.equals("POST") || method.equals("PUT")) {
+                    sendHead("Content-Length: 0");
+                } else {
+                    sendHead(null);
+                }
+            } else if (requestBody != null) {
+                // Ends a chunked body, or checks that a fixed length body is complete.
+                requestBody.close();
+            }
+            if (connection == null) {
+                throw new IOException("Connection closed");
+            }
+            connection.out.flush();
+            sent = true;
+            readHead();
+        } catch (IOException e) {
+            final boolean reused = connection != null && connection.requests > 1;
+            responseCode = -1;
+            disconnect();
+            if (sent) {
+                // RestClient sends the request again on EOF, which must not happen once the
+                // server may have acted on it.
+                throw notEof(e);
+            }
+            // A kept-alive connection the server closed meanwhile; RestClient retries on EOF.
+            if (reused && !(e instanceof SocketTimeoutException) && !(e instanceof EOFException)) {
+                final EOFException eof = new EOFException("Connection closed: " + e.getMessage());
+                eof.initCause(e);
+                throw eof;
+            }
+            throw e;
+        }
+    }
+
+    private static IOException notEof(final IOException e) {
+        if (!(e instanceof EOFException)) {
+            return e;
+        }
+        final IOException ret = new IOException(e.getMessage());
+        ret.initCause(e);
+        return ret;
+    }
+
+    private void readHead() throws IOException {
+        String statusLine;
+        do {
+            statusLine = readLine(connection.in);
+            if (statusLine == null) {
+                throw new EOFException("Connection closed before response");
+            }
+            final String[] parts = statusLine.split(" ", 3);
+            if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+                throw new ProtocolException("Bad status line: " + statusLine);
+            }
+            try {
+                responseCode = Integer.parseInt(parts[1]);
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Bad status line: " + statusLine);
+            }
+            responseMessage = parts.length > 2 ? parts[2] : "";
+            keepAlive = !parts[0].equals("HTTP/1.0");
+
+            headerKeys.clear();
+            headerValues.clear();
+            headerKeys.add(null);
+            headerValues.add(statusLine);
+            String line;
+            while ((line = readLine(connection.in)) != null && line.length() > 0) {
+                final int last = headerValues.size() - 1;
+                if ((line.charAt(0) == ' ' || line.charAt(0) == '\t') && last > 0) {
+                    headerValues.set(last, headerValues.get(last) + " " + line.trim());
+                    continue;
+                }
+                final int colon = line.indexOf(':');
+                if (colon > 0) {
+                    headerKeys.add(line.substring(0, colon).trim());
+                    headerValues.add(line.substring(colon + 1).trim());
+                }
+            }
+            if (line == null) {
+                throw new EOFException("Connection closed in response headers");
+            }
+            // Skip interim responses.
+        } while (responseCode >= 100 && responseCode < 200 && responseCode != 101);
+
+        final String connectionHeader = getHeaderField("Connection");
+        if (connectionHeader != null) {
+            if (connectionHeader.equalsIgnoreCase("close")) {
+                keepAlive = false;
+            } else if (connectionHeader.equalsIgnoreCase("keep-alive")) {
+                keepAlive = true;
+            }
+        }
+        keepAliveMillis = parseKeepAliveTimeout(getHeaderField("Keep-Alive"));
+
+        final String encoding = getHeaderField("Transfer-Encoding");
+        final long length = parseLength(getHeaderField("Content-Length"));
+        if (method.equals("HEAD") || responseCode == HTTP_NO_CONTENT ||
+            responseCode == HTTP_NOT_MODIFIED || (responseCode >= 100 && responseCode < 200)) {
+            responseBody = new ResponseStream(false, 0);
+        } else if (encoding != null && encoding.toLowerCase(Locale.US).contains("chunked")) {
+            responseBody = new ResponseStream(true, 0);
+        } else if (length >= 0) {
+            responseBody = new ResponseStream(false, length);
+        } else {
+            // Delimited by the server closing the connection.
+            keepAlive = false;
+            responseBody = new ResponseStream(false, -1);
+        }
+    }
+
+    private static long parseLength(final String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static long parseKeepAliveTimeout(final String value) {
+        if (value == null) {
+            return -1;
+        }
+        for (String param : value.split(",")) {
+            final String[] kv = param.trim().split("=", 2);
+            if (kv.length == 2 && kv[0].trim().equalsIgnoreCase("timeout")) {
+                try {
+                    return Long.parseLong(kv[1].trim()) * 1000;
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    // Reads a line terminated by LF (or CRLF), without the terminator; null at EOF.
+    private static String readLine(final InputStream in) throws IOException {
+        final StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                final int len = line.length();
+                if (len > 0 && line.charAt(len - 1) == '\r') {
+                    line.setLength(len - 1);
+                }
+                return line.toString();
+            }
+            line.append((char) c);
+        }
+        return line.length() > 0 ? line.toString() : null;
+    }
+
+    @Override
+    public int getResponseCode() throws IOException {
+        readResponse();
+        return responseCode;
+    }
+
+    @Override
+    public String getResponseMessage() throws IOException {
+        readResponse();
+        return responseMessage;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        if (!doInput) {
+            throw new ProtocolException("Input not enabled; call setDoInput(true)");
+        }
+        readResponse();
+        if (responseCode == HTTP_NOT_FOUND || responseCode == HTTP_GONE) {
+            throw new FileNotFoundException(url.toString());
+        } else if (responseCode >= 400) {
+            throw new IOException("Server returned HTTP response code: " + responseCode +
+                                  " for URL: " + url);
+        }
+        return responseBody;
+    }
+
+    @Override
+    public InputStream getErrorStream() {
+        if (!responseRead || responseCode < 400) {
+            return null;
+        }
+        return responseBody;
+    }
+
+    private boolean haveHeaders() {
+        try {
+            readResponse();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public String getHeaderField(final String name) {
+        if (!haveHeaders()) {
+            return null;
+        }
+        for (int i = headerKeys.size() - 1; i > 0; i--) {
+            if (headerKeys.get(i).equalsIgnoreCase(name)) {
+                return headerValues.get(i);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String getHeaderFieldKey(final int n) {
+        if (!haveHeaders() || n < 0 || n >= headerKeys.size()) {
+            return null;
+        }
+        return headerKeys.get(n);
+    }
+
+    @Override
+    public String getHeaderField(final int n) {
+        if (!haveHeaders() || n < 0 || n >= headerValues.size()) {
+            return null;
+        }
+        return headerValues.get(n);
+    }
+
+    @Override
+    public Map<String, List<String>> getHeaderFields() {
+        final Map<String, List<String>> ret = new LinkedHashMap<String, List<String>>();
+        if (!haveHeaders()) {
+            return ret;
+        }
+        for (int i = 0; i < headerKeys.size(); i++) {
+            List<String> values = ret.get(headerKeys.get(i));
+            if (values == null) {
+                values = new ArrayList<String>();
+                ret.put(headerKeys.get(i), values);
+            }
+            values.add(headerValues.get(i));
+        }
+        for (Map.Entry<String, List<String>> entry : ret.entrySet()) {
+            entry.setValue(Collections.unmodifiableList(entry.getValue()));
+        }
+        return Collections.unmodifiableMap(ret);
+    }
+
+    /**
+     * Response body, delimited by a length, by chunks, or by the end of the connection. Closing
+     * it ends the exchange and releases the socket. A body that ends early is not reported as an
+     * EOFException, on which RestClient would send the request again.
+     */
+    private final class ResponseStream extends InputStream {
+
+        private final boolean chunked;
+        // Bytes left in the body, or in the current chunk; -1 if delimited by the connection.
+        private long remaining;
+        private boolean firstChunk = true;
+        private boolean eof = false;
+        private boolean closed = false;
+
+        ResponseStream(final boolean chunked, final long length) {
+            this.chunked = chunked;
+            this.remaining = length;
+            if (!chunked && length == 0) {
+                endOfBody();
+            }
+        }
+
+        private void endOfBody() {
+            eof = true;
+            finish(true);
+        }
+
+        // Moves to the next chunk; returns false after the last one.
+        private boolean nextChunk() throws IOException {
+            if (!firstChunk) {
+                readLine(connection.in);
+            }
+            firstChunk = false;
+            final String line = readLine(connection.in);
+            if (line == null) {
+                throw new IOException("Unexpected end of chunked response");
+            }
+            final int ext = line.indexOf(';');
+            try {
+                remaining = Long.parseLong((ext >= 0 ? line.substring(0, ext) : line).trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Bad chunk size: " + line);
+            }
+            if (remaining > 0) {
+                return true;
+            }
+            // Skip trailers.
+            String trailer;
+            do {
+                trailer = readLine(connection.in);
+            } while (trailer != null && trailer.length() > 0);
+            return false;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            return fill(b, off, len);
+        }
+
+        private int fill(final byte[] b, final int off, final int len) throws IOException {
+            if (eof) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            if (connection == null) {
+                throw new IOException("Connection closed");
+            }
+            if (chunked && remaining == 0 && !nextChunk()) {
+                endOfBody();
+                return -1;
+            }
+            final int max = remaining < 0 ? len : (int) Math.min(len, remaining);
+            final int n = connection.in.read(b, off, max);
+            if (n < 0) {
+                if (remaining < 0) {
+                    endOfBody();
+                    return -1;
+                }
+                throw new IOException("Unexpected end of response body");
+            }
+            if (remaining > 0) {
+                remaining -= n;
+                if (remaining == 0 && !chunked) {
+                    endOfBody();
+                }
+            }
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            if (closed || eof || connection == null) {
+                return 0;
+            }
+            final int available = connection.in.available();
+            return remaining < 0 ? available : (int) Math.min(available, remaining);
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (eof) {
+                return;
+            }
+            if (connection != null && keepAlive) {
+                try {
+                    final byte[] buf = new byte[4096];
+                    int drained = 0;
+                    while (drained < MAX_DRAIN_BYTES && !eof) {
+                        final int n = fill(buf, 0, buf.length);
+                        if (n > 0) {
+                            drained += n;
+                        }
+                    }
+                } catch (IOException e) {
+                    // Not reusable then.
+                }
+            }
+            if (!eof) {
+                finish(false);
+            }
+        }
+    }
+
+    /**
+     * Body with a length set in advance; the socket stays open when it is closed.
+     */
+    private final class FixedLengthOutputStream extends OutputStream {
+
+        private final OutputStream out;
+        private final long length;
+        private long written = 0;
+        private boolean closed = false;
+
+        FixedLengthOutputStream(final OutputStream out, final long length) {
+            this.out = out;
+            this.length = length;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (written + len > length) {
+                throw new IOException("Too many bytes written; expected " + length);
+            }
+            out.write(b, off, len);
+            written += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (written != length) {
+                disconnect();
+                throw new IOException("Insufficient data written; expected " + length +
+                                      " bytes, got " + written);
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * Body sent in chunks of up to `chunkLength` bytes; the socket stays open when it is closed.
+     */
+    private final class ChunkedOutputStream extends OutputStream {
+
+        private final OutputStream out;
+        private final byte[] buf;
+        private int count = 0;
+        private boolean closed = false;
+
+        ChunkedOutputStream(final OutputStream out, final int chunkLength) {
+            this.out = out;
+            this.buf = new byte[chunkLength];
+        }
+
+        private void writeChunk() throws IOException {
+            if (count > 0) {
+                out.write((Integer.toHexString(count) + CRLF).getBytes("ISO-8859-1"));
+                out.write(buf, 0, count);
+                out.write(CRLF.getBytes("ISO-8859-1"));
+                count = 0;
+            }
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            while (len > 0) {
+                final int n = Math.min(len, buf.length - count);
+                System.arraycopy(b, off, buf, count, n);
+                count += n;
+                off += n;
+                len -= n;
+                if (count == buf.length) {
+                    writeChunk();
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            writeChunk();
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            writeChunk();
+            out.write(("0" + CRLF + CRLF).getBytes("ISO-8859-1"));
+            out.flush();
+        }
+    }
+}
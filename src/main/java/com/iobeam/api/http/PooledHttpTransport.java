@@ -0,0 +1,361 @@
+package com.iobeam.api.http;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Transport that keeps HTTP/1.1 connections alive between requests in a pool, so that a series of
+ * requests to the same host reuses one TCP (and TLS) connection instead of setting up a new one
+ * each time. At most `maxIdleConnections` idle connections are kept, and connections idle for
+ * longer than the idle timeout (or the server's keep-alive timeout, if shorter) are closed.
+ * Expired connections are closed lazily, the next time the pool is used; call {@link #evictAll()}
+ * to close them right away.
+ *
+ * Connections are made directly to the server. Requests to URLs for which the default
+ * ProxySelector returns a proxy, requests that follow redirects, and plain HTTP requests where the
+ * platform restricts cleartext traffic (Android's NetworkSecurityPolicy) are handed to the
+ * platform's HttpURLConnection instead.
+ *
+ * Not used unless set on a client, e.g. with {@link
+ * com.iobeam.api.client.Iobeam.Builder#connectionPool(int, long)}; by default, clients leave
+ * connections to the platform (see {@link UrlConnectionTransport}).
+ */
+public final class PooledHttpTransport implements HttpTransport {
+
+    public static final int DEFAULT_MAX_IDLE_CONNECTIONS = 5;
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 60 * 1000;
+
+    /**
+     * A socket and its buffered streams, which outlives the requests sent over it.
+     */
+    static final class Connection {
+
+        final String key;
+        final Socket socket;
+        final InputStream in;
+        final OutputStream out;
+        int requests = 0;
+        long expires = 0;
+
+        Connection(String key, Socket socket) throws IOException {
+            this.key = key;
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream());
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        // A kept-alive connection that the server has since closed shows up as readable (EOF).
+        // Checked with a short read timeout, so that a live connection does not block.
+        boolean isStale() {
+            if (socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown()) {
+                return true;
+            }
+            try {
+                final int timeout = socket.getSoTimeout();
+                try {
+                    socket.setSoTimeout(1);
+                    in.read();
+                    // Either EOF or data the server should not have sent.
+                    return true;
+                } finally {
+                    socket.setSoTimeout(timeout);
+                }
+            } catch (SocketTimeoutException e) {
+                return false;
+            } catch (IOException e) {
+                return true;
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore, nothing left to do with it.
+            }
+        }
+    }
+
+    private final int maxIdleConnections;
+    private final long idleTimeoutMillis;
+    // Most recently used first.
+    private final LinkedList<Connection> idle = new LinkedList<Connection>();
+
+    public PooledHttpTransport() {
+        this(DEFAULT_MAX_IDLE_CONNECTIONS, DEFAULT_IDLE_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param maxIdleConnections Maximum number of idle connections kept; 0 keeps none.
+     * @param idleTimeoutMillis  Time after which an idle connection is closed.
+     */
+    public PooledHttpTransport(int maxIdleConnections, long idleTimeoutMillis) {
+        if (maxIdleConnections < 0) {
+            throw new IllegalArgumentException("maxIdleConnections must not be negative");
+        }
+        if (idleTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("idleTimeoutMillis must be positive");
+        }
+        this.maxIdleConnections = maxIdleConnections;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    public int getMaxIdleConnections() {
+        return maxIdleConnections;
+    }
+
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    @Override
+    public HttpURLConnection open(final RequestBuilder request) throws IOException {
+        final URL url = request.getUrl();
+        if (!isDirect(url) || !isCleartextPermitted(url)) {
+            return request.build();
+        }
+        final HttpURLConnection conn = request.build(new PooledHttpConnection(url, this));
+        // Pooled connections do not follow redirects.
+        if (conn.getInstanceFollowRedirects()) {
+            return request.build();
+        }
+        return conn;
+    }
+
+    @Override
+    public void release(final HttpURLConnection conn, final boolean reusable) {
+        if (conn instanceof PooledHttpConnection) {
+            ((PooledHttpConnection) conn).release(reusable);
+        } else if (!reusable) {
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * @return Number of idle connections currently in the pool, including expired ones that have
+     * not been closed yet.
+     */
+    public synchronized int getIdleConnectionCount() {
+        return idle.size();
+    }
+
+    /**
+     * Closes all idle connections.
+     */
+    public void evictAll() {
+        final List<Connection> evicted;
+        synchronized (this) {
+            evicted = new LinkedList<Connection>(idle);
+            idle.clear();
+        }
+        for (Connection c : evicted) {
+            c.close();
+        }
+    }
+
+    private static boolean isDirect(final URL url) {
+        final String protocol = url.getProtocol();
+        if (!"http".equalsIgnoreCase(protocol) && !"https".equalsIgnoreCase(protocol)) {
+            return false;
+        }
+        final ProxySelector selector = ProxySelector.getDefault();
+        if (selector == null) {
+            return true;
+        }
+        try {
+            for (Proxy proxy : selector.select(url.toURI())) {
+                if (proxy.type() != Proxy.Type.DIRECT) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (URISyntaxException e) {
+            return false;
+        }
+    }
+
+    // Whether the platform allows plain HTTP to the host of a URL. Only Android restricts it; when
+    // its policy cannot be read, the platform's HttpURLConnection is left to apply it.
+    private static boolean isCleartextPermitted(final URL url) {
+        if (!"http".equalsIgnoreCase(url.getProtocol())) {
+            return true;
+        }
+        final Class<?> policyClass;
+        try {
+            policyClass = Class.forName("android.security.NetworkSecurityPolicy");
+        } catch (ClassNotFoundException e) {
+            return true;
+        }
+        try {
+            final Object policy = policyClass.getMethod("getInstance").invoke(null);
+            Method method;
+            try {
+                method = policyClass.getMethod("isCleartextTrafficPermitted", String.class);
+                return Boolean.TRUE.equals(method.invoke(policy, url.getHost()));
+            } catch (NoSuchMethodException e) {
+                method = policyClass.getMethod("isCleartextTrafficPermitted");
+                return Boolean.TRUE.equals(method.invoke(policy));
+            }
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private static String key(final URL url) {
+        return url.getProtocol().toLowerCase(Locale.US) + "://" +
+               url.getHost().toLowerCase(Locale.US) + ":" +
+               port(url);
+    }
+
+    private static int port(final URL url) {
+        return url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+    }
+
+    /**
+     * Takes an idle connection to the host of a URL from the pool, or connects a new one.
+     *
+     * @param url            URL to connect to
+     * @param connectTimeout Timeout for connecting, in milliseconds; 0 for none.
+     * @return Connection to the host.
+     * @throws IOException If connecting fails.
+     */
+    Connection acquire(final URL url, final int connectTimeout) throws IOException {
+        final String key = key(url);
+        while (true) {
+            Connection found = null;
+            final List<Connection> evicted;
+            synchronized (this) {
+                evicted = evictExpired(System.currentTimeMillis());
+                final Iterator<Connection> it = idle.iterator();
+                while (it.hasNext()) {
+                    final Connection c = it.next();
+                    if (c.key.equals(key)) {
+                        it.remove();
+                        found = c;
+                        break;
+                    }
+                }
+            }
+            for (Connection e : evicted) {
+                e.close();
+            }
+            if (found == null) {
+                break;
+            }
+            if (!found.isStale()) {
+                return found;
+            }
+            found.close();
+        }
+        return connect(url, key, connectTimeout);
+    }
+
+    /**
+     * Returns a connection whose last response was read completely to the pool.
+     *
+     * @param c                Connection to keep
+     * @param keepAliveMillis  How long the server keeps the connection open, or -1 if unknown.
+     */
+    void recycle(final Connection c, final long keepAliveMillis) {
+        final long now = System.currentTimeMillis();
+        final long timeout = keepAliveMillis >= 0 ?
+                             Math.min(keepAliveMillis, idleTimeoutMillis) : idleTimeoutMillis;
+        c.expires = now + timeout;
+
+        final List<Connection> evicted = new LinkedList<Connection>();
+        synchronized (this) {
+            idle.addFirst(c);
+            while (idle.size() > maxIdleConnections) {
+                evicted.add(idle.removeLast());
+            }
+            evicted.addAll(evictExpired(now));
+        }
+        for (Connection e : evicted) {
+            e.close();
+        }
+    }
+
+    // Must hold the lock; the caller closes the returned connections.
+    private List<Connection> evictExpired(final long now) {
+        final List<Connection> evicted = new LinkedList<Connection>();
+        final Iterator<Connection> it = idle.iterator();
+        while (it.hasNext()) {
+            final Connection c = it.next();
+            if (c.expires <= now) {
+                it.remove();
+                evicted.add(c);
+            }
+        }
+        return evicted;
+    }
+
+    private static Connection connect(final URL url, final String key, final int connectTimeout)
+        throws IOException {
+        final String host = url.getHost();
+        final int port = port(url);
+        final Socket plain = new Socket();
+        try {
+            plain.setTcpNoDelay(true);
+            plain.connect(new InetSocketAddress(host, port), connectTimeout);
+            if ("https".equalsIgnoreCase(url.getProtocol())) {
+                return new Connection(key, startTls(plain, host, port));
+            }
+            return new Connection(key, plain);
+        } catch (IOException e) {
+            plain.close();
+            throw e;
+        }
+    }
+
+    private static Socket startTls(final Socket plain, final String host, final int port)
+        throws IOException {
+        final SSLSocket socket = (SSLSocket) HttpsURLConnection.getDefaultSSLSocketFactory()
+            .createSocket(plain, host, port, true);
+        final boolean identified = setEndpointIdentification(socket);
+        socket.startHandshake();
+        // Without endpoint identification in the handshake, fall back to the platform's
+        // verifier (which on Android checks the host name).
+        if (!identified &&
+            !HttpsURLConnection.getDefaultHostnameVerifier().verify(host, socket.getSession())) {
+            socket.close();
+            throw new SSLPeerUnverifiedException("Hostname " + host + " not verified");
+        }
+        return socket;
+    }
+
+    // Has the handshake check the server certificate against the host name. The method only
+    // exists from Java 7 and Android API 24 on, so it is looked up by reflection.
+    private static boolean setEndpointIdentification(final SSLSocket socket) {
+        try {
+            final SSLParameters params = socket.getSSLParameters();
+            final Method method = SSLParameters.class.getMethod(
+                "setEndpointIdentificationAlgorithm", String.class);
+            method.invoke(params, "HTTPS");
+            socket.setSSLParameters(params);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+}
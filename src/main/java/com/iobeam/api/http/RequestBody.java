@@ -0,0 +1,69 @@
+package com.iobeam.api.http;
+
+import com.iobeam.util.io.CountingOutputStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The body of an HTTP request, written directly to the connection's output stream. Bodies must be
+ * repeatable, i.e., {@link #writeTo(OutputStream)} can be called more than once (e.g. on retries).
+ */
+public abstract class RequestBody {
+
+    /**
+     * Writes the body to a stream.
+     *
+     * @param out Stream to write to; it should not be closed.
+     * @throws IOException If writing to the stream fails.
+     */
+    public abstract void writeTo(OutputStream out) throws IOException;
+
+    /**
+     * Returns a cheap estimate of the length of the body in bytes, without encoding it, or -1 if
+     * no estimate is available. Used to decide whether to stream the body in chunks.
+     *
+     * @return Estimated length in bytes, or -1 if unknown.
+     */
+    public long getEstimatedLength() {
+        return -1;
+    }
+
+    /**
+     * Returns the exact length of the body in bytes. The default implementation encodes the body
+     * once to count its bytes, so it should only be used when a fixed length is needed.
+     *
+     * @return Length in bytes.
+     * @throws IOException If encoding the body fails.
+     */
+    public long getContentLength() throws IOException {
+        final CountingOutputStream counter = new CountingOutputStream();
+        writeTo(counter);
+        return counter.getCount();
+    }
+
+    /**
+     * Creates a body from bytes that are already in memory.
+     *
+     * @param bytes Content of the body
+     * @return RequestBody for the bytes.
+     */
+    public static RequestBody create(final byte[] bytes) {
+        return new RequestBody() {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                out.write(bytes);
+            }
+
+            @Override
+            public long getEstimatedLength() {
+                return bytes.length;
+            }
+
+            @Override
+            public long getContentLength() {
+                return bytes.length;
+            }
+        };
+    }
+}
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLEncoder;
 import java.util.HashMap;
@@ -19,15 +20,19 @@ public class RequestBuilder implements Serializable {
 
     private static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 4000;
     private static final int DEFAULT_READ_TIMEOUT_MILLIS = 2000;
+    private static final int DEFAULT_CHUNK_LENGTH = 8192;
     private final String url;
     private RequestMethod method = RequestMethod.GET;
     private Object content = null;
     private long contentLength = 0;
     private ContentType contentType = ContentType.NONE;
+    // Encodes the content, instead of the client's encoding for the content type.
+    private transient RequestBody body = null;
     private final Map<String, List<String>> headers = new HashMap<String, List<String>>();
     private final Map<String, Object> parameters = new HashMap<String, Object>();
     private boolean doInput = true;
     private boolean doOutput = false;
+    private boolean chunkedStreaming = false;
     private boolean enableGzip = true;
     private int connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
     private int readTimeoutMillis = DEFAULT_READ_TIMEOUT_MILLIS;
@@ -42,12 +47,14 @@ public class RequestBuilder implements Serializable {
         this.parameters.putAll(builder.parameters);
         this.doInput = builder.doInput;
         this.doOutput = builder.doOutput;
+        this.chunkedStreaming = builder.chunkedStreaming;
         this.connectTimeoutMillis = builder.connectTimeoutMillis;
         this.readTimeoutMillis = builder.readTimeoutMillis;
         this.method = builder.method;
         this.content = builder.content;
         this.contentLength = builder.contentLength;
         this.contentType = builder.contentType;
+        this.body = builder.body;
     }
 
     public HttpURLConnection build() throws IOException {
@@ -57,8 +64,18 @@ public class RequestBuilder implements Serializable {
         final OkUrlFactory urlFactory = new OkUrlFactory(new OkHttpClient());
         final HttpURLConnection conn = urlFactory.open(new URL(buildUrl()));
         */
-        final HttpURLConnection conn = (HttpURLConnection) new URL(buildUrl()).openConnection();
+        return build((HttpURLConnection) getUrl().openConnection());
+    }
 
+    /**
+     * Applies this request's configuration to a connection that was opened some other way, e.g.,
+     * by an {@link HttpTransport}.
+     *
+     * @param conn Unconnected connection to the URL of this request
+     * @return The connection, configured.
+     * @throws IOException If the connection cannot be configured.
+     */
+    public HttpURLConnection build(final HttpURLConnection conn) throws IOException {
         conn.setDoInput(doInput);
         conn.setDoOutput(doOutput);
         conn.setReadTimeout(readTimeoutMillis);
@@ -75,7 +92,9 @@ public class RequestBuilder implements Serializable {
             conn.addRequestProperty("Content-Type", contentType.getValue());
         }
 
-        if (doOutput && contentLength > 0 && contentLength <= Integer.MAX_VALUE) {
+        if (doOutput && chunkedStreaming) {
+            conn.setChunkedStreamingMode(DEFAULT_CHUNK_LENGTH);
+        } else if (doOutput && contentLength > 0 && contentLength <= Integer.MAX_VALUE) {
             // Must cast contentLength to int here, since long version of
             // setFixedLengthStreamingMode isn't available early versions of
             // Android
@@ -123,6 +142,11 @@ public class RequestBuilder implements Serializable {
         return this;
     }
 
+    public RequestBuilder removeHeader(final String name) {
+        headers.remove(name);
+        return this;
+    }
+
     public Map<String, List<String>> getHeaders() {
         return headers;
     }
@@ -181,8 +205,26 @@ public class RequestBuilder implements Serializable {
         return contentType;
     }
 
+    /**
+     * Sets the body that encodes the content of the request, instead of the client encoding the
+     * content itself according to the content type. The content is still kept, e.g. for callbacks
+     * of the request.
+     *
+     * @param body Body encoding the content, or null to let the client encode it.
+     * @return This RequestBuilder
+     */
+    public RequestBuilder setBody(final RequestBody body) {
+        this.body = body;
+        return this;
+    }
+
+    public RequestBody getBody() {
+        return body;
+    }
+
     public RequestBuilder setContentLength(final long length) {
         this.contentLength = length;
+        this.chunkedStreaming = false;
 
         if (length > 0) {
             setDoOutput(true);
@@ -192,10 +234,43 @@ public class RequestBuilder implements Serializable {
         return this;
     }
 
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * Sets whether the request body is sent with chunked transfer encoding, in which case its
+     * length does not need to be known before the request starts.
+     *
+     * @param chunked Whether to use chunked streaming.
+     * @return This RequestBuilder
+     */
+    public RequestBuilder setChunkedStreaming(final boolean chunked) {
+        this.chunkedStreaming = chunked;
+
+        if (chunked) {
+            this.contentLength = -1;
+            setDoOutput(true);
+        }
+        return this;
+    }
+
+    public boolean isChunkedStreaming() {
+        return chunkedStreaming;
+    }
+
     public String getBaseUrl() {
         return url;
     }
 
+    /**
+     * @return The URL of this request, including its parameters.
+     * @throws MalformedURLException If the URL is not valid.
+     */
+    public URL getUrl() throws MalformedURLException {
+        return new URL(buildUrl());
+    }
+
     private String buildUrl() {
         final StringBuilder builder = new StringBuilder(url);
         final Iterator<Map.Entry<String, Object>> it = parameters.entrySet().iterator();
@@ -255,6 +330,7 @@ public class RequestBuilder implements Serializable {
                ", method=" + method +
                ", contentLength=" + contentLength +
                ", contentType=" + contentType +
+               ", chunkedStreaming=" + chunkedStreaming +
                ", doOutput=" + doOutput +
                ", doInput=" + doInput +
                ", connectTimeoutMillis=" + connectTimeoutMillis +
@@ -0,0 +1,24 @@
+package com.iobeam.api.http;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+
+/**
+ * Transport that uses the platform's own HttpURLConnection. Connections are not disconnected after
+ * a successful request, so that the platform can keep their sockets alive, but how many are kept
+ * and for how long is up to the platform (and is shared by everything in the process).
+ */
+public final class UrlConnectionTransport implements HttpTransport {
+
+    @Override
+    public HttpURLConnection open(final RequestBuilder request) throws IOException {
+        return request.build();
+    }
+
+    @Override
+    public void release(final HttpURLConnection conn, final boolean reusable) {
+        if (!reusable) {
+            conn.disconnect();
+        }
+    }
+}
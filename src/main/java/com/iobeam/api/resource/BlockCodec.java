@@ -0,0 +1,393 @@
+package com.iobeam.api.resource;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes blocks of rows into a compact bit stream, in the style of Facebook's Gorilla time
+ * series database:
+ *
+ * - Timestamps are stored as the difference between consecutive deltas ("delta-of-delta"), so
+ * regularly sampled rows take a single bit each.
+ * - Floating point columns store each value XORed with the previous one, writing only the bits
+ * that differ, which are few for slowly changing readings.
+ * - Integral columns store the zigzag-encoded difference from the previous value as a varint.
+ * - Booleans take a bit each, and Strings (and values of mixed-type columns) are indexes into a
+ * per-block dictionary.
+ *
+ * Missing cells are stored in a bitmap per column, which takes a single bit if there are none.
+ * Values are decoded like {@link ColumnarRowStorage} returns them: as Long, Double, Boolean or
+ * String.
+ */
+final class BlockCodec {
+
+    private BlockCodec() {
+    }
+
+    /**
+     * An encoded block of rows. Immutable, so blocks can be shared between copies of a storage.
+     */
+    static final class Block implements Serializable {
+
+        final int rows;
+        final long firstTime;
+        final long lastTime;
+        final byte[] bits;
+        final Object[] dictionary;
+
+        Block(int rows, long firstTime, long lastTime, byte[] bits, Object[] dictionary) {
+            this.rows = rows;
+            this.firstTime = firstTime;
+            this.lastTime = lastTime;
+            this.bits = bits;
+            this.dictionary = dictionary;
+        }
+
+        /**
+         * @return Size of the block in memory, roughly.
+         */
+        int getEncodedBytes() {
+            return bits.length;
+        }
+    }
+
+    /**
+     * Decoded rows: timestamps, and the values of each column (null for missing cells).
+     */
+    static final class Rows {
+
+        final long[] times;
+        final Object[][] values;
+
+        Rows(long[] times, Object[][] values) {
+            this.times = times;
+            this.values = values;
+        }
+    }
+
+    private static final class BitWriter {
+
+        private byte[] buf = new byte[64];
+        private long pos = 0;
+
+        // Writes the lowest `bits` bits of `value`, most significant first.
+        void write(long value, int bits) {
+            while (bits > 0) {
+                final int index = (int) (pos >>> 3);
+                if (index >= buf.length) {
+                    buf = Arrays.copyOf(buf, buf.length * 2);
+                }
+                final int free = 8 - (int) (pos & 7);
+                final int n = Math.min(free, bits);
+                final int chunk = (int) ((value >>> (bits - n)) & ((1 << n) - 1));
+                buf[index] |= chunk << (free - n);
+                pos += n;
+                bits -= n;
+            }
+        }
+
+        void writeBit(boolean bit) {
+            write(bit ? 1 : 0, 1);
+        }
+
+        void writeVarint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((value & 0x7F) | 0x80, 8);
+                value >>>= 7;
+            }
+            write(value, 8);
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, (int) ((pos + 7) >>> 3));
+        }
+    }
+
+    private static final class BitReader {
+
+        private final byte[] buf;
+        private long pos = 0;
+
+        BitReader(byte[] buf) {
+            this.buf = buf;
+        }
+
+        long read(int bits) {
+            long ret = 0;
+            while (bits > 0) {
+                final int avail = 8 - (int) (pos & 7);
+                final int n = Math.min(avail, bits);
+                final int b = buf[(int) (pos >>> 3)] & 0xFF;
+                ret = (ret << n) | ((b >>> (avail - n)) & ((1 << n) - 1));
+                pos += n;
+                bits -= n;
+            }
+            return ret;
+        }
+
+        boolean readBit() {
+            return read(1) != 0;
+        }
+
+        long readVarint() {
+            long ret = 0;
+            int shift = 0;
+            while (true) {
+                final long b = read(8);
+                ret |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return ret;
+                }
+                shift += 7;
+            }
+        }
+    }
+
+    private static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /**
+     * Copies rows out of a storage.
+     *
+     * @param src  Storage to copy from
+     * @param from Inclusive position of the first row
+     * @param to   Exclusive position of the last row
+     * @return The rows, decoded.
+     */
+    static Rows read(RowStorage src, int from, int to) {
+        final int numCols = src.columns.length;
+        final long[] times = new long[to - from];
+        final Object[][] values = new Object[numCols][to - from];
+        for (int i = from; i < to; i++) {
+            times[i - from] = src.getTime(i);
+            for (int c = 0; c < numCols; c++) {
+                values[c][i - from] = src.getValue(i, c);
+            }
+        }
+        return new Rows(times, values);
+    }
+
+    /**
+     * @param rows  Rows to encode, in timestamp order
+     * @param count Number of rows to encode, from the first; at least 1.
+     * @return The encoded block.
+     */
+    static Block encode(Rows rows, int count) {
+        final BitWriter out = new BitWriter();
+        final List<Object> dictionary = new ArrayList<Object>();
+        final Map<Object, Integer> dictionaryIndex = new HashMap<Object, Integer>();
+
+        long prevDelta = 0;
+        for (int i = 1; i < count; i++) {
+            final long delta = rows.times[i] - rows.times[i - 1];
+            writeDeltaOfDelta(out, delta - prevDelta);
+            prevDelta = delta;
+        }
+
+        for (Object[] column : rows.values) {
+            byte type = ColumnarRowStorage.TYPE_NONE;
+            boolean full = true;
+            for (int i = 0; i < count; i++) {
+                if (column[i] == null) {
+                    full = false;
+                } else if (type == ColumnarRowStorage.TYPE_NONE) {
+                    type = ColumnarRowStorage.typeOf(column[i]);
+                } else if (type != ColumnarRowStorage.typeOf(column[i])) {
+                    type = ColumnarRowStorage.TYPE_OBJECT;
+                }
+            }
+            out.write(type, 3);
+            if (type == ColumnarRowStorage.TYPE_NONE) {
+                continue;
+            }
+            out.writeBit(full);
+            if (!full) {
+                for (int i = 0; i < count; i++) {
+                    out.writeBit(column[i] != null);
+                }
+            }
+            writeValues(out, type, column, count, dictionary, dictionaryIndex);
+        }
+        return new Block(count, rows.times[0], rows.times[count - 1], out.toByteArray(),
+                         dictionary.toArray());
+    }
+
+    private static void writeDeltaOfDelta(BitWriter out, long dod) {
+        if (dod == 0) {
+            out.write(0, 1);
+        } else if (dod >= -63 && dod <= 64) {
+            out.write(0x2, 2);
+            out.write(dod + 63, 7);
+        } else if (dod >= -255 && dod <= 256) {
+            out.write(0x6, 3);
+            out.write(dod + 255, 9);
+        } else if (dod >= -2047 && dod <= 2048) {
+            out.write(0xE, 4);
+            out.write(dod + 2047, 12);
+        } else {
+            out.write(0xF, 4);
+            out.write(dod, 64);
+        }
+    }
+
+    private static long readDeltaOfDelta(BitReader in) {
+        if (!in.readBit()) {
+            return 0;
+        } else if (!in.readBit()) {
+            return in.read(7) - 63;
+        } else if (!in.readBit()) {
+            return in.read(9) - 255;
+        } else if (!in.readBit()) {
+            return in.read(12) - 2047;
+        }
+        return in.read(64);
+    }
+
+    private static void writeValues(BitWriter out, byte type, Object[] column, int count,
+                                    List<Object> dictionary,
+                                    Map<Object, Integer> dictionaryIndex) {
+        long prev = 0;
+        boolean first = true;
+        int prevLeading = -1;
+        int prevTrailing = 0;
+        for (int i = 0; i < count; i++) {
+            final Object value = column[i];
+            if (value == null) {
+                continue;
+            }
+            switch (type) {
+                case ColumnarRowStorage.TYPE_LONG: {
+                    final long v = ((Number) value).longValue();
+                    out.writeVarint(zigzag(v - prev));
+                    prev = v;
+                    break;
+                }
+                case ColumnarRowStorage.TYPE_DOUBLE: {
+                    final long bits = Double.doubleToRawLongBits(((Number) value).doubleValue());
+                    if (first) {
+                        out.write(bits, 64);
+                    } else {
+                        final long xor = bits ^ prev;
+                        if (xor == 0) {
+                            out.writeBit(false);
+                        } else {
+                            out.writeBit(true);
+                            final int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+                            final int trailing = Long.numberOfTrailingZeros(xor);
+                            if (prevLeading >= 0 && leading >= prevLeading &&
+                                trailing >= prevTrailing) {
+                                // Fits in the previous window of meaningful bits.
+                                out.writeBit(false);
+                                out.write(xor >>> prevTrailing, 64 - prevLeading - prevTrailing);
+                            } else {
+                                final int significant = 64 - leading - trailing;
+                                out.writeBit(true);
+                                out.write(leading, 5);
+                                out.write(significant - 1, 6);
+                                out.write(xor >>> trailing, significant);
+                                prevLeading = leading;
+                                prevTrailing = trailing;
+                            }
+                        }
+                    }
+                    prev = bits;
+                    break;
+                }
+                case ColumnarRowStorage.TYPE_BOOLEAN:
+                    out.writeBit((Boolean) value);
+                    break;
+                default: {
+                    Integer index = dictionaryIndex.get(value);
+                    if (index == null) {
+                        index = dictionary.size();
+                        dictionary.add(value);
+                        dictionaryIndex.put(value, index);
+                    }
+                    out.writeVarint(index);
+                    break;
+                }
+            }
+            first = false;
+        }
+    }
+
+    /**
+     * @param block      Block to decode
+     * @param numColumns Number of columns of the rows
+     * @return The rows of the block.
+     */
+    static Rows decode(Block block, int numColumns) {
+        final BitReader in = new BitReader(block.bits);
+        final int count = block.rows;
+        final long[] times = new long[count];
+        times[0] = block.firstTime;
+        long delta = 0;
+        for (int i = 1; i < count; i++) {
+            delta += readDeltaOfDelta(in);
+            times[i] = times[i - 1] + delta;
+        }
+
+        final Object[][] values = new Object[numColumns][count];
+        for (int c = 0; c < numColumns; c++) {
+            final byte type = (byte) in.read(3);
+            if (type == ColumnarRowStorage.TYPE_NONE) {
+                continue;
+            }
+            final boolean full = in.readBit();
+            final boolean[] present = new boolean[count];
+            for (int i = 0; i < count; i++) {
+                present[i] = full || in.readBit();
+            }
+            readValues(in, type, present, values[c], block.dictionary);
+        }
+        return new Rows(times, values);
+    }
+
+    private static void readValues(BitReader in, byte type, boolean[] present, Object[] column,
+                                   Object[] dictionary) {
+        long prev = 0;
+        boolean first = true;
+        int leading = 0;
+        int trailing = 0;
+        for (int i = 0; i < present.length; i++) {
+            if (!present[i]) {
+                continue;
+            }
+            switch (type) {
+                case ColumnarRowStorage.TYPE_LONG:
+                    prev += unzigzag(in.readVarint());
+                    column[i] = prev;
+                    break;
+                case ColumnarRowStorage.TYPE_DOUBLE:
+                    if (first) {
+                        prev = in.read(64);
+                    } else if (in.readBit()) {
+                        if (in.readBit()) {
+                            leading = (int) in.read(5);
+                            final int significant = (int) in.read(6) + 1;
+                            trailing = 64 - leading - significant;
+                        }
+                        prev ^= in.read(64 - leading - trailing) << trailing;
+                    }
+                    column[i] = Double.longBitsToDouble(prev);
+                    break;
+                case ColumnarRowStorage.TYPE_BOOLEAN:
+                    column[i] = in.readBit();
+                    break;
+                default:
+                    column[i] = dictionary[(int) in.readVarint()];
+                    break;
+            }
+            first = false;
+        }
+    }
+}
@@ -0,0 +1,426 @@
+package com.iobeam.api.resource;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * A memory budget for the data buffered in a set of {@link DataStore}s, e.g. all those of an
+ * iobeam client, so that data piling up during a long outage cannot run the process out of
+ * memory. The budget is a number of values, an (estimated) number of bytes, or both; what happens
+ * to data that does not fit is set by an {@link OverflowPolicy}.
+ *
+ * Values are counted as they are added (empty cells are not counted), and bytes are estimated as
+ * 8 per timestamp and per value, plus 2 per character of a String. Data drained from a DataStore
+ * to be sent no longer counts, and counts again if it is put back after a failed send. DataStores
+ * with {@link DataStore.Storage#MAPPED} storage are on disk and do not count at all. The counts
+ * are approximate while data is being added and drained concurrently.
+ *
+ * A DataStore is kept track of until {@link DataStore#clearBufferLimit()} is called on it.
+ */
+public final class BufferLimit {
+
+    private static final Logger logger = Logger.getLogger(BufferLimit.class.getName());
+    public static final long DEFAULT_BLOCK_TIMEOUT_MILLIS = 10 * 1000;
+    // DROP_OLDEST frees this fraction of the limit beyond what is needed, so that removing rows,
+    // which copies the remaining ones, is not done on every add once the buffer is full.
+    private static final int EVICT_FRACTION = 16;
+
+    /**
+     * What to do with data that does not fit in the limit.
+     */
+    public enum OverflowPolicy {
+        /**
+         * The oldest rows, across all DataStores, are dropped to make room. This is the default.
+         */
+        DROP_OLDEST,
+        /**
+         * Data that does not fit is dropped, including data put back after a failed send.
+         */
+        DROP_NEWEST,
+        /**
+         * Adds wait for room, until the block timeout, after which they throw a {@link
+         * FullException}. Data put back after a failed send is always taken, even over the limit,
+         * since it was counted before it was sent.
+         */
+        BLOCK,
+        /**
+         * Every other row of the older half of the largest DataStore is dropped, so older data is
+         * kept at ever lower resolution.
+         */
+        DOWNSAMPLE,
+        /**
+         * The largest DataStore is moved to {@link DataStore.Storage#MAPPED} storage, in the
+         * spill directory, where it no longer counts against the limit.
+         */
+        SPILL
+    }
+
+    /**
+     * Exception for adds that timed out waiting for room with the {@link OverflowPolicy#BLOCK}
+     * policy. The data is not added.
+     */
+    public static class FullException extends RuntimeException {
+
+        public FullException() {
+            super("Buffer limit reached, data not added.");
+        }
+    }
+
+    public static class Builder {
+
+        private long maxValues = 0;
+        private long maxBytes = 0;
+        private OverflowPolicy policy = OverflowPolicy.DROP_OLDEST;
+        private long blockTimeoutMillis = DEFAULT_BLOCK_TIMEOUT_MILLIS;
+        private File spillDirectory = null;
+
+        /**
+         * @param values Maximum number of values buffered, or 0 for no limit on values.
+         * @return This Builder
+         */
+        public Builder maxValues(long values) {
+            if (values < 0) {
+                throw new IllegalArgumentException("values must not be negative");
+            }
+            this.maxValues = values;
+            return this;
+        }
+
+        /**
+         * @param bytes Maximum estimated size of the buffered data, or 0 for no limit on bytes.
+         * @return This Builder
+         */
+        public Builder maxBytes(long bytes) {
+            if (bytes < 0) {
+                throw new IllegalArgumentException("bytes must not be negative");
+            }
+            this.maxBytes = bytes;
+            return this;
+        }
+
+        public Builder policy(OverflowPolicy policy) {
+            if (policy == null) {
+                throw new IllegalArgumentException("policy cannot be null");
+            }
+            this.policy = policy;
+            return this;
+        }
+
+        /**
+         * @param millis Longest time an add waits for room with the {@link OverflowPolicy#BLOCK}
+         *               policy.
+         * @return This Builder
+         */
+        public Builder blockTimeout(long millis) {
+            if (millis < 0) {
+                throw new IllegalArgumentException("millis must not be negative");
+            }
+            this.blockTimeoutMillis = millis;
+            return this;
+        }
+
+        /**
+         * @param directory Directory for the files of DataStores spilled with the {@link
+         *                  OverflowPolicy#SPILL} policy, or null for the default temporary
+         *                  directory.
+         * @return This Builder
+         */
+        public Builder spillDirectory(File directory) {
+            this.spillDirectory = directory;
+            return this;
+        }
+
+        public BufferLimit build() {
+            if (maxValues == 0 && maxBytes == 0) {
+                throw new IllegalArgumentException("maxValues or maxBytes must be set");
+            }
+            return new BufferLimit(this);
+        }
+    }
+
+    private final long maxValues;
+    private final long maxBytes;
+    private final OverflowPolicy policy;
+    private final long blockTimeoutMillis;
+    private final File spillDirectory;
+    // All guarded by this. Charges are kept per DataStore as {values, bytes}. The lock on this is
+    // never held while taking the lock on a DataStore, so DataStores may call in while holding
+    // theirs.
+    private final Map<DataStore, long[]> charges = new IdentityHashMap<DataStore, long[]>();
+    private long values = 0;
+    private long bytes = 0;
+    private long droppedValues = 0;
+    private long spilledValues = 0;
+
+    private BufferLimit(final Builder builder) {
+        this.maxValues = builder.maxValues;
+        this.maxBytes = builder.maxBytes;
+        this.policy = builder.policy;
+        this.blockTimeoutMillis = builder.blockTimeoutMillis;
+        this.spillDirectory = builder.spillDirectory;
+    }
+
+    public long getMaxValues() {
+        return maxValues;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return Number of values currently counted against the limit.
+     */
+    public synchronized long getValues() {
+        return values;
+    }
+
+    /**
+     * @return Estimated size in bytes of the data currently counted against the limit.
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return Number of values dropped so far, by dropping, downsampling or timed out adds.
+     */
+    public synchronized long getDroppedValues() {
+        return droppedValues;
+    }
+
+    /**
+     * @return Number of values moved to disk so far with the {@link OverflowPolicy#SPILL} policy.
+     */
+    public synchronized long getSpilledValues() {
+        return spilledValues;
+    }
+
+    /**
+     * @param value Value of a cell
+     * @return Estimated size of the value in bytes.
+     */
+    static long estimateBytes(Object value) {
+        return value instanceof String ? 8 + 2 * ((String) value).length() : 8;
+    }
+
+    /**
+     * @param row Values of a row by column
+     * @return Estimated size of the row in bytes, including its timestamp.
+     */
+    static long estimateBytes(Map<String, Object> row) {
+        long ret = 8;
+        for (Object v : row.values()) {
+            ret += estimateBytes(v);
+        }
+        return ret;
+    }
+
+    /**
+     * Starts counting a DataStore against this limit.
+     *
+     * @param store      DataStore to count
+     * @param valueCount Values already in the DataStore
+     * @param byteCount  Estimated size of the data already in the DataStore
+     */
+    synchronized void register(DataStore store, long valueCount, long byteCount) {
+        if (!charges.containsKey(store)) {
+            charges.put(store, new long[2]);
+        }
+        charge(store, valueCount, byteCount);
+    }
+
+    /**
+     * Stops counting a DataStore against this limit, and forgets it.
+     *
+     * @param store DataStore to forget
+     */
+    synchronized void unregister(DataStore store) {
+        final long[] c = charges.remove(store);
+        if (c == null) {
+            return;
+        }
+        values -= c[0];
+        bytes -= c[1];
+        notifyAll();
+    }
+
+    private void charge(DataStore store, long valueCount, long byteCount) {
+        final long[] c = charges.get(store);
+        c[0] += valueCount;
+        c[1] += byteCount;
+        values += valueCount;
+        bytes += byteCount;
+    }
+
+    private boolean fits(long valueCount, long byteCount) {
+        // An empty buffer takes any row, however large, so that adds are not refused forever.
+        return (values == 0 && bytes == 0) ||
+               ((maxValues == 0 || values + valueCount <= maxValues) &&
+                (maxBytes == 0 || bytes + byteCount <= maxBytes));
+    }
+
+    private boolean isOver() {
+        return (maxValues > 0 && values > maxValues) || (maxBytes > 0 && bytes > maxBytes);
+    }
+
+    /**
+     * Asks to add data to a DataStore, before it is added. The caller must not hold the lock on
+     * the DataStore. If the data is added, {@link #enforce(DataStore)} must be called after it.
+     *
+     * @param store      DataStore to add to
+     * @param valueCount Number of values to add
+     * @param byteCount  Estimated size of the data to add
+     * @param block      Whether to wait for room with the BLOCK policy; if not set, data is taken
+     *                   even over the limit.
+     * @return Whether to add the data; data for a DataStore that is no longer counted is always
+     * added.
+     * @throws FullException If no room was made before the block timeout.
+     */
+    synchronized boolean reserve(DataStore store, long valueCount, long byteCount,
+                                 boolean block) {
+        if (!charges.containsKey(store)) {
+            // Unregistered while the data was being added.
+            return true;
+        }
+        if (policy == OverflowPolicy.DROP_NEWEST && !fits(valueCount, byteCount)) {
+            droppedValues += valueCount;
+            return false;
+        }
+        if (policy == OverflowPolicy.BLOCK && block && !fits(valueCount, byteCount)) {
+            final long deadline = System.currentTimeMillis() + blockTimeoutMillis;
+            long left = blockTimeoutMillis;
+            try {
+                while (!fits(valueCount, byteCount) && left > 0) {
+                    wait(left);
+                    left = deadline - System.currentTimeMillis();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (!fits(valueCount, byteCount)) {
+                droppedValues += valueCount;
+                throw new FullException();
+            }
+        }
+        if (charges.containsKey(store)) {
+            charge(store, valueCount, byteCount);
+        }
+        return true;
+    }
+
+    /**
+     * Makes room by dropping or spilling data, as the policy says, if the limit is exceeded. The
+     * caller must not hold the lock on any DataStore.
+     *
+     * @param target DataStore that was just added to
+     */
+    void enforce(DataStore target) {
+        if (policy == OverflowPolicy.DROP_NEWEST || policy == OverflowPolicy.BLOCK) {
+            return;
+        }
+        while (true) {
+            final long overValues;
+            final long overBytes;
+            final List<DataStore> stores = new ArrayList<DataStore>();
+            DataStore largest = null;
+            synchronized (this) {
+                if (!isOver()) {
+                    return;
+                }
+                overValues = maxValues > 0 ? Math.max(0, values - maxValues) : 0;
+                overBytes = maxBytes > 0 ? Math.max(0, bytes - maxBytes) : 0;
+                long most = 0;
+                for (Map.Entry<DataStore, long[]> e : charges.entrySet()) {
+                    final long[] c = e.getValue();
+                    if (c[0] > 0 || c[1] > 0) {
+                        stores.add(e.getKey());
+                        if (largest == null || c[0] + c[1] > most) {
+                            largest = e.getKey();
+                            most = c[0] + c[1];
+                        }
+                    }
+                }
+            }
+
+            final boolean freed;
+            if (policy == OverflowPolicy.DROP_OLDEST) {
+                DataStore oldest = null;
+                long oldestTime = Long.MAX_VALUE;
+                for (DataStore s : stores) {
+                    final long t = s.getFirstTime();
+                    if (oldest == null || t < oldestTime) {
+                        oldest = s;
+                        oldestTime = t;
+                    }
+                }
+                freed = oldest != null &&
+                        oldest.dropOldest(overValues + maxValues / EVICT_FRACTION,
+                                          overBytes + maxBytes / EVICT_FRACTION);
+            } else if (policy == OverflowPolicy.DOWNSAMPLE) {
+                freed = largest != null &&
+                        (largest.downsample() || largest.dropOldest(overValues, overBytes));
+            } else {
+                freed = largest != null && largest.spill(spillDirectory);
+            }
+            if (!freed) {
+                logger.warning("Buffer limit exceeded, but no data could be freed.");
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stops counting the data of a DataStore, because it was drained, cleared or spilled.
+     *
+     * @param store   DataStore whose data no longer counts
+     * @param spilled Whether the data was moved to disk.
+     * @return Whether any data was counted.
+     */
+    synchronized boolean release(DataStore store, boolean spilled) {
+        final long[] c = charges.get(store);
+        if (c == null) {
+            return false;
+        }
+        final boolean ret = c[0] > 0 || c[1] > 0;
+        values -= c[0];
+        bytes -= c[1];
+        if (spilled) {
+            spilledValues += c[0];
+        }
+        c[0] = 0;
+        c[1] = 0;
+        notifyAll();
+        return ret;
+    }
+
+    /**
+     * Records that data was dropped from a DataStore to make room.
+     *
+     * @param store      DataStore the data was dropped from
+     * @param valueCount Number of values dropped
+     * @param byteCount  Estimated size of the data dropped
+     */
+    synchronized void drop(DataStore store, long valueCount, long byteCount) {
+        final long[] c = charges.get(store);
+        if (c == null) {
+            return;
+        }
+        final long v = Math.min(valueCount, c[0]);
+        final long b = Math.min(byteCount, c[1]);
+        c[0] -= v;
+        c[1] -= b;
+        values -= v;
+        bytes -= b;
+        droppedValues += valueCount;
+        notifyAll();
+    }
+}
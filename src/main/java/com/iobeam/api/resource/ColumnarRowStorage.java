@@ -0,0 +1,456 @@
+package com.iobeam.api.resource;
+
+import com.iobeam.api.resource.util.JsonStreamWriter;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Row storage that keeps timestamps in a growable `long[]` and each column in a typed primitive
+ * array, so values are not boxed or wrapped in per-row maps.
+ *
+ * A column's type is decided by the first value stored in it: integral values (Long, Integer,
+ * Short, Byte) are kept in a `long[]`, floating point values (Double, Float) in a `double[]`,
+ * Booleans in a bitset and Strings in a `String[]` whose values are interned per storage. Missing
+ * cells are tracked with a null bitmap. If a column later receives a value of a different type,
+ * it falls back to boxed `Object[]` storage so no values are ever coerced.
+ *
+ * Note: values are returned in their widened form, i.e., Integer values come back as Long and
+ * Float values as Double (with the same decimal representation).
+ */
+final class ColumnarRowStorage extends RowStorage {
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int MAX_POOLED_STRINGS = 1024;
+
+    static final byte TYPE_NONE = 0;
+    static final byte TYPE_LONG = 1;
+    static final byte TYPE_DOUBLE = 2;
+    static final byte TYPE_BOOLEAN = 3;
+    static final byte TYPE_STRING = 4;
+    static final byte TYPE_OBJECT = 5;
+
+    private long[] times = new long[INITIAL_CAPACITY];
+    private int size = 0;
+    private final Column[] data;
+    private final Map<String, Integer> columnIndex = new HashMap<String, Integer>();
+    private final Map<String, String> stringPool = new HashMap<String, String>();
+
+    ColumnarRowStorage(String[] columns) {
+        super(columns);
+        this.data = new Column[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            this.data[i] = new Column();
+            this.columnIndex.put(columns[i], i);
+        }
+    }
+
+    static byte typeOf(Object value) {
+        if (value instanceof Long || value instanceof Integer || value instanceof Short ||
+            value instanceof Byte) {
+            return TYPE_LONG;
+        } else if (value instanceof Double || value instanceof Float) {
+            return TYPE_DOUBLE;
+        } else if (value instanceof Boolean) {
+            return TYPE_BOOLEAN;
+        } else if (value instanceof String) {
+            return TYPE_STRING;
+        }
+        return TYPE_OBJECT;
+    }
+
+    private static int words(int bits) {
+        return (bits + 63) >>> 6;
+    }
+
+    private static boolean getBit(long[] bits, int i) {
+        return (bits[i >>> 6] & (1L << i)) != 0;
+    }
+
+    private static void setBit(long[] bits, int i, boolean value) {
+        if (value) {
+            bits[i >>> 6] |= (1L << i);
+        } else {
+            bits[i >>> 6] &= ~(1L << i);
+        }
+    }
+
+    /**
+     * A single typed column. Only the array matching `type` is allocated.
+     */
+    static final class Column implements Serializable {
+
+        byte type = TYPE_NONE;
+        long[] present = new long[words(INITIAL_CAPACITY)];
+        long[] longs;
+        double[] doubles;
+        long[] booleans;
+        String[] strings;
+        Object[] objects;
+
+        boolean isSet(int row) {
+            return getBit(present, row);
+        }
+
+        Object get(int row) {
+            if (!isSet(row)) {
+                return null;
+            }
+            switch (type) {
+                case TYPE_LONG:
+                    return longs[row];
+                case TYPE_DOUBLE:
+                    return doubles[row];
+                case TYPE_BOOLEAN:
+                    return getBit(booleans, row);
+                case TYPE_STRING:
+                    return strings[row];
+                default:
+                    return objects[row];
+            }
+        }
+
+        void write(int row, JsonStreamWriter writer) throws IOException {
+            if (!isSet(row)) {
+                writer.nullValue();
+                return;
+            }
+            switch (type) {
+                case TYPE_LONG:
+                    writer.value(longs[row]);
+                    break;
+                case TYPE_DOUBLE:
+                    writer.value(doubles[row]);
+                    break;
+                case TYPE_BOOLEAN:
+                    writer.value(getBit(booleans, row));
+                    break;
+                case TYPE_STRING:
+                    writer.value(strings[row]);
+                    break;
+                default:
+                    writer.value(objects[row]);
+                    break;
+            }
+        }
+
+        void ensureCapacity(int capacity) {
+            if (present.length < words(capacity)) {
+                present = Arrays.copyOf(present, words(capacity));
+            }
+            if (longs != null && longs.length < capacity) {
+                longs = Arrays.copyOf(longs, capacity);
+            }
+            if (doubles != null && doubles.length < capacity) {
+                doubles = Arrays.copyOf(doubles, capacity);
+            }
+            if (booleans != null && booleans.length < words(capacity)) {
+                booleans = Arrays.copyOf(booleans, words(capacity));
+            }
+            if (strings != null && strings.length < capacity) {
+                strings = Arrays.copyOf(strings, capacity);
+            }
+            if (objects != null && objects.length < capacity) {
+                objects = Arrays.copyOf(objects, capacity);
+            }
+        }
+
+        private void allocate(byte newType, int capacity) {
+            type = newType;
+            switch (newType) {
+                case TYPE_LONG:
+                    longs = new long[capacity];
+                    break;
+                case TYPE_DOUBLE:
+                    doubles = new double[capacity];
+                    break;
+                case TYPE_BOOLEAN:
+                    booleans = new long[words(capacity)];
+                    break;
+                case TYPE_STRING:
+                    strings = new String[capacity];
+                    break;
+                default:
+                    objects = new Object[capacity];
+                    break;
+            }
+        }
+
+        // Re-box all values into an Object[] once the column has mixed types.
+        private void toObjects(int size, int capacity) {
+            Object[] boxed = new Object[capacity];
+            for (int i = 0; i < size; i++) {
+                boxed[i] = get(i);
+            }
+            longs = null;
+            doubles = null;
+            booleans = null;
+            strings = null;
+            objects = boxed;
+            type = TYPE_OBJECT;
+        }
+
+        void set(int row, Object value, int size, int capacity, Map<String, String> pool) {
+            byte valueType = typeOf(value);
+            if (type == TYPE_NONE) {
+                allocate(valueType, capacity);
+            } else if (type != valueType && type != TYPE_OBJECT) {
+                toObjects(size, capacity);
+            }
+
+            switch (type) {
+                case TYPE_LONG:
+                    longs[row] = ((Number) value).longValue();
+                    break;
+                case TYPE_DOUBLE:
+                    // Go through the String form so Floats keep their decimal representation.
+                    doubles[row] = value instanceof Float ?
+                                   Double.parseDouble(value.toString()) :
+                                   (Double) value;
+                    break;
+                case TYPE_BOOLEAN:
+                    setBit(booleans, row, (Boolean) value);
+                    break;
+                case TYPE_STRING:
+                    strings[row] = intern((String) value, pool);
+                    break;
+                default:
+                    objects[row] = value;
+                    break;
+            }
+            setBit(present, row, true);
+        }
+
+        void unset(int row) {
+            setBit(present, row, false);
+            if (strings != null) {
+                strings[row] = null;
+            } else if (objects != null) {
+                objects[row] = null;
+            }
+        }
+
+        // Makes room for a new, empty cell at `pos`, given `size` cells currently in use.
+        void insert(int pos, int size) {
+            for (int i = size; i > pos; i--) {
+                setBit(present, i, getBit(present, i - 1));
+            }
+            switch (type) {
+                case TYPE_LONG:
+                    System.arraycopy(longs, pos, longs, pos + 1, size - pos);
+                    break;
+                case TYPE_DOUBLE:
+                    System.arraycopy(doubles, pos, doubles, pos + 1, size - pos);
+                    break;
+                case TYPE_BOOLEAN:
+                    for (int i = size; i > pos; i--) {
+                        setBit(booleans, i, getBit(booleans, i - 1));
+                    }
+                    break;
+                case TYPE_STRING:
+                    System.arraycopy(strings, pos, strings, pos + 1, size - pos);
+                    break;
+                case TYPE_OBJECT:
+                    System.arraycopy(objects, pos, objects, pos + 1, size - pos);
+                    break;
+                default:
+                    break;
+            }
+            unset(pos);
+        }
+
+        Column copyRange(int from, int to, int capacity) {
+            Column ret = new Column();
+            ret.present = new long[words(capacity)];
+            for (int i = from; i < to; i++) {
+                setBit(ret.present, i - from, getBit(present, i));
+            }
+            if (type == TYPE_NONE) {
+                return ret;
+            }
+            ret.allocate(type, capacity);
+            switch (type) {
+                case TYPE_LONG:
+                    System.arraycopy(longs, from, ret.longs, 0, to - from);
+                    break;
+                case TYPE_DOUBLE:
+                    System.arraycopy(doubles, from, ret.doubles, 0, to - from);
+                    break;
+                case TYPE_BOOLEAN:
+                    for (int i = from; i < to; i++) {
+                        setBit(ret.booleans, i - from, getBit(booleans, i));
+                    }
+                    break;
+                case TYPE_STRING:
+                    System.arraycopy(strings, from, ret.strings, 0, to - from);
+                    break;
+                default:
+                    System.arraycopy(objects, from, ret.objects, 0, to - from);
+                    break;
+            }
+            return ret;
+        }
+
+        void clear(int size) {
+            Arrays.fill(present, 0L);
+            if (strings != null) {
+                Arrays.fill(strings, 0, size, null);
+            }
+            if (objects != null) {
+                Arrays.fill(objects, 0, size, null);
+            }
+        }
+    }
+
+    private static String intern(String value, Map<String, String> pool) {
+        String ret = pool.get(value);
+        if (ret == null) {
+            ret = value;
+            if (pool.size() < MAX_POOLED_STRINGS) {
+                pool.put(value, value);
+            }
+        }
+        return ret;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (times.length >= capacity) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, times.length + (times.length >> 1));
+        times = Arrays.copyOf(times, newCapacity);
+        for (Column c : data) {
+            c.ensureCapacity(newCapacity);
+        }
+    }
+
+    // Returns the position of the row for `time`, inserting an empty row if needed.
+    private int findOrInsert(long time, boolean[] existed) {
+        if (size == 0 || times[size - 1] < time) {
+            ensureCapacity(size + 1);
+            times[size] = time;
+            return size++;
+        }
+
+        int pos = lowerBound(time);
+        if (times[pos] == time) {
+            existed[0] = true;
+            return pos;
+        }
+
+        ensureCapacity(size + 1);
+        System.arraycopy(times, pos, times, pos + 1, size - pos);
+        times[pos] = time;
+        for (Column c : data) {
+            c.insert(pos, size);
+        }
+        size++;
+        return pos;
+    }
+
+    @Override
+    int size() {
+        return size;
+    }
+
+    @Override
+    long getTime(int row) {
+        if (row >= size) {
+            throw new IndexOutOfBoundsException("row " + row + " >= " + size);
+        }
+        return times[row];
+    }
+
+    @Override
+    Object getValue(int row, int column) {
+        if (row >= size) {
+            throw new IndexOutOfBoundsException("row " + row + " >= " + size);
+        }
+        return data[column].get(row);
+    }
+
+    @Override
+    void writeValue(int row, int column, JsonStreamWriter writer) throws IOException {
+        if (row >= size) {
+            throw new IndexOutOfBoundsException("row " + row + " >= " + size);
+        }
+        data[column].write(row, writer);
+    }
+
+    @Override
+    void put(long time, Map<String, Object> values, boolean replace) {
+        boolean[] existed = new boolean[1];
+        final int row = findOrInsert(time, existed);
+        if (existed[0] && replace) {
+            for (Column c : data) {
+                c.unset(row);
+            }
+        }
+
+        for (Map.Entry<String, Object> e : values.entrySet()) {
+            Integer c = columnIndex.get(e.getKey());
+            if (c == null) {
+                throw new IllegalArgumentException("Unknown column: " + e.getKey());
+            }
+            Object value = e.getValue();
+            if (value == null || value == JSONObject.NULL) {
+                data[c].unset(row);
+            } else {
+                data[c].set(row, value, size, times.length, stringPool);
+            }
+        }
+    }
+
+    @Override
+    void clear() {
+        for (Column c : data) {
+            c.clear(size);
+        }
+        stringPool.clear();
+        size = 0;
+    }
+
+    @Override
+    void truncate(int size) {
+        for (int i = size; i < this.size; i++) {
+            for (Column c : data) {
+                c.unset(i);
+            }
+        }
+        this.size = Math.min(size, this.size);
+    }
+
+    @Override
+    RowStorage newEmpty(String[] columns) {
+        return new ColumnarRowStorage(columns);
+    }
+
+    @Override
+    int lowerBound(long time) {
+        int pos = Arrays.binarySearch(times, 0, size, time);
+        return pos >= 0 ? pos : -(pos + 1);
+    }
+
+    @Override
+    ColumnarRowStorage copyRange(int from, int to) {
+        ColumnarRowStorage ret = new ColumnarRowStorage(columns);
+        final int capacity = Math.max(INITIAL_CAPACITY, to - from);
+        ret.times = new long[capacity];
+        System.arraycopy(times, from, ret.times, 0, to - from);
+        for (int c = 0; c < data.length; c++) {
+            ret.data[c] = data[c].copyRange(from, to, capacity);
+        }
+        ret.size = to - from;
+        return ret;
+    }
+
+    @Override
+    RowStorage copy() {
+        return copyRange(0, size);
+    }
+}
@@ -0,0 +1,219 @@
+package com.iobeam.api.resource;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Row storage that keeps rows in compressed blocks (see {@link BlockCodec}). New rows go into a
+ * {@link ColumnarRowStorage} tail, which is sealed into an immutable block once it holds
+ * `BLOCK_ROWS` rows. Blocks are decoded one at a time when they are read, e.g. to be encoded for
+ * sending, and the last decoded block is cached so reading rows in order decodes each block once.
+ *
+ * Rows put at or before the last timestamp of a sealed block are put into that block, which is
+ * decoded and encoded again, so this storage suits rows added roughly in timestamp order.
+ */
+final class CompressedRowStorage extends RowStorage {
+
+    static final int BLOCK_ROWS = 1024;
+
+    private final List<BlockCodec.Block> blocks;
+    // Exclusive end position of the rows of each block.
+    private int[] ends;
+    private ColumnarRowStorage tail;
+    // The last block decoded for reading. Replaced as a whole, so that split() views reading
+    // without a lock at most decode a block twice.
+    private transient volatile Decoded decoded = null;
+
+    private static final class Decoded {
+
+        final BlockCodec.Block source;
+        final BlockCodec.Rows rows;
+
+        Decoded(BlockCodec.Block source, BlockCodec.Rows rows) {
+            this.source = source;
+            this.rows = rows;
+        }
+    }
+
+    CompressedRowStorage(String[] columns) {
+        super(columns);
+        this.blocks = new ArrayList<BlockCodec.Block>();
+        this.ends = new int[0];
+        this.tail = new ColumnarRowStorage(columns);
+    }
+
+    private CompressedRowStorage(CompressedRowStorage other) {
+        super(other.columns);
+        this.blocks = new ArrayList<BlockCodec.Block>(other.blocks);
+        this.ends = other.ends.clone();
+        this.tail = (ColumnarRowStorage) other.tail.copy();
+    }
+
+    private int sealedRows() {
+        return ends.length == 0 ? 0 : ends[ends.length - 1];
+    }
+
+    private void reindex() {
+        ends = new int[blocks.size()];
+        int end = 0;
+        for (int i = 0; i < ends.length; i++) {
+            end += blocks.get(i).rows;
+            ends[i] = end;
+        }
+    }
+
+    // Index of the block holding the sealed row at position `row`.
+    private int blockOf(int row) {
+        int pos = Arrays.binarySearch(ends, row);
+        return pos >= 0 ? pos + 1 : -(pos + 1);
+    }
+
+    // Index of the first block whose last timestamp is at or after `time`, or the number of
+    // blocks if there is none.
+    private int blockAtOrAfter(long time) {
+        int lo = 0;
+        int hi = blocks.size();
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (blocks.get(mid).lastTime < time) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private int blockStart(int block) {
+        return block == 0 ? 0 : ends[block - 1];
+    }
+
+    private BlockCodec.Rows decode(int block) {
+        final BlockCodec.Block b = blocks.get(block);
+        Decoded d = decoded;
+        if (d == null || d.source != b) {
+            d = new Decoded(b, BlockCodec.decode(b, columns.length));
+            decoded = d;
+        }
+        return d.rows;
+    }
+
+    /**
+     * @return Number of bytes of the encoded blocks.
+     */
+    long getEncodedBytes() {
+        long ret = 0;
+        for (BlockCodec.Block b : blocks) {
+            ret += b.getEncodedBytes();
+        }
+        return ret;
+    }
+
+    @Override
+    int size() {
+        return sealedRows() + tail.size();
+    }
+
+    @Override
+    long getTime(int row) {
+        final int sealed = sealedRows();
+        if (row >= sealed) {
+            return tail.getTime(row - sealed);
+        }
+        final int b = blockOf(row);
+        return decode(b).times[row - blockStart(b)];
+    }
+
+    @Override
+    Object getValue(int row, int column) {
+        final int sealed = sealedRows();
+        if (row >= sealed) {
+            return tail.getValue(row - sealed, column);
+        }
+        final int b = blockOf(row);
+        return decode(b).values[column][row - blockStart(b)];
+    }
+
+    @Override
+    void put(long time, Map<String, Object> values, boolean replace) {
+        final int b = blockAtOrAfter(time);
+        if (b == blocks.size()) {
+            tail.put(time, values, replace);
+            if (tail.size() >= BLOCK_ROWS) {
+                blocks.add(BlockCodec.encode(BlockCodec.read(tail, 0, tail.size()), tail.size()));
+                tail = new ColumnarRowStorage(columns);
+                reindex();
+            }
+            return;
+        }
+
+        // The row belongs in a sealed block, so write it anew.
+        final BlockCodec.Rows rows = decode(b);
+        final ColumnarRowStorage unsealed = new ColumnarRowStorage(columns);
+        for (int i = 0; i < rows.times.length; i++) {
+            final Map<String, Object> row = new HashMap<String, Object>();
+            for (int c = 0; c < columns.length; c++) {
+                if (rows.values[c][i] != null) {
+                    row.put(columns[c], rows.values[c][i]);
+                }
+            }
+            unsealed.put(rows.times[i], row, true);
+        }
+        unsealed.put(time, values, replace);
+        blocks.set(b, BlockCodec.encode(BlockCodec.read(unsealed, 0, unsealed.size()),
+                                        unsealed.size()));
+        reindex();
+    }
+
+    @Override
+    void clear() {
+        blocks.clear();
+        reindex();
+        tail.clear();
+        decoded = null;
+    }
+
+    @Override
+    void truncate(int size) {
+        final int sealed = sealedRows();
+        if (size >= sealed) {
+            tail.truncate(size - sealed);
+            return;
+        }
+        final int b = blockOf(size);
+        final int keep = size - blockStart(b);
+        final BlockCodec.Rows rows = keep > 0 ? decode(b) : null;
+        while (blocks.size() > b) {
+            blocks.remove(blocks.size() - 1);
+        }
+        if (rows != null) {
+            blocks.add(BlockCodec.encode(rows, keep));
+        }
+        tail = new ColumnarRowStorage(columns);
+        reindex();
+    }
+
+    @Override
+    RowStorage newEmpty(String[] columns) {
+        return new CompressedRowStorage(columns);
+    }
+
+    @Override
+    int lowerBound(long time) {
+        final int b = blockAtOrAfter(time);
+        if (b == blocks.size()) {
+            return sealedRows() + tail.lowerBound(time);
+        }
+        final int pos = Arrays.binarySearch(decode(b).times, time);
+        return blockStart(b) + (pos >= 0 ? pos : -(pos + 1));
+    }
+
+    @Override
+    RowStorage copy() {
+        // Blocks are immutable, so they are shared rather than copied.
+        return new CompressedRowStorage(this);
+    }
+}
@@ -1,14 +1,21 @@
 package com.iobeam.api.resource;
 
+import com.iobeam.api.resource.util.CborWriter;
+import com.iobeam.api.resource.util.JsonStreamWriter;
+import com.iobeam.util.io.CountingOutputStream;
+
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -26,6 +33,16 @@ import java.util.logging.Logger;
  * alphabetical order. Rows are represented as a list with the first value being the timestamp,
  * followed by corresponding values for each column. If a row does not have a value for a column,
  * then it is filled in with null.
+ *
+ * Rows can be kept in one of several {@link Storage} layouts; see {@link Storage} for details.
+ * A DataStore created with a {@link Rollup} aggregates the rows added to it over windows of time,
+ * and keeps only one row per window.
+ *
+ * A DataStore is thread-safe: rows added concurrently are all kept, and every other method sees
+ * a consistent view of the rows added before it was called. By default, adds are serialized on
+ * the DataStore. A DataStore created with several write stripes instead lets each thread add to
+ * one of the stripes with its own lock; the stripes are merged into the DataStore, in timestamp
+ * order, the next time its rows are read.
  */
 public class DataStore implements Serializable {
 
@@ -50,15 +67,81 @@ public class DataStore implements Serializable {
         }
     }
 
+    /**
+     * How a DataStore keeps its rows in memory.
+     */
+    public enum Storage {
+        /**
+         * Each row is a Map from column to value, indexed by timestamp. This is the default.
+         */
+        MAP,
+        /**
+         * Timestamps are kept in a `long[]` and each column in a typed primitive array with a null
+         * bitmap, avoiding boxing and per-row maps. Integer and Float values are read back as
+         * Long and Double, respectively.
+         */
+        COLUMNAR,
+        /**
+         * Rows are kept off-heap in memory-mapped temporary files, in a compact binary format, so
+         * heap use does not grow with the number of rows. Values are read back like COLUMNAR.
+         * Files go in the directory given to {@link #DataStore(Collection, Storage, int, File)},
+         * or the default temporary directory.
+         */
+        MAPPED,
+        /**
+         * The latest rows are kept like COLUMNAR, and every 1024 rows are sealed into a compressed
+         * block in the style of Gorilla: delta-of-delta timestamps, XOR-compressed floating point
+         * values and varint-encoded integral ones, typically several times smaller. Blocks are
+         * decoded only when read, e.g. to be sent. Adding a row at or before the last timestamp
+         * of a sealed block encodes the block again, so this suits rows added roughly in time
+         * order. Values are read back like COLUMNAR.
+         */
+        COMPRESSED
+    }
+
+    /**
+     * Encodings that {@link #split(DataStore, int, long, Encoding)} measures rows in.
+     */
+    public enum Encoding {
+        /**
+         * As written by {@link #writeJson(JsonStreamWriter)}.
+         */
+        JSON,
+        /**
+         * As written by {@link #writeCbor(CborWriter)}.
+         */
+        CBOR
+    }
+
     private static final Logger logger = Logger.getLogger(DataStore.class.getName());
     private static final String KEY_COLUMNS = "fields";
     private static final String KEY_ROWS = "data";
+    private static final int ESTIMATE_SAMPLE_ROWS = 32;
+    // Parts split to a byte budget as JSON are filled to (1 - 1/JSON_SPLIT_MARGIN) of it.
+    private static final long JSON_SPLIT_MARGIN = 32;
+    // How many times more values (including nulls) a coalesced DataStore may hold than the
+    // DataStores it was made of.
+    private static final int COALESCE_MAX_GROWTH = 2;
     private static final String[] RESERVED_COLS = {"time", "time_offset", "all"};
 
 
     private final TreeSet<String> columns;
-    private final TreeMap<Long, Map<String, Object>> rows =
-        new TreeMap<Long, Map<String, Object>>();
+    // Only changes when the DataStore is spilled to disk by its BufferLimit.
+    private volatile Storage storage;
+    // Guarded by `this`; swapped for an empty storage by drain().
+    private RowStorage rows;
+    // Guarded by `this`; set while `rows` is shared with DataStores returned by split(), in
+    // which case it is copied (see ownRows()) before being modified.
+    private transient boolean rowsShared = false;
+    // Write buffers for concurrent adds, or null if adds go straight into `rows`. Each element
+    // is guarded by, and only replaced while holding, the corresponding stripe lock.
+    private final RowStorage[] stripes;
+    private final Object[] stripeLocks;
+    // Limit the data of this DataStore counts against, or null; see setBufferLimit().
+    private transient volatile BufferLimit limit = null;
+    // Open window of the rollup that rows are aggregated with, or null if they are added as is.
+    // Locked on its own; the lock on `this` is never taken while holding it.
+    private final transient RollupWindow window;
 
     /**
      * Constructs a DataStore, using a collection to construct a _set_ of columns. Note: Duplicates
@@ -67,16 +150,126 @@ public class DataStore implements Serializable {
      * @param columns Set of field names to track in this batch.
      */
     public DataStore(Collection<String> columns) {
+        this(columns, Storage.MAP);
+    }
+
+    public DataStore(String... columns) {
+        this(Arrays.asList(columns));
+    }
+
+    /**
+     * Constructs a DataStore that keeps its rows in the given storage layout. Note: Duplicate
+     * columns will be removed and a warning will be logged.
+     *
+     * @param columns Set of field names to track in this batch.
+     * @param storage Layout to keep rows in.
+     */
+    public DataStore(Collection<String> columns, Storage storage) {
+        this(columns, storage, 1);
+    }
+
+    /**
+     * Constructs a DataStore whose adds are spread over several write stripes, so that threads
+     * adding at the same time rarely contend for a lock. Note: Duplicate columns will be removed
+     * and a warning will be logged.
+     *
+     * @param columns Set of field names to track in this batch.
+     * @param storage Layout to keep rows in.
+     * @param stripes Number of write stripes; 1 serializes all adds on the DataStore.
+     */
+    public DataStore(Collection<String> columns, Storage storage, int stripes) {
+        this(columns, storage, stripes, null);
+    }
+
+    /**
+     * Constructs a DataStore whose adds are spread over several write stripes, and whose MAPPED
+     * storage (if used) keeps its files in the given directory. Note: Duplicate columns will be
+     * removed and a warning will be logged.
+     *
+     * @param columns   Set of field names to track in this batch.
+     * @param storage   Layout to keep rows in.
+     * @param stripes   Number of write stripes; 1 serializes all adds on the DataStore.
+     * @param directory Directory for the files of {@link Storage#MAPPED} storage, or null for
+     *                  the default temporary directory. Ignored for other layouts.
+     */
+    public DataStore(Collection<String> columns, Storage storage, int stripes, File directory) {
+        this(columns, storage, stripes, directory, null);
+    }
+
+    /**
+     * Constructs a DataStore that aggregates the rows added to it with a rollup. Rows are added
+     * with the input columns of the rollup, and the DataStore has its output columns.
+     *
+     * @param rollup Rollup to aggregate rows with
+     */
+    public DataStore(Rollup rollup) {
+        this(rollup, Storage.MAP, 1, null);
+    }
+
+    /**
+     * Constructs a DataStore that aggregates the rows added to it with a rollup, as {@link
+     * #DataStore(Rollup)}, with the given storage, write stripes and directory (see {@link
+     * #DataStore(Collection, Storage, int, File)}).
+     *
+     * @param rollup    Rollup to aggregate rows with
+     * @param storage   Layout to keep rows in.
+     * @param stripes   Number of write stripes; 1 serializes all adds on the DataStore.
+     * @param directory Directory for the files of {@link Storage#MAPPED} storage, or null.
+     */
+    public DataStore(Rollup rollup, Storage storage, int stripes, File directory) {
+        this(rollup.getOutputColumns(), storage, stripes, directory, rollup);
+    }
+
+    private DataStore(Collection<String> columns, Storage storage, int stripes, File directory,
+                      Rollup rollup) {
+        if (stripes < 1) {
+            throw new IllegalArgumentException("stripes must be at least 1");
+        }
         checkColumns(columns);
         this.columns = new TreeSet<String>(columns);
         if (columns.size() != this.columns.size()) {
             logger.warning("Size mismatch in provided list of columns and resulting set of " +
                            "columns; list may have contained duplicates.");
         }
+        this.storage = storage;
+        this.rows = createStorage(this.columns.toArray(new String[this.columns.size()]), storage,
+                                  directory);
+        if (stripes > 1) {
+            this.stripes = new RowStorage[stripes];
+            this.stripeLocks = new Object[stripes];
+            for (int i = 0; i < stripes; i++) {
+                this.stripes[i] = this.rows.newEmpty();
+                this.stripeLocks[i] = new Object[0]; // Serializable, unlike Object
+            }
+        } else {
+            this.stripes = null;
+            this.stripeLocks = null;
+        }
+        this.window = rollup != null ? new RollupWindow(rollup) : null;
     }
 
-    public DataStore(String... columns) {
-        this(Arrays.asList(columns));
+    public DataStore(Storage storage, String... columns) {
+        this(Arrays.asList(columns), storage);
+    }
+
+    private DataStore(TreeSet<String> columns, Storage storage, RowStorage rows) {
+        this.columns = columns;
+        this.storage = storage;
+        this.rows = rows;
+        this.stripes = null;
+        this.stripeLocks = null;
+        this.window = null;
+    }
+
+    private static RowStorage createStorage(String[] columns, Storage storage, File directory) {
+        if (storage == Storage.COLUMNAR) {
+            return new ColumnarRowStorage(columns);
+        } else if (storage == Storage.MAPPED) {
+            return new MappedRowStorage(columns, directory);
+        } else if (storage == Storage.COMPRESSED) {
+            return new CompressedRowStorage(columns);
+        }
+        return new MapRowStorage(columns);
     }
 
     private void checkColumns(Collection<String> columns) {
@@ -195,23 +388,150 @@ public class DataStore implements Serializable {
      * needed.
      *
      * This method will throw an `UnknownFieldException` if `data` contains a key that is not in the
-     * set of columns this batch was constructed with.
+     * set of columns this batch was constructed with (or the input columns of its rollup).
      *
      * @param timestamp Timestamp for all data points
      * @param data      Map that has field names as keys and the data value as values.
      */
     public void add(long timestamp, Map<String, Object> data) {
+        final Set<String> known = window != null ? window.getRollup().getInputColumns() : columns;
         for (String k : data.keySet()) {
-            if (!columns.contains(k)) {
+            if (!known.contains(k)) {
                 throw new UnknownFieldException(k);
             }
         }
 
-        Map<String, Object> curr = this.rows.get(timestamp);
-        if (curr == null) {
-            this.rows.put(timestamp, new HashMap<String, Object>(data));
+        if (window != null) {
+            addToWindow(timestamp, data);
         } else {
-            curr.putAll(data);
+            putRow(timestamp, data, true);
+        }
+    }
+
+    private void addToWindow(long timestamp, Map<String, Object> data) {
+        long closedAt = 0;
+        Map<String, Object> closed = null;
+        try {
+            synchronized (window) {
+                if (window.isEmitted(timestamp) ||
+                    (window.isOpen() && timestamp < window.getStart())) {
+                    logger.fine("Dropped row at " + timestamp + " for an emitted rollup window");
+                    return;
+                }
+                if (window.isOpen() && timestamp >= window.getEnd()) {
+                    closedAt = window.getStart();
+                    closed = window.close();
+                }
+                if (!window.isOpen()) {
+                    window.open(timestamp);
+                }
+                window.add(data);
+            }
+        } finally {
+            // Also if the row had a value the rollup rejects.
+            if (closed != null && !closed.isEmpty()) {
+                putRow(closedAt, closed, true);
+            }
+        }
+    }
+
+    /**
+     * Emits the open rollup window as a row, if there is one.
+     *
+     * @param ended Whether to only emit a window that has ended by the current time.
+     */
+    private void flushWindow(boolean ended) {
+        if (window == null) {
+            return;
+        }
+        final long closedAt;
+        final Map<String, Object> closed;
+        synchronized (window) {
+            if (!window.isOpen() ||
+                (ended && window.getEnd() > System.currentTimeMillis())) {
+                return;
+            }
+            closedAt = window.getStart();
+            closed = window.close();
+        }
+        if (!closed.isEmpty()) {
+            // Never waits for room, since this may be called to drain the DataStore.
+            putRow(closedAt, closed, false);
+        }
+    }
+
+    /**
+     * Emits the open window of this DataStore's rollup as a row right away, rather than when it
+     * ends, e.g. before shutting down. Rows added later for the same window are dropped, like
+     * those for any window already emitted. Does nothing for DataStores without a rollup.
+     */
+    public void flushRollup() {
+        flushWindow(false);
+    }
+
+    /**
+     * @return The rollup rows are aggregated with, or null if they are added as is.
+     */
+    public Rollup getRollup() {
+        return window != null ? window.getRollup() : null;
+    }
+
+    // Adds a row to the rows, counting it against the buffer limit.
+    private void putRow(long timestamp, Map<String, Object> data, boolean block) {
+        final BufferLimit limit = activeLimit();
+        if (limit != null &&
+            !limit.reserve(this, data.size(), BufferLimit.estimateBytes(data), block)) {
+            return;
+        }
+        if (stripes == null) {
+            synchronized (this) {
+                ownRows();
+                this.rows.put(timestamp, data, false);
+            }
+        } else {
+            final int i = (int) (Thread.currentThread().getId() % stripes.length);
+            synchronized (stripeLocks[i]) {
+                stripes[i].put(timestamp, data, false);
+            }
+        }
+        if (limit != null) {
+            limit.enforce(this);
+        }
+    }
+
+    /**
+     * Moves rows added to the write stripes into `rows`. Must be called with the lock on this
+     * DataStore held, before reading `rows`.
+     */
+    private void collectStripes() {
+        if (stripes == null) {
+            return;
+        }
+        // Each stripe is swapped for an empty one under its lock, so adds only ever wait for the
+        // swap; the merge itself happens without holding any stripe lock.
+        final List<RowStorage> taken = new ArrayList<RowStorage>(stripes.length);
+        for (int i = 0; i < stripes.length; i++) {
+            synchronized (stripeLocks[i]) {
+                if (stripes[i].size() > 0) {
+                    taken.add(stripes[i]);
+                    stripes[i] = stripes[i].newEmpty();
+                }
+            }
+        }
+        if (!taken.isEmpty()) {
+            ownRows();
+            rows.mergeSorted(taken.toArray(new RowStorage[taken.size()]));
+        }
+    }
+
+    /**
+     * Makes `rows` safe to modify, copying it first if it is shared with split DataStores. Must
+     * be called with the lock on this DataStore held.
+     */
+    private void ownRows() {
+        if (rowsShared) {
+            rows = rows.copy();
+            rowsShared = false;
         }
     }
 
@@ -237,7 +557,203 @@ public class DataStore implements Serializable {
             throw new IllegalArgumentException("DataStore must have the same columns to merge");
         }
 
-        this.rows.putAll(other.rows);
+        // Copy first so that the two DataStores are never locked at the same time.
+        final RowStorage otherRows = snapshot(other).rows;
+        final BufferLimit limit = activeLimit();
+        if (limit != null) {
+            final long[] size = new long[2];
+            measureRows(otherRows, 0, otherRows.size(), size);
+            if (!limit.reserve(this, size[0], size[1], false)) {
+                return;
+            }
+        }
+        synchronized (this) {
+            collectStripes();
+            ownRows();
+            this.rows.putAll(otherRows);
+        }
+        if (limit != null) {
+            limit.enforce(this);
+        }
+    }
+
+    /**
+     * Counts the data of this DataStore against a limit, which then bounds how much data it
+     * buffers. Several DataStores can share a limit, but a DataStore can only count against one.
+     * Data already in the DataStore is counted right away, and may be dropped or spilled if it
+     * exceeds the limit. See {@link BufferLimit}.
+     *
+     * @param limit Limit to count against
+     */
+    public void setBufferLimit(BufferLimit limit) {
+        if (limit == null) {
+            throw new IllegalArgumentException("limit cannot be null");
+        }
+        synchronized (this) {
+            if (this.limit == limit) {
+                return;
+            } else if (this.limit != null) {
+                throw new IllegalStateException("DataStore already counts against a limit");
+            }
+            collectStripes();
+            final long[] size = new long[2];
+            if (storage != Storage.MAPPED) {
+                measureRows(rows, 0, rows.size(), size);
+            }
+            // Registered before it is visible to adds.
+            limit.register(this, size[0], size[1]);
+            this.limit = limit;
+        }
+        limit.enforce(this);
+    }
+
+    /**
+     * Stops counting the data of this DataStore against its limit, e.g. before it is discarded,
+     * so that the limit no longer keeps track of it.
+     */
+    public void clearBufferLimit() {
+        synchronized (this) {
+            final BufferLimit limit = this.limit;
+            if (limit == null) {
+                return;
+            }
+            this.limit = null;
+            limit.unregister(this);
+        }
+    }
+
+    /**
+     * @return The limit this DataStore counts against, or null if none.
+     */
+    public BufferLimit getBufferLimit() {
+        return limit;
+    }
+
+    private BufferLimit activeLimit() {
+        final BufferLimit l = this.limit;
+        return l != null && storage != Storage.MAPPED ? l : null;
+    }
+
+    // Adds the number of values and the estimated bytes of rows [from, to) to `acc`.
+    private static void measureRows(RowStorage r, int from, int to, long[] acc) {
+        final int numCols = r.columns.length;
+        for (int i = from; i < to; i++) {
+            acc[1] += 8;
+            for (int c = 0; c < numCols; c++) {
+                final Object val = r.getValue(i, c);
+                if (val != null) {
+                    acc[0]++;
+                    acc[1] += BufferLimit.estimateBytes(val);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Timestamp of the earliest row, or Long.MAX_VALUE if there are none.
+     */
+    synchronized long getFirstTime() {
+        collectStripes();
+        return rows.size() == 0 ? Long.MAX_VALUE : rows.getTime(0);
+    }
+
+    /**
+     * Drops the oldest rows, at least one and enough to free the given amount of data if there
+     * are that many, for the buffer limit.
+     *
+     * @return Whether any counted data was freed.
+     */
+    synchronized boolean dropOldest(long valueCount, long byteCount) {
+        final BufferLimit limit = this.limit;
+        if (limit == null) {
+            return false;
+        }
+        collectStripes();
+        final int size = rows.size();
+        final long[] dropped = new long[2];
+        int k = 0;
+        while (k < size && (k == 0 || dropped[0] < valueCount || dropped[1] < byteCount)) {
+            measureRows(rows, k, k + 1, dropped);
+            k++;
+        }
+        if (k == size) {
+            rows = rows.newEmpty();
+            rowsShared = false;
+            limit.drop(this, dropped[0], dropped[1]);
+            // Anything still counted was drained or added concurrently, and is gone.
+            return limit.release(this, false) || k > 0;
+        }
+        rows = rows.copyRange(k, size);
+        rowsShared = false;
+        limit.drop(this, dropped[0], dropped[1]);
+        return true;
+    }
+
+    /**
+     * Drops every other row of the older half of the rows, for the buffer limit.
+     *
+     * @return Whether any rows were dropped; DataStores with fewer than 4 rows are left alone.
+     */
+    synchronized boolean downsample() {
+        final BufferLimit limit = this.limit;
+        collectStripes();
+        final int size = rows.size();
+        if (limit == null || size < 4) {
+            return false;
+        }
+        final int half = size / 2;
+        final RowStorage kept = rows.newEmpty();
+        final long[] dropped = new long[2];
+        for (int i = 0; i < size; i++) {
+            if (i < half && i % 2 == 1) {
+                measureRows(rows, i, i + 1, dropped);
+            } else {
+                kept.put(rows.getTime(i), rows.getRow(i), true);
+            }
+        }
+        rows = kept;
+        rowsShared = false;
+        limit.drop(this, dropped[0], dropped[1]);
+        return true;
+    }
+
+    /**
+     * Moves the rows to {@link Storage#MAPPED} storage, where they no longer count against the
+     * buffer limit.
+     *
+     * @param directory Directory for the files, or null for the default temporary directory.
+     * @return Whether the rows were moved.
+     */
+    synchronized boolean spill(File directory) {
+        final BufferLimit limit = this.limit;
+        if (limit == null || storage == Storage.MAPPED) {
+            return false;
+        }
+        collectStripes();
+        final RowStorage mapped;
+        try {
+            mapped = new MappedRowStorage(rows.columns, directory);
+            mapped.putAll(rows);
+        } catch (RuntimeException e) {
+            // Too many columns, or the files could not be mapped.
+            logger.warning("Could not spill DataStore to disk: " + e.getMessage());
+            return false;
+        }
+        rows = mapped;
+        rowsShared = false;
+        storage = Storage.MAPPED;
+        limit.release(this, true);
+        logger.info("Spilled DataStore with columns " + columns + " to disk");
+        return true;
+    }
+
+    /**
+     * Return the storage layout used by this DataStore.
+     *
+     * @return Storage layout of the rows.
+     */
+    public Storage getStorage() {
+        return this.storage;
     }
 
     /**
@@ -254,17 +770,25 @@ public class DataStore implements Serializable {
      *
      * @return Map from a time to a Map from column o value.
      */
-    public TreeMap<Long, Map<String, Object>> getRows() {
-        return new TreeMap<Long, Map<String, Object>>(this.rows);
+    public synchronized TreeMap<Long, Map<String, Object>> getRows() {
+        collectStripes();
+        return this.rows.toMap();
     }
 
     /**
      * The number of data values currently stored in this batch, i.e., the product of the number of
-     * rows times the number of columns. (Empty data values are counted).
+     * rows times the number of columns. (Empty data values are counted). With a rollup, a window
+     * that has ended is emitted first, and the open window does not count.
      *
      * @return Size of this DataStore
      */
     public long getDataSize() {
+        flushWindow(true);
+        return rowsDataSize();
+    }
+
+    private synchronized long rowsDataSize() {
+        collectStripes();
         return this.rows.size() * this.columns.size();
     }
 
@@ -317,7 +841,7 @@ public class DataStore implements Serializable {
             for (int j = 1; j < row.length(); j++) {
                 vals.put(jsonCols.getString(j), row.get(j));
             }
-            ret.rows.put(ts, vals);
+            ret.rows.put(ts, vals, true);
         }
 
         return ret;
@@ -328,7 +852,8 @@ public class DataStore implements Serializable {
      *
      * @return JSONObject representing this batch.
      */
-    public JSONObject toJson() {
+    public synchronized JSONObject toJson() {
+        collectStripes();
         JSONObject ret = new JSONObject();
         JSONArray columns = new JSONArray(Arrays.asList(new String[]{"time"}));
         for (String f : this.columns) {
@@ -338,12 +863,13 @@ public class DataStore implements Serializable {
 
         JSONArray data = new JSONArray();
         ret.put(KEY_ROWS, data);
-        for (Long ts : rows.keySet()) {
+        final int size = rows.size();
+        final int numCols = this.columns.size();
+        for (int i = 0; i < size; i++) {
             JSONArray row = new JSONArray();
-            row.put(ts);
-            Map<String, Object> temp = rows.get(ts);
-            for (String f : this.columns) {
-                Object val = temp.get(f);
+            row.put(rows.getTime(i));
+            for (int c = 0; c < numCols; c++) {
+                Object val = rows.getValue(i, c);
                 row.put(val != null ? val : JSONObject.NULL);
             }
             data.put(row);
@@ -352,8 +878,188 @@ public class DataStore implements Serializable {
         return ret;
     }
 
+    /**
+     * Write this batch as JSON to a stream writer, in the same format as {@link #toJson()}, but
+     * without building an intermediate JSONObject.
+     *
+     * @param writer Writer to write the JSON to.
+     * @throws IOException If writing to the underlying stream fails.
+     */
+    public synchronized void writeJson(JsonStreamWriter writer) throws IOException {
+        collectStripes();
+        writeJson(writer, rows.size(), 1);
+    }
+
+    /**
+     * Estimates the length in bytes of the JSON written by {@link #writeJson(JsonStreamWriter)},
+     * by encoding only a sample of rows spread over the store and extrapolating from their
+     * average length.
+     *
+     * @return Estimated length of the JSON representation in bytes.
+     */
+    public synchronized long estimateJsonLength() {
+        collectStripes();
+        final int size = rows.size();
+        final int step = Math.max(1, size / ESTIMATE_SAMPLE_ROWS);
+        final int sample = (size + step - 1) / step;
+        try {
+            final long empty = measureJson(0, 1);
+            final long sampled = measureJson(size, step);
+            if (step == 1) {
+                return sampled;
+            }
+            return empty + (sampled - empty) * size / sample;
+        } catch (IOException e) {
+            // Only written to an in-memory counter.
+            return -1;
+        }
+    }
+
+    private long measureJson(int toRow, int step) throws IOException {
+        final CountingOutputStream counter = new CountingOutputStream();
+        final JsonStreamWriter writer = new JsonStreamWriter(counter, 1024);
+        writeJson(writer, toRow, step);
+        writer.flush();
+        return counter.getCount();
+    }
+
+    // Writes every `step`th row before `toRow`.
+    private void writeJson(JsonStreamWriter writer, int toRow, int step) throws IOException {
+        writer.beginObject();
+        writer.name(KEY_COLUMNS).beginArray().value("time");
+        for (String f : this.columns) {
+            writer.value(f);
+        }
+        writer.endArray();
+
+        writer.name(KEY_ROWS).beginArray();
+        final int numCols = this.columns.size();
+        for (int i = 0; i < toRow; i += step) {
+            writeRow(writer, i, numCols);
+        }
+        writer.endArray();
+        writer.endObject();
+    }
+
+    private void writeRow(JsonStreamWriter writer, int row, int numCols) throws IOException {
+        writer.beginArray().value(rows.getTime(row));
+        for (int c = 0; c < numCols; c++) {
+            rows.writeValue(row, c, writer);
+        }
+        writer.endArray();
+    }
+
+    /**
+     * Write this batch as CBOR, with the same structure as {@link #toJson()}: a map with the
+     * column names (`time` first) under "fields" and an array of rows under "data". Unlike JSON,
+     * CBOR keeps whether a number is integral or floating point.
+     *
+     * @param writer Writer to write the CBOR to.
+     * @throws IOException If writing to the underlying stream fails.
+     */
+    public synchronized void writeCbor(CborWriter writer) throws IOException {
+        collectStripes();
+        writeCbor(writer, rows.size(), 1);
+    }
+
+    /**
+     * Estimates the length in bytes of the CBOR written by {@link #writeCbor(CborWriter)}, the
+     * same way as {@link #estimateJsonLength()}.
+     *
+     * @return Estimated length of the CBOR representation in bytes.
+     */
+    public synchronized long estimateCborLength() {
+        collectStripes();
+        final int size = rows.size();
+        final int step = Math.max(1, size / ESTIMATE_SAMPLE_ROWS);
+        final int sample = (size + step - 1) / step;
+        try {
+            final long empty = measureCbor(0, 1);
+            final long sampled = measureCbor(size, step);
+            if (step == 1) {
+                return sampled;
+            }
+            return empty + (sampled - empty) * size / sample;
+        } catch (IOException e) {
+            // Only written to an in-memory counter.
+            return -1;
+        }
+    }
+
+    private long measureCbor(int toRow, int step) throws IOException {
+        final CountingOutputStream counter = new CountingOutputStream();
+        final CborWriter writer = new CborWriter(counter, 1024);
+        writeCbor(writer, toRow, step);
+        writer.flush();
+        return counter.getCount();
+    }
+
+    // Writes every `step`th row before `toRow`.
+    private void writeCbor(CborWriter writer, int toRow, int step) throws IOException {
+        writer.beginMap(2);
+        writer.value(KEY_COLUMNS).beginArray(this.columns.size() + 1).value("time");
+        for (String f : this.columns) {
+            writer.value(f);
+        }
+
+        writer.value(KEY_ROWS).beginArray((toRow + step - 1) / step);
+        final int numCols = this.columns.size();
+        for (int i = 0; i < toRow; i += step) {
+            writeRow(writer, i, numCols);
+        }
+    }
+
+    private void writeRow(CborWriter writer, int row, int numCols) throws IOException {
+        writer.beginArray(numCols + 1).value(rows.getTime(row));
+        for (int c = 0; c < numCols; c++) {
+            writer.value(rows.getValue(row, c));
+        }
+    }
+
+    /**
+     * Create a DataStore from its decoded CBOR representation, as written by {@link
+     * #writeCbor(CborWriter)}.
+     *
+     * @param cbor Map decoded by {@link com.iobeam.api.resource.util.CborReader}
+     * @return DataStore corresponding to the CBOR
+     * @throws ParseException If the CBOR is not a DataStore
+     */
+    static DataStore fromCbor(final Map<String, Object> cbor) throws ParseException {
+        final Object fields = cbor.get(KEY_COLUMNS);
+        final Object data = cbor.get(KEY_ROWS);
+        if (!(fields instanceof List) || !(data instanceof List)) {
+            throw new ParseException("'fields' and 'data' must be arrays", 0);
+        }
+        final List<?> cols = (List<?>) fields;
+        if (cols.isEmpty() || !"time".equals(cols.get(0))) {
+            throw new ParseException("time must be the first item in 'fields'", 0);
+        }
+
+        final Set<String> names = new HashSet<String>();
+        for (int i = 1; i < cols.size(); i++) {
+            names.add(String.valueOf(cols.get(i)));
+        }
+        final DataStore ret = new DataStore(names);
+        for (Object r : (List<?>) data) {
+            if (!(r instanceof List) || ((List<?>) r).isEmpty() ||
+                !(((List<?>) r).get(0) instanceof Long)) {
+                throw new ParseException("Invalid row: " + r, 0);
+            }
+            final List<?> row = (List<?>) r;
+            final Map<String, Object> vals = new HashMap<String, Object>();
+            for (int j = 1; j < row.size() && j < cols.size(); j++) {
+                if (row.get(j) != null) {
+                    vals.put(String.valueOf(cols.get(j)), row.get(j));
+                }
+            }
+            ret.rows.put((Long) row.get(0), vals, true);
+        }
+        return ret;
+    }
+
     @Override
-    public String toString() {
+    public synchronized String toString() {
+        collectStripes();
         return "DataStore{" +
                "columns=" + this.columns +
                "dataSize=" + this.rows.size() +
@@ -364,6 +1070,14 @@ public class DataStore implements Serializable {
         return DataStore.split(this, maxRows);
     }
 
+    public List<DataStore> split(int maxRows, long maxBytes) {
+        return DataStore.split(this, maxRows, maxBytes);
+    }
+
+    public List<DataStore> split(int maxRows, long maxBytes, Encoding encoding) {
+        return DataStore.split(this, maxRows, maxBytes, encoding);
+    }
+
     /**
      * Alias for `reset()`.
      */
@@ -374,32 +1088,324 @@ public class DataStore implements Serializable {
     /**
      * Removes all the data from the DataStore
      */
-    public void reset() {
-        this.rows.clear();
+    public synchronized void reset() {
+        if (stripes != null) {
+            for (int i = 0; i < stripes.length; i++) {
+                synchronized (stripeLocks[i]) {
+                    stripes[i] = stripes[i].newEmpty();
+                }
+            }
+        }
+        if (rowsShared) {
+            this.rows = this.rows.newEmpty();
+            this.rowsShared = false;
+        } else {
+            this.rows.clear();
+        }
+        if (window != null) {
+            synchronized (window) {
+                window.reset();
+            }
+        }
+        if (limit != null) {
+            limit.release(this, false);
+        }
+    }
+
+    /**
+     * Atomically removes all rows from this DataStore and returns them in a new one. Rows added
+     * concurrently end up in exactly one of the two. This takes constant time (apart from merging
+     * write stripes): the current rows are handed over to the returned DataStore and this one
+     * continues with empty storage, so adds are not held up by copying a large backlog. With a
+     * rollup, a window that has ended is emitted first; the open window stays.
+     *
+     * @return DataStore with the removed rows.
+     */
+    public DataStore drain() {
+        flushWindow(true);
+        return drainRows();
     }
 
+    private synchronized DataStore drainRows() {
+        collectStripes();
+        DataStore ret = new DataStore(this.columns, this.storage, this.rows);
+        ret.rowsShared = this.rowsShared;
+        this.rows = this.rows.newEmpty();
+        this.rowsShared = false;
+        if (limit != null) {
+            limit.release(this, false);
+        }
+        return ret;
+    }
+
+    /**
+     * Splits a DataStore into DataStores of at most `maxRows` consecutive rows each, in timestamp
+     * order. If the DataStore is small enough, it is returned as is.
+     *
+     * The parts are views of the rows of `batch` rather than copies, so splitting takes time in
+     * the number of parts, not rows. Modifying either `batch` or a part afterwards copies the
+     * shared rows first, so they never affect each other.
+     *
+     * @param batch   DataStore to split
+     * @param maxRows Maximum number of rows per part
+     * @return List of parts, in timestamp order.
+     */
     public static List<DataStore> split(DataStore batch, int maxRows) {
+        return split(batch, maxRows, 0);
+    }
+
+    /**
+     * Splits a DataStore into DataStores of consecutive rows, in timestamp order, each with at
+     * most `maxRows` rows and (if `maxBytes` is positive) a JSON representation of at most
+     * `maxBytes` bytes. A row that does not fit in `maxBytes` on its own is put in a part by
+     * itself. If the DataStore is small enough, it is returned as is.
+     *
+     * Rows are measured one by one as they would be encoded, so parts are filled up to the byte
+     * budget whatever the size of their values. As with {@link #split(DataStore, int)}, the parts
+     * are views of the rows of `batch`.
+     *
+     * @param batch    DataStore to split
+     * @param maxRows  Maximum number of rows per part
+     * @param maxBytes Maximum length in bytes of the JSON of each part, as written by {@link
+     *                 #writeJson(JsonStreamWriter)}, or 0 for no limit.
+     * @return List of parts, in timestamp order.
+     */
+    public static List<DataStore> split(DataStore batch, int maxRows, long maxBytes) {
+        return split(batch, maxRows, maxBytes, Encoding.JSON);
+    }
+
+    /**
+     * Splits a DataStore like {@link #split(DataStore, int, long)}, measuring the length of each
+     * part in a given encoding.
+     *
+     * @param batch    DataStore to split
+     * @param maxRows  Maximum number of rows per part
+     * @param maxBytes Maximum length in bytes of each part in `encoding`, or 0 for no limit.
+     * @param encoding Encoding the parts are sent in
+     * @return List of parts, in timestamp order.
+     */
+    public static List<DataStore> split(DataStore batch, int maxRows, long maxBytes,
+                                        Encoding encoding) {
         if (maxRows <= 0) {
             throw new IllegalArgumentException("maxRows must be greater than 0");
         }
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes must not be negative");
+        }
 
         List<DataStore> ret = new ArrayList<DataStore>();
-        if (batch.rows.size() <= maxRows) {
-            ret.add(batch);
-        } else {
-            for (int i = 0; i < batch.rows.size(); i += maxRows) {
-                DataStore temp = new DataStore(batch.columns);
-                temp.rows.putAll(batch.rows.subMap((long) i, (long) i + maxRows));
-                ret.add(temp);
+        synchronized (batch) {
+            batch.collectStripes();
+            final List<Integer> ends = batch.splitPoints(maxRows, maxBytes, encoding);
+            if (ends.size() == 1) {
+                ret.add(batch);
+            } else {
+                batch.rowsShared = true;
+                int start = 0;
+                for (int end : ends) {
+                    DataStore part = new DataStore(batch.columns, batch.storage,
+                                                   batch.rows.view(start, end));
+                    part.rowsShared = true;
+                    ret.add(part);
+                    start = end;
+                }
             }
         }
         return ret;
     }
 
-    public static DataStore snapshot(DataStore batch) {
-        DataStore ret = new DataStore(batch.columns);
-        ret.rows.putAll(batch.rows);
+    /**
+     * Returns the (exclusive) end positions of the parts that split() divides the rows into. Must
+     * be called with the lock on this DataStore held, after collecting the write stripes.
+     */
+    private List<Integer> splitPoints(int maxRows, long maxBytes, Encoding encoding) {
+        final int size = rows.size();
+        final List<Integer> ret = new ArrayList<Integer>();
+        if (maxBytes == 0) {
+            for (int i = maxRows; i < size; i += maxRows) {
+                ret.add(i);
+            }
+            ret.add(size);
+            return ret;
+        }
+
+        // Every row is measured, since a sample could miss a single long value, but from its
+        // values rather than by encoding it. CBOR lengths are exact; JSON lengths of doubles are
+        // estimates, so JSON parts keep a margin.
+        final boolean cbor = encoding == Encoding.CBOR;
+        final long budget = cbor ? maxBytes : maxBytes - maxBytes / JSON_SPLIT_MARGIN;
+        try {
+            // The CBOR head of the array of rows takes up to 4 more bytes for more rows.
+            final long envelope = cbor ? measureCbor(0, 1) + 4 : measureJson(0, 1);
+            final int numCols = this.columns.size();
+            // The array of a row and its timestamp, and in JSON the separating comma, which the
+            // first row of a part does not need.
+            final long rowHead = cbor ? CborWriter.headLength(numCols + 1) : 3;
+            int start = 0;
+            long bytes = envelope;
+            for (int i = 0; i < size; i++) {
+                long rowBytes = rowHead;
+                if (cbor) {
+                    final long t = rows.getTime(i);
+                    rowBytes += CborWriter.headLength(t >= 0 ? t : ~t);
+                    for (int c = 0; c < numCols; c++) {
+                        rowBytes += CborWriter.length(rows.getValue(i, c));
+                    }
+                } else {
+                    rowBytes += JsonStreamWriter.estimateLength(rows.getTime(i)) + numCols;
+                    for (int c = 0; c < numCols; c++) {
+                        rowBytes += JsonStreamWriter.estimateLength(rows.getValue(i, c));
+                    }
+                }
+                if (i > start && (i - start == maxRows || bytes + rowBytes > budget)) {
+                    ret.add(i);
+                    start = i;
+                    bytes = envelope;
+                }
+                bytes += rowBytes;
+            }
+        } catch (IOException e) {
+            // Only written to an in-memory counter.
+            throw new IllegalStateException(e);
+        }
+        ret.add(size);
+        return ret;
+    }
+
+    /**
+     * Combines DataStores with disjoint columns into fewer, wider DataStores, so that their data
+     * can be sent in fewer requests. Rows of combined DataStores that share a timestamp become one
+     * row; other rows get null values for the columns of the other DataStores.
+     *
+     * A DataStore is only combined with others if that at most doubles the number of values
+     * (including nulls) compared to keeping them apart, so DataStores whose rows have mostly
+     * different timestamps are left alone. DataStores with overlapping columns are never
+     * combined.
+     *
+     * @param stores DataStores to combine; they are not modified.
+     * @return List of DataStores with the same data, in the order of their first input. Inputs
+     * that are not combined with any other are returned as is.
+     */
+    public static List<DataStore> coalesce(List<DataStore> stores) {
+        final List<List<DataStore>> groups = new ArrayList<List<DataStore>>();
+        final List<TreeSet<String>> groupColumns = new ArrayList<TreeSet<String>>();
+        final List<long[]> groupTimes = new ArrayList<long[]>();
+        final List<Long> groupValues = new ArrayList<Long>();
+
+        for (DataStore s : stores) {
+            final long[] times = s.getTimes();
+            final long values = (long) times.length * s.columns.size();
+            boolean added = false;
+            for (int g = 0; g < groups.size() && !added; g++) {
+                if (!Collections.disjoint(groupColumns.get(g), s.columns)) {
+                    continue;
+                }
+                final long[] union = unionTimes(groupTimes.get(g), times);
+                final long cells = (long) union.length *
+                                   (groupColumns.get(g).size() + s.columns.size());
+                if (cells <= COALESCE_MAX_GROWTH * (groupValues.get(g) + values)) {
+                    groups.get(g).add(s);
+                    groupColumns.get(g).addAll(s.columns);
+                    groupTimes.set(g, union);
+                    groupValues.set(g, groupValues.get(g) + values);
+                    added = true;
+                }
+            }
+            if (!added) {
+                groups.add(new ArrayList<DataStore>(Collections.singletonList(s)));
+                groupColumns.add(new TreeSet<String>(s.columns));
+                groupTimes.add(times);
+                groupValues.add(values);
+            }
+        }
+
+        final List<DataStore> ret = new ArrayList<DataStore>(groups.size());
+        for (int g = 0; g < groups.size(); g++) {
+            final List<DataStore> group = groups.get(g);
+            if (group.size() == 1) {
+                ret.add(group.get(0));
+                continue;
+            }
+            final RowStorage[] sources = new RowStorage[group.size()];
+            for (int i = 0; i < sources.length; i++) {
+                sources[i] = group.get(i).shareRows();
+            }
+            final TreeSet<String> cols = groupColumns.get(g);
+            final DataStore merged = new DataStore(
+                cols, group.get(0).storage, sources[0].newEmpty(cols.toArray(new String[0])));
+            merged.rows.mergeSorted(sources);
+            ret.add(merged);
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the current rows, to be read without holding the lock on this DataStore; they are
+     * copied before this DataStore next modifies them.
+     */
+    private synchronized RowStorage shareRows() {
+        collectStripes();
+        rowsShared = true;
+        return rows;
+    }
 
+    private synchronized long[] getTimes() {
+        collectStripes();
+        final long[] ret = new long[rows.size()];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = rows.getTime(i);
+        }
         return ret;
     }
+
+    private static long[] unionTimes(long[] a, long[] b) {
+        final long[] ret = new long[a.length + b.length];
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while (i < a.length || j < b.length) {
+            if (j == b.length || (i < a.length && a[i] < b[j])) {
+                ret[n++] = a[i++];
+            } else if (i == a.length || b[j] < a[i]) {
+                ret[n++] = b[j++];
+            } else {
+                ret[n++] = a[i++];
+                j++;
+            }
+        }
+        return Arrays.copyOf(ret, n);
+    }
+
+    /**
+     * Returns a new DataStore with only some of the columns of this one, and the rows that have
+     * a value in at least one of them.
+     *
+     * @param columns Columns to keep; must all be columns of this DataStore.
+     * @return New DataStore with the given columns.
+     */
+    public synchronized DataStore project(Collection<String> columns) {
+        final TreeSet<String> cols = new TreeSet<String>(columns);
+        if (!this.columns.containsAll(cols)) {
+            throw new IllegalArgumentException("Not all of " + cols + " are in " + this.columns);
+        }
+        collectStripes();
+        final DataStore ret = new DataStore(cols, this.storage,
+                                            rows.newEmpty(cols.toArray(new String[0])));
+        final int size = rows.size();
+        for (int i = 0; i < size; i++) {
+            final Map<String, Object> row = rows.getRow(i);
+            row.keySet().retainAll(cols);
+            if (!row.isEmpty()) {
+                ret.rows.put(rows.getTime(i), row, true);
+            }
+        }
+        return ret;
+    }
+
+    public static DataStore snapshot(DataStore batch) {
+        synchronized (batch) {
+            batch.collectStripes();
+            return new DataStore(batch.columns, batch.storage, batch.rows.copy());
+        }
+    }
 }
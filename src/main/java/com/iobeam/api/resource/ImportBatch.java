@@ -1,8 +1,17 @@
 package com.iobeam.api.resource;
 
+import com.iobeam.api.resource.util.CborReader;
+import com.iobeam.api.resource.util.CborWriter;
+import com.iobeam.api.resource.util.JsonStreamWriter;
+import com.iobeam.util.io.CountingOutputStream;
+
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.text.ParseException;
 import java.util.Map;
 
 /**
@@ -56,6 +65,130 @@ public class ImportBatch implements Serializable {
         return ret;
     }
 
+    /**
+     * Writes the JSON representation of this batch (the same as {@link #serialize()}) directly to
+     * a stream as UTF-8, without building intermediate JSON objects or Strings.
+     *
+     * @param out Stream to write to; it is flushed but not closed.
+     * @throws IOException If writing to the stream fails.
+     */
+    public void writeJson(OutputStream out) throws IOException {
+        JsonStreamWriter writer = new JsonStreamWriter(out);
+        writer.beginObject();
+        writer.name("project_id").value(this.projectId);
+        writer.name("device_id").value(this.deviceId);
+        writer.name("sources");
+        this.data.writeJson(writer);
+        writer.endObject();
+        writer.flush();
+    }
+
+    /**
+     * Estimates the length in bytes of the JSON written by {@link #writeJson(OutputStream)},
+     * without encoding all of the data.
+     *
+     * @return Estimated length in bytes, or -1 if it could not be estimated.
+     */
+    public long estimateJsonLength() {
+        final long data = this.data.estimateJsonLength();
+        if (data < 0) {
+            return -1;
+        }
+        return getEnvelopeLength() + data;
+    }
+
+    /**
+     * @return Length in bytes of the JSON written by {@link #writeJson(OutputStream)}, apart
+     * from that of the data (assuming the device id needs no escaping).
+     */
+    public long getEnvelopeLength() {
+        // {"project_id":,"device_id":"","sources":}
+        return 41 + String.valueOf(this.projectId).length() +
+               (this.deviceId == null ? 2 : this.deviceId.length());
+    }
+
+    /**
+     * @param encoding Encoding of the batch
+     * @return Length in bytes of this batch in `encoding`, apart from that of the data.
+     */
+    public long getEnvelopeLength(DataStore.Encoding encoding) {
+        if (encoding == DataStore.Encoding.JSON) {
+            return getEnvelopeLength();
+        }
+        final CountingOutputStream counter = new CountingOutputStream();
+        final CborWriter writer = new CborWriter(counter, 64);
+        try {
+            writeCborEnvelope(writer);
+            writer.flush();
+        } catch (IOException e) {
+            // Only written to an in-memory counter.
+            throw new IllegalStateException(e);
+        }
+        return counter.getCount();
+    }
+
+    /**
+     * Writes this batch as CBOR, with the same structure as its JSON: a map of "project_id",
+     * "device_id" and "sources" (see {@link DataStore#writeCbor(CborWriter)}).
+     *
+     * @param out Stream to write to; it is flushed but not closed.
+     * @throws IOException If writing to the stream fails.
+     */
+    public void writeCbor(OutputStream out) throws IOException {
+        CborWriter writer = new CborWriter(out);
+        writeCborEnvelope(writer);
+        this.data.writeCbor(writer);
+        writer.flush();
+    }
+
+    private void writeCborEnvelope(CborWriter writer) throws IOException {
+        writer.beginMap(3);
+        writer.value("project_id").value(this.projectId);
+        writer.value("device_id").value(this.deviceId);
+        writer.value("sources");
+    }
+
+    /**
+     * Estimates the length in bytes of the CBOR written by {@link #writeCbor(OutputStream)},
+     * without encoding all of the data.
+     *
+     * @return Estimated length in bytes, or -1 if it could not be estimated.
+     */
+    public long estimateCborLength() {
+        final long data = this.data.estimateCborLength();
+        if (data < 0) {
+            return -1;
+        }
+        return getEnvelopeLength(DataStore.Encoding.CBOR) + data;
+    }
+
+    /**
+     * Create an ImportBatch from its CBOR representation, as written by {@link
+     * #writeCbor(OutputStream)}.
+     *
+     * @param in Stream to read the CBOR from; it is not closed.
+     * @return ImportBatch corresponding to the CBOR.
+     * @throws IOException    If reading from the stream fails
+     * @throws ParseException If the CBOR is invalid
+     */
+    @SuppressWarnings("unchecked")
+    public static ImportBatch fromCbor(final InputStream in) throws IOException, ParseException {
+        final Object cbor = new CborReader(in).read();
+        if (!(cbor instanceof Map)) {
+            throw new ParseException("ImportBatch must be a map", 0);
+        }
+        final Map<String, Object> map = (Map<String, Object>) cbor;
+        final Object projectId = map.get("project_id");
+        final Object deviceId = map.get("device_id");
+        final Object sources = map.get("sources");
+        if (!(projectId instanceof Long) || !(sources instanceof Map) ||
+            (deviceId != null && !(deviceId instanceof String))) {
+            throw new ParseException("Invalid ImportBatch: " + map.keySet(), 0);
+        }
+        return new ImportBatch((Long) projectId, (String) deviceId,
+                               DataStore.fromCbor((Map<String, Object>) sources));
+    }
+
     @Deprecated
     public JSONObject serialize(Map<String, Object> out) {
         out.put("project_id", this.projectId);
@@ -69,6 +202,19 @@ public class ImportBatch implements Serializable {
         return serialize();
     }
 
+    /**
+     * Create an ImportBatch from its JSON representation, as produced by {@link #toJson()}.
+     *
+     * @param json JSON of the ImportBatch
+     * @return ImportBatch corresponding to the JSON.
+     * @throws ParseException If the JSON is invalid
+     */
+    public static ImportBatch fromJson(final JSONObject json) throws ParseException {
+        return new ImportBatch(json.getLong("project_id"),
+                               json.isNull("device_id") ? null : json.getString("device_id"),
+                               DataStore.fromJson(json.getJSONObject("sources")));
+    }
+
     public JSONObject toJson(Map<String, Object> out) {
         return serialize(out);
     }
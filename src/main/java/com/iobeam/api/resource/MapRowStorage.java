@@ -0,0 +1,126 @@
+package com.iobeam.api.resource;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Row storage that keeps each row as a Map from column to value, indexed by timestamp in a
+ * TreeMap. This is the original DataStore layout and remains the default.
+ */
+final class MapRowStorage extends RowStorage {
+
+    private final TreeMap<Long, Map<String, Object>> rows =
+        new TreeMap<Long, Map<String, Object>>();
+
+    // Positional index over `rows`, rebuilt lazily after modifications. Replaced as a whole, so
+    // that split() views reading without a lock at most build it twice.
+    private transient volatile Index index = null;
+
+    private static final class Index {
+
+        final long[] times;
+        final List<Map<String, Object>> rows;
+
+        Index(long[] times, List<Map<String, Object>> rows) {
+            this.times = times;
+            this.rows = rows;
+        }
+    }
+
+    MapRowStorage(String[] columns) {
+        super(columns);
+    }
+
+    private void invalidate() {
+        index = null;
+    }
+
+    private Index buildIndex() {
+        Index ret = index;
+        if (ret != null) {
+            return ret;
+        }
+        long[] times = new long[rows.size()];
+        List<Map<String, Object>> values = new ArrayList<Map<String, Object>>(rows.size());
+        int i = 0;
+        for (Map.Entry<Long, Map<String, Object>> e : rows.entrySet()) {
+            times[i] = e.getKey();
+            values.add(e.getValue());
+            i++;
+        }
+        ret = new Index(times, values);
+        index = ret;
+        return ret;
+    }
+
+    @Override
+    int size() {
+        return rows.size();
+    }
+
+    @Override
+    long getTime(int row) {
+        return buildIndex().times[row];
+    }
+
+    @Override
+    Object getValue(int row, int column) {
+        return buildIndex().rows.get(row).get(columns[column]);
+    }
+
+    @Override
+    Map<String, Object> getRow(int row) {
+        return new HashMap<String, Object>(buildIndex().rows.get(row));
+    }
+
+    @Override
+    void put(long time, Map<String, Object> values, boolean replace) {
+        Map<String, Object> curr = replace ? null : rows.get(time);
+        if (curr == null) {
+            rows.put(time, new HashMap<String, Object>(values));
+        } else {
+            curr.putAll(values);
+        }
+        invalidate();
+    }
+
+    @Override
+    void putAll(RowStorage other) {
+        if (other instanceof MapRowStorage) {
+            // Copy the row maps, since merging into a row modifies it in place.
+            for (Map.Entry<Long, Map<String, Object>> e : ((MapRowStorage) other).rows.entrySet()) {
+                rows.put(e.getKey(), new HashMap<String, Object>(e.getValue()));
+            }
+            invalidate();
+        } else {
+            super.putAll(other);
+        }
+    }
+
+    @Override
+    void clear() {
+        rows.clear();
+        invalidate();
+    }
+
+    @Override
+    void truncate(int size) {
+        if (size < rows.size()) {
+            rows.tailMap(getTime(size), true).clear();
+            invalidate();
+        }
+    }
+
+    @Override
+    RowStorage newEmpty(String[] columns) {
+        return new MapRowStorage(columns);
+    }
+
+    @Override
+    TreeMap<Long, Map<String, Object>> toMap() {
+        return new TreeMap<Long, Map<String, Object>>(rows);
+    }
+}
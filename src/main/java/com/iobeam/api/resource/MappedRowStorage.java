@@ -0,0 +1,506 @@
+package com.iobeam.api.resource;
+
+import com.iobeam.api.resource.util.JsonStreamWriter;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Row storage that keeps rows outside of the Java heap, in memory-mapped temporary files. The heap
+ * use of the storage does not grow with the number of rows, so a large backlog (e.g. while a
+ * device is offline) is paged in and out by the OS instead of filling up the heap.
+ *
+ * Rows are appended to data chunks in a compact binary format: a 2-byte cell count, then for each
+ * non-null cell a 2-byte column index, a 1-byte type and the value (8 bytes for integral and
+ * floating point values, 1 byte for Booleans, and a 4-byte length plus UTF-8 bytes for Strings
+ * and other Numbers). A separate index of 16-byte (timestamp, offset) entries, sorted by
+ * timestamp, is kept in index chunks. Rewriting a row appends a new copy of it, and truncating
+ * leaves the records of the removed rows behind; once such dead records take up more space than
+ * the live ones (and at least a chunk), the live records are compacted into new chunks.
+ *
+ * Each chunk is mapped from its own temporary file, which is deleted right away where the OS
+ * allows it (so the space is freed once the mapping is garbage collected) and on exit otherwise.
+ * Chunks left unused by a compaction, {@link #truncate(int)} or {@link #clear()} are dropped, so
+ * that they are unmapped and their space freed.
+ *
+ * Note: like {@link ColumnarRowStorage}, values are returned in their widened form, i.e., Integer
+ * values come back as Long and Float values as Double. Numbers other than those are returned as
+ * BigDecimal.
+ */
+final class MappedRowStorage extends RowStorage {
+
+    static final int DEFAULT_CHUNK_BYTES = 1024 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int INDEX_ENTRY_BYTES = 16;
+    private static final int MAX_COLUMNS = 0xFFFF;
+
+    private static final byte TYPE_LONG = ColumnarRowStorage.TYPE_LONG;
+    private static final byte TYPE_DOUBLE = ColumnarRowStorage.TYPE_DOUBLE;
+    private static final byte TYPE_BOOLEAN = ColumnarRowStorage.TYPE_BOOLEAN;
+    private static final byte TYPE_STRING = ColumnarRowStorage.TYPE_STRING;
+    private static final byte TYPE_NUMBER = 6;
+
+    private final File dir;
+    private final int chunkBytes;
+    private final Map<String, Integer> columnIndex = new HashMap<String, Integer>();
+    private transient List<ByteBuffer> dataChunks;
+    private transient List<ByteBuffer> indexChunks;
+    private transient int dataChunk;
+    private transient int dataPos;
+    private transient int size;
+    // Bytes of the records appended since the last compaction, and of those still in use.
+    private transient long usedBytes;
+    private transient long liveBytes;
+
+    /**
+     * @param columns    Sorted column names
+     * @param dir        Directory for the temporary files, or null for the default temporary
+     *                   directory.
+     * @param chunkBytes Size of each mapped chunk; rows larger than this get a chunk of their own.
+     */
+    MappedRowStorage(String[] columns, File dir, int chunkBytes) {
+        super(columns);
+        if (columns.length > MAX_COLUMNS) {
+            throw new IllegalArgumentException("Too many columns: " + columns.length);
+        }
+        if (chunkBytes < INDEX_ENTRY_BYTES) {
+            throw new IllegalArgumentException("chunkBytes must be at least " + INDEX_ENTRY_BYTES);
+        }
+        this.dir = dir;
+        this.chunkBytes = chunkBytes;
+        for (int i = 0; i < columns.length; i++) {
+            this.columnIndex.put(columns[i], i);
+        }
+        init();
+    }
+
+    MappedRowStorage(String[] columns, File dir) {
+        this(columns, dir, DEFAULT_CHUNK_BYTES);
+    }
+
+    private void init() {
+        dataChunks = new ArrayList<ByteBuffer>();
+        indexChunks = new ArrayList<ByteBuffer>();
+        dataChunk = 0;
+        dataPos = 0;
+        size = 0;
+        usedBytes = 0;
+        liveBytes = 0;
+    }
+
+    private MappedByteBuffer map(int bytes) {
+        try {
+            final File file = File.createTempFile("iobeam-", ".rows", dir);
+            final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                // The mapping stays valid after the file is closed (and, on most systems, deleted).
+                return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+            } finally {
+                raf.close();
+                if (!file.delete()) {
+                    file.deleteOnExit();
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not map row storage: " + e.getMessage(), e);
+        }
+    }
+
+    private int entriesPerChunk() {
+        return chunkBytes / INDEX_ENTRY_BYTES;
+    }
+
+    private ByteBuffer indexChunk(int row) {
+        return indexChunks.get(row / entriesPerChunk());
+    }
+
+    private int indexPos(int row) {
+        return (row % entriesPerChunk()) * INDEX_ENTRY_BYTES;
+    }
+
+    private long getOffset(int row) {
+        return indexChunk(row).getLong(indexPos(row) + 8);
+    }
+
+    private void setEntry(int row, long time, long offset) {
+        if (row / entriesPerChunk() >= indexChunks.size()) {
+            indexChunks.add(map(entriesPerChunk() * INDEX_ENTRY_BYTES));
+        }
+        final ByteBuffer chunk = indexChunk(row);
+        final int pos = indexPos(row);
+        chunk.putLong(pos, time);
+        chunk.putLong(pos + 8, offset);
+    }
+
+    private void checkRow(int row) {
+        if (row >= size) {
+            throw new IndexOutOfBoundsException("row " + row + " >= " + size);
+        }
+    }
+
+    // Returns the position of the type byte of a cell in `chunk`, or -1 if the cell is null.
+    private static int findCell(ByteBuffer chunk, int pos, int column) {
+        final int cells = chunk.getShort(pos) & 0xFFFF;
+        pos += 2;
+        for (int i = 0; i < cells; i++) {
+            final int c = chunk.getShort(pos) & 0xFFFF;
+            pos += 2;
+            if (c == column) {
+                return pos;
+            }
+            pos = skipValue(chunk, pos);
+        }
+        return -1;
+    }
+
+    private static int skipValue(ByteBuffer chunk, int pos) {
+        switch (chunk.get(pos)) {
+            case TYPE_LONG:
+            case TYPE_DOUBLE:
+                return pos + 9;
+            case TYPE_BOOLEAN:
+                return pos + 2;
+            default:
+                return pos + 5 + chunk.getInt(pos + 1);
+        }
+    }
+
+    // Returns the length of the row record at `pos` in `chunk`.
+    private static int recordLength(ByteBuffer chunk, int pos) {
+        final int cells = chunk.getShort(pos) & 0xFFFF;
+        int end = pos + 2;
+        for (int i = 0; i < cells; i++) {
+            end = skipValue(chunk, end + 2);
+        }
+        return end - pos;
+    }
+
+    private int recordLength(int row) {
+        final long offset = getOffset(row);
+        return recordLength(dataChunks.get((int) (offset >>> 32)), (int) offset);
+    }
+
+    private static String readString(ByteBuffer chunk, int pos) {
+        final byte[] bytes = new byte[chunk.getInt(pos)];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = chunk.get(pos + 4 + i);
+        }
+        return new String(bytes, UTF8);
+    }
+
+    private static Object readValue(ByteBuffer chunk, int pos) {
+        switch (chunk.get(pos)) {
+            case TYPE_LONG:
+                return chunk.getLong(pos + 1);
+            case TYPE_DOUBLE:
+                return chunk.getDouble(pos + 1);
+            case TYPE_BOOLEAN:
+                return chunk.get(pos + 1) != 0;
+            case TYPE_STRING:
+                return readString(chunk, pos + 1);
+            default:
+                return new BigDecimal(readString(chunk, pos + 1));
+        }
+    }
+
+    private static byte typeOf(Object value) {
+        final byte type = ColumnarRowStorage.typeOf(value);
+        if (type == ColumnarRowStorage.TYPE_OBJECT) {
+            if (value instanceof Number) {
+                return TYPE_NUMBER;
+            }
+            throw new IllegalArgumentException(
+                "Cannot store values of type " + value.getClass().getName());
+        }
+        return type;
+    }
+
+    // Appends a row record to the data chunks, and returns its offset.
+    private long append(Map<String, Object> row) {
+        final int cells = row.size();
+        final int[] cols = new int[cells];
+        final byte[] types = new byte[cells];
+        final Object[] vals = new Object[cells];
+        int length = 2;
+        int i = 0;
+        for (Map.Entry<String, Object> e : row.entrySet()) {
+            cols[i] = columnIndex.get(e.getKey());
+            types[i] = typeOf(e.getValue());
+            switch (types[i]) {
+                case TYPE_LONG:
+                    vals[i] = ((Number) e.getValue()).longValue();
+                    length += 11;
+                    break;
+                case TYPE_DOUBLE:
+                    // Go through the String form so Floats keep their decimal representation.
+                    vals[i] = e.getValue() instanceof Float ?
+                              Double.parseDouble(e.getValue().toString()) :
+                              (Double) e.getValue();
+                    length += 11;
+                    break;
+                case TYPE_BOOLEAN:
+                    vals[i] = e.getValue();
+                    length += 4;
+                    break;
+                default:
+                    vals[i] = e.getValue().toString().getBytes(UTF8);
+                    length += 7 + ((byte[]) vals[i]).length;
+                    break;
+            }
+            i++;
+        }
+
+        final ByteBuffer chunk = reserve(length);
+        int pos = dataPos;
+        chunk.putShort(pos, (short) cells);
+        pos += 2;
+        for (i = 0; i < cells; i++) {
+            chunk.putShort(pos, (short) cols[i]);
+            chunk.put(pos + 2, types[i]);
+            pos += 3;
+            switch (types[i]) {
+                case TYPE_LONG:
+                    chunk.putLong(pos, (Long) vals[i]);
+                    pos += 8;
+                    break;
+                case TYPE_DOUBLE:
+                    chunk.putDouble(pos, (Double) vals[i]);
+                    pos += 8;
+                    break;
+                case TYPE_BOOLEAN:
+                    chunk.put(pos, (byte) ((Boolean) vals[i] ? 1 : 0));
+                    pos += 1;
+                    break;
+                default:
+                    final byte[] bytes = (byte[]) vals[i];
+                    chunk.putInt(pos, bytes.length);
+                    for (int b = 0; b < bytes.length; b++) {
+                        chunk.put(pos + 4 + b, bytes[b]);
+                    }
+                    pos += 4 + bytes.length;
+                    break;
+            }
+        }
+
+        final long offset = ((long) dataChunk << 32) | dataPos;
+        dataPos = pos;
+        usedBytes += length;
+        liveBytes += length;
+        return offset;
+    }
+
+    // Compacts the row records if dead ones take up more space than the live ones.
+    private void maybeCompact() {
+        if (usedBytes - liveBytes > Math.max(liveBytes, chunkBytes)) {
+            compact();
+        }
+    }
+
+    // Copies the live row records into new data chunks, dropping the old ones.
+    private void compact() {
+        final List<ByteBuffer> old = dataChunks;
+        dataChunks = new ArrayList<ByteBuffer>();
+        dataChunk = 0;
+        dataPos = 0;
+        for (int i = 0; i < size; i++) {
+            final long offset = getOffset(i);
+            final ByteBuffer src = old.get((int) (offset >>> 32)).duplicate();
+            final int length = recordLength(src, (int) offset);
+            src.limit((int) offset + length);
+            src.position((int) offset);
+            final ByteBuffer dst = reserve(length).duplicate();
+            dst.position(dataPos);
+            dst.put(src);
+            setEntry(i, getTime(i), ((long) dataChunk << 32) | dataPos);
+            dataPos += length;
+        }
+        usedBytes = liveBytes;
+    }
+
+    // Drops the chunks at `from` and after, so that they can be unmapped.
+    private static void release(List<ByteBuffer> chunks, int from) {
+        if (from < chunks.size()) {
+            chunks.subList(from, chunks.size()).clear();
+        }
+    }
+
+    // Returns a data chunk with room for `length` bytes at `dataPos`, moving on to the next
+    // chunk if the current one is full.
+    private ByteBuffer reserve(int length) {
+        if (dataChunk < dataChunks.size() &&
+            dataPos + length <= dataChunks.get(dataChunk).capacity()) {
+            return dataChunks.get(dataChunk);
+        }
+        if (!dataChunks.isEmpty()) {
+            dataChunk++;
+        }
+        dataPos = 0;
+        final int bytes = Math.max(chunkBytes, length);
+        if (dataChunk == dataChunks.size()) {
+            dataChunks.add(map(bytes));
+        } else if (dataChunks.get(dataChunk).capacity() < length) {
+            // Chunks after the current one only hold cleared rows, so can be replaced.
+            dataChunks.set(dataChunk, map(bytes));
+        }
+        return dataChunks.get(dataChunk);
+    }
+
+    @Override
+    int size() {
+        return size;
+    }
+
+    @Override
+    long getTime(int row) {
+        checkRow(row);
+        return indexChunk(row).getLong(indexPos(row));
+    }
+
+    @Override
+    Object getValue(int row, int column) {
+        checkRow(row);
+        final long offset = getOffset(row);
+        final ByteBuffer chunk = dataChunks.get((int) (offset >>> 32));
+        final int pos = findCell(chunk, (int) offset, column);
+        return pos < 0 ? null : readValue(chunk, pos);
+    }
+
+    @Override
+    void writeValue(int row, int column, JsonStreamWriter writer) throws IOException {
+        checkRow(row);
+        final long offset = getOffset(row);
+        final ByteBuffer chunk = dataChunks.get((int) (offset >>> 32));
+        final int pos = findCell(chunk, (int) offset, column);
+        if (pos < 0) {
+            writer.nullValue();
+            return;
+        }
+        switch (chunk.get(pos)) {
+            case TYPE_LONG:
+                writer.value(chunk.getLong(pos + 1));
+                break;
+            case TYPE_DOUBLE:
+                writer.value(chunk.getDouble(pos + 1));
+                break;
+            case TYPE_BOOLEAN:
+                writer.value(chunk.get(pos + 1) != 0);
+                break;
+            default:
+                writer.value(readValue(chunk, pos));
+                break;
+        }
+    }
+
+    @Override
+    Map<String, Object> getRow(int row) {
+        checkRow(row);
+        final long offset = getOffset(row);
+        final ByteBuffer chunk = dataChunks.get((int) (offset >>> 32));
+        int pos = (int) offset;
+        final int cells = chunk.getShort(pos) & 0xFFFF;
+        pos += 2;
+        Map<String, Object> ret = new HashMap<String, Object>();
+        for (int i = 0; i < cells; i++) {
+            ret.put(columns[chunk.getShort(pos) & 0xFFFF], readValue(chunk, pos + 2));
+            pos = skipValue(chunk, pos + 2);
+        }
+        return ret;
+    }
+
+    @Override
+    void put(long time, Map<String, Object> values, boolean replace) {
+        final int pos = size == 0 || getTime(size - 1) < time ? size : lowerBound(time);
+        final boolean exists = pos < size && getTime(pos) == time;
+        final int oldLength = exists ? recordLength(pos) : 0;
+
+        Map<String, Object> row = exists && !replace ? getRow(pos) : new HashMap<String, Object>();
+        for (Map.Entry<String, Object> e : values.entrySet()) {
+            if (!columnIndex.containsKey(e.getKey())) {
+                throw new IllegalArgumentException("Unknown column: " + e.getKey());
+            }
+            Object value = e.getValue();
+            if (value == null || value == JSONObject.NULL) {
+                row.remove(e.getKey());
+            } else {
+                row.put(e.getKey(), value);
+            }
+        }
+
+        final long offset = append(row);
+        if (!exists) {
+            for (int i = size; i > pos; i--) {
+                setEntry(i, getTime(i - 1), getOffset(i - 1));
+            }
+            size++;
+        }
+        setEntry(pos, time, offset);
+        liveBytes -= oldLength;
+        maybeCompact();
+    }
+
+    @Override
+    void clear() {
+        // The first chunks are kept for the rows to come.
+        release(dataChunks, 1);
+        release(indexChunks, 1);
+        dataChunk = 0;
+        dataPos = 0;
+        size = 0;
+        usedBytes = 0;
+        liveBytes = 0;
+    }
+
+    @Override
+    void truncate(int size) {
+        if (size >= this.size) {
+            return;
+        }
+        for (int i = size; i < this.size; i++) {
+            liveBytes -= recordLength(i);
+        }
+        this.size = size;
+        release(indexChunks, Math.max(1, (size + entriesPerChunk() - 1) / entriesPerChunk()));
+        maybeCompact();
+    }
+
+    @Override
+    RowStorage newEmpty(String[] columns) {
+        return new MappedRowStorage(columns, dir, chunkBytes);
+    }
+
+    // Mapped chunks cannot be serialized, so rows are written out one by one instead.
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            out.writeLong(getTime(i));
+            out.writeObject(getRow(i));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        init();
+        final int rows = in.readInt();
+        for (int i = 0; i < rows; i++) {
+            final long time = in.readLong();
+            put(time, (Map<String, Object>) in.readObject(), true);
+        }
+    }
+}
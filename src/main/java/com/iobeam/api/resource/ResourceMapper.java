@@ -6,11 +6,14 @@ import com.iobeam.api.client.RestError;
 import com.iobeam.api.resource.annotations.JsonIgnore;
 import com.iobeam.api.resource.annotations.JsonProperty;
 import com.iobeam.api.resource.util.Util;
+import com.iobeam.util.io.CountingOutputStream;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
@@ -178,4 +181,60 @@ public class ResourceMapper {
             return res.toString().getBytes("UTF-8");
         }
     }
+
+    /**
+     * Whether a resource can be written with {@link #writeJson(Object, OutputStream)} without
+     * first being converted to an intermediate JSON tree.
+     *
+     * @param resource Resource to check
+     * @return True if the resource is streamed directly.
+     */
+    public boolean canStreamJson(final Object resource) {
+        return resource instanceof ImportBatch;
+    }
+
+    /**
+     * Writes the UTF-8 JSON representation of a resource to a stream. Resources for which
+     * {@link #canStreamJson(Object)} is true are encoded directly to the stream; others are
+     * converted with {@link #toJsonBytes(Object)} first.
+     *
+     * @param resource Resource to write
+     * @param out      Stream to write to; it is not closed.
+     * @throws IOException If writing to the stream fails.
+     */
+    public void writeJson(final Object resource, final OutputStream out) throws IOException {
+        if (resource instanceof ImportBatch) {
+            ((ImportBatch) resource).writeJson(out);
+        } else {
+            out.write(toJsonBytes(resource));
+        }
+    }
+
+    /**
+     * Returns a cheap estimate of the length of the JSON representation of a resource, for
+     * resources for which {@link #canStreamJson(Object)} is true.
+     *
+     * @param resource Resource to estimate
+     * @return Estimated length in bytes, or -1 if no estimate is available.
+     */
+    public long estimateJsonLength(final Object resource) {
+        if (resource instanceof ImportBatch) {
+            return ((ImportBatch) resource).estimateJsonLength();
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the length in bytes of the UTF-8 JSON representation of a resource, without keeping
+     * the encoded bytes around.
+     *
+     * @param resource Resource to measure
+     * @return Length of the JSON representation in bytes.
+     * @throws IOException If encoding fails.
+     */
+    public long getJsonLength(final Object resource) throws IOException {
+        final CountingOutputStream counter = new CountingOutputStream();
+        writeJson(resource, counter);
+        return counter.getCount();
+    }
 }
@@ -0,0 +1,238 @@
+package com.iobeam.api.resource;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Aggregates the rows added to a {@link DataStore} over tumbling windows of time before they are
+ * buffered, so that data sampled at a high rate is sent at a lower one, e.g. the mean and maximum
+ * of a 100 Hz sensor every second. Each output column is an aggregate (see {@link Aggregate}, or
+ * a custom {@link Aggregator}) of the values of an input column within the window.
+ *
+ * Windows are aligned to multiples of the window length since the epoch, and each becomes a
+ * single row, at the start time of the window, when a row for a later window is added, or when
+ * the window has ended by the current time and the DataStore is drained for sending (or its size
+ * is checked). Rows are aggregated as they are added, so a DataStore keeps only the aggregates of
+ * the open window, whatever the number of rows in it. Rows for a window that has already been
+ * emitted (also early, by {@link DataStore#flushRollup()}), or older than the open window, are
+ * dropped, so each window makes at most one row.
+ */
+public final class Rollup {
+
+    /**
+     * Running aggregate of the values of a column within one window. Must take constant memory,
+     * whatever the number of values added.
+     */
+    public interface Accumulator {
+
+        /**
+         * @param value Value of the column in a row of the window; never null.
+         */
+        void add(Object value);
+
+        /**
+         * @return The aggregate of the values added, or null for none.
+         */
+        Object get();
+    }
+
+    /**
+     * A way of aggregating the values of a column within a window.
+     */
+    public interface Aggregator {
+
+        /**
+         * @return A new accumulator, for a window with no values yet.
+         */
+        Accumulator newAccumulator();
+    }
+
+    /**
+     * The built-in aggregates. MIN, MAX and MEAN take numeric values only; MEAN is a Double and
+     * COUNT a Long.
+     */
+    public enum Aggregate implements Aggregator {
+        MIN,
+        MAX,
+        MEAN,
+        LAST,
+        COUNT;
+
+        @Override
+        public Accumulator newAccumulator() {
+            return new BuiltinAccumulator(this);
+        }
+    }
+
+    private static final class BuiltinAccumulator implements Accumulator {
+
+        private final Aggregate aggregate;
+        private long count = 0;
+        private double sum = 0;
+        private Object extreme = null;
+        private double extremeValue = 0;
+        private Object last = null;
+
+        BuiltinAccumulator(Aggregate aggregate) {
+            this.aggregate = aggregate;
+        }
+
+        @Override
+        public void add(Object value) {
+            if (aggregate == Aggregate.MIN || aggregate == Aggregate.MAX ||
+                aggregate == Aggregate.MEAN) {
+                if (!(value instanceof Number)) {
+                    throw new IllegalArgumentException(
+                        aggregate + " needs numeric values, not '" + value + "'");
+                }
+                final double d = ((Number) value).doubleValue();
+                sum += d;
+                if (extreme == null || (aggregate == Aggregate.MIN && d < extremeValue) ||
+                    (aggregate == Aggregate.MAX && d > extremeValue)) {
+                    extreme = value;
+                    extremeValue = d;
+                }
+            }
+            last = value;
+            count++;
+        }
+
+        @Override
+        public Object get() {
+            switch (aggregate) {
+                case MIN:
+                case MAX:
+                    return extreme;
+                case MEAN:
+                    return count == 0 ? null : sum / count;
+                case LAST:
+                    return last;
+                default:
+                    return count;
+            }
+        }
+    }
+
+    public static class Builder {
+
+        private final long windowMillis;
+        private final List<String> inputs = new ArrayList<String>();
+        private final List<String> outputs = new ArrayList<String>();
+        private final List<Aggregator> aggregators = new ArrayList<Aggregator>();
+
+        /**
+         * @param windowMillis Length of the windows, in the unit of the timestamps (milliseconds
+         *                     by default).
+         */
+        public Builder(long windowMillis) {
+            if (windowMillis < 1) {
+                throw new IllegalArgumentException("windowMillis must be at least 1");
+            }
+            this.windowMillis = windowMillis;
+        }
+
+        /**
+         * Adds an output column with the aggregate of an input column of the same name.
+         *
+         * @param column     Input and output column
+         * @param aggregator How to aggregate the values
+         * @return This Builder
+         */
+        public Builder column(String column, Aggregator aggregator) {
+            return this.column(column, aggregator, column);
+        }
+
+        /**
+         * Adds an output column with the aggregate of an input column, e.g. `column("temp",
+         * Aggregate.MAX, "temp_max")`. An input column can feed several output columns.
+         *
+         * @param input      Input column
+         * @param aggregator How to aggregate the values
+         * @param output     Output column
+         * @return This Builder
+         */
+        public Builder column(String input, Aggregator aggregator, String output) {
+            if (input == null || input.isEmpty()) {
+                throw new IllegalArgumentException("input cannot be null or empty string");
+            }
+            if (aggregator == null) {
+                throw new IllegalArgumentException("aggregator cannot be null");
+            }
+            if (outputs.contains(output)) {
+                throw new IllegalArgumentException("Duplicate output column '" + output + "'");
+            }
+            inputs.add(input);
+            aggregators.add(aggregator);
+            outputs.add(output);
+            return this;
+        }
+
+        public Rollup build() {
+            if (outputs.isEmpty()) {
+                throw new IllegalArgumentException("A rollup needs at least one column");
+            }
+            return new Rollup(this);
+        }
+    }
+
+    private final long windowMillis;
+    private final String[] inputs;
+    private final String[] outputs;
+    private final Aggregator[] aggregators;
+    private final Set<String> inputColumns;
+
+    private Rollup(final Builder builder) {
+        this.windowMillis = builder.windowMillis;
+        this.inputs = builder.inputs.toArray(new String[builder.inputs.size()]);
+        this.outputs = builder.outputs.toArray(new String[builder.outputs.size()]);
+        this.aggregators = builder.aggregators.toArray(new Aggregator[builder.aggregators.size()]);
+        this.inputColumns = Collections.unmodifiableSet(new TreeSet<String>(builder.inputs));
+    }
+
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    /**
+     * @return The columns rows are added with.
+     */
+    public Set<String> getInputColumns() {
+        return inputColumns;
+    }
+
+    /**
+     * @return The columns of the aggregated rows, which are the columns of the DataStore.
+     */
+    public List<String> getOutputColumns() {
+        return Collections.unmodifiableList(Arrays.asList(outputs));
+    }
+
+    /**
+     * @param time Timestamp
+     * @return Start of the window the timestamp falls in.
+     */
+    long windowStart(long time) {
+        final long offset = time % windowMillis;
+        return time - (offset < 0 ? offset + windowMillis : offset);
+    }
+
+    Accumulator[] newAccumulators() {
+        final Accumulator[] ret = new Accumulator[aggregators.length];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = aggregators[i].newAccumulator();
+        }
+        return ret;
+    }
+
+    String getInput(int i) {
+        return inputs[i];
+    }
+
+    String getOutput(int i) {
+        return outputs[i];
+    }
+}
@@ -0,0 +1,97 @@
+package com.iobeam.api.resource;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The open window of a {@link Rollup} in a DataStore, holding one accumulator per output column.
+ *
+ * Not thread-safe; the owning DataStore synchronizes on it.
+ */
+final class RollupWindow {
+
+    private final Rollup rollup;
+    // Null while no window is open.
+    private Rollup.Accumulator[] accumulators = null;
+    private long start = 0;
+    // End of the last window closed; rows before it belong to a window already emitted.
+    private long emittedUntil = Long.MIN_VALUE;
+
+    RollupWindow(Rollup rollup) {
+        this.rollup = rollup;
+    }
+
+    Rollup getRollup() {
+        return rollup;
+    }
+
+    boolean isOpen() {
+        return accumulators != null;
+    }
+
+    long getStart() {
+        return start;
+    }
+
+    long getEnd() {
+        return start + rollup.getWindowMillis();
+    }
+
+    /**
+     * @param time Timestamp of a row
+     * @return Whether the window the timestamp falls in has been closed already, so the row is
+     * too late to be aggregated.
+     */
+    boolean isEmitted(long time) {
+        return time < emittedUntil;
+    }
+
+    /**
+     * Opens the window that a timestamp falls in.
+     *
+     * @param time Timestamp in the window
+     */
+    void open(long time) {
+        start = rollup.windowStart(time);
+        accumulators = rollup.newAccumulators();
+    }
+
+    /**
+     * @param data Values of a row in the open window, by input column
+     */
+    void add(Map<String, Object> data) {
+        for (int i = 0; i < accumulators.length; i++) {
+            final Object v = data.get(rollup.getInput(i));
+            if (v != null) {
+                accumulators[i].add(v);
+            }
+        }
+    }
+
+    /**
+     * Closes the open window.
+     *
+     * @return Values of the aggregated row, by output column; aggregates without a value are
+     * left out.
+     */
+    Map<String, Object> close() {
+        emittedUntil = Math.max(emittedUntil, getEnd());
+        final Map<String, Object> ret = new HashMap<String, Object>();
+        for (int i = 0; i < accumulators.length; i++) {
+            final Object v = accumulators[i].get();
+            if (v != null) {
+                ret.put(rollup.getOutput(i), v);
+            }
+        }
+        accumulators = null;
+        return ret;
+    }
+
+    /**
+     * Discards the open window, if any, and forgets which windows have been emitted.
+     */
+    void reset() {
+        accumulators = null;
+        emittedUntil = Long.MIN_VALUE;
+    }
+}
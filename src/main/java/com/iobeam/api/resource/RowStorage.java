@@ -0,0 +1,235 @@
+package com.iobeam.api.resource;
+
+import com.iobeam.api.resource.util.JsonStreamWriter;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Backing storage for the rows of a {@link DataStore}. Rows are kept sorted by timestamp and are
+ * addressable by position, where position 0 is the earliest row. Columns are addressed by their
+ * index into the (sorted) array of column names the storage was created with.
+ *
+ * Implementations are not thread-safe; the owning DataStore is responsible for synchronization.
+ */
+abstract class RowStorage implements Serializable {
+
+    final String[] columns;
+
+    RowStorage(String[] columns) {
+        this.columns = columns;
+    }
+
+    /**
+     * @return Number of rows (distinct timestamps) in this storage.
+     */
+    abstract int size();
+
+    /**
+     * @param row Position of the row
+     * @return Timestamp of the row at the given position.
+     */
+    abstract long getTime(int row);
+
+    /**
+     * @param row    Position of the row
+     * @param column Index of the column
+     * @return Value of the cell, or null if the row has no value for that column.
+     */
+    abstract Object getValue(int row, int column);
+
+    /**
+     * Writes the value of a cell to a JSON writer, or null if the row has no value for it.
+     *
+     * @param row    Position of the row
+     * @param column Index of the column
+     * @param writer Writer to write the value to
+     */
+    void writeValue(int row, int column, JsonStreamWriter writer) throws IOException {
+        writer.value(getValue(row, column));
+    }
+
+    /**
+     * Stores values at a timestamp. If a row with that timestamp already exists, the values are
+     * merged into it, or if `replace` is set, the existing row is replaced entirely.
+     *
+     * @param time    Timestamp of the row
+     * @param values  Map from column name to value; names are assumed to be valid columns.
+     * @param replace Whether to replace instead of merge with an existing row.
+     */
+    abstract void put(long time, Map<String, Object> values, boolean replace);
+
+    /**
+     * Removes all rows.
+     */
+    abstract void clear();
+
+    /**
+     * Removes all rows at position `size` and after.
+     *
+     * @param size Number of rows to keep
+     */
+    abstract void truncate(int size);
+
+    /**
+     * @return A new, empty storage of the same kind and with the same columns.
+     */
+    RowStorage newEmpty() {
+        return newEmpty(columns);
+    }
+
+    /**
+     * @param columns Sorted column names
+     * @return A new, empty storage of the same kind with the given columns.
+     */
+    abstract RowStorage newEmpty(String[] columns);
+
+    /**
+     * Adds all rows of another storage with the same columns to this one, replacing rows that
+     * share a timestamp.
+     *
+     * @param other Storage to copy rows from
+     */
+    void putAll(RowStorage other) {
+        final int size = other.size();
+        for (int i = 0; i < size; i++) {
+            put(other.getTime(i), other.getRow(i), true);
+        }
+    }
+
+    /**
+     * Merges the rows of other storages into this one, with the same result
+     * as putting each row in timestamp order with `replace` unset. Rows are appended where
+     * possible: only the rows of this storage at or after the earliest merged timestamp are
+     * rewritten.
+     *
+     * @param sources Storages to merge in, whose columns are all columns of this one; rows of
+     *                later sources win when values collide.
+     */
+    void mergeSorted(RowStorage[] sources) {
+        boolean empty = true;
+        long min = Long.MAX_VALUE;
+        for (RowStorage s : sources) {
+            if (s.size() > 0) {
+                empty = false;
+                min = Math.min(min, s.getTime(0));
+            }
+        }
+        if (empty) {
+            return;
+        }
+
+        // Move the overlapping tail of this storage out, so it can be merged with the rest.
+        final int from = lowerBound(min);
+        final RowStorage[] all = new RowStorage[sources.length + 1];
+        all[0] = copyRange(from, size());
+        System.arraycopy(sources, 0, all, 1, sources.length);
+        truncate(from);
+
+        final int[] pos = new int[all.length];
+        while (true) {
+            int next = -1;
+            long time = 0;
+            for (int i = 0; i < all.length; i++) {
+                if (pos[i] < all[i].size() && (next < 0 || all[i].getTime(pos[i]) < time)) {
+                    next = i;
+                    time = all[i].getTime(pos[i]);
+                }
+            }
+            if (next < 0) {
+                break;
+            }
+            // Merge rows with the same timestamp from every source, in source order.
+            for (int i = next; i < all.length; i++) {
+                if (pos[i] < all[i].size() && all[i].getTime(pos[i]) == time) {
+                    put(time, all[i].getRow(pos[i]), false);
+                    pos[i]++;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return A copy of this storage of the same kind.
+     */
+    RowStorage copy() {
+        RowStorage ret = newEmpty();
+        ret.putAll(this);
+        return ret;
+    }
+
+    /**
+     * Copies the rows at positions [from, to) into a new storage.
+     *
+     * @param from Inclusive position of the first row to copy
+     * @param to   Exclusive position of the last row to copy
+     * @return New storage of the same kind with the copied rows.
+     */
+    RowStorage copyRange(int from, int to) {
+        RowStorage ret = newEmpty();
+        for (int i = from; i < to; i++) {
+            ret.put(getTime(i), getRow(i), true);
+        }
+        return ret;
+    }
+
+    /**
+     * Returns a read-only view of the rows at positions [from, to), without copying them. The
+     * view reflects this storage, which must not be modified while the view is in use.
+     *
+     * @param from Inclusive position of the first row in the view
+     * @param to   Exclusive position of the last row in the view
+     * @return Read-only storage with the rows in the range.
+     */
+    RowStorage view(int from, int to) {
+        return new RowStorageView(this, from, to);
+    }
+
+    /**
+     * @param time Timestamp to search for
+     * @return Position of the first row with a timestamp greater than or equal to `time`.
+     */
+    int lowerBound(long time) {
+        int lo = 0;
+        int hi = size();
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (getTime(mid) < time) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * @param row Position of the row
+     * @return Map from column name to value for the non-null cells of a row.
+     */
+    Map<String, Object> getRow(int row) {
+        Map<String, Object> ret = new HashMap<String, Object>();
+        for (int c = 0; c < columns.length; c++) {
+            Object val = getValue(row, c);
+            if (val != null) {
+                ret.put(columns[c], val);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return All rows as a Map from timestamp to a Map from column to value.
+     */
+    TreeMap<Long, Map<String, Object>> toMap() {
+        TreeMap<Long, Map<String, Object>> ret = new TreeMap<Long, Map<String, Object>>();
+        final int size = size();
+        for (int i = 0; i < size; i++) {
+            ret.put(getTime(i), getRow(i));
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,106 @@
+package com.iobeam.api.resource;
+
+import com.iobeam.api.resource.util.JsonStreamWriter;
+
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.util.Map;
+
+/**
+ * Read-only view of the rows at positions [from, to) of another storage, without copying them.
+ * The view reflects the underlying storage, so that storage must not be modified while the view
+ * is in use; DataStore copies shared rows before modifying them.
+ */
+final class RowStorageView extends RowStorage {
+
+    private final RowStorage base;
+    private final int from;
+    private final int to;
+
+    RowStorageView(RowStorage base, int from, int to) {
+        super(base.columns);
+        if (from < 0 || to < from || to > base.size()) {
+            throw new IndexOutOfBoundsException(
+                "range [" + from + ", " + to + ") of " + base.size() + " rows");
+        }
+        this.base = base;
+        this.from = from;
+        this.to = to;
+    }
+
+    private int checkRow(int row) {
+        if (row < 0 || row >= to - from) {
+            throw new IndexOutOfBoundsException("row " + row + " >= " + (to - from));
+        }
+        return from + row;
+    }
+
+    @Override
+    int size() {
+        return to - from;
+    }
+
+    @Override
+    long getTime(int row) {
+        return base.getTime(checkRow(row));
+    }
+
+    @Override
+    Object getValue(int row, int column) {
+        return base.getValue(checkRow(row), column);
+    }
+
+    @Override
+    void writeValue(int row, int column, JsonStreamWriter writer) throws IOException {
+        base.writeValue(checkRow(row), column, writer);
+    }
+
+    @Override
+    Map<String, Object> getRow(int row) {
+        return base.getRow(checkRow(row));
+    }
+
+    @Override
+    void put(long time, Map<String, Object> values, boolean replace) {
+        throw new UnsupportedOperationException("RowStorageView is read-only");
+    }
+
+    @Override
+    void clear() {
+        throw new UnsupportedOperationException("RowStorageView is read-only");
+    }
+
+    @Override
+    void truncate(int size) {
+        throw new UnsupportedOperationException("RowStorageView is read-only");
+    }
+
+    @Override
+    RowStorage newEmpty(String[] columns) {
+        return base.newEmpty(columns);
+    }
+
+    @Override
+    RowStorage view(int from, int to) {
+        if (to > size()) {
+            throw new IndexOutOfBoundsException("range [" + from + ", " + to + ") of " + size() +
+                                                " rows");
+        }
+        return base.view(this.from + from, this.from + to);
+    }
+
+    @Override
+    RowStorage copy() {
+        return copyRange(0, size());
+    }
+
+    @Override
+    RowStorage copyRange(int from, int to) {
+        return base.copyRange(this.from + from, this.from + to);
+    }
+
+    // Serialize only the rows in the view, not all of the underlying storage.
+    private Object writeReplace() throws ObjectStreamException {
+        return copy();
+    }
+}
@@ -0,0 +1,164 @@
+package com.iobeam.api.resource.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the subset of CBOR (RFC 7049) written by {@link CborWriter}: integers, floating point
+ * numbers (half, single and double precision), text strings, booleans, null and definite-length
+ * arrays and maps with text keys.
+ */
+public final class CborReader {
+
+    private final InputStream in;
+    private long offset = 0;
+
+    public CborReader(InputStream in) {
+        this.in = in;
+    }
+
+    private int readByte() throws IOException {
+        final int b = in.read();
+        if (b < 0) {
+            throw new EOFException("Unexpected end of CBOR at offset " + offset);
+        }
+        offset++;
+        return b;
+    }
+
+    private long readLong(int bytes) throws IOException {
+        long ret = 0;
+        for (int i = 0; i < bytes; i++) {
+            ret = (ret << 8) | readByte();
+        }
+        return ret;
+    }
+
+    // Reads the argument that follows an initial byte with additional information `info`.
+    private long readArgument(int info) throws IOException, ParseException {
+        if (info < 24) {
+            return info;
+        }
+        switch (info) {
+            case 24:
+                return readLong(1);
+            case 25:
+                return readLong(2);
+            case 26:
+                return readLong(4);
+            case 27:
+                return readLong(8);
+            default:
+                throw new ParseException("Unsupported CBOR argument " + info, (int) offset);
+        }
+    }
+
+    private int readLength(int info) throws IOException, ParseException {
+        final long len = readArgument(info);
+        if (len < 0 || len > Integer.MAX_VALUE) {
+            throw new ParseException("CBOR length out of range: " + len, (int) offset);
+        }
+        return (int) len;
+    }
+
+    /**
+     * Reads the next item.
+     *
+     * @return The item: a Long, Double, String, Boolean or null, a List of items for an array, or
+     * a Map from String to item for a map.
+     * @throws IOException    If reading from the stream fails, or it ends early.
+     * @throws ParseException If the item is not valid CBOR, or not of the supported subset.
+     */
+    public Object read() throws IOException, ParseException {
+        final int initial = readByte();
+        final int major = initial >>> 5;
+        final int info = initial & 0x1F;
+        switch (major) {
+            case CborWriter.MAJOR_UNSIGNED: {
+                final long v = readArgument(info);
+                if (v < 0) {
+                    throw new ParseException("CBOR integer out of range", (int) offset);
+                }
+                return v;
+            }
+            case CborWriter.MAJOR_NEGATIVE: {
+                final long v = readArgument(info);
+                if (v < 0) {
+                    throw new ParseException("CBOR integer out of range", (int) offset);
+                }
+                return ~v;
+            }
+            case CborWriter.MAJOR_TEXT: {
+                final byte[] utf8 = new byte[readLength(info)];
+                for (int i = 0; i < utf8.length; i++) {
+                    utf8[i] = (byte) readByte();
+                }
+                return new String(utf8, "UTF-8");
+            }
+            case CborWriter.MAJOR_ARRAY: {
+                final int size = readLength(info);
+                final List<Object> ret = new ArrayList<Object>(Math.min(size, 1024));
+                for (int i = 0; i < size; i++) {
+                    ret.add(read());
+                }
+                return ret;
+            }
+            case CborWriter.MAJOR_MAP: {
+                final int size = readLength(info);
+                final Map<String, Object> ret = new LinkedHashMap<String, Object>();
+                for (int i = 0; i < size; i++) {
+                    final Object key = read();
+                    if (!(key instanceof String)) {
+                        throw new ParseException("CBOR map key is not a string: " + key,
+                                                 (int) offset);
+                    }
+                    ret.put((String) key, read());
+                }
+                return ret;
+            }
+            case CborWriter.MAJOR_SIMPLE:
+                return readSimple(info);
+            default:
+                throw new ParseException("Unsupported CBOR major type " + major, (int) offset);
+        }
+    }
+
+    private Object readSimple(int info) throws IOException, ParseException {
+        switch (info) {
+            case CborWriter.SIMPLE_FALSE:
+                return false;
+            case CborWriter.SIMPLE_TRUE:
+                return true;
+            case CborWriter.SIMPLE_NULL:
+                return null;
+            case 25:
+                return halfToDouble((int) readLong(2));
+            case CborWriter.FLOAT_32:
+                return (double) Float.intBitsToFloat((int) readLong(4));
+            case CborWriter.FLOAT_64:
+                return Double.longBitsToDouble(readLong(8));
+            default:
+                throw new ParseException("Unsupported CBOR simple value " + info, (int) offset);
+        }
+    }
+
+    private static double halfToDouble(int half) {
+        final int exp = (half >> 10) & 0x1F;
+        final int mant = half & 0x3FF;
+        final double val;
+        if (exp == 0) {
+            val = mant * Math.pow(2, -24);
+        } else if (exp != 31) {
+            val = (mant + 1024) * Math.pow(2, exp - 25);
+        } else {
+            val = mant == 0 ? Double.POSITIVE_INFINITY : Double.NaN;
+        }
+        return (half & 0x8000) != 0 ? -val : val;
+    }
+}
@@ -0,0 +1,269 @@
+package com.iobeam.api.resource.util;
+
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes CBOR (RFC 7049) directly to an OutputStream. Arrays and maps have definite lengths, so
+ * their number of items is given when they are begun.
+ *
+ * Integers take as few bytes as their magnitude needs, and floating point numbers that are exact
+ * in single precision are written as such, so most readings take 3 to 5 bytes instead of the 8 to
+ * 20 characters of their JSON text.
+ */
+public final class CborWriter implements Closeable, Flushable {
+
+    static final int MAJOR_UNSIGNED = 0;
+    static final int MAJOR_NEGATIVE = 1;
+    static final int MAJOR_TEXT = 3;
+    static final int MAJOR_ARRAY = 4;
+    static final int MAJOR_MAP = 5;
+    static final int MAJOR_SIMPLE = 7;
+
+    static final int SIMPLE_FALSE = 20;
+    static final int SIMPLE_TRUE = 21;
+    static final int SIMPLE_NULL = 22;
+    static final int FLOAT_32 = 26;
+    static final int FLOAT_64 = 27;
+
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    private final OutputStream out;
+    private final byte[] buf;
+    private int pos = 0;
+    private long flushed = 0;
+
+    public CborWriter(OutputStream out) {
+        this(out, DEFAULT_BUFFER_SIZE);
+    }
+
+    public CborWriter(OutputStream out, int bufferSize) {
+        this.out = out;
+        // Room for the longest head (9 bytes) at least.
+        this.buf = new byte[Math.max(bufferSize, 16)];
+    }
+
+    /**
+     * @return Total number of bytes written so far, including those still buffered.
+     */
+    public long getBytesWritten() {
+        return flushed + pos;
+    }
+
+    private void flushBuffer() throws IOException {
+        if (pos > 0) {
+            out.write(buf, 0, pos);
+            flushed += pos;
+            pos = 0;
+        }
+    }
+
+    private void ensure(int n) throws IOException {
+        if (pos + n > buf.length) {
+            flushBuffer();
+        }
+    }
+
+    private void writeLong(long v, int bytes) {
+        for (int shift = (bytes - 1) * 8; shift >= 0; shift -= 8) {
+            buf[pos++] = (byte) (v >>> shift);
+        }
+    }
+
+    // Writes the initial byte of an item and its argument, in as few bytes as fit; `arg` is
+    // treated as unsigned.
+    private void writeHead(int major, long arg) throws IOException {
+        ensure(9);
+        final int type = major << 5;
+        if (arg >= 0 && arg < 24) {
+            buf[pos++] = (byte) (type | (int) arg);
+        } else if (arg >= 0 && arg <= 0xFF) {
+            buf[pos++] = (byte) (type | 24);
+            writeLong(arg, 1);
+        } else if (arg >= 0 && arg <= 0xFFFF) {
+            buf[pos++] = (byte) (type | 25);
+            writeLong(arg, 2);
+        } else if (arg >= 0 && arg <= 0xFFFFFFFFL) {
+            buf[pos++] = (byte) (type | 26);
+            writeLong(arg, 4);
+        } else {
+            buf[pos++] = (byte) (type | 27);
+            writeLong(arg, 8);
+        }
+    }
+
+    /**
+     * Begins an array, which must be followed by exactly `size` items.
+     *
+     * @param size Number of items in the array
+     * @return This writer
+     * @throws IOException If writing to the underlying stream fails.
+     */
+    public CborWriter beginArray(int size) throws IOException {
+        writeHead(MAJOR_ARRAY, size);
+        return this;
+    }
+
+    /**
+     * Begins a map, which must be followed by exactly `size` pairs of key and value.
+     *
+     * @param size Number of entries in the map
+     * @return This writer
+     * @throws IOException If writing to the underlying stream fails.
+     */
+    public CborWriter beginMap(int size) throws IOException {
+        writeHead(MAJOR_MAP, size);
+        return this;
+    }
+
+    public CborWriter nullValue() throws IOException {
+        writeHead(MAJOR_SIMPLE, SIMPLE_NULL);
+        return this;
+    }
+
+    public CborWriter value(boolean value) throws IOException {
+        writeHead(MAJOR_SIMPLE, value ? SIMPLE_TRUE : SIMPLE_FALSE);
+        return this;
+    }
+
+    public CborWriter value(long value) throws IOException {
+        if (value >= 0) {
+            writeHead(MAJOR_UNSIGNED, value);
+        } else {
+            // -1 - n, i.e., the bitwise complement.
+            writeHead(MAJOR_NEGATIVE, ~value);
+        }
+        return this;
+    }
+
+    public CborWriter value(double value) throws IOException {
+        ensure(9);
+        final float f = (float) value;
+        if (f == value || Double.isNaN(value)) {
+            buf[pos++] = (byte) ((MAJOR_SIMPLE << 5) | FLOAT_32);
+            writeLong(Float.floatToIntBits(f), 4);
+        } else {
+            buf[pos++] = (byte) ((MAJOR_SIMPLE << 5) | FLOAT_64);
+            writeLong(Double.doubleToLongBits(value), 8);
+        }
+        return this;
+    }
+
+    public CborWriter value(String value) throws IOException {
+        if (value == null) {
+            return nullValue();
+        }
+        final byte[] utf8 = value.getBytes("UTF-8");
+        writeHead(MAJOR_TEXT, utf8.length);
+        if (utf8.length > buf.length - pos) {
+            flushBuffer();
+        }
+        if (utf8.length > buf.length) {
+            out.write(utf8);
+            flushed += utf8.length;
+        } else {
+            System.arraycopy(utf8, 0, buf, pos, utf8.length);
+            pos += utf8.length;
+        }
+        return this;
+    }
+
+    /**
+     * Writes a value of a DataStore: null (or JSONObject.NULL), an integral or floating point
+     * Number, a Boolean or a String. Anything else is written as its String representation.
+     *
+     * @param value Value to write
+     * @return This writer
+     * @throws IOException If writing to the underlying stream fails.
+     */
+    public CborWriter value(Object value) throws IOException {
+        if (value == null || value == JSONObject.NULL) {
+            return nullValue();
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short ||
+                   value instanceof Byte) {
+            return value(((Number) value).longValue());
+        } else if (value instanceof Double || value instanceof Float) {
+            return value(((Number) value).doubleValue());
+        } else if (value instanceof Boolean) {
+            return value(((Boolean) value).booleanValue());
+        }
+        return value(value.toString());
+    }
+
+    /**
+     * Returns the exact length in bytes that {@link #value(Object)} writes for a value, without
+     * writing it.
+     *
+     * @param value Value to measure
+     * @return Length of the value in bytes.
+     */
+    public static long length(Object value) {
+        if (value == null || value == JSONObject.NULL || value instanceof Boolean) {
+            return 1;
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short ||
+                   value instanceof Byte) {
+            final long v = ((Number) value).longValue();
+            return headLength(v >= 0 ? v : ~v);
+        } else if (value instanceof Double || value instanceof Float) {
+            final double v = ((Number) value).doubleValue();
+            return (float) v == v || Double.isNaN(v) ? 5 : 9;
+        }
+        final String s = value.toString();
+        long utf8 = 0;
+        final int len = s.length();
+        for (int i = 0; i < len; i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                utf8 += 1;
+            } else if (c < 0x800) {
+                utf8 += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < len &&
+                       Character.isLowSurrogate(s.charAt(i + 1))) {
+                utf8 += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogates are encoded as '?'.
+                utf8 += 1;
+            } else {
+                utf8 += 3;
+            }
+        }
+        return headLength(utf8) + utf8;
+    }
+
+    /**
+     * @param arg Argument of an item, treated as unsigned, e.g. the length of an array.
+     * @return Length in bytes of the initial byte of the item and its argument.
+     */
+    public static int headLength(long arg) {
+        if (arg >= 0 && arg < 24) {
+            return 1;
+        } else if (arg >= 0 && arg <= 0xFF) {
+            return 2;
+        } else if (arg >= 0 && arg <= 0xFFFF) {
+            return 3;
+        } else if (arg >= 0 && arg <= 0xFFFFFFFFL) {
+            return 5;
+        }
+        return 9;
+    }
+
+    /**
+     * Writes any buffered bytes to the underlying stream and flushes it.
+     */
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        out.close();
+    }
+}
@@ -0,0 +1,499 @@
+package com.iobeam.api.resource.util;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Writes JSON as UTF-8 directly to an OutputStream, without building an intermediate tree of
+ * JSONObjects/JSONArrays or a String of the whole document.
+ *
+ * Numbers and strings are formatted the same way org.json formats them, so the output parses to
+ * the same values as the equivalent `JSONObject.toString()`.
+ */
+public final class JsonStreamWriter implements Closeable, Flushable {
+
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+    private static final byte[] NULL = {'n', 'u', 'l', 'l'};
+    private static final byte[] TRUE = {'t', 'r', 'u', 'e'};
+    private static final byte[] FALSE = {'f', 'a', 'l', 's', 'e'};
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+    // Longest text of a double and a float, e.g. "-2.2250738585072014E-308".
+    private static final long MAX_DOUBLE_LENGTH = 24;
+    private static final long MAX_FLOAT_LENGTH = 15;
+
+    private final OutputStream out;
+    private final byte[] buf;
+    private int pos = 0;
+    private long flushed = 0;
+
+    // Whether the object/array at each nesting level has had no elements written yet.
+    private boolean[] empty = new boolean[16];
+    private int depth = 0;
+    private boolean afterName = false;
+    private final byte[] digits = new byte[20];
+
+    public JsonStreamWriter(OutputStream out) {
+        this(out, DEFAULT_BUFFER_SIZE);
+    }
+
+    public JsonStreamWriter(OutputStream out, int bufferSize) {
+        this.out = out;
+        this.buf = new byte[bufferSize];
+    }
+
+    /**
+     * @return Total number of bytes written so far, including those still buffered.
+     */
+    public long getBytesWritten() {
+        return flushed + pos;
+    }
+
+    private void writeByte(int b) throws IOException {
+        if (pos == buf.length) {
+            flushBuffer();
+        }
+        buf[pos++] = (byte) b;
+    }
+
+    private void writeBytes(byte[] bytes) throws IOException {
+        if (pos + bytes.length > buf.length) {
+            flushBuffer();
+        }
+        if (bytes.length > buf.length) {
+            out.write(bytes);
+            flushed += bytes.length;
+        } else {
+            System.arraycopy(bytes, 0, buf, pos, bytes.length);
+            pos += bytes.length;
+        }
+    }
+
+    private void writeAscii(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            writeByte(s.charAt(i));
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (pos > 0) {
+            out.write(buf, 0, pos);
+            flushed += pos;
+            pos = 0;
+        }
+    }
+
+    private void beforeValue() throws IOException {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+        if (depth > 0) {
+            if (!empty[depth - 1]) {
+                writeByte(',');
+            }
+            empty[depth - 1] = false;
+        }
+    }
+
+    private void push() {
+        if (depth == empty.length) {
+            empty = Arrays.copyOf(empty, depth * 2);
+        }
+        empty[depth++] = true;
+    }
+
+    private void pop() {
+        if (depth == 0) {
+            throw new IllegalStateException("Nothing to close.");
+        }
+        depth--;
+    }
+
+    public JsonStreamWriter beginObject() throws IOException {
+        beforeValue();
+        writeByte('{');
+        push();
+        return this;
+    }
+
+    public JsonStreamWriter endObject() throws IOException {
+        pop();
+        writeByte('}');
+        return this;
+    }
+
+    public JsonStreamWriter beginArray() throws IOException {
+        beforeValue();
+        writeByte('[');
+        push();
+        return this;
+    }
+
+    public JsonStreamWriter endArray() throws IOException {
+        pop();
+        writeByte(']');
+        return this;
+    }
+
+    /**
+     * Writes the name of the next member of the current object.
+     *
+     * @param name Name of the member
+     * @return This writer
+     */
+    public JsonStreamWriter name(String name) throws IOException {
+        beforeValue();
+        writeQuoted(name);
+        writeByte(':');
+        afterName = true;
+        return this;
+    }
+
+    public JsonStreamWriter nullValue() throws IOException {
+        beforeValue();
+        writeBytes(NULL);
+        return this;
+    }
+
+    public JsonStreamWriter value(boolean value) throws IOException {
+        beforeValue();
+        writeBytes(value ? TRUE : FALSE);
+        return this;
+    }
+
+    public JsonStreamWriter value(long value) throws IOException {
+        beforeValue();
+        if (value == Long.MIN_VALUE) {
+            writeAscii(Long.toString(value));
+            return this;
+        }
+        if (value < 0) {
+            writeByte('-');
+            value = -value;
+        }
+        int i = digits.length;
+        do {
+            digits[--i] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value > 0);
+        for (; i < digits.length; i++) {
+            writeByte(digits[i]);
+        }
+        return this;
+    }
+
+    public JsonStreamWriter value(double value) throws IOException {
+        if (Double.isInfinite(value) || Double.isNaN(value)) {
+            throw new JSONException("JSON does not allow non-finite numbers.");
+        }
+        beforeValue();
+        writeDecimal(Double.toString(value));
+        return this;
+    }
+
+    public JsonStreamWriter value(String value) throws IOException {
+        if (value == null) {
+            return nullValue();
+        }
+        beforeValue();
+        writeQuoted(value);
+        return this;
+    }
+
+    /**
+     * Writes an arbitrary value: null (or JSONObject.NULL), Numbers, Booleans and Strings are
+     * written directly, other values using their org.json representation.
+     *
+     * @param value Value to write
+     * @return This writer
+     */
+    public JsonStreamWriter value(Object value) throws IOException {
+        if (value == null || value == JSONObject.NULL) {
+            return nullValue();
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short ||
+                   value instanceof Byte) {
+            return value(((Number) value).longValue());
+        } else if (value instanceof Double) {
+            return value(((Double) value).doubleValue());
+        } else if (value instanceof Float) {
+            Float f = (Float) value;
+            if (f.isInfinite() || f.isNaN()) {
+                throw new JSONException("JSON does not allow non-finite numbers.");
+            }
+            beforeValue();
+            writeDecimal(f.toString());
+            return this;
+        } else if (value instanceof Boolean) {
+            return value(((Boolean) value).booleanValue());
+        } else if (value instanceof String) {
+            return value((String) value);
+        }
+        beforeValue();
+        writeUtf8(JSONObject.valueToString(value));
+        return this;
+    }
+
+    // Same trimming as JSONObject.numberToString(): "5.0" -> "5", "1.50" -> "1.5".
+    private void writeDecimal(String s) throws IOException {
+        int end = s.length();
+        if (s.indexOf('.') > 0 && s.indexOf('e') < 0 && s.indexOf('E') < 0) {
+            while (s.charAt(end - 1) == '0') {
+                end--;
+            }
+            if (s.charAt(end - 1) == '.') {
+                end--;
+            }
+        }
+        for (int i = 0; i < end; i++) {
+            writeByte(s.charAt(i));
+        }
+    }
+
+    private void writeUtf8(String s) throws IOException {
+        final int len = s.length();
+        for (int i = 0; i < len; i++) {
+            writeChar(s, i, s.charAt(i));
+            if (Character.isHighSurrogate(s.charAt(i)) && i + 1 < len &&
+                Character.isLowSurrogate(s.charAt(i + 1))) {
+                i++;
+            }
+        }
+    }
+
+    // Encodes the char at index i as UTF-8, consuming a following low surrogate if present.
+    private void writeChar(String s, int i, char c) throws IOException {
+        if (c < 0x80) {
+            writeByte(c);
+        } else if (c < 0x800) {
+            writeByte(0xc0 | (c >> 6));
+            writeByte(0x80 | (c & 0x3f));
+        } else if (Character.isHighSurrogate(c)) {
+            if (i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(i + 1));
+                writeByte(0xf0 | (cp >> 18));
+                writeByte(0x80 | ((cp >> 12) & 0x3f));
+                writeByte(0x80 | ((cp >> 6) & 0x3f));
+                writeByte(0x80 | (cp & 0x3f));
+            } else {
+                writeByte('?');
+            }
+        } else if (Character.isLowSurrogate(c)) {
+            writeByte('?');
+        } else {
+            writeByte(0xe0 | (c >> 12));
+            writeByte(0x80 | ((c >> 6) & 0x3f));
+            writeByte(0x80 | (c & 0x3f));
+        }
+    }
+
+    // Same escaping rules as JSONObject.quote().
+    private void writeQuoted(String s) throws IOException {
+        writeByte('"');
+        char prev;
+        char c = 0;
+        final int len = s.length();
+        for (int i = 0; i < len; i++) {
+            prev = c;
+            c = s.charAt(i);
+            switch (c) {
+                case '\\':
+                case '"':
+                    writeByte('\\');
+                    writeByte(c);
+                    break;
+                case '/':
+                    if (prev == '<') {
+                        writeByte('\\');
+                    }
+                    writeByte(c);
+                    break;
+                case '\b':
+                    writeByte('\\');
+                    writeByte('b');
+                    break;
+                case '\t':
+                    writeByte('\\');
+                    writeByte('t');
+                    break;
+                case '\n':
+                    writeByte('\\');
+                    writeByte('n');
+                    break;
+                case '\f':
+                    writeByte('\\');
+                    writeByte('f');
+                    break;
+                case '\r':
+                    writeByte('\\');
+                    writeByte('r');
+                    break;
+                default:
+                    if (c < ' ' || (c >= '\u0080' && c < '\u00a0') ||
+                        (c >= '\u2000' && c < '\u2100')) {
+                        writeByte('\\');
+                        writeByte('u');
+                        writeByte(HEX[(c >> 12) & 0xf]);
+                        writeByte(HEX[(c >> 8) & 0xf]);
+                        writeByte(HEX[(c >> 4) & 0xf]);
+                        writeByte(HEX[c & 0xf]);
+                    } else {
+                        writeChar(s, i, c);
+                        if (Character.isHighSurrogate(c) && i + 1 < len &&
+                            Character.isLowSurrogate(s.charAt(i + 1))) {
+                            i++;
+                            c = s.charAt(i);
+                        }
+                    }
+                    break;
+            }
+        }
+        writeByte('"');
+    }
+
+    /**
+     * Returns the length in bytes that {@link #value(Object)} writes for a value, without writing
+     * it. The length is exact, except for floating point numbers with a fraction, whose length is
+     * estimated: from their value if it has at most 3 decimals, and as the longest a double can
+     * take otherwise. A double that only rounds to 3 decimals may take a few bytes more.
+     *
+     * @param value Value to measure
+     * @return Length of the value in bytes, not counting a separating comma.
+     */
+    public static long estimateLength(Object value) {
+        if (value == null || value == JSONObject.NULL) {
+            return NULL.length;
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short ||
+                   value instanceof Byte) {
+            return longLength(((Number) value).longValue());
+        } else if (value instanceof Double) {
+            return doubleLength((Double) value);
+        } else if (value instanceof Float) {
+            return MAX_FLOAT_LENGTH;
+        } else if (value instanceof Boolean) {
+            return (Boolean) value ? TRUE.length : FALSE.length;
+        } else if (value instanceof String) {
+            return quotedLength((String) value);
+        }
+        return utf8Length(JSONObject.valueToString(value));
+    }
+
+    private static long longLength(long value) {
+        if (value == Long.MIN_VALUE) {
+            return 20;
+        }
+        long ret = value < 0 ? 2 : 1;
+        for (value = Math.abs(value); value >= 10; value /= 10) {
+            ret++;
+        }
+        return ret;
+    }
+
+    // Length of Double.toString(value) as trimmed by writeDecimal().
+    private static long doubleLength(double value) {
+        final double abs = Math.abs(value);
+        if (Double.isNaN(value) || Double.isInfinite(value) || abs < 1e-3 || abs >= 1e7) {
+            return value == 0 ? 1 : MAX_DOUBLE_LENGTH;
+        }
+        final long sign = Double.doubleToRawLongBits(value) < 0 ? 1 : 0;
+        final long integral = sign + longLength((long) abs);
+        if (abs == Math.rint(abs)) {
+            return integral;
+        }
+        double scaled = abs;
+        for (int decimals = 1; decimals <= 3; decimals++) {
+            scaled *= 10;
+            if (scaled == Math.rint(scaled)) {
+                return integral + 1 + decimals;
+            }
+        }
+        return MAX_DOUBLE_LENGTH;
+    }
+
+    private static long utf8Length(String s) {
+        long ret = 0;
+        final int len = s.length();
+        for (int i = 0; i < len; i++) {
+            ret += charLength(s, i, s.charAt(i));
+            if (Character.isHighSurrogate(s.charAt(i)) && i + 1 < len &&
+                Character.isLowSurrogate(s.charAt(i + 1))) {
+                i++;
+            }
+        }
+        return ret;
+    }
+
+    // Length of writeChar(s, i, c).
+    private static int charLength(String s, int i, char c) {
+        if (c < 0x80) {
+            return 1;
+        } else if (c < 0x800) {
+            return 2;
+        } else if (Character.isHighSurrogate(c)) {
+            return i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1)) ? 4 : 1;
+        } else if (Character.isLowSurrogate(c)) {
+            return 1;
+        }
+        return 3;
+    }
+
+    // Length of writeQuoted(s).
+    private static long quotedLength(String s) {
+        long ret = 2;
+        char prev;
+        char c = 0;
+        final int len = s.length();
+        for (int i = 0; i < len; i++) {
+            prev = c;
+            c = s.charAt(i);
+            switch (c) {
+                case '\\':
+                case '"':
+                case '\b':
+                case '\t':
+                case '\n':
+                case '\f':
+                case '\r':
+                    ret += 2;
+                    break;
+                case '/':
+                    ret += prev == '<' ? 2 : 1;
+                    break;
+                default:
+                    if (c < ' ' || (c >= '\u0080' && c < '\u00a0') ||
+                        (c >= '\u2000' && c < '\u2100')) {
+                        ret += 6;
+                    } else {
+                        ret += charLength(s, i, c);
+                        if (Character.isHighSurrogate(c) && i + 1 < len &&
+                            Character.isLowSurrogate(s.charAt(i + 1))) {
+                            i++;
+                            c = s.charAt(i);
+                        }
+                    }
+                    break;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Writes any buffered bytes to the underlying stream and flushes it.
+     */
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        out.close();
+    }
+}
@@ -0,0 +1,167 @@
+package com.iobeam.api.service;
+
+import com.iobeam.api.http.ContentType;
+import com.iobeam.api.http.RequestBody;
+import com.iobeam.api.resource.DataStore;
+import com.iobeam.api.resource.ImportBatch;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.ParseException;
+
+/**
+ * Encodes {@link ImportBatch}es into the bodies of import requests. The server picks the decoder
+ * by the content type of the request, so a codec only needs to write a format the server accepts
+ * for that content type.
+ *
+ * Codecs also decode what they encode, to verify round-trips locally (e.g. in tests); requests
+ * are never decoded by the client otherwise.
+ */
+public abstract class ImportCodec {
+
+    /**
+     * The JSON table format, i.e., {@link ImportBatch#writeJson(OutputStream)}. The default.
+     */
+    public static final ImportCodec JSON = new ImportCodec() {
+        @Override
+        public ContentType getContentType() {
+            return ContentType.JSON;
+        }
+
+        @Override
+        public void write(ImportBatch batch, OutputStream out) throws IOException {
+            batch.writeJson(out);
+        }
+
+        @Override
+        public long estimateLength(ImportBatch batch) {
+            return batch.estimateJsonLength();
+        }
+
+        @Override
+        public ImportBatch read(InputStream in) throws IOException, ParseException {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                bytes.write(buf, 0, n);
+            }
+            try {
+                return ImportBatch.fromJson(new JSONObject(bytes.toString("UTF-8")));
+            } catch (JSONException e) {
+                throw new ParseException(e.getMessage(), 0);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "ImportCodec.JSON";
+        }
+    };
+
+    /**
+     * The same table as JSON, in CBOR (RFC 7049), i.e., {@link
+     * ImportBatch#writeCbor(OutputStream)}. Typically about half the size of JSON for numeric
+     * series, and cheaper to encode, since numbers are written in binary rather than as text.
+     */
+    public static final ImportCodec CBOR = new ImportCodec() {
+        @Override
+        public ContentType getContentType() {
+            return ContentType.CBOR;
+        }
+
+        @Override
+        public void write(ImportBatch batch, OutputStream out) throws IOException {
+            batch.writeCbor(out);
+        }
+
+        @Override
+        public long estimateLength(ImportBatch batch) {
+            return batch.estimateCborLength();
+        }
+
+        @Override
+        public ImportBatch read(InputStream in) throws IOException, ParseException {
+            return ImportBatch.fromCbor(in);
+        }
+
+        @Override
+        public DataStore.Encoding getSplitEncoding() {
+            return DataStore.Encoding.CBOR;
+        }
+
+        @Override
+        public String toString() {
+            return "ImportCodec.CBOR";
+        }
+    };
+
+    /**
+     * @return Content type of the encoded batches.
+     */
+    public abstract ContentType getContentType();
+
+    /**
+     * Writes a batch to a stream. Must be repeatable, since requests are written again on retries.
+     *
+     * @param batch Batch to write
+     * @param out   Stream to write to; it should be flushed but not closed.
+     * @throws IOException If writing to the stream fails.
+     */
+    public abstract void write(ImportBatch batch, OutputStream out) throws IOException;
+
+    /**
+     * Returns a cheap estimate of the encoded length of a batch, without encoding it, or -1 if no
+     * estimate is available.
+     *
+     * @param batch Batch to estimate
+     * @return Estimated length in bytes, or -1 if unknown.
+     */
+    public long estimateLength(ImportBatch batch) {
+        return -1;
+    }
+
+    /**
+     * Returns the encoding that requests are measured in when they are split to a maximum number
+     * of bytes. Codecs other than the built-in ones must return an encoding whose rows are at
+     * least as long as their own, or requests may be larger than the maximum.
+     *
+     * @return Encoding to measure requests in; JSON by default.
+     */
+    public DataStore.Encoding getSplitEncoding() {
+        return DataStore.Encoding.JSON;
+    }
+
+    /**
+     * Reads a batch written by {@link #write(ImportBatch, OutputStream)}.
+     *
+     * @param in Stream to read from; it is not closed.
+     * @return The batch read.
+     * @throws IOException    If reading from the stream fails.
+     * @throws ParseException If the stream does not hold a valid batch.
+     */
+    public abstract ImportBatch read(InputStream in) throws IOException, ParseException;
+
+    /**
+     * @param batch Batch to encode
+     * @return Body that encodes the batch with this codec as it is written.
+     */
+    RequestBody newBody(final ImportBatch batch) {
+        return new RequestBody() {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                write(batch, out);
+            }
+
+            @Override
+            public long getEstimatedLength() {
+                return estimateLength(batch);
+            }
+        };
+    }
+}
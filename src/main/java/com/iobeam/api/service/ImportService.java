@@ -2,7 +2,6 @@ package com.iobeam.api.service;
 
 import com.iobeam.api.client.RestClient;
 import com.iobeam.api.client.RestRequest;
-import com.iobeam.api.http.ContentType;
 import com.iobeam.api.http.RequestMethod;
 import com.iobeam.api.http.StatusCode;
 import com.iobeam.api.resource.DataPoint;
@@ -24,12 +23,67 @@ public class ImportService {
 
     private final static Logger logger = Logger.getLogger(ImportService.class.getName());
     final static int REQ_MAX_POINTS = 1000;
+    public final static long DEFAULT_REQ_MAX_BYTES = 1024 * 1024;
+    public final static int DEFAULT_REQ_MAX_POINTS = REQ_MAX_POINTS;
 
 
     private final RestClient client;
+    private final int maxPoints;
+    private final long maxBytes;
+    private final ImportCodec codec;
 
     public ImportService(final RestClient client) {
+        this(client, DEFAULT_REQ_MAX_POINTS, DEFAULT_REQ_MAX_BYTES);
+    }
+
+    /**
+     * Creates an import service that splits data into requests of limited size.
+     *
+     * @param client    Client to send requests with
+     * @param maxPoints Maximum number of values (rows times columns) per request
+     * @param maxBytes  Maximum length in bytes of the (uncompressed) body of a request, or 0 for
+     *                  no limit.
+     */
+    public ImportService(final RestClient client, final int maxPoints, final long maxBytes) {
+        this(client, maxPoints, maxBytes, ImportCodec.JSON);
+    }
+
+    /**
+     * Creates an import service that splits data into requests of limited size, and encodes them
+     * with a codec. Requests are measured in the codec's {@link ImportCodec#getSplitEncoding()}
+     * to split them.
+     *
+     * @param client    Client to send requests with
+     * @param maxPoints Maximum number of values (rows times columns) per request
+     * @param maxBytes  Maximum length in bytes of the (uncompressed) body of a request, or 0 for
+     *                  no limit.
+     * @param codec     Codec to encode requests with, e.g. {@link ImportCodec#JSON}
+     */
+    public ImportService(final RestClient client, final int maxPoints, final long maxBytes,
+                         final ImportCodec codec) {
+        if (maxPoints <= 0) {
+            throw new IllegalArgumentException("maxPoints must be greater than 0");
+        }
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes must not be negative");
+        }
+        if (codec == null) {
+            throw new IllegalArgumentException("codec cannot be null");
+        }
         this.client = client;
+        this.maxPoints = maxPoints;
+        this.maxBytes = maxBytes;
+        this.codec = codec;
+    }
+
+    public ImportCodec getCodec() {
+        return codec;
+    }
+
+    private List<DataStore> split(DataStore data, long envelope) {
+        final int maxRows = Math.max(1, maxPoints / data.getColumns().size());
+        return data.split(maxRows, maxBytes == 0 ? 0 : Math.max(1, maxBytes - envelope),
+                          codec.getSplitEncoding());
     }
 
     public class Submit extends RestRequest<Void> {
@@ -38,8 +92,9 @@ public class ImportService {
 
         protected Submit(ImportBatch imp) {
             super(client, RequestMethod.POST, PATH + "/?fmt=table",
-                  ContentType.JSON, imp,
+                  codec.getContentType(), imp,
                   StatusCode.OK, Void.class);
+            getBuilder().setBody(codec.newBody(imp));
         }
     }
 
@@ -61,7 +116,10 @@ public class ImportService {
             for (DataPoint p : store.get(name)) {
                 batch.add(p.getTime(), new String[]{name}, new Object[]{p.getValue()});
             }
-            List<DataStore> batches = batch.split(REQ_MAX_POINTS / batch.getColumns().size());
+            ImportBatch envelope = ImportBatch.createLegacy(imp.getProjectId(), imp.getDeviceId(),
+                                                            batch);
+            List<DataStore> batches =
+                split(batch, envelope.getEnvelopeLength(codec.getSplitEncoding()));
             for (DataStore b : batches) {
                 ret.add(ImportBatch.createLegacy(imp.getProjectId(), imp.getDeviceId(), b));
             }
@@ -74,7 +132,7 @@ public class ImportService {
         List<ImportBatch> ret = new ArrayList<ImportBatch>();
 
         DataStore batch = imp.getData();
-        List<DataStore> batches = batch.split(REQ_MAX_POINTS / batch.getColumns().size());
+        List<DataStore> batches = split(batch, imp.getEnvelopeLength(codec.getSplitEncoding()));
         if (batches.size() == 1) {
             ret.add(imp);
         } else {
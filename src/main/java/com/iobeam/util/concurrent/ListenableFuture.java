@@ -0,0 +1,20 @@
+package com.iobeam.util.concurrent;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+/**
+ * A Future that runs listeners once it completes, so that results can be handled (or further
+ * work started) without a thread blocking in {@link #get()}.
+ */
+public interface ListenableFuture<V> extends Future<V> {
+
+    /**
+     * Runs a listener on an executor once this future completes, successfully or not, or right
+     * away if it already has. Listeners typically call {@link #get()}, which does not block then.
+     *
+     * @param listener Listener to run
+     * @param executor Executor to run the listener on
+     */
+    void addListener(Runnable listener, Executor executor);
+}
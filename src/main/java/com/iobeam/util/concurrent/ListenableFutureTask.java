@@ -0,0 +1,66 @@
+package com.iobeam.util.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * FutureTask that is also a {@link ListenableFuture}. Listeners are run after the task completes,
+ * in the order they were added.
+ */
+public class ListenableFutureTask<V> extends FutureTask<V> implements ListenableFuture<V> {
+
+    private static final Logger logger = Logger.getLogger(ListenableFutureTask.class.getName());
+
+    private final Object lock = new Object();
+    // Guarded by lock; null once the listeners have been run.
+    private List<Runnable> listeners = new ArrayList<Runnable>();
+    private List<Executor> executors = new ArrayList<Executor>();
+
+    public ListenableFutureTask(final Callable<V> callable) {
+        super(callable);
+    }
+
+    @Override
+    public void addListener(final Runnable listener, final Executor executor) {
+        if (listener == null || executor == null) {
+            throw new IllegalArgumentException("listener and executor cannot be null");
+        }
+        synchronized (lock) {
+            if (listeners != null) {
+                listeners.add(listener);
+                executors.add(executor);
+                return;
+            }
+        }
+        execute(listener, executor);
+    }
+
+    @Override
+    protected void done() {
+        final List<Runnable> toRun;
+        final List<Executor> toRunOn;
+        synchronized (lock) {
+            toRun = listeners;
+            toRunOn = executors;
+            listeners = null;
+            executors = null;
+        }
+        for (int i = 0; i < toRun.size(); i++) {
+            execute(toRun.get(i), toRunOn.get(i));
+        }
+    }
+
+    private static void execute(final Runnable listener, final Executor executor) {
+        try {
+            executor.execute(listener);
+        } catch (RuntimeException e) {
+            // One failing listener should not keep the others from running.
+            logger.log(Level.WARNING, "Listener failed: " + listener, e);
+        }
+    }
+}
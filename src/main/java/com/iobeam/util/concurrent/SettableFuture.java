@@ -0,0 +1,40 @@
+package com.iobeam.util.concurrent;
+
+import java.util.concurrent.Callable;
+
+/**
+ * {@link ListenableFuture} whose result is set by whoever creates it, e.g., from the callback of
+ * an asynchronous operation. Only the first result (or exception) set is kept.
+ */
+public final class SettableFuture<V> extends ListenableFutureTask<V> {
+
+    private static final Callable<Object> NOT_RUN = new Callable<Object>() {
+        @Override
+        public Object call() {
+            throw new IllegalStateException("SettableFuture is not run");
+        }
+    };
+
+    @SuppressWarnings("unchecked")
+    public SettableFuture() {
+        super((Callable<V>) NOT_RUN);
+    }
+
+    /**
+     * Does nothing; the result is set with {@link #set(Object)} or {@link
+     * #setException(Throwable)}.
+     */
+    @Override
+    public void run() {
+    }
+
+    @Override
+    public void set(final V value) {
+        super.set(value);
+    }
+
+    @Override
+    public void setException(final Throwable t) {
+        super.setException(t);
+    }
+}
@@ -0,0 +1,91 @@
+package com.iobeam.util.concurrent;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Access to virtual threads (Java 21 and later), which are cheap enough to have one per client
+ * or per request even with many thousands of them. They are looked up by reflection, so that
+ * this library still builds for Java 6; check {@link #isAvailable()} before using them.
+ */
+public final class VirtualThreads {
+
+    private static final Method OF_VIRTUAL = lookup(Thread.class, "ofVirtual");
+    private static final Method NAME = lookup("java.lang.Thread$Builder", "name", String.class,
+                                              long.class);
+    private static final Method FACTORY = lookup("java.lang.Thread$Builder", "factory");
+    private static final Method NEW_PER_TASK_EXECUTOR =
+        lookup(Executors.class, "newVirtualThreadPerTaskExecutor");
+
+    private VirtualThreads() {
+    }
+
+    private static Method lookup(String className, String name, Class<?>... params) {
+        try {
+            return lookup(Class.forName(className), name, params);
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+
+    private static Method lookup(Class<?> cls, String name, Class<?>... params) {
+        try {
+            return cls.getMethod(name, params);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return Whether virtual threads are available on this platform.
+     */
+    public static boolean isAvailable() {
+        return OF_VIRTUAL != null && NAME != null && FACTORY != null &&
+               NEW_PER_TASK_EXECUTOR != null;
+    }
+
+    /**
+     * Creates a factory for virtual threads, e.g., to back a ThreadPoolExecutor that limits
+     * concurrency like one of platform threads would.
+     *
+     * @param prefix Name prefix of the threads, which are numbered from 0.
+     * @return ThreadFactory that creates virtual threads.
+     * @throws UnsupportedOperationException If virtual threads are not available.
+     */
+    public static ThreadFactory newThreadFactory(final String prefix) {
+        final Object builder = invoke(OF_VIRTUAL, null);
+        return (ThreadFactory) invoke(FACTORY, invoke(NAME, builder, prefix, 0L));
+    }
+
+    /**
+     * Creates an executor that runs each task on a new virtual thread.
+     *
+     * @return ExecutorService with a virtual thread per task.
+     * @throws UnsupportedOperationException If virtual threads are not available.
+     */
+    public static ExecutorService newThreadPerTaskExecutor() {
+        return (ExecutorService) invoke(NEW_PER_TASK_EXECUTOR, null);
+    }
+
+    private static Object invoke(final Method method, final Object target, final Object... args) {
+        if (!isAvailable()) {
+            throw new UnsupportedOperationException("Virtual threads are not available");
+        }
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.iobeam.util.io;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * OutputStream that counts the bytes written through it. If constructed without an underlying
+ * stream, the bytes are discarded and only counted.
+ */
+public class CountingOutputStream extends FilterOutputStream {
+
+    private static final OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    private long count = 0;
+
+    public CountingOutputStream() {
+        this(DISCARD);
+    }
+
+    public CountingOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        count += len;
+    }
+}
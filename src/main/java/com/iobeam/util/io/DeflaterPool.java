@@ -0,0 +1,57 @@
+package com.iobeam.util.io;
+
+import java.util.LinkedList;
+import java.util.zip.Deflater;
+
+/**
+ * Pool of raw (no zlib wrapper) Deflaters with a fixed compression level. Deflaters hold native
+ * memory and are relatively expensive to create, so they are reset and reused instead of being
+ * created per request. At most `maxIdle` Deflaters are kept; extra ones are ended on release.
+ */
+public final class DeflaterPool {
+
+    private final int level;
+    private final int maxIdle;
+    private final LinkedList<Deflater> idle = new LinkedList<Deflater>();
+
+    public DeflaterPool(int level, int maxIdle) {
+        if (level != Deflater.DEFAULT_COMPRESSION &&
+            (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        }
+        this.level = level;
+        this.maxIdle = maxIdle;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * @return An idle Deflater from the pool, or a new one if none is idle.
+     */
+    public Deflater acquire() {
+        synchronized (idle) {
+            if (!idle.isEmpty()) {
+                return idle.removeFirst();
+            }
+        }
+        return new Deflater(level, true);
+    }
+
+    /**
+     * Returns a Deflater obtained with {@link #acquire()} to the pool.
+     *
+     * @param deflater Deflater to return
+     */
+    public void release(Deflater deflater) {
+        deflater.reset();
+        synchronized (idle) {
+            if (idle.size() < maxIdle) {
+                idle.addFirst(deflater);
+                return;
+            }
+        }
+        deflater.end();
+    }
+}
@@ -0,0 +1,383 @@
+package com.iobeam.util.io;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of byte records, kept in a directory as a sequence of numbered segment files.
+ * Each record is framed as a 4-byte length, a 4-byte CRC32 of the payload, and the payload.
+ *
+ * Records stay in the log until they are acknowledged with {@link #ack(long)}, which appends a
+ * small acknowledgement entry (framed with a length of -1) to the log. Segment files are deleted
+ * oldest first, once all of their records have been acknowledged and no newer segment is being
+ * written to. Records that were not acknowledged before the log was closed (or the process died)
+ * are read back when the log is opened again, see {@link #getRecovered()}.
+ *
+ * Appends and acknowledgements are not forced to disk one by one; call {@link #sync()} after a
+ * group of appends. An acknowledgement lost in a crash only means that its record is recovered
+ * once more.
+ *
+ * This class is thread-safe.
+ */
+public final class SegmentLog implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(SegmentLog.class.getName());
+    private static final String SUFFIX = ".log";
+    private static final int HEADER_SIZE = 8;
+    private static final int ACK_LENGTH = -1;
+    private static final int ACK_SIZE = HEADER_SIZE + 8;
+    private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * A record read back from the log when it was opened.
+     */
+    public static final class Record {
+
+        private final long id;
+        private final byte[] data;
+
+        Record(long id, byte[] data) {
+            this.id = id;
+            this.data = data;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+    }
+
+    private static final class Segment {
+
+        final long seq;
+        final File file;
+        final Set<Long> pending = new HashSet<Long>();
+        long size = 0;
+
+        Segment(long seq, File file) {
+            this.seq = seq;
+            this.file = file;
+        }
+    }
+
+    private final File dir;
+    private final long maxSegmentBytes;
+    private final long maxTotalBytes;
+    private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+    private final List<Record> recovered = new ArrayList<Record>();
+    private Segment active;
+    private FileOutputStream activeOut;
+    private boolean dirty = false;
+
+    /**
+     * Opens (or creates) a log in a directory, reading back any unacknowledged records.
+     *
+     * @param dir             Directory for the segment files; created if needed.
+     * @param maxSegmentBytes Size at which a new segment is started.
+     * @param maxTotalBytes   Size of all segments above which the oldest segments are dropped,
+     *                        even if they have unacknowledged records.
+     * @throws IOException If the directory or a segment cannot be read or created.
+     */
+    public SegmentLog(File dir, long maxSegmentBytes, long maxTotalBytes) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create directory " + dir);
+        }
+        this.dir = dir;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.maxTotalBytes = maxTotalBytes;
+
+        long lastSeq = 0;
+        for (long seq : listSegments(dir)) {
+            Segment s = new Segment(seq, segmentFile(seq));
+            segments.put(seq, s);
+            readSegment(s);
+            lastSeq = seq;
+        }
+        openSegment(lastSeq + 1);
+        deleteAckedSegments();
+    }
+
+    private static long[] listSegments(File dir) throws IOException {
+        String[] names = dir.list();
+        if (names == null) {
+            throw new IOException("Could not list directory " + dir);
+        }
+        List<Long> seqs = new ArrayList<Long>();
+        for (String name : names) {
+            if (name.endsWith(SUFFIX)) {
+                try {
+                    seqs.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    // Not one of ours.
+                }
+            }
+        }
+        long[] ret = new long[seqs.size()];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = seqs.get(i);
+        }
+        Arrays.sort(ret);
+        return ret;
+    }
+
+    private File segmentFile(long seq) {
+        return new File(dir, String.format("%020d", seq) + SUFFIX);
+    }
+
+    private static long recordId(long seq, long offset) {
+        return (seq << 32) | offset;
+    }
+
+    private void readSegment(Segment s) throws IOException {
+        final DataInputStream in =
+            new DataInputStream(new BufferedInputStream(new FileInputStream(s.file)));
+        try {
+            final CRC32 crc = new CRC32();
+            while (true) {
+                final int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                try {
+                    final int checksum = in.readInt();
+                    if (length == ACK_LENGTH) {
+                        final byte[] data = new byte[8];
+                        in.readFully(data);
+                        crc.reset();
+                        crc.update(data);
+                        if ((int) crc.getValue() != checksum) {
+                            throw new IOException("checksum mismatch");
+                        }
+                        final long id = ByteBuffer.wrap(data).getLong();
+                        final Segment acked = segments.get(id >>> 32);
+                        if (acked != null) {
+                            acked.pending.remove(id);
+                        }
+                        s.size += ACK_SIZE;
+                        continue;
+                    }
+                    if (length < 0 || length > MAX_RECORD_SIZE) {
+                        throw new IOException("bad record length " + length);
+                    }
+                    final byte[] data = new byte[length];
+                    in.readFully(data);
+                    crc.reset();
+                    crc.update(data);
+                    if ((int) crc.getValue() != checksum) {
+                        throw new IOException("checksum mismatch");
+                    }
+                    final long id = recordId(s.seq, s.size);
+                    s.pending.add(id);
+                    s.size += HEADER_SIZE + length;
+                    recovered.add(new Record(id, data));
+                } catch (IOException e) {
+                    // Most likely a write cut short by a crash; nothing after it can be trusted.
+                    logger.warning("Ignoring rest of " + s.file + " after offset " + s.size +
+                                   ": " + e.getMessage());
+                    break;
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void openSegment(long seq) throws IOException {
+        active = new Segment(seq, segmentFile(seq));
+        activeOut = new FileOutputStream(active.file, true);
+        segments.put(seq, active);
+    }
+
+    // Deletes segments from the oldest one on, as long as they have no pending records. Later
+    // segments are kept even if fully acknowledged, since they may hold acknowledgements for
+    // records in the older ones.
+    private void deleteAckedSegments() {
+        while (!segments.isEmpty()) {
+            Segment s = segments.firstEntry().getValue();
+            if (s == active || !s.pending.isEmpty()) {
+                break;
+            }
+            delete(s);
+        }
+    }
+
+    private void delete(Segment s) {
+        segments.remove(s.seq);
+        if (s.file.exists() && !s.file.delete()) {
+            logger.warning("Could not delete " + s.file);
+        }
+    }
+
+    /**
+     * Returns the unacknowledged records that were in the log when it was opened, oldest first,
+     * except those acknowledged or dropped since.
+     *
+     * @return List of recovered records.
+     */
+    public synchronized List<Record> getRecovered() {
+        List<Record> ret = new ArrayList<Record>(recovered.size());
+        for (Record r : recovered) {
+            Segment s = segments.get(r.id >>> 32);
+            if (s != null && s.pending.contains(r.id)) {
+                ret.add(r);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Appends a record to the log. The record is not guaranteed to be on disk until the next
+     * {@link #sync()}.
+     *
+     * @param data Payload of the record
+     * @return Id of the record, to later acknowledge it with.
+     * @throws IOException If writing to the segment fails.
+     */
+    public synchronized long append(byte[] data) throws IOException {
+        if (activeOut == null) {
+            throw new IOException("SegmentLog is closed.");
+        }
+        if (data.length > MAX_RECORD_SIZE) {
+            throw new IOException("Record too large: " + data.length + " bytes");
+        }
+        final long id = write(data.length, data);
+        active.pending.add(id);
+        dropOldSegments();
+        return id;
+    }
+
+    // Writes a framed entry to the active segment, and returns its id.
+    private long write(int length, byte[] data) throws IOException {
+        if (active.size > 0 && active.size + HEADER_SIZE + data.length > maxSegmentBytes) {
+            rotate();
+        }
+
+        final CRC32 crc = new CRC32();
+        crc.update(data);
+        final ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + data.length);
+        buf.putInt(length).putInt((int) crc.getValue()).put(data);
+        buf.flip();
+        final FileChannel channel = activeOut.getChannel();
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+
+        final long id = recordId(active.seq, active.size);
+        active.size += HEADER_SIZE + data.length;
+        dirty = true;
+        return id;
+    }
+
+    /**
+     * Forces all appended records to disk.
+     *
+     * @throws IOException If the sync fails.
+     */
+    public synchronized void sync() throws IOException {
+        if (dirty && activeOut != null) {
+            activeOut.getChannel().force(false);
+            dirty = false;
+        }
+    }
+
+    /**
+     * Acknowledges a record, so that it is no longer kept in the log. Unknown ids are ignored.
+     *
+     * @param id Id of the record, as returned by {@link #append(byte[])} or from a recovered
+     *           record.
+     */
+    public synchronized void ack(long id) {
+        Segment s = segments.get(id >>> 32);
+        if (s == null || !s.pending.remove(id)) {
+            return;
+        }
+        if (activeOut != null) {
+            try {
+                write(ACK_LENGTH, ByteBuffer.allocate(8).putLong(id).array());
+            } catch (IOException e) {
+                logger.warning("Could not write ack to " + active.file + ": " + e.getMessage());
+            }
+        }
+        deleteAckedSegments();
+    }
+
+    /**
+     * @return Number of records in the log that have not been acknowledged.
+     */
+    public synchronized int getPendingCount() {
+        int ret = 0;
+        for (Segment s : segments.values()) {
+            ret += s.pending.size();
+        }
+        return ret;
+    }
+
+    private void rotate() throws IOException {
+        sync();
+        activeOut.close();
+        openSegment(active.seq + 1);
+        deleteAckedSegments();
+    }
+
+    private void dropOldSegments() {
+        long total = 0;
+        for (Segment s : segments.values()) {
+            total += s.size;
+        }
+        while (total > maxTotalBytes) {
+            Map.Entry<Long, Segment> oldest = segments.firstEntry();
+            if (oldest.getValue() == active) {
+                break;
+            }
+            Segment s = oldest.getValue();
+            logger.warning("Log over " + maxTotalBytes + " bytes, dropping " + s.pending.size() +
+                           " records in " + s.file);
+            total -= s.size;
+            delete(s);
+        }
+    }
+
+    /**
+     * Syncs and closes the log. Unacknowledged records are recovered the next time the directory
+     * is opened.
+     *
+     * @throws IOException If syncing or closing fails.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (activeOut == null) {
+            return;
+        }
+        sync();
+        activeOut.close();
+        activeOut = null;
+        final Segment last = active;
+        active = null;
+        deleteAckedSegments();
+        if (segments.size() == 1 && last.size == 0) {
+            delete(last);
+        }
+    }
+}
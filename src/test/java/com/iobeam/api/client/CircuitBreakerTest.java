@@ -0,0 +1,139 @@
+package com.iobeam.api.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.iobeam.api.ApiException;
+import com.iobeam.api.http.RequestBuilder;
+import com.iobeam.api.http.StatusCode;
+import com.iobeam.api.resource.DataStore;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CircuitBreakerTest {
+
+    private HttpServer server;
+    private String url;
+    private volatile int status = 503;
+    private final AtomicInteger requests = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                exchange.sendResponseHeaders(status, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testStates() throws Exception {
+        final CircuitBreaker breaker = new CircuitBreaker(2, 50);
+        assertTrue(breaker.tryAcquire());
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.tryAcquire());
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowsRequests());
+        assertFalse(breaker.tryAcquire());
+
+        Thread.sleep(100);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertTrue(breaker.tryAcquire());
+        // Only one probe at a time.
+        assertFalse(breaker.tryAcquire());
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        Thread.sleep(100);
+        assertTrue(breaker.tryAcquire());
+        breaker.release();
+        assertTrue(breaker.tryAcquire());
+        breaker.onSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.tryAcquire());
+    }
+
+    private void get(RestClient client) throws Exception {
+        client.executeRequest(new RequestBuilder(url + "/test"), StatusCode.OK, Void.class, false);
+    }
+
+    @Test
+    public void testFailsFastWhileOpen() throws Exception {
+        final RestClient client = new RestClient(url);
+        client.setCircuitBreaker(new CircuitBreaker(2, 100));
+        for (int i = 0; i < 2; i++) {
+            try {
+                get(client);
+                fail("Expected the request to fail");
+            } catch (ApiException e) {
+                // Expected
+            }
+        }
+        try {
+            get(client);
+            fail("Expected the breaker to be open");
+        } catch (CircuitBreaker.OpenException e) {
+            assertEquals(2, requests.get());
+        }
+
+        // A client error means the API is up.
+        status = 400;
+        Thread.sleep(150);
+        try {
+            get(client);
+            fail("Expected the request to fail");
+        } catch (ApiException e) {
+            assertEquals(3, requests.get());
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, client.getCircuitBreaker().getState());
+    }
+
+    @Test
+    public void testDataStaysBuffered() throws Exception {
+        final Iobeam iobeam = new Iobeam.Builder(1, "fake_token").backend(url)
+            .setDeviceId("fake_device_identifier").circuitBreaker(1, 60000).build();
+        final DataStore ds = iobeam.createDataStore("col1");
+        ds.add(1, "col1", 1);
+        try {
+            iobeam.send();
+            fail("Expected sending to fail");
+        } catch (ApiException e) {
+            assertEquals(1, requests.get());
+        }
+
+        ds.add(2, "col1", 2);
+        iobeam.sendAsync();
+        assertEquals(1, iobeam.getDataSize());
+        try {
+            iobeam.send();
+            fail("Expected the breaker to be open");
+        } catch (CircuitBreaker.OpenException e) {
+            assertEquals(1, iobeam.getDataSize());
+        }
+        assertEquals(1, requests.get());
+    }
+}
@@ -4,9 +4,12 @@ import static junit.framework.TestCase.assertEquals;
 import static junit.framework.TestCase.assertFalse;
 import static junit.framework.TestCase.assertNotNull;
 import static junit.framework.TestCase.assertNull;
+import static junit.framework.TestCase.assertSame;
 import static junit.framework.TestCase.assertTrue;
+import static junit.framework.TestCase.fail;
 import static org.junit.Assert.assertNotEquals;
 
+import com.iobeam.api.resource.BufferLimit;
 import com.iobeam.api.resource.DataPoint;
 import com.iobeam.api.resource.DataStore;
 import com.iobeam.api.resource.Import;
@@ -18,11 +21,15 @@ import org.junit.Test;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class IobeamTest {
 
@@ -250,6 +257,19 @@ public class IobeamTest {
         assertEquals(0, iobeam.getDataSize("something_else"));
     }
 
+    @Test
+    public void testResetClearsBufferLimit() throws Exception {
+        BufferLimit limit = new BufferLimit.Builder().maxValues(100).build();
+        Iobeam iobeam = getBuilder().setDeviceId(DEVICE_ID).bufferLimit(limit).build();
+        DataStore ds = iobeam.createDataStore("a");
+        ds.add(0, "a", 1);
+        assertEquals(1, limit.getValues());
+
+        iobeam.reset();
+        assertEquals(0, limit.getValues());
+        assertNull(ds.getBufferLimit());
+    }
+
     @Test
     public void testRegisterDeviceError() throws Exception {
         boolean error = false;
@@ -387,6 +407,40 @@ public class IobeamTest {
         assertTrue(legacy);
     }
 
+    @Test
+    public void testCoalesceRequests() throws Exception {
+        final Iobeam iobeam = getBuilder().setDeviceId(DEVICE_ID).coalesceRequests().build();
+        for (int t = 0; t < 3; t++) {
+            for (int i = 0; i < 20; i++) {
+                iobeam.addData("series" + i, new DataPoint(t, i));
+            }
+        }
+        final DataStore ds1 = iobeam.createDataStore("a", "b");
+        final DataStore ds2 = iobeam.createDataStore("c");
+        ds1.add(0, "a", 1L);
+        ds2.add(0, "c", 2L);
+
+        List<ImportService.Submit> reqs = iobeam.prepareDataRequests();
+        assertEquals(2, reqs.size());
+        ImportBatch legacy = (ImportBatch) reqs.get(0).getBuilder().getContent();
+        assertTrue(legacy.isFromLegacy());
+        assertEquals(20, legacy.getData().getColumns().size());
+        assertEquals(60, legacy.getData().getDataSize());
+        ImportBatch bulk = (ImportBatch) reqs.get(1).getBuilder().getContent();
+        assertFalse(bulk.isFromLegacy());
+        assertEquals(Arrays.asList("a", "b", "c"), bulk.getData().getColumns());
+
+        // Failed coalesced batches go back into the DataStores they came from.
+        Iobeam.ReinsertSendCallback cb = new Iobeam.ReinsertSendCallback(iobeam, null);
+        cb.onFailure(new Exception(), legacy);
+        cb.onFailure(new Exception(), bulk);
+        assertEquals(2, ds1.getDataSize());
+        assertEquals(1L, ds1.getRows().get(0L).get("a"));
+        assertEquals(1, ds2.getDataSize());
+        assertEquals(3, iobeam.getDataStore(Arrays.asList("series7")).getDataSize());
+        assertEquals(63, iobeam.getDataSize());
+    }
+
     @Test
     public void testReinsertSendCallback() throws Exception {
         final Iobeam iobeam = getBuilder().autoRetry().setDeviceId(DEVICE_ID).build();
@@ -413,4 +467,250 @@ public class IobeamTest {
         assertTrue(called.get());
         assertEquals(1, ds.getDataSize());
     }
+
+    @Test
+    public void testSendExecutorWindow() throws Exception {
+        final int window = 3;
+        final ExecutorService executor = Iobeam.createSendExecutor(window);
+        final CountDownLatch running = new CountDownLatch(window);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Runnable blocker = new Runnable() {
+            @Override
+            public void run() {
+                running.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+
+        // All requests in the window run at once; further ones queue up.
+        for (int i = 0; i < window; i++) {
+            executor.execute(blocker);
+        }
+        assertTrue(running.await(10, TimeUnit.SECONDS));
+
+        // However many are queued, the submitting thread never runs a request itself.
+        final AtomicInteger ranOnCaller = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(50);
+        final Thread caller = Thread.currentThread();
+        for (int i = 0; i < 50; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (Thread.currentThread() == caller) {
+                        ranOnCaller.incrementAndGet();
+                    }
+                    done.countDown();
+                }
+            });
+        }
+        assertEquals(50, done.getCount());
+
+        release.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(0, ranOnCaller.get());
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testSendExecutorThreadFactory() throws Exception {
+        final AtomicInteger created = new AtomicInteger();
+        final ThreadFactory factory = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                created.incrementAndGet();
+                return new Thread(r, "test-sender");
+            }
+        };
+        for (int window : new int[]{1, 2}) {
+            final ExecutorService executor = Iobeam.createSendExecutor(window, factory);
+            final String[] name = new String[1];
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    name[0] = Thread.currentThread().getName();
+                }
+            }).get(10, TimeUnit.SECONDS);
+            assertEquals("test-sender", name[0]);
+            executor.shutdown();
+        }
+        assertEquals(2, created.get());
+
+        // Falls back to platform threads where virtual threads are not available.
+        Iobeam iobeam = getBuilder().virtualThreads().build();
+        assertNotNull(iobeam);
+    }
+
+    @Test
+    public void testShareClient() throws Exception {
+        final Iobeam base = getBuilder().setDeviceId(DEVICE_ID).build();
+        final Iobeam context = getBuilder().setDeviceId("otherdevice").shareClient(base)
+            .autoFlushInterval(100).build();
+        assertNotNull(context);
+        assertSame(base.getRestClient(), context.getRestClient());
+        assertEquals(DEVICE_ID, base.getDeviceId());
+        assertEquals("otherdevice", context.getDeviceId());
+
+        final DataStore ds = context.createDataStore("col1");
+        ds.add(1, "col1", 1);
+        assertEquals(0, base.getDataSize());
+        // Stopping the shared client's auto-flush leaves the context's running.
+        base.stopAutoFlush();
+        assertTrue(awaitEmpty(context));
+        context.stopAutoFlush();
+
+        try {
+            new Iobeam.Builder(PROJECT_ID + 1, PROJECT_TOKEN).shareClient(base);
+            fail("Sharing a client of another project should fail");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    private static boolean awaitEmpty(Iobeam iobeam) throws InterruptedException {
+        for (int i = 0; i < 100 && iobeam.getDataSize() > 0; i++) {
+            Thread.sleep(50);
+        }
+        return iobeam.getDataSize() == 0;
+    }
+
+    @Test
+    public void testAutoFlushSize() throws Exception {
+        final Iobeam iobeam = getBuilder().setDeviceId(DEVICE_ID).autoFlushSize(3).build();
+        final DataStore ds = iobeam.createDataStore("col1");
+        ds.add(1, "col1", 1);
+        ds.add(2, "col1", 2);
+        Thread.sleep(2 * Iobeam.AUTO_FLUSH_CHECK_MILLIS);
+        assertEquals(2, iobeam.getDataSize());
+
+        ds.add(3, "col1", 3);
+        assertTrue(awaitEmpty(iobeam));
+        iobeam.stopAutoFlush();
+    }
+
+    @Test
+    public void testAutoFlushSizeShared() throws Exception {
+        final Iobeam base = getBuilder().setDeviceId(DEVICE_ID).build();
+        final Iobeam first = getBuilder().setDeviceId("first").shareClient(base)
+            .autoFlushSize(2).build();
+        final Iobeam second = getBuilder().setDeviceId("second").shareClient(base)
+            .autoFlushSize(2).build();
+        first.createDataStore("col1").add(1, "col1", 1);
+        final DataStore ds = second.createDataStore("col1");
+        ds.add(1, "col1", 1);
+        ds.add(2, "col1", 2);
+        // The task that checks both contexts keeps running once the first stops.
+        first.stopAutoFlush();
+        assertTrue(awaitEmpty(second));
+        assertEquals(1, first.getDataSize());
+        second.stopAutoFlush();
+    }
+
+    @Test
+    public void testAutoFlushInterval() throws Exception {
+        final Iobeam iobeam = getBuilder().setDeviceId(DEVICE_ID).autoFlushInterval(100).build();
+        final DataStore ds = iobeam.createDataStore("col1");
+        ds.add(1, "col1", 1);
+        assertTrue(awaitEmpty(iobeam));
+
+        iobeam.stopAutoFlush();
+        ds.add(2, "col1", 2);
+        Thread.sleep(300);
+        assertEquals(1, iobeam.getDataSize());
+    }
+
+    @Test
+    public void testSpoolRecovery() throws Exception {
+        File dir = File.createTempFile("iobeam", "");
+        dir.delete();
+        dir.mkdir();
+        try {
+            Iobeam iobeam = getBuilder().saveIdToPath(dir.getAbsolutePath())
+                .setDeviceId(DEVICE_ID).spool().build();
+            DataStore ds = iobeam.createDataStore("col1", "col2");
+            ds.add(1, "col1", 1L);
+            ds.add(2, "col2", 2.5);
+            List<ImportService.Submit> reqs = iobeam.prepareDataRequests();
+            assertEquals(1, reqs.size());
+            assertEquals(1, iobeam.getSpool().getPendingCount());
+            ImportBatch sent = (ImportBatch) reqs.get(0).getBuilder().getContent();
+            iobeam.reset(false);
+
+            // The batch was never acknowledged, so a new client sends it again.
+            iobeam = getBuilder().saveIdToPath(dir.getAbsolutePath())
+                .setDeviceId(DEVICE_ID).spool().build();
+            assertEquals(1, iobeam.getSpool().getPendingCount());
+            reqs = iobeam.prepareDataRequests();
+            assertEquals(1, reqs.size());
+            ImportBatch resent = (ImportBatch) reqs.get(0).getBuilder().getContent();
+            assertEquals(sent.toJson().toString(), resent.toJson().toString());
+            assertEquals(1, iobeam.getSpool().getPendingCount());
+
+            new Iobeam.SpoolSendCallback(iobeam.getSpool(), null).onSuccess(resent);
+            assertEquals(0, iobeam.getSpool().getPendingCount());
+            iobeam.reset(false);
+        } finally {
+            File spoolDir = new File(dir, ImportSpool.DIRECTORY);
+            File[] files = spoolDir.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    f.delete();
+                }
+            }
+            spoolDir.delete();
+            new File(dir, Iobeam.DEVICE_FILENAME).delete();
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testSpoolKeepsRetriedData() throws Exception {
+        File dir = File.createTempFile("iobeam", "");
+        dir.delete();
+        dir.mkdir();
+        try {
+            Iobeam iobeam = getBuilder().saveIdToPath(dir.getAbsolutePath()).autoRetry()
+                .setDeviceId(DEVICE_ID).spool().build();
+            DataStore ds = iobeam.createDataStore("col1");
+            ds.add(1, "col1", 1L);
+            try {
+                iobeam.send();
+                fail("Expected the send to fail without a backend");
+            } catch (Exception e) {
+                // Expected
+            }
+            // Put back in memory for the next send, but still spooled in case of a crash.
+            assertEquals(1, ds.getDataSize());
+            assertEquals(1, iobeam.getSpool().getPendingCount());
+
+            // Spooled again with the next send, which replaces the old copy.
+            List<ImportService.Submit> reqs = iobeam.prepareDataRequests();
+            assertEquals(1, reqs.size());
+            assertEquals(1, iobeam.getSpool().getPendingCount());
+            iobeam.reset(false);
+
+            iobeam = getBuilder().saveIdToPath(dir.getAbsolutePath())
+                .setDeviceId(DEVICE_ID).spool().build();
+            reqs = iobeam.prepareDataRequests();
+            assertEquals(1, reqs.size());
+            ImportBatch resent = (ImportBatch) reqs.get(0).getBuilder().getContent();
+            assertEquals(1, resent.getData().getDataSize());
+            iobeam.reset(false);
+        } finally {
+            File spoolDir = new File(dir, ImportSpool.DIRECTORY);
+            File[] files = spoolDir.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    f.delete();
+                }
+            }
+            spoolDir.delete();
+            new File(dir, Iobeam.DEVICE_FILENAME).delete();
+            dir.delete();
+        }
+    }
 }
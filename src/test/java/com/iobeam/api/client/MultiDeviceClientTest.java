@@ -0,0 +1,124 @@
+package com.iobeam.api.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.iobeam.api.resource.BufferLimit;
+import com.iobeam.api.resource.DataStore;
+import com.iobeam.api.resource.ImportBatch;
+import com.iobeam.api.service.ImportService;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class MultiDeviceClientTest {
+
+    private static final long PROJECT_ID = 1;
+    private static final String PROJECT_TOKEN = "fake_token";
+
+    private static MultiDeviceClient create(Iobeam.Builder builder) throws Exception {
+        return builder.build().createMultiDeviceClient();
+    }
+
+    @Test
+    public void testPerDeviceBuffers() throws Exception {
+        final MultiDeviceClient client = create(new Iobeam.Builder(PROJECT_ID, PROJECT_TOKEN));
+        final DataStore a = client.getOrAddDataStore("a", "temp", "humidity");
+        assertSame(a, client.getOrAddDataStore("a", "humidity", "temp"));
+        assertEquals(DataStore.Storage.COLUMNAR, a.getStorage());
+        assertNull(client.getDataStore("b", Arrays.asList("temp", "humidity")));
+
+        a.add(1, new String[]{"temp", "humidity"}, new Object[]{20.5, 40L});
+        final Map<String, Object> row = new HashMap<String, Object>();
+        row.put("temp", 19.0);
+        client.add("b", 1, row);
+        client.add("b", 2, row);
+        assertEquals(Arrays.asList("a", "b"), Arrays.asList(client.getDeviceIds().toArray()));
+        assertEquals(2, client.getDataSize("a"));
+        assertEquals(2, client.getDataSize("b"));
+        assertEquals(4, client.getDataSize());
+
+        final List<ImportService.Submit> reqs = client.prepareDataRequests();
+        assertEquals(2, reqs.size());
+        final Map<String, ImportBatch> byDevice = new TreeMap<String, ImportBatch>();
+        for (ImportService.Submit req : reqs) {
+            final ImportBatch batch = (ImportBatch) req.getBuilder().getContent();
+            assertEquals(PROJECT_ID, batch.getProjectId());
+            byDevice.put(batch.getDeviceId(), batch);
+        }
+        assertEquals(1, byDevice.get("a").getData().getRows().size());
+        assertEquals(2, byDevice.get("b").getData().getRows().size());
+        assertEquals(0, client.getDataSize());
+        assertTrue(client.prepareDataRequests().isEmpty());
+    }
+
+    @Test
+    public void testCoalescesPerDevice() throws Exception {
+        final MultiDeviceClient client = create(
+            new Iobeam.Builder(PROJECT_ID, PROJECT_TOKEN).coalesceRequests());
+        client.getOrAddDataStore("a", "temp").add(1, "temp", 20.5);
+        client.getOrAddDataStore("a", "humidity").add(1, "humidity", 40L);
+        client.getOrAddDataStore("b", "temp").add(1, "temp", 19.0);
+
+        final List<ImportService.Submit> reqs = client.prepareDataRequests();
+        assertEquals(2, reqs.size());
+        for (ImportService.Submit req : reqs) {
+            final ImportBatch batch = (ImportBatch) req.getBuilder().getContent();
+            assertEquals(batch.getDeviceId().equals("a") ? 2 : 1,
+                         batch.getData().getColumns().size());
+        }
+    }
+
+    @Test
+    public void testAutoRetry() throws Exception {
+        final MultiDeviceClient client = create(new Iobeam.Builder(PROJECT_ID, PROJECT_TOKEN)
+                                                    .backend("http://127.0.0.1:1")
+                                                    .coalesceRequests()
+                                                    .autoRetry());
+        client.getOrAddDataStore("a", "temp").add(1, "temp", 20.5);
+        client.getOrAddDataStore("a", "humidity").add(1, "humidity", 40L);
+        client.getOrAddDataStore("b", "temp").add(1, "temp", 19.0);
+
+        try {
+            client.send();
+            fail("Expected sending to fail");
+        } catch (IOException e) {
+            assertNotNull(e);
+        }
+        // The data of each device is back in its own DataStores.
+        assertEquals(2, client.getDataSize("a"));
+        assertEquals(1, client.getDataSize("b"));
+        assertEquals(1, client.getDataStore("a", Arrays.asList("temp")).getDataSize());
+        assertEquals(1, client.getDataStore("a", Arrays.asList("humidity")).getDataSize());
+    }
+
+    @Test
+    public void testSetBufferLimitAppliesToExistingStores() throws Exception {
+        final MultiDeviceClient client = create(new Iobeam.Builder(PROJECT_ID, PROJECT_TOKEN));
+        final DataStore a = client.getOrAddDataStore("a", "temp");
+        final BufferLimit first = new BufferLimit.Builder().maxValues(100).build();
+        client.setBufferLimit(first);
+        final DataStore b = client.getOrAddDataStore("b", "temp");
+        assertSame(first, a.getBufferLimit());
+        assertSame(first, b.getBufferLimit());
+
+        final BufferLimit second = new BufferLimit.Builder().maxValues(100).build();
+        client.setBufferLimit(second);
+        assertSame(second, a.getBufferLimit());
+        assertSame(second, b.getBufferLimit());
+
+        client.setBufferLimit(null);
+        assertNull(a.getBufferLimit());
+        assertNull(b.getBufferLimit());
+    }
+}
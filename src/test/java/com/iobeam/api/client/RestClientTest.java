@@ -5,21 +5,39 @@ import com.iobeam.api.auth.AbstractAuthHandler;
 import com.iobeam.api.auth.AuthHandler;
 import com.iobeam.api.auth.AuthToken;
 import com.iobeam.api.auth.ProjectBearerAuthToken;
+import com.iobeam.api.http.AsyncHttpTransport;
+import com.iobeam.api.http.ContentType;
 import com.iobeam.api.http.RequestBuilder;
 import com.iobeam.api.http.StatusCode;
+import com.iobeam.api.http.UrlConnectionTransport;
+import com.iobeam.api.resource.DataStore;
+import com.iobeam.api.resource.ImportBatch;
+import com.iobeam.util.concurrent.ListenableFuture;
+import com.iobeam.util.concurrent.SameThreadExecutorService;
+import com.iobeam.util.concurrent.SettableFuture;
 
+import org.json.JSONObject;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Spy;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.HttpURLConnection;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.GZIPInputStream;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.spy;
@@ -44,6 +62,8 @@ public class RestClientTest {
 
     @Before
     public void setUp() throws Exception {
+        // The connection is mocked through RequestBuilder.build().
+        client.setTransport(new UrlConnectionTransport());
         conn = spy(reqBuilder.build());
         doReturn(conn).when(reqBuilder).build();
         doNothing().when(conn).connect();
@@ -146,4 +166,212 @@ public class RestClientTest {
         assertTrue(client.hasValidAuthToken());
     }
 
+    @Test
+    public void testExecuteRequestAsync() throws Exception {
+        final List<SettableFuture<HttpURLConnection>> sent =
+            new ArrayList<SettableFuture<HttpURLConnection>>();
+        client.setTransport(new AsyncHttpTransport() {
+            @Override
+            public ListenableFuture<HttpURLConnection> sendAsync(HttpURLConnection conn,
+                                                                byte[] body) {
+                final SettableFuture<HttpURLConnection> ret =
+                    new SettableFuture<HttpURLConnection>();
+                sent.add(ret);
+                return ret;
+            }
+
+            @Override
+            public HttpURLConnection open(RequestBuilder request) throws IOException {
+                return request.build();
+            }
+
+            @Override
+            public void release(HttpURLConnection conn, boolean reusable) {
+            }
+        });
+        client.setAuthToken(validToken);
+        client.setMaxAsyncRequests(1);
+        doReturn(200).when(conn).getResponseCode();
+
+        final ListenableFuture<Void> first =
+            client.executeRequestAsync(reqBuilder, StatusCode.OK, Void.class, true);
+        final ListenableFuture<Void> second =
+            client.executeRequestAsync(reqBuilder, StatusCode.NO_CONTENT, Void.class, true);
+        verify(conn, times(1)).setRequestProperty("Authorization", "Bearer faketokenworks");
+        // Nothing blocks while in flight, and the second request waits for the first.
+        assertFalse(first.isDone());
+        assertEquals(1, sent.size());
+
+        sent.get(0).set(conn);
+        assertTrue(first.isDone());
+        assertNull(first.get());
+        assertEquals(2, sent.size());
+
+        sent.get(1).set(conn);
+        try {
+            second.get();
+            fail("Expected failure on unexpected status code");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ApiException);
+        }
+    }
+
+    @Test
+    public void testAsyncRetryKeepsItsPlace() throws Exception {
+        final List<SettableFuture<HttpURLConnection>> sent =
+            new ArrayList<SettableFuture<HttpURLConnection>>();
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        final RestClient client = new RestClient("http://localhost:14634",
+                                                 new SameThreadExecutorService() {
+                                                     @Override
+                                                     public void execute(Runnable command) {
+                                                         tasks.add(command);
+                                                     }
+                                                 });
+        client.setTransport(new AsyncHttpTransport() {
+            @Override
+            public ListenableFuture<HttpURLConnection> sendAsync(HttpURLConnection conn,
+                                                                byte[] body) {
+                final SettableFuture<HttpURLConnection> ret =
+                    new SettableFuture<HttpURLConnection>();
+                sent.add(ret);
+                return ret;
+            }
+
+            @Override
+            public HttpURLConnection open(RequestBuilder request) throws IOException {
+                return request.build();
+            }
+
+            @Override
+            public void release(HttpURLConnection conn, boolean reusable) {
+            }
+        });
+        client.setRetryPolicy(new RetryPolicy.Builder().maxRetries(1).backoff(0, 0).build());
+        client.setMaxAsyncRequests(1);
+        doReturn(503).when(conn).getResponseCode();
+        doReturn(null).when(conn).getHeaderField("Retry-After");
+
+        final ListenableFuture<Void> first =
+            client.executeRequestAsync(reqBuilder, StatusCode.OK, Void.class, false);
+        final ListenableFuture<Void> second =
+            client.executeRequestAsync(reqBuilder, StatusCode.OK, Void.class, false);
+        sent.get(0).set(conn);
+        // The retry runs on the executor, and the second request waits for it.
+        assertEquals(1, tasks.size());
+        assertEquals(1, sent.size());
+
+        doReturn(200).when(conn).getResponseCode();
+        tasks.remove(0).run();
+        assertNull(first.get());
+        // The second request is then started on the executor too.
+        assertEquals(1, sent.size());
+        assertEquals(1, tasks.size());
+        tasks.remove(0).run();
+        assertEquals(2, sent.size());
+        sent.get(1).set(conn);
+        assertNull(second.get());
+    }
+
+    private ImportBatch writeBatch(int rows) throws Exception {
+        DataStore store = new DataStore("a", "b");
+        for (int i = 0; i < rows; i++) {
+            store.add(i, new String[]{"a", "b"}, new Object[]{i, "value" + i});
+        }
+        ImportBatch batch = new ImportBatch(1, "device", store);
+        reqBuilder.setContentType(ContentType.JSON).setContent(batch);
+        doReturn(200).when(conn).getResponseCode();
+        return batch;
+    }
+
+    @Test
+    public void testSmallBodyHasFixedLength() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        doReturn(out).when(conn).getOutputStream();
+        ImportBatch batch = writeBatch(10);
+
+        client.executeRequest(reqBuilder, StatusCode.OK, Void.class, false);
+        assertFalse(reqBuilder.isChunkedStreaming());
+        assertEquals(out.size(), reqBuilder.getContentLength());
+        assertEquals(batch.toJson().toString(), new JSONObject(out.toString("UTF-8")).toString());
+    }
+
+    @Test
+    public void testLargeBodyIsChunked() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        doReturn(out).when(conn).getOutputStream();
+        ImportBatch batch = writeBatch(100);
+        client.setChunkedStreamingThreshold(1024);
+
+        client.executeRequest(reqBuilder, StatusCode.OK, Void.class, false);
+        assertTrue(reqBuilder.isChunkedStreaming());
+        assertTrue(out.size() > 1024);
+        assertEquals(batch.toJson().toString(), new JSONObject(out.toString("UTF-8")).toString());
+
+        // Threshold of zero disables chunking.
+        out.reset();
+        client.setChunkedStreamingThreshold(0);
+        client.executeRequest(reqBuilder, StatusCode.OK, Void.class, false);
+        assertFalse(reqBuilder.isChunkedStreaming());
+        assertEquals(out.size(), reqBuilder.getContentLength());
+    }
+
+    @Test
+    public void testEstimateJsonLength() throws Exception {
+        ImportBatch batch = writeBatch(1000);
+        final long actual = batch.toJson().toString().getBytes("UTF-8").length;
+        final long estimate = batch.estimateJsonLength();
+        assertTrue(Math.abs(estimate - actual) < actual / 10);
+
+        batch = writeBatch(5);
+        assertEquals(batch.toJson().toString().getBytes("UTF-8").length,
+                     batch.estimateJsonLength());
+    }
+
+    private static String gunzip(byte[] bytes) throws IOException {
+        GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1024];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            out.write(buf, 0, n);
+        }
+        in.close();
+        return out.toString("UTF-8");
+    }
+
+    @Test
+    public void testGzipRequests() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        doReturn(out).when(conn).getOutputStream();
+        ImportBatch batch = writeBatch(500);
+        client.setGzipRequests(true).setGzipRequestLevel(1);
+
+        // Body sent chunked, since compressed length is not known up front.
+        client.executeRequest(reqBuilder, StatusCode.OK, Void.class, false);
+        assertEquals("gzip", reqBuilder.getHeaders().get("Content-Encoding").get(0));
+        assertTrue(reqBuilder.isChunkedStreaming());
+        String json = gunzip(out.toByteArray());
+        assertEquals(batch.toJson().toString(), new JSONObject(json).toString());
+        assertTrue(out.size() < json.length() / 2);
+
+        // Fixed length is the compressed length; pooled deflater is reused.
+        out.reset();
+        client.setChunkedStreamingThreshold(0);
+        client.executeRequest(reqBuilder, StatusCode.OK, Void.class, false);
+        assertEquals(out.size(), reqBuilder.getContentLength());
+        assertEquals(json, gunzip(out.toByteArray()));
+    }
+
+    @Test
+    public void testGzipRequestsBelowThreshold() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        doReturn(out).when(conn).getOutputStream();
+        ImportBatch batch = writeBatch(5);
+        client.setGzipRequests(true).setGzipRequestThreshold(4096);
+
+        client.executeRequest(reqBuilder, StatusCode.OK, Void.class, false);
+        assertNull(reqBuilder.getHeaders().get("Content-Encoding"));
+        assertEquals(batch.toJson().toString(), new JSONObject(out.toString("UTF-8")).toString());
+    }
 }
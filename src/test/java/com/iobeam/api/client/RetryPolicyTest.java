@@ -0,0 +1,151 @@
+package com.iobeam.api.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.iobeam.api.ApiException;
+import com.iobeam.api.http.RequestBuilder;
+import com.iobeam.api.http.StatusCode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RetryPolicyTest {
+
+    private HttpServer server;
+    private String url;
+    // Number of requests to fail with 503 before succeeding.
+    private final AtomicInteger failures = new AtomicInteger();
+    private final AtomicInteger requests = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                if (failures.getAndDecrement() > 0) {
+                    exchange.getResponseHeaders().add("Retry-After", "0");
+                    exchange.sendResponseHeaders(503, -1);
+                } else {
+                    exchange.sendResponseHeaders(200, -1);
+                }
+                exchange.close();
+            }
+        });
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private void get(RestClient client) throws Exception {
+        client.executeRequest(new RequestBuilder(url + "/test"), StatusCode.OK, Void.class, false);
+    }
+
+    @Test
+    public void testDelay() {
+        final RetryPolicy policy = new RetryPolicy.Builder().backoff(100, 1000).build();
+        for (int i = 0; i < 100; i++) {
+            final long first = policy.getDelayMillis(1, -1);
+            assertTrue(first >= 0 && first <= 100);
+            final long fourth = policy.getDelayMillis(4, -1);
+            assertTrue(fourth >= 0 && fourth <= 800);
+            assertTrue(policy.getDelayMillis(40, -1) <= 1000);
+            assertTrue(policy.getDelayMillis(1, 500) >= 500);
+        }
+        assertEquals(-1, policy.getDelayMillis(1, 2000));
+    }
+
+    @Test
+    public void testRetryable() {
+        final RetryPolicy policy = new RetryPolicy.Builder().retryStatusCodes(500).build();
+        assertTrue(policy.isRetryable(500));
+        assertFalse(policy.isRetryable(503));
+        assertTrue(policy.isRetryable(new IOException()));
+        assertTrue(policy.isRetryable(new SocketTimeoutException()));
+        assertFalse(new RetryPolicy.Builder().retryIOErrors(false).build()
+                        .isRetryable(new IOException()));
+        assertFalse(RetryPolicy.NONE.isRetryable(503));
+        assertFalse(RetryPolicy.NONE.isRetryable(new IOException()));
+    }
+
+    @Test
+    public void testParseRetryAfter() {
+        assertEquals(120000, RetryPolicy.parseRetryAfter("120", 0));
+        assertEquals(-1, RetryPolicy.parseRetryAfter("-1", 0));
+        assertEquals(-1, RetryPolicy.parseRetryAfter(null, 0));
+        assertEquals(-1, RetryPolicy.parseRetryAfter("soon", 0));
+        // 784111777000 is Sun, 06 Nov 1994 08:49:37 GMT.
+        assertEquals(3000, RetryPolicy.parseRetryAfter("Sun, 06 Nov 1994 08:49:37 GMT",
+                                                       784111777000L - 3000));
+        assertEquals(0, RetryPolicy.parseRetryAfter("Sun, 06 Nov 1994 08:49:37 GMT",
+                                                    784111777000L + 3000));
+    }
+
+    @Test
+    public void testRetriesStatusCodes() throws Exception {
+        final RestClient client = new RestClient(url);
+        client.setRetryPolicy(new RetryPolicy.Builder().backoff(1, 10).build());
+        failures.set(2);
+        get(client);
+        assertEquals(3, requests.get());
+
+        failures.set(4);
+        requests.set(0);
+        try {
+            get(client);
+            fail("Expected the request to fail after 3 retries");
+        } catch (ApiException e) {
+            assertEquals(4, requests.get());
+        }
+    }
+
+    @Test
+    public void testNoRetriesByDefault() throws Exception {
+        final RestClient client = new RestClient(url);
+        failures.set(1);
+        try {
+            get(client);
+            fail("Expected the request to fail");
+        } catch (ApiException e) {
+            assertEquals(1, requests.get());
+        }
+    }
+
+    @Test
+    public void testBudget() throws Exception {
+        final RestClient client = new RestClient(url);
+        client.setRetryPolicy(new RetryPolicy.Builder().backoff(1, 10).budget(0.5, 2).build());
+        failures.set(3);
+        try {
+            get(client);
+            fail("Expected the request to fail once the budget is used up");
+        } catch (ApiException e) {
+            assertEquals(3, requests.get());
+        }
+
+        // Two successful requests earn another retry.
+        get(client);
+        get(client);
+        failures.set(1);
+        requests.set(0);
+        get(client);
+        assertEquals(2, requests.get());
+    }
+}
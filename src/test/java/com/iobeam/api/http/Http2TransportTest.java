@@ -0,0 +1,89 @@
+package com.iobeam.api.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeFalse;
+import static org.junit.Assume.assumeTrue;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+public class Http2TransportTest {
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buf = new byte[1024];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            out.write(buf, 0, n);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testUnavailable() throws Exception {
+        assumeFalse(Http2Transport.isAvailable());
+        new Http2Transport();
+    }
+
+    @Test
+    public void testRequest() throws Exception {
+        assumeTrue(Http2Transport.isAvailable());
+
+        // Plain HTTP/1.1 server; the client falls back to it after offering HTTP/2.
+        final HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                final byte[] body = readAll(exchange.getRequestBody());
+                final byte[] resp = (exchange.getRequestMethod() + " " + body.length + " " +
+                                     exchange.getRequestHeaders().getFirst("X-Test"))
+                    .getBytes("UTF-8");
+                // Chunked, so the response has no length of its own.
+                exchange.sendResponseHeaders(201, 0);
+                final OutputStream out = exchange.getResponseBody();
+                out.write(resp);
+                out.close();
+            }
+        });
+        server.start();
+        try {
+            final Http2Transport transport = new Http2Transport();
+            final RequestBuilder req =
+                new RequestBuilder("http://127.0.0.1:" + server.getAddress().getPort() + "/x")
+                    .setRequestMethod(RequestMethod.POST)
+                    .setContentLength(3)
+                    .addHeader("X-Test", "yes");
+            final HttpURLConnection conn = transport.open(req);
+            conn.connect();
+            final OutputStream out = conn.getOutputStream();
+            out.write(new byte[]{1, 2, 3});
+            out.close();
+
+            assertEquals(201, conn.getResponseCode());
+            assertEquals(10, conn.getContentLength());
+            assertEquals("POST 3 yes", new String(readAll(conn.getInputStream()), "UTF-8"));
+            transport.release(conn, true);
+
+            final HttpURLConnection async = transport.open(req);
+            final HttpURLConnection done =
+                transport.sendAsync(async, new byte[]{1, 2}).get(5, TimeUnit.SECONDS);
+            assertEquals(201, done.getResponseCode());
+            assertEquals("POST 2 yes", new String(readAll(done.getInputStream()), "UTF-8"));
+            transport.release(done, true);
+        } finally {
+            server.stop(0);
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package com.iobeam.api.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+public class PooledHttpTransportTest {
+
+    private HttpServer server;
+    private String url;
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        // Responds with the length of the request body and the client's port.
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                final int length = readAll(exchange.getRequestBody()).length;
+                final byte[] resp = (length + ":" + exchange.getRemoteAddress().getPort())
+                    .getBytes("UTF-8");
+                final boolean chunked = "chunked".equals(exchange.getRequestURI().getQuery());
+                exchange.sendResponseHeaders(200, chunked ? 0 : resp.length);
+                final OutputStream out = exchange.getResponseBody();
+                out.write(resp);
+                out.close();
+            }
+        });
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/test";
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buf = new byte[1024];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            out.write(buf, 0, n);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    // Sends a request and returns the response, "<request body length>:<client port>".
+    private static String send(HttpTransport transport, RequestBuilder req, byte[] body)
+        throws IOException {
+        final HttpURLConnection conn = transport.open(req);
+        try {
+            conn.connect();
+            if (body != null) {
+                final OutputStream out = conn.getOutputStream();
+                out.write(body);
+                out.close();
+            }
+            assertEquals(200, conn.getResponseCode());
+            return new String(readAll(conn.getInputStream()), "UTF-8");
+        } finally {
+            transport.release(conn, true);
+        }
+    }
+
+    private static String port(String response) {
+        return response.substring(response.indexOf(':') + 1);
+    }
+
+    @Test
+    public void testReusesConnection() throws Exception {
+        final PooledHttpTransport transport = new PooledHttpTransport();
+        final String first = send(transport, new RequestBuilder(url), null);
+        assertEquals(1, transport.getIdleConnectionCount());
+
+        final String second = send(transport, new RequestBuilder(url), null);
+        assertEquals(port(first), port(second));
+        assertEquals(1, transport.getIdleConnectionCount());
+
+        transport.evictAll();
+        assertEquals(0, transport.getIdleConnectionCount());
+        final String third = send(transport, new RequestBuilder(url), null);
+        assertNotEquals(port(first), port(third));
+    }
+
+    @Test
+    public void testRequestBodies() throws Exception {
+        final PooledHttpTransport transport = new PooledHttpTransport();
+        final byte[] body = new byte[20000];
+
+        final RequestBuilder fixed = new RequestBuilder(url)
+            .setRequestMethod(RequestMethod.POST)
+            .setContentLength(body.length);
+        final String first = send(transport, fixed, body);
+        assertEquals("20000", first.substring(0, first.indexOf(':')));
+
+        final RequestBuilder chunked = new RequestBuilder(url + "?chunked")
+            .setRequestMethod(RequestMethod.POST)
+            .setChunkedStreaming(true);
+        final String second = send(transport, chunked, body);
+        assertEquals("20000", second.substring(0, second.indexOf(':')));
+        assertEquals(port(first), port(second));
+
+        final RequestBuilder empty = new RequestBuilder(url)
+            .setRequestMethod(RequestMethod.POST);
+        final String third = send(transport, empty, null);
+        assertEquals("0", third.substring(0, third.indexOf(':')));
+        assertEquals(port(first), port(third));
+    }
+
+    @Test
+    public void testUnreadResponseIsDrained() throws Exception {
+        final PooledHttpTransport transport = new PooledHttpTransport();
+        final HttpURLConnection conn = transport.open(new RequestBuilder(url + "?chunked"));
+        conn.connect();
+        assertEquals(200, conn.getResponseCode());
+        transport.release(conn, true);
+        assertEquals(1, transport.getIdleConnectionCount());
+
+        final HttpURLConnection failed = transport.open(new RequestBuilder(url));
+        failed.connect();
+        assertEquals(200, failed.getResponseCode());
+        transport.release(failed, false);
+        assertEquals(0, transport.getIdleConnectionCount());
+    }
+
+    @Test
+    public void testPoolLimits() throws Exception {
+        final PooledHttpTransport none = new PooledHttpTransport(0, 60000);
+        final String first = send(none, new RequestBuilder(url), null);
+        assertEquals(0, none.getIdleConnectionCount());
+        assertNotEquals(port(first), port(send(none, new RequestBuilder(url), null)));
+
+        final PooledHttpTransport expiring = new PooledHttpTransport(5, 50);
+        final String second = send(expiring, new RequestBuilder(url), null);
+        Thread.sleep(100);
+        assertNotEquals(port(second), port(send(expiring, new RequestBuilder(url), null)));
+    }
+
+    @Test
+    public void testNoEofAfterRequestSent() throws Exception {
+        // Reads a whole request and closes the connection without responding.
+        final ServerSocket closing = new ServerSocket(0, 1, server.getAddress().getAddress());
+        final Thread accept = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final Socket socket = closing.accept();
+                    final InputStream in = socket.getInputStream();
+                    int matched = 0;
+                    final byte[] end = "\r\n\r\n".getBytes("ISO-8859-1");
+                    while (matched < end.length) {
+                        final int c = in.read();
+                        if (c < 0) {
+                            break;
+                        }
+                        matched = c == end[matched] ? matched + 1 : (c == end[0] ? 1 : 0);
+                    }
+                    for (int i = 0; i < 10; i++) {
+                        in.read();
+                    }
+                    socket.close();
+                } catch (IOException e) {
+                    // The test fails on the client side then.
+                }
+            }
+        });
+        accept.start();
+
+        final PooledHttpTransport transport = new PooledHttpTransport();
+        final RequestBuilder post = new RequestBuilder(
+            "http://127.0.0.1:" + closing.getLocalPort() + "/test")
+            .setRequestMethod(RequestMethod.POST)
+            .setContentLength(10);
+        final HttpURLConnection conn = transport.open(post);
+        try {
+            conn.connect();
+            final OutputStream out = conn.getOutputStream();
+            out.write(new byte[10]);
+            out.close();
+            conn.getResponseCode();
+            fail("Expected the request to fail");
+        } catch (IOException e) {
+            // The server may have acted on the request, so it must not be sent again on EOF.
+            assertFalse(e instanceof EOFException);
+            assertTrue(e.getCause() instanceof EOFException);
+        } finally {
+            transport.release(conn, false);
+            accept.join();
+            closing.close();
+        }
+    }
+}
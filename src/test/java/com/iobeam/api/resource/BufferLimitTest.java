@@ -0,0 +1,217 @@
+package com.iobeam.api.resource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.TreeMap;
+
+public class BufferLimitTest {
+
+    private static BufferLimit limit(long values, BufferLimit.OverflowPolicy policy) {
+        return new BufferLimit.Builder().maxValues(values).policy(policy).build();
+    }
+
+    private static DataStore store(BufferLimit limit, String column) {
+        final DataStore ret = new DataStore(column);
+        ret.setBufferLimit(limit);
+        return ret;
+    }
+
+    @Test
+    public void testBuilder() {
+        try {
+            new BufferLimit.Builder().build();
+            fail("Expected a limit to be required");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        final BufferLimit limit = new BufferLimit.Builder().maxBytes(1000).build();
+        assertEquals(0, limit.getMaxValues());
+        assertEquals(1000, limit.getMaxBytes());
+        assertEquals(BufferLimit.OverflowPolicy.DROP_OLDEST, limit.getPolicy());
+    }
+
+    @Test
+    public void testCountsExistingAndDrained() {
+        final DataStore ds = new DataStore("a", "b");
+        ds.add(1, "a", 1);
+        ds.add(2, new String[]{"a", "b"}, new Object[]{2, "xyz"});
+        final BufferLimit limit = limit(100, BufferLimit.OverflowPolicy.DROP_NEWEST);
+        ds.setBufferLimit(limit);
+        assertEquals(3, limit.getValues());
+        assertEquals(8 + 8 + 8 + 8 + 8 + 6, limit.getBytes());
+
+        final DataStore drained = ds.drain();
+        assertEquals(0, limit.getValues());
+        assertEquals(0, limit.getBytes());
+        ds.merge(drained);
+        assertEquals(3, limit.getValues());
+        ds.reset();
+        assertEquals(0, limit.getValues());
+    }
+
+    @Test
+    public void testDropOldest() {
+        final BufferLimit limit = limit(16, BufferLimit.OverflowPolicy.DROP_OLDEST);
+        final DataStore a = store(limit, "a");
+        final DataStore b = store(limit, "b");
+        for (int i = 0; i < 10; i++) {
+            a.add(i, "a", i);
+        }
+        for (int i = 10; i < 20; i++) {
+            b.add(i, "b", i);
+        }
+        // Rows of `a` are the oldest, so they go first, two at a time.
+        assertEquals(16, limit.getValues());
+        assertEquals(4, limit.getDroppedValues());
+        assertEquals(4L, (long) a.getRows().firstKey());
+        assertEquals(6, a.getDataSize());
+        assertEquals(10, b.getDataSize());
+
+        // Data put back after a failed send is old, so it is dropped first.
+        final DataStore failed = new DataStore("b");
+        for (int i = 0; i < 4; i++) {
+            failed.add(i, "b", i);
+        }
+        b.merge(failed);
+        assertTrue(limit.getValues() <= 16);
+        assertTrue(b.getRows().firstKey() >= 10);
+    }
+
+    @Test
+    public void testDropNewest() {
+        final BufferLimit limit = limit(5, BufferLimit.OverflowPolicy.DROP_NEWEST);
+        final DataStore ds = store(limit, "a");
+        for (int i = 0; i < 10; i++) {
+            ds.add(i, "a", i);
+        }
+        assertEquals(5, ds.getDataSize());
+        assertEquals(4L, (long) ds.getRows().lastKey());
+        assertEquals(5, limit.getDroppedValues());
+
+        final DataStore drained = ds.drain();
+        ds.add(10, "a", 10);
+        ds.merge(drained);
+        assertEquals(1, ds.getDataSize());
+        assertEquals(10, limit.getDroppedValues());
+    }
+
+    @Test
+    public void testMaxBytes() {
+        final BufferLimit limit = new BufferLimit.Builder().maxBytes(100)
+            .policy(BufferLimit.OverflowPolicy.DROP_NEWEST).build();
+        final DataStore ds = store(limit, "a");
+        // 8 for the timestamp, 8 + 2 * 10 for the value.
+        for (int i = 0; i < 3; i++) {
+            ds.add(i, "a", "0123456789");
+        }
+        assertEquals(2, ds.getDataSize());
+        assertEquals(72, limit.getBytes());
+        assertEquals(1, limit.getDroppedValues());
+    }
+
+    @Test
+    public void testBlock() throws Exception {
+        final BufferLimit limit = new BufferLimit.Builder().maxValues(2).blockTimeout(50)
+            .policy(BufferLimit.OverflowPolicy.BLOCK).build();
+        final DataStore ds = store(limit, "a");
+        ds.add(1, "a", 1);
+        ds.add(2, "a", 2);
+        try {
+            ds.add(3, "a", 3);
+            fail("Expected the add to time out");
+        } catch (BufferLimit.FullException e) {
+            assertEquals(1, limit.getDroppedValues());
+        }
+
+        final BufferLimit waiting = new BufferLimit.Builder().maxValues(2).blockTimeout(10000)
+            .policy(BufferLimit.OverflowPolicy.BLOCK).build();
+        final DataStore other = store(waiting, "a");
+        other.add(1, "a", 1);
+        other.add(2, "a", 2);
+        final Thread sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                other.drain();
+            }
+        });
+        sender.start();
+        other.add(3, "a", 3);
+        sender.join();
+        assertEquals(1, other.getDataSize());
+        assertEquals(0, waiting.getDroppedValues());
+    }
+
+    @Test
+    public void testDownsample() {
+        final BufferLimit limit = limit(8, BufferLimit.OverflowPolicy.DOWNSAMPLE);
+        final DataStore ds = store(limit, "a");
+        for (int i = 0; i < 9; i++) {
+            ds.add(i, "a", i);
+        }
+        // Every other row of the older half is dropped.
+        final TreeMap<Long, ?> rows = ds.getRows();
+        assertEquals(Arrays.asList(0L, 2L, 4L, 5L, 6L, 7L, 8L),
+                     Arrays.asList(rows.keySet().toArray(new Long[0])));
+        assertEquals(2, limit.getDroppedValues());
+        assertEquals(7, limit.getValues());
+    }
+
+    @Test
+    public void testSpill() {
+        final BufferLimit limit = limit(4, BufferLimit.OverflowPolicy.SPILL);
+        final DataStore small = store(limit, "a");
+        final DataStore large = store(limit, "b");
+        small.add(0, "a", 0);
+        for (int i = 0; i < 4; i++) {
+            large.add(i, "b", i);
+        }
+        assertEquals(DataStore.Storage.MAPPED, large.getStorage());
+        assertEquals(DataStore.Storage.MAP, small.getStorage());
+        assertEquals(4, large.getDataSize());
+        assertEquals(1, limit.getValues());
+        assertEquals(4, limit.getSpilledValues());
+        assertEquals(0, limit.getDroppedValues());
+
+        // Spilled DataStores no longer count.
+        large.add(4, "b", 4);
+        assertEquals(5, large.getDataSize());
+        assertEquals(1, limit.getValues());
+        assertEquals(3L, large.getRows().get(3L).get("b"));
+    }
+
+    @Test
+    public void testClearBufferLimit() {
+        final BufferLimit limit = limit(4, BufferLimit.OverflowPolicy.DROP_OLDEST);
+        final DataStore old = store(limit, "a");
+        final DataStore current = store(limit, "b");
+        old.add(0, "a", 0);
+        old.add(1, "a", 1);
+        current.add(2, "b", 2);
+        assertEquals(3, limit.getValues());
+
+        old.clearBufferLimit();
+        assertNull(old.getBufferLimit());
+        assertEquals(1, limit.getValues());
+
+        // The cleared DataStore no longer counts, nor loses data to make room.
+        old.add(3, "a", 3);
+        for (int i = 4; i < 8; i++) {
+            current.add(i, "b", i);
+        }
+        assertEquals(3, old.getDataSize());
+        assertEquals(0, old.getRows().firstKey().longValue());
+        assertEquals(4, limit.getValues());
+        old.clearBufferLimit();
+    }
+}
@@ -9,6 +9,11 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -17,6 +22,8 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class DataStoreTest {
 
@@ -386,4 +393,568 @@ public class DataStoreTest {
         assertEquals(1, splits.size());
     }
 
+    @Test
+    public void testSplitByPosition() throws Exception {
+        final long now = 1450000000000L;
+        for (DataStore.Storage storage : DataStore.Storage.values()) {
+            DataStore batch = new DataStore(storage, "a");
+            for (int i = 0; i < 10; i++) {
+                batch.add(now + i * 1000, "a", (long) i);
+            }
+
+            List<DataStore> splits = DataStore.split(batch, 4);
+            assertEquals(3, splits.size());
+            assertEquals(4, splits.get(0).getDataSize());
+            assertEquals(4, splits.get(1).getDataSize());
+            assertEquals(2, splits.get(2).getDataSize());
+            assertEquals(Arrays.asList(now + 4000, now + 5000, now + 6000, now + 7000),
+                         new ArrayList<Long>(splits.get(1).getRows().keySet()));
+            assertEquals(8L, splits.get(2).getRows().get(now + 8000).get("a"));
+
+            JSONArray data = splits.get(1).toJson().getJSONArray("data");
+            assertEquals(4, data.length());
+            assertEquals(now + 4000, data.getJSONArray(0).getLong(0));
+        }
+    }
+
+    @Test
+    public void testSplitPartsReadConcurrently() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            final DataStore batch = new DataStore("a");
+            for (int i = 0; i < 4000; i++) {
+                batch.add(i, "a", i);
+            }
+            // The parts share the rows, whose index is only built once they are read.
+            final List<DataStore> parts = DataStore.split(batch, 1000, 0);
+            assertEquals(4, parts.size());
+            final List<Thread> threads = new ArrayList<Thread>();
+            final AtomicLong failures = new AtomicLong();
+            for (int p = 0; p < parts.size(); p++) {
+                final DataStore part = parts.get(p);
+                final long first = p * 1000;
+                threads.add(new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            TreeMap<Long, Map<String, Object>> rows = part.getRows();
+                            final Number last = (Number) rows.get(first + 999).get("a");
+                            if (rows.size() != 1000 || rows.firstKey() != first ||
+                                last.longValue() != first + 999) {
+                                failures.incrementAndGet();
+                            }
+                        } catch (RuntimeException e) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                }));
+            }
+            for (Thread t : threads) {
+                t.start();
+            }
+            for (Thread t : threads) {
+                t.join();
+            }
+            assertEquals(0, failures.get());
+        }
+    }
+
+    @Test
+    public void testSplitOutlierRow() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 200 * 1024; i++) {
+            sb.append('x');
+        }
+        DataStore batch = new DataStore("a");
+        for (int i = 0; i < 999; i++) {
+            batch.add(i, "a", i == 500 ? sb.toString() : "v");
+        }
+
+        // A single long value missed by any sample still starts a part of its own.
+        List<DataStore> splits = DataStore.split(batch, 1000, 100000);
+        assertEquals(3, splits.size());
+        assertEquals(1, splits.get(1).getDataSize());
+        for (DataStore part : Arrays.asList(splits.get(0), splits.get(2))) {
+            assertTrue(part.toJson().toString().getBytes("UTF-8").length <= 100000);
+        }
+    }
+
+    @Test
+    public void testSplitPartsIndependent() throws Exception {
+        for (DataStore.Storage storage : DataStore.Storage.values()) {
+            DataStore batch = new DataStore(storage, "a");
+            for (int i = 0; i < 6; i++) {
+                batch.add(i, "a", (long) i);
+            }
+            List<DataStore> splits = DataStore.split(batch, 3);
+
+            // Changes to the original after splitting do not show up in the parts...
+            batch.add(1, "a", 100L);
+            batch.add(10, "a", 10L);
+            assertEquals(1L, splits.get(0).getRows().get(1L).get("a"));
+            assertEquals(3, splits.get(1).getDataSize());
+
+            // ...nor do changes to a part show up anywhere else.
+            splits.get(1).add(4, "a", 40L);
+            splits.get(0).reset();
+            assertEquals(4L, DataStore.split(batch, 3).get(1).getRows().get(4L).get("a"));
+            assertEquals(40L, splits.get(1).getRows().get(4L).get("a"));
+            assertEquals(100L, batch.getRows().get(1L).get("a"));
+            assertEquals(7, batch.getDataSize());
+            assertEquals(0, splits.get(0).getDataSize());
+        }
+    }
+
+    private static DataStore fillStore(DataStore.Storage storage) {
+        DataStore ds = new DataStore(storage, "a", "b", "c", "d");
+        ds.add(10, new String[]{"a", "b"}, new Object[]{1, 1.5});
+        ds.add(30, new String[]{"c", "d"}, new Object[]{true, "str"});
+        ds.add(20, new String[]{"a", "c"}, new Object[]{2L, false});
+        ds.add(10, "d", "merged");
+        ds.add(40, "b", 2.25F);
+        return ds;
+    }
+
+    @Test
+    public void testColumnarMatchesMap() throws Exception {
+        DataStore map = fillStore(DataStore.Storage.MAP);
+        DataStore columnar = fillStore(DataStore.Storage.COLUMNAR);
+        assertEquals(DataStore.Storage.COLUMNAR, columnar.getStorage());
+
+        assertEquals(map.getDataSize(), columnar.getDataSize());
+        assertEquals(map.toJson().toString(), columnar.toJson().toString());
+
+        Map<Long, Map<String, Object>> rows = columnar.getRows();
+        assertEquals(4, rows.size());
+        assertEquals(1L, rows.get(10L).get("a"));
+        assertEquals(1.5, rows.get(10L).get("b"));
+        assertEquals("merged", rows.get(10L).get("d"));
+        assertFalse(rows.get(10L).containsKey("c"));
+        assertEquals(Boolean.FALSE, rows.get(20L).get("c"));
+        assertEquals(2.25, rows.get(40L).get("b"));
+    }
+
+    @Test
+    public void testColumnarOutOfOrder() throws Exception {
+        DataStore ds = new DataStore(DataStore.Storage.COLUMNAR, "a", "b");
+        for (int i = 0; i < 100; i++) {
+            long ts = (i * 37) % 100;
+            ds.add(ts, new String[]{"a", "b"}, new Object[]{ts, ts % 2 == 0});
+        }
+        assertEquals(200, ds.getDataSize());
+
+        long prev = -1;
+        for (Map.Entry<Long, Map<String, Object>> e : ds.getRows().entrySet()) {
+            assertTrue(e.getKey() > prev);
+            assertEquals(e.getKey(), e.getValue().get("a"));
+            assertEquals(e.getKey() % 2 == 0, e.getValue().get("b"));
+            prev = e.getKey();
+        }
+    }
+
+    @Test
+    public void testColumnarMixedTypes() throws Exception {
+        DataStore ds = new DataStore(DataStore.Storage.COLUMNAR, "a");
+        ds.add(0, "a", 1);
+        ds.add(1, "a", "one");
+        ds.add(2, "a", 1.0);
+
+        Map<Long, Map<String, Object>> rows = ds.getRows();
+        assertEquals(1L, rows.get(0L).get("a"));
+        assertEquals("one", rows.get(1L).get("a"));
+        assertEquals(1.0, rows.get(2L).get("a"));
+    }
+
+    @Test
+    public void testColumnarStringsInterned() throws Exception {
+        DataStore ds = new DataStore(DataStore.Storage.COLUMNAR, "a");
+        ds.add(0, "a", new String("repeated"));
+        ds.add(1, "a", new String("repeated"));
+
+        Map<Long, Map<String, Object>> rows = ds.getRows();
+        assertTrue(rows.get(0L).get("a") == rows.get(1L).get("a"));
+    }
+
+    @Test
+    public void testColumnarMergeReplacesRows() throws Exception {
+        DataStore b1 = new DataStore(DataStore.Storage.COLUMNAR, "a", "b");
+        b1.add(1, new String[]{"a", "b"}, new Object[]{1, 2});
+        DataStore b2 = new DataStore("a", "b");
+        b2.add(1, "a", 10);
+        b2.add(2, "b", 20);
+
+        b1.merge(b2);
+        Map<Long, Map<String, Object>> rows = b1.getRows();
+        assertEquals(2, rows.size());
+        assertEquals(10L, rows.get(1L).get("a"));
+        assertFalse(rows.get(1L).containsKey("b"));
+        assertEquals(20L, rows.get(2L).get("b"));
+    }
+
+    @Test
+    public void testColumnarSplitAndSnapshot() throws Exception {
+        DataStore batch = new DataStore(DataStore.Storage.COLUMNAR, "a");
+        for (int i = 0; i < 4; i++) {
+            batch.add(i, "a", 100);
+        }
+
+        assertEquals(2, DataStore.split(batch, 2).size());
+        assertEquals(2, DataStore.split(batch, 3).size());
+        assertEquals(1, DataStore.split(batch, 4).size());
+
+        DataStore snap = DataStore.snapshot(batch);
+        batch.reset();
+        assertEquals(0, batch.getDataSize());
+        assertEquals(4, snap.getDataSize());
+        assertEquals(DataStore.Storage.COLUMNAR, snap.getStorage());
+    }
+
+    @Test
+    public void testMappedMatchesMap() throws Exception {
+        DataStore map = fillStore(DataStore.Storage.MAP);
+        DataStore mapped = fillStore(DataStore.Storage.MAPPED);
+        assertEquals(DataStore.Storage.MAPPED, mapped.getStorage());
+
+        assertEquals(map.getDataSize(), mapped.getDataSize());
+        assertEquals(map.toJson().toString(), mapped.toJson().toString());
+
+        Map<Long, Map<String, Object>> rows = mapped.getRows();
+        assertEquals(1L, rows.get(10L).get("a"));
+        assertEquals("merged", rows.get(10L).get("d"));
+        assertFalse(rows.get(10L).containsKey("c"));
+        assertEquals(Boolean.FALSE, rows.get(20L).get("c"));
+        assertEquals(2.25, rows.get(40L).get("b"));
+    }
+
+    @Test
+    public void testMappedSpansChunks() throws Exception {
+        // Small chunks, so that rows and index entries spill over many of them.
+        RowStorage rows = new MappedRowStorage(new String[]{"a", "b"}, null, 64);
+        for (int i = 0; i < 200; i++) {
+            long ts = (i * 37) % 200;
+            Map<String, Object> row = new HashMap<String, Object>();
+            row.put("a", ts);
+            row.put("b", "value-" + ts);
+            rows.put(ts, row, false);
+        }
+        StringBuilder big = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            big.append("0123456789");
+        }
+        rows.put(50, Collections.<String, Object>singletonMap("b", big.toString()), false);
+        rows.put(51, Collections.<String, Object>singletonMap("a", new BigDecimal("1.5")), true);
+
+        assertEquals(200, rows.size());
+        for (int i = 0; i < 200; i++) {
+            assertEquals(i, rows.getTime(i));
+        }
+        assertEquals(7L, rows.getValue(7, 0));
+        assertEquals("value-7", rows.getValue(7, 1));
+        assertEquals(50L, rows.getValue(50, 0));
+        assertEquals(big.toString(), rows.getValue(50, 1));
+        assertEquals(new BigDecimal("1.5"), rows.getValue(51, 0));
+        assertEquals(null, rows.getValue(51, 1));
+
+        rows.truncate(100);
+        assertEquals(100, rows.size());
+        rows.clear();
+        assertEquals(0, rows.size());
+        rows.put(1, Collections.<String, Object>singletonMap("a", 1L), false);
+        assertEquals(1L, rows.getValue(0, 0));
+    }
+
+    @Test
+    public void testMappedCompacts() throws Exception {
+        // Rewrites and truncations leave dead records behind, which get compacted away.
+        RowStorage rows = new MappedRowStorage(new String[]{"a", "b"}, null, 64);
+        for (int round = 0; round < 50; round++) {
+            for (int i = 0; i < 20; i++) {
+                Map<String, Object> row = new HashMap<String, Object>();
+                row.put("a", (long) round);
+                if (round % 2 == 0) {
+                    row.put("b", "value-" + i);
+                }
+                rows.put(i, row, false);
+            }
+        }
+        assertEquals(20, rows.size());
+        for (int i = 0; i < 20; i++) {
+            assertEquals(i, rows.getTime(i));
+            assertEquals(49L, rows.getValue(i, 0));
+            assertEquals("value-" + i, rows.getValue(i, 1));
+        }
+
+        rows.truncate(3);
+        rows.put(100, Collections.<String, Object>singletonMap("a", 100L), false);
+        assertEquals(4, rows.size());
+        assertEquals("value-2", rows.getValue(2, 1));
+        assertEquals(100L, rows.getValue(3, 0));
+        rows.truncate(0);
+        assertEquals(0, rows.size());
+        rows.put(1, Collections.<String, Object>singletonMap("a", 1L), false);
+        assertEquals(1L, rows.getValue(0, 0));
+    }
+
+    @Test
+    public void testMappedSerializable() throws Exception {
+        DataStore ds = fillStore(DataStore.Storage.MAPPED);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(ds);
+        out.close();
+
+        ObjectInputStream in =
+            new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        DataStore read = (DataStore) in.readObject();
+        assertEquals(ds.toJson().toString(), read.toJson().toString());
+        read.add(50, "a", 5L);
+        assertEquals(20, read.getDataSize());
+    }
+
+    @Test
+    public void testCompressedMatchesMap() throws Exception {
+        DataStore map = fillStore(DataStore.Storage.MAP);
+        DataStore compressed = fillStore(DataStore.Storage.COMPRESSED);
+        assertEquals(DataStore.Storage.COMPRESSED, compressed.getStorage());
+
+        assertEquals(map.getDataSize(), compressed.getDataSize());
+        assertEquals(map.toJson().toString(), compressed.toJson().toString());
+        assertEquals(2.25, compressed.getRows().get(40L).get("b"));
+    }
+
+    @Test
+    public void testCompressedSpansBlocks() throws Exception {
+        final String[] cols = new String[]{"a", "b", "c", "d", "e"};
+        final CompressedRowStorage rows = new CompressedRowStorage(cols);
+        final ColumnarRowStorage expected = new ColumnarRowStorage(cols);
+        final int n = 3 * CompressedRowStorage.BLOCK_ROWS + 100;
+        long time = 1500000000000L;
+        for (int i = 0; i < n; i++) {
+            // Mostly regular, with some jitter and gaps.
+            time += i % 100 == 0 ? 1234567 : (i % 7 == 0 ? 11 : 10);
+            Map<String, Object> row = new HashMap<String, Object>();
+            row.put("a", 20.0 + Math.sin(i / 50.0));
+            row.put("b", (long) (i / 3) - 500);
+            if (i % 3 != 0) {
+                row.put("c", i % 2 == 0);
+            }
+            row.put("d", i % 10 == 0 ? "alarm" : "ok");
+            row.put("e", i % 500 == 0 ? Double.NaN : (i % 2 == 0 ? 1.5 : 1L));
+            rows.put(time, row, false);
+            expected.put(time, row, false);
+        }
+        assertEquals(n, rows.size());
+        assertEquals(expected.toMap(), rows.toMap());
+        for (int i = 0; i < n; i += 97) {
+            assertEquals(expected.lowerBound(expected.getTime(i)),
+                         rows.lowerBound(rows.getTime(i)));
+            assertEquals(expected.lowerBound(expected.getTime(i) - 1),
+                         rows.lowerBound(rows.getTime(i) - 1));
+        }
+        // 5 columns of 8 bytes, and the timestamp, per row uncompressed.
+        assertTrue(rows.getEncodedBytes() * 4 < (long) n * 48);
+
+        // Into a sealed block, and before all rows.
+        final long sealed = rows.getTime(10);
+        rows.put(sealed + 1, Collections.<String, Object>singletonMap("d", "late"), false);
+        rows.put(sealed, Collections.<String, Object>singletonMap("b", 7L), false);
+        rows.put(0, Collections.<String, Object>singletonMap("b", 1L), true);
+        expected.put(sealed + 1, Collections.<String, Object>singletonMap("d", "late"), false);
+        expected.put(sealed, Collections.<String, Object>singletonMap("b", 7L), false);
+        expected.put(0, Collections.<String, Object>singletonMap("b", 1L), true);
+        assertEquals(expected.toMap(), rows.toMap());
+
+        final RowStorage copy = rows.copy();
+        rows.truncate(CompressedRowStorage.BLOCK_ROWS + 10);
+        expected.truncate(CompressedRowStorage.BLOCK_ROWS + 10);
+        assertEquals(expected.toMap(), rows.toMap());
+        assertEquals(n + 2, copy.size());
+        rows.clear();
+        assertEquals(0, rows.size());
+    }
+
+    @Test
+    public void testCompressedSerializable() throws Exception {
+        DataStore ds = new DataStore(DataStore.Storage.COMPRESSED, "a");
+        for (int i = 0; i < 2 * CompressedRowStorage.BLOCK_ROWS; i++) {
+            ds.add(i, "a", i * 0.5);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(ds);
+        out.close();
+
+        ObjectInputStream in =
+            new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        DataStore read = (DataStore) in.readObject();
+        assertEquals(ds.toJson().toString(), read.toJson().toString());
+    }
+
+    @Test
+    public void testCoalesce() throws Exception {
+        DataStore a = new DataStore("a");
+        DataStore b = new DataStore(DataStore.Storage.COLUMNAR, "b", "c");
+        DataStore overlapping = new DataStore("a", "d");
+        DataStore sparse = new DataStore("e");
+        for (int i = 0; i < 10; i++) {
+            a.add(i, "a", (long) i);
+            b.add(i, new String[]{"b", "c"}, new Object[]{(long) i, "c" + i});
+            overlapping.add(i, "d", true);
+        }
+        for (int i = 0; i < 20; i++) {
+            sparse.add(100 + i, "e", (long) i);
+        }
+
+        List<DataStore> got = DataStore.coalesce(Arrays.asList(a, overlapping, b, sparse));
+        assertEquals(3, got.size());
+        DataStore merged = got.get(0);
+        assertEquals(Arrays.asList("a", "b", "c"), merged.getColumns());
+        assertEquals(30, merged.getDataSize());
+        assertEquals(3L, merged.getRows().get(3L).get("a"));
+        assertEquals("c3", merged.getRows().get(3L).get("c"));
+        assertTrue(got.get(1) == overlapping);
+        assertTrue(got.get(2) == sparse);
+
+        // The inputs are left as they were.
+        assertEquals(20, b.getDataSize());
+        b.add(20, "b", 20L);
+        assertEquals(30, merged.getDataSize());
+    }
+
+    @Test
+    public void testProject() throws Exception {
+        DataStore ds = fillStore(DataStore.Storage.MAP);
+        DataStore projected = ds.project(Arrays.asList("c", "d"));
+        assertEquals(Arrays.asList("c", "d"), projected.getColumns());
+        TreeMap<Long, Map<String, Object>> rows = projected.getRows();
+        assertEquals(Arrays.asList(10L, 20L, 30L), new ArrayList<Long>(rows.keySet()));
+        assertEquals("merged", rows.get(10L).get("d"));
+        assertEquals(Boolean.FALSE, rows.get(20L).get("c"));
+    }
+
+    private static void addConcurrently(final DataStore ds, final int threads, final int rows,
+                                        final AtomicLong drained) throws Exception {
+        List<Thread> producers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            producers.add(new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < rows; i++) {
+                        // Interleaved timestamps, plus a shared one per row written by all threads.
+                        ds.add(i * threads + id, "a", (long) id);
+                        ds.add(-1 - i, "c" + id, (long) i);
+                    }
+                }
+            });
+        }
+        for (Thread t : producers) {
+            t.start();
+        }
+        if (drained != null) {
+            while (producers.get(0).isAlive()) {
+                drained.addAndGet(ds.drain().getRows().size());
+            }
+        }
+        for (Thread t : producers) {
+            t.join();
+        }
+    }
+
+    @Test
+    public void testConcurrentAdds() throws Exception {
+        final int threads = 4;
+        final int rows = 2000;
+        final List<String> cols = new ArrayList<String>(Arrays.asList("a"));
+        for (int t = 0; t < threads; t++) {
+            cols.add("c" + t);
+        }
+        for (DataStore.Storage storage : DataStore.Storage.values()) {
+            for (int stripes : new int[]{1, 3}) {
+                DataStore ds = new DataStore(cols, storage, stripes);
+                addConcurrently(ds, threads, rows, null);
+
+                TreeMap<Long, Map<String, Object>> got = ds.getRows();
+                assertEquals(threads * rows + rows, got.size());
+                for (long i = 0; i < threads * rows; i++) {
+                    assertEquals(i % threads, got.get(i).get("a"));
+                }
+                for (long i = 0; i < rows; i++) {
+                    Map<String, Object> row = got.get(-1 - i);
+                    assertEquals(threads, row.size());
+                    for (int t = 0; t < threads; t++) {
+                        assertEquals(i, row.get("c" + t));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentDrain() throws Exception {
+        final int threads = 4;
+        final int rows = 2000;
+        for (int stripes : new int[]{1, 4}) {
+            DataStore ds = new DataStore(Arrays.asList("a", "c0", "c1", "c2", "c3"),
+                                         DataStore.Storage.COLUMNAR, stripes);
+            AtomicLong drained = new AtomicLong();
+            addConcurrently(ds, threads, rows, drained);
+            drained.addAndGet(ds.drain().getRows().size());
+
+            // Every timestamp written is drained at least once; shared timestamps may be split
+            // across drains.
+            assertTrue(drained.get() >= threads * rows + rows);
+            assertTrue(drained.get() <= threads * rows + threads * rows);
+            assertEquals(0, ds.getDataSize());
+        }
+    }
+
+    private static RowStorage storageWith(boolean columnar, long[] times, String column,
+                                          long[] values) {
+        String[] cols = {"a", "b"};
+        RowStorage ret = columnar ? new ColumnarRowStorage(cols) : new MapRowStorage(cols);
+        for (int i = 0; i < times.length; i++) {
+            Map<String, Object> row = new HashMap<String, Object>();
+            row.put(column, values[i]);
+            ret.put(times[i], row, false);
+        }
+        return ret;
+    }
+
+    @Test
+    public void testMergeSortedInterleaved() throws Exception {
+        for (boolean columnar : new boolean[]{false, true}) {
+            RowStorage rows = storageWith(columnar, new long[]{1, 5, 9}, "a",
+                                          new long[]{1, 5, 9});
+            RowStorage other1 = storageWith(columnar, new long[]{5, 7}, "b", new long[]{50, 70});
+            RowStorage other2 = storageWith(columnar, new long[]{3, 7}, "b", new long[]{30, 71});
+            rows.mergeSorted(new RowStorage[]{other1, other2});
+
+            TreeMap<Long, Map<String, Object>> got = rows.toMap();
+            assertEquals(Arrays.asList(1L, 3L, 5L, 7L, 9L), new ArrayList<Long>(got.keySet()));
+            assertEquals(5L, got.get(5L).get("a"));
+            assertEquals(50L, got.get(5L).get("b"));
+            assertEquals(71L, got.get(7L).get("b"));
+            assertEquals(9L, got.get(9L).get("a"));
+        }
+    }
+
+    @Test
+    public void testDrain() throws Exception {
+        for (DataStore.Storage storage : DataStore.Storage.values()) {
+            DataStore ds = fillStore(storage);
+            final String json = ds.toJson().toString();
+
+            DataStore drained = ds.drain();
+            assertEquals(0, ds.getDataSize());
+            assertEquals(16, drained.getDataSize());
+            assertEquals(json, drained.toJson().toString());
+
+            // The two stores no longer share rows.
+            ds.add(0, "a", 42L);
+            drained.reset();
+            assertEquals(4, ds.getDataSize());
+            assertEquals(42L, ds.getRows().get(0L).get("a"));
+            assertEquals(storage, drained.getStorage());
+        }
+    }
 }
@@ -4,6 +4,7 @@ import org.json.JSONArray;
 import org.json.JSONObject;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -76,4 +77,27 @@ public class ImportBatchTest {
         JSONArray data = sources.getJSONArray("data");
         assertEquals(3, data.length());
     }
+
+    @Test
+    public void testWriteJson() throws Exception {
+        String[] cols = {"col1", "col2", "col3"};
+        for (DataStore.Storage storage : DataStore.Storage.values()) {
+            DataStore ds = new DataStore(storage, cols);
+            ds.add(10, cols, new Object[]{100, 1.25, "a"});
+            ds.add(20, new String[]{"col2"}, new Object[]{2.0F});
+            ds.add(30, new String[]{"col1", "col3"}, new Object[]{-5L, "b\"c"});
+            ImportBatch ib = new ImportBatch(TEST_PROJECT_ID, TEST_DEVICE_ID, ds);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ib.writeJson(out);
+            JSONObject streamed = new JSONObject(out.toString("UTF-8"));
+            JSONObject want = ib.serialize();
+
+            assertEquals(want.getLong("project_id"), streamed.getLong("project_id"));
+            assertEquals(want.getString("device_id"), streamed.getString("device_id"));
+            assertEquals(want.getJSONObject("sources").toString(),
+                         streamed.getJSONObject("sources").toString());
+            assertEquals(out.size(), new ResourceMapper().getJsonLength(ib));
+        }
+    }
 }
@@ -0,0 +1,201 @@
+package com.iobeam.api.resource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class RollupTest {
+
+    private static Map<String, Object> row(String column, Object value) {
+        final Map<String, Object> ret = new HashMap<String, Object>();
+        ret.put(column, value);
+        return ret;
+    }
+
+    @Test
+    public void testBuilder() {
+        final Rollup rollup = new Rollup.Builder(1000)
+            .column("temp", Rollup.Aggregate.MEAN)
+            .column("temp", Rollup.Aggregate.MAX, "temp_max")
+            .build();
+        assertEquals(1000, rollup.getWindowMillis());
+        assertEquals(Arrays.asList("temp", "temp_max"), rollup.getOutputColumns());
+        assertEquals(1, rollup.getInputColumns().size());
+        assertEquals(-1000, rollup.windowStart(-1));
+        assertEquals(2000, rollup.windowStart(2999));
+
+        try {
+            new Rollup.Builder(1000).column("a", Rollup.Aggregate.MIN)
+                .column("b", Rollup.Aggregate.MAX, "a");
+            fail("Expected duplicate output columns to be rejected");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        try {
+            new Rollup.Builder(1000).build();
+            fail("Expected a rollup without columns to be rejected");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testAggregates() {
+        final Rollup rollup = new Rollup.Builder(1000)
+            .column("temp", Rollup.Aggregate.MEAN)
+            .column("temp", Rollup.Aggregate.MIN, "temp_min")
+            .column("temp", Rollup.Aggregate.MAX, "temp_max")
+            .column("temp", Rollup.Aggregate.COUNT, "samples")
+            .column("state", Rollup.Aggregate.LAST)
+            .build();
+        final DataStore ds = new DataStore(rollup);
+        assertEquals(Arrays.asList("samples", "state", "temp", "temp_max", "temp_min"),
+                     ds.getColumns());
+        for (int i = 0; i < 10; i++) {
+            ds.add(i * 100, "temp", i);
+        }
+        ds.add(950, "state", "on");
+        // The open window is not a row yet.
+        assertEquals(0, ds.getRows().size());
+
+        ds.add(1500, "temp", 20.5);
+        TreeMap<Long, Map<String, Object>> rows = ds.getRows();
+        assertEquals(1, rows.size());
+        final Map<String, Object> first = rows.get(0L);
+        assertEquals(4.5, (Double) first.get("temp"), 0.0001);
+        assertEquals(0, first.get("temp_min"));
+        assertEquals(9, first.get("temp_max"));
+        assertEquals(10L, first.get("samples"));
+        assertEquals("on", first.get("state"));
+
+        ds.flushRollup();
+        rows = ds.getRows();
+        assertEquals(2, rows.size());
+        final Map<String, Object> second = rows.get(1000L);
+        assertEquals(20.5, second.get("temp"));
+        assertEquals(1L, second.get("samples"));
+        assertFalse(second.containsKey("state"));
+    }
+
+    @Test
+    public void testEmittedWhenEnded() {
+        final Rollup rollup = new Rollup.Builder(1000).column("temp", Rollup.Aggregate.LAST)
+            .build();
+        final DataStore ds = new DataStore(rollup);
+        ds.add(5000, "temp", 1);
+        ds.add(5001, "temp", 2);
+        // The window ended long ago, so checking the size emits it.
+        assertEquals(1, ds.getDataSize());
+        assertEquals(2, ds.getRows().get(5000L).get("temp"));
+
+        // A window that is still open stays when draining.
+        final long now = System.currentTimeMillis();
+        final DataStore open = new DataStore(
+            new Rollup.Builder(3600 * 1000).column("temp", Rollup.Aggregate.LAST).build());
+        open.add(now, "temp", 3);
+        assertEquals(0, open.drain().getDataSize());
+        open.reset();
+        open.flushRollup();
+        assertEquals(0, open.getDataSize());
+    }
+
+    @Test
+    public void testRejectedRows() {
+        final Rollup rollup = new Rollup.Builder(1000)
+            .column("temp", Rollup.Aggregate.MEAN, "temp_mean").build();
+        final DataStore ds = new DataStore(rollup);
+        try {
+            ds.add(0, "temp_mean", 1);
+            fail("Expected output columns not to be accepted");
+        } catch (DataStore.UnknownFieldException e) {
+            // Expected
+        }
+        try {
+            ds.add(0, "temp", "hot");
+            fail("Expected MEAN to reject Strings");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+
+        ds.add(2000, "temp", 1);
+        ds.add(3000, "temp", 3);
+        // Its window has been emitted already.
+        ds.add(2500, "temp", 100);
+        ds.flushRollup();
+        final TreeMap<Long, Map<String, Object>> rows = ds.getRows();
+        assertEquals(1.0, rows.get(2000L).get("temp_mean"));
+        assertEquals(3.0, rows.get(3000L).get("temp_mean"));
+        assertNull(rows.get(0L));
+    }
+
+    @Test
+    public void testLateRowAfterFlush() {
+        final Rollup rollup = new Rollup.Builder(1000)
+            .column("temp", Rollup.Aggregate.MAX, "tmax")
+            .column("temp", Rollup.Aggregate.COUNT, "n")
+            .build();
+        final DataStore ds = new DataStore(rollup);
+        ds.add(1000, "temp", 50.0);
+        ds.add(1100, "temp", 10.0);
+        ds.flushRollup();
+        // The window has been emitted, so a row for it must not change its aggregates.
+        ds.add(1200, "temp", 20.0);
+        ds.flushRollup();
+
+        TreeMap<Long, Map<String, Object>> rows = ds.getRows();
+        assertEquals(1, rows.size());
+        assertEquals(50.0, rows.get(1000L).get("tmax"));
+        assertEquals(2L, rows.get(1000L).get("n"));
+
+        // Later windows are aggregated as usual.
+        ds.add(2000, "temp", 1.0);
+        ds.flushRollup();
+        rows = ds.getRows();
+        assertEquals(2, rows.size());
+        assertEquals(1L, rows.get(2000L).get("n"));
+    }
+
+    @Test
+    public void testCustomAggregator() {
+        final Rollup.Aggregator sum = new Rollup.Aggregator() {
+            @Override
+            public Rollup.Accumulator newAccumulator() {
+                return new Rollup.Accumulator() {
+                    private long total = 0;
+
+                    @Override
+                    public void add(Object value) {
+                        total += ((Number) value).longValue();
+                    }
+
+                    @Override
+                    public Object get() {
+                        return total;
+                    }
+                };
+            }
+        };
+        final DataStore ds = new DataStore(
+            new Rollup.Builder(10).column("bytes", sum).build(), DataStore.Storage.COLUMNAR, 2,
+            null);
+        for (int i = 0; i < 100; i++) {
+            ds.add(i, row("bytes", 1));
+        }
+        ds.flushRollup();
+        assertEquals(10, ds.getDataSize());
+        for (Map<String, Object> r : ds.getRows().values()) {
+            assertEquals(10L, r.get("bytes"));
+        }
+        assertTrue(ds.getRollup() != null);
+        assertNull(new DataStore("a").getRollup());
+    }
+}
@@ -0,0 +1,116 @@
+package com.iobeam.api.resource.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+public class CborWriterTest {
+
+    private static String hex(Object value) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CborWriter writer = new CborWriter(out, 4);
+        writer.value(value);
+        writer.flush();
+        assertEquals(out.size(), writer.getBytesWritten());
+        StringBuilder ret = new StringBuilder();
+        for (byte b : out.toByteArray()) {
+            ret.append(String.format("%02x", b & 0xFF));
+        }
+        return ret.toString();
+    }
+
+    private static Object read(byte[] bytes) throws Exception {
+        return new CborReader(new ByteArrayInputStream(bytes)).read();
+    }
+
+    @Test
+    public void testRfcExamples() throws Exception {
+        assertEquals("00", hex(0));
+        assertEquals("17", hex(23));
+        assertEquals("1818", hex(24));
+        assertEquals("1903e8", hex(1000));
+        assertEquals("1a000f4240", hex(1000000L));
+        assertEquals("1b000000e8d4a51000", hex(1000000000000L));
+        assertEquals("20", hex(-1));
+        assertEquals("3903e7", hex(-1000));
+        assertEquals("fa3fc00000", hex(1.5));
+        assertEquals("fb3ff199999999999a", hex(1.1));
+        assertEquals("f4", hex(false));
+        assertEquals("f5", hex(true));
+        assertEquals("f6", hex(null));
+        assertEquals("6161", hex("a"));
+        assertEquals("62c3bc", hex("ü"));
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Object[] values = {0L, -1L, 12345678901L, Long.MIN_VALUE, Long.MAX_VALUE, 5.0, 1.1,
+                           -2.25, Double.NaN, Double.NEGATIVE_INFINITY, true, false, null, "",
+                           "café", "😀"};
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CborWriter writer = new CborWriter(out, 4);
+        writer.beginMap(1).value("values").beginArray(values.length);
+        for (Object v : values) {
+            writer.value(v);
+        }
+        writer.flush();
+
+        Map<?, ?> map = (Map<?, ?>) read(out.toByteArray());
+        assertEquals(Arrays.asList(values), map.get("values"));
+    }
+
+    @Test
+    public void testLongString() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            sb.append(i);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CborWriter writer = new CborWriter(out, 16);
+        writer.beginArray(2).value(sb.toString()).value(7);
+        writer.flush();
+        assertEquals(out.size(), writer.getBytesWritten());
+        List<?> read = (List<?>) read(out.toByteArray());
+        assertEquals(sb.toString(), read.get(0));
+        assertEquals(7L, read.get(1));
+    }
+
+    @Test
+    public void testLength() throws Exception {
+        Object[] values = {0, 23, 24, 255, 256, 65536, -1, -25, 12345678901L, Long.MIN_VALUE,
+                           Long.MAX_VALUE, 1.5, 0.1, 2.25F, Double.NaN, true, false, null, "",
+                           "café", "😀", "\ud800", new StringBuilder("x")};
+        for (Object v : values) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            CborWriter writer = new CborWriter(out, 4);
+            writer.value(v);
+            writer.flush();
+            assertEquals(String.valueOf(v), out.size(), CborWriter.length(v));
+        }
+    }
+
+    @Test
+    public void testReadHalfPrecision() throws Exception {
+        assertEquals(1.5, read(new byte[]{(byte) 0xf9, 0x3e, 0x00}));
+        assertEquals(-4.0, read(new byte[]{(byte) 0xf9, (byte) 0xc4, 0x00}));
+        assertEquals(5.960464477539063e-8, read(new byte[]{(byte) 0xf9, 0x00, 0x01}));
+    }
+
+    @Test
+    public void testReadTruncated() throws Exception {
+        try {
+            read(new byte[]{(byte) 0x82, 0x01});
+            fail("Expected a truncated array to fail");
+        } catch (EOFException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.iobeam.api.resource.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+public class JsonStreamWriterTest {
+
+    private static String write(Object... values) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JsonStreamWriter writer = new JsonStreamWriter(out, 4);
+        writer.beginArray();
+        for (Object v : values) {
+            writer.value(v);
+        }
+        writer.endArray();
+        writer.flush();
+        assertEquals(out.size(), writer.getBytesWritten());
+        return out.toString("UTF-8");
+    }
+
+    @Test
+    public void testMatchesJsonArray() throws Exception {
+        Object[] values = {0, -1, 12345678901L, Long.MIN_VALUE, Long.MAX_VALUE, 5.0, 1.5,
+                           1.0E-7, 2.25F, true, false, null, "plain", "quote\"back\\slash",
+                           "</script>", "tab\tnew\nline", "\u0001\u0085 ", "café",
+                           "😀"};
+        JSONArray want = new JSONArray();
+        for (Object v : values) {
+            want.put(v == null ? JSONObject.NULL : v);
+        }
+        assertEquals(want.toString(), write(values));
+    }
+
+    @Test
+    public void testObjects() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JsonStreamWriter writer = new JsonStreamWriter(out);
+        writer.beginObject();
+        writer.name("a").value(1);
+        writer.name("b").beginArray().value("x").beginObject().endObject().endArray();
+        writer.name("c").beginObject().name("d").nullValue().endObject();
+        writer.endObject();
+        writer.flush();
+
+        assertEquals("{\"a\":1,\"b\":[\"x\",{}],\"c\":{\"d\":null}}", out.toString("UTF-8"));
+    }
+
+    @Test
+    public void testEstimateLength() throws Exception {
+        Object[] exact = {0, -1, 9, 10, -10, 12345678901L, Long.MIN_VALUE, Long.MAX_VALUE, 5.0,
+                          -5.0, 0.0, 1.5, -0.25, 21.5, 0.1, 0.001, 1234567.125, true, false, null,
+                          "plain", "quote\"back\\slash", "</script>", "tab\tnew\nline",
+                          "\u0001\u0085 ", "café", "😀", "\ud800"};
+        for (Object v : exact) {
+            // Without the brackets.
+            assertEquals(String.valueOf(v), write(v).getBytes("UTF-8").length - 2,
+                         JsonStreamWriter.estimateLength(v));
+        }
+        Object[] bounded = {1.0E-7, 1.0E300, Math.PI, 0.30000000000000004, 2.25F, -1.17549435E-38F};
+        for (Object v : bounded) {
+            assertTrue(String.valueOf(v),
+                       write(v).getBytes("UTF-8").length - 2 <= JsonStreamWriter.estimateLength(v));
+        }
+    }
+
+    @Test(expected = JSONException.class)
+    public void testNonFinite() throws Exception {
+        write(Double.NaN);
+    }
+}
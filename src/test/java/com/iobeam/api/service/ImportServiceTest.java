@@ -1,15 +1,21 @@
 package com.iobeam.api.service;
 
 import com.iobeam.api.client.RestClient;
+import com.iobeam.api.http.ContentType;
 import com.iobeam.api.resource.DataPoint;
+import com.iobeam.api.resource.DataStore;
 import com.iobeam.api.resource.Import;
 import com.iobeam.api.resource.ImportBatch;
 
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
 import java.util.List;
 
 import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
 
 public class ImportServiceTest {
 
@@ -106,4 +112,128 @@ public class ImportServiceTest {
         assertEquals(midway, series1Size);
         assertEquals(total - midway, series2Size);
     }
+
+    private static long bodyLength(ImportService.Submit req) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ((ImportBatch) req.getBuilder().getContent()).writeJson(out);
+        return out.size();
+    }
+
+    @Test
+    public void testByteBudgetSplit() throws Exception {
+        final long maxBytes = 2000;
+        ImportService service = new ImportService(new RestClient(), 1000, maxBytes);
+
+        DataStore data = new DataStore("s", "n");
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            data.add(i, new String[]{"s", "n"}, new Object[]{value.toString(), i});
+            value.append(i % 10);
+        }
+        ImportBatch batch = new ImportBatch(1000, TEST_DEVICE_ID, data);
+
+        List<ImportService.Submit> reqs = service.submit(Collections.singletonList(batch));
+        assertTrue(reqs.size() > 1);
+        long rows = 0;
+        for (int i = 0; i < reqs.size(); i++) {
+            DataStore part = getSubmitData(reqs.get(i)).getData();
+            rows += part.getRows().size();
+            assertTrue(bodyLength(reqs.get(i)) <= maxBytes);
+            // Parts are filled up: the next row would not have fit in this one.
+            if (i + 1 < reqs.size()) {
+                DataStore next = getSubmitData(reqs.get(i + 1)).getData();
+                DataStore grown = DataStore.snapshot(part);
+                long ts = next.getRows().firstKey();
+                grown.add(ts, next.getRows().get(ts));
+                ImportBatch b = new ImportBatch(1000, TEST_DEVICE_ID, grown);
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                b.writeJson(out);
+                // Up to the margin kept for estimated lengths.
+                assertTrue(out.size() > maxBytes - maxBytes / 32);
+            }
+        }
+        assertEquals(300, rows);
+    }
+
+    @Test
+    public void testByteBudgetKeepsPointLimit() throws Exception {
+        ImportService service = new ImportService(new RestClient(), 100, 1024 * 1024);
+
+        DataStore data = new DataStore("n");
+        for (int i = 0; i < 250; i++) {
+            data.add(i, "n", i);
+        }
+        ImportBatch batch = new ImportBatch(1000, TEST_DEVICE_ID, data);
+
+        List<ImportService.Submit> reqs = service.submit(Collections.singletonList(batch));
+        assertEquals(3, reqs.size());
+        assertEquals(100, getSubmitSize(reqs.get(0)));
+        assertEquals(100, getSubmitSize(reqs.get(1)));
+        assertEquals(50, getSubmitSize(reqs.get(2)));
+    }
+
+    private static byte[] encode(ImportService.Submit req) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        req.getBuilder().getBody().writeTo(out);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testCborCodec() throws Exception {
+        ImportService json = new ImportService(new RestClient(), 1000, 0);
+        ImportService cbor = new ImportService(new RestClient(), 1000, 0, ImportCodec.CBOR);
+        assertEquals(ImportCodec.JSON, json.getCodec());
+
+        DataStore data = new DataStore(DataStore.Storage.COLUMNAR, "temp", "on", "state");
+        for (int i = 0; i < 300; i++) {
+            data.add(1500000000000L + i * 1000, "temp", 20.5 + (i % 10) * 0.25);
+            data.add(1500000000000L + i * 1000, "on", i % 2 == 0);
+            if (i % 3 == 0) {
+                data.add(1500000000000L + i * 1000, "state", i % 4 == 0 ? "idle" : 7L);
+            }
+        }
+        ImportBatch batch = new ImportBatch(1000, TEST_DEVICE_ID, data);
+
+        ImportService.Submit jsonReq = json.submit(Collections.singletonList(batch)).get(0);
+        ImportService.Submit cborReq = cbor.submit(Collections.singletonList(batch)).get(0);
+        assertEquals(ContentType.JSON, jsonReq.getBuilder().getContentType());
+        assertEquals(ContentType.CBOR, cborReq.getBuilder().getContentType());
+        // The batch is still the content, e.g. for SendCallbacks.
+        assertEquals(batch, getSubmitData(cborReq));
+
+        byte[] jsonBytes = encode(jsonReq);
+        byte[] cborBytes = encode(cborReq);
+        assertTrue(cborBytes.length * 3 < jsonBytes.length * 2);
+        long estimate = cborReq.getBuilder().getBody().getEstimatedLength();
+        assertTrue(Math.abs(estimate - cborBytes.length) < cborBytes.length / 10);
+
+        ImportBatch read = ImportCodec.CBOR.read(new ByteArrayInputStream(cborBytes));
+        assertEquals(batch.getProjectId(), read.getProjectId());
+        assertEquals(batch.getDeviceId(), read.getDeviceId());
+        assertEquals(data.getRows(), read.getData().getRows());
+        ImportBatch readJson = ImportCodec.JSON.read(new ByteArrayInputStream(jsonBytes));
+        assertEquals(batch.toJson().toString(), readJson.toJson().toString());
+    }
+
+    @Test
+    public void testCborByteBudgetSplit() throws Exception {
+        // 0.1 is not exact in single precision, so it takes 9 bytes in CBOR but 3 in JSON.
+        final long maxBytes = 4000;
+        ImportService cbor = new ImportService(new RestClient(), 1000, maxBytes, ImportCodec.CBOR);
+
+        DataStore data = new DataStore("n");
+        for (int i = 0; i < 1000; i++) {
+            data.add(i, "n", 0.1);
+        }
+        ImportBatch batch = new ImportBatch(1000, TEST_DEVICE_ID, data);
+
+        List<ImportService.Submit> reqs = cbor.submit(Collections.singletonList(batch));
+        assertTrue(reqs.size() > 1);
+        long rows = 0;
+        for (ImportService.Submit req : reqs) {
+            rows += getSubmitData(req).getData().getRows().size();
+            assertTrue(encode(req).length <= maxBytes);
+        }
+        assertEquals(1000, rows);
+    }
 }
@@ -0,0 +1,62 @@
+package com.iobeam.util.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+public class SettableFutureTest {
+
+    private static final Executor DIRECT = new SameThreadExecutorService();
+
+    private static Runnable record(final List<String> log, final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                log.add(name);
+            }
+        };
+    }
+
+    @Test
+    public void testListeners() throws Exception {
+        final List<String> log = new ArrayList<String>();
+        final SettableFuture<String> future = new SettableFuture<String>();
+        future.addListener(record(log, "a"), DIRECT);
+        future.addListener(record(log, "b"), DIRECT);
+        assertTrue(log.isEmpty());
+
+        future.set("done");
+        future.set("ignored");
+        assertEquals("[a, b]", log.toString());
+        assertEquals("done", future.get());
+
+        // Listeners added after completion run right away.
+        future.addListener(record(log, "c"), DIRECT);
+        assertEquals("[a, b, c]", log.toString());
+    }
+
+    @Test
+    public void testException() throws Exception {
+        final List<String> log = new ArrayList<String>();
+        final SettableFuture<String> future = new SettableFuture<String>();
+        future.addListener(record(log, "a"), DIRECT);
+        final IOException e = new IOException("failed");
+        future.setException(e);
+        assertEquals("[a]", log.toString());
+        try {
+            future.get();
+            fail("Expected ExecutionException");
+        } catch (ExecutionException ee) {
+            assertSame(e, ee.getCause());
+        }
+    }
+}
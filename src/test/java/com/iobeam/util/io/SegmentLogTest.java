@@ -0,0 +1,122 @@
+package com.iobeam.util.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+public class SegmentLogTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("segmentlog", "");
+        dir.delete();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static byte[] record(int i) {
+        return ("record-" + i).getBytes();
+    }
+
+    @Test
+    public void testRecoverUnacked() throws Exception {
+        SegmentLog log = new SegmentLog(dir, 1024, 1024 * 1024);
+        long[] ids = new long[5];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = log.append(record(i));
+        }
+        log.sync();
+        log.ack(ids[1]);
+        log.ack(ids[3]);
+        log.close();
+
+        log = new SegmentLog(dir, 1024, 1024 * 1024);
+        List<SegmentLog.Record> recovered = log.getRecovered();
+        assertEquals(3, recovered.size());
+        assertArrayEquals(record(0), recovered.get(0).getData());
+        assertArrayEquals(record(2), recovered.get(1).getData());
+        assertArrayEquals(record(4), recovered.get(2).getData());
+
+        for (SegmentLog.Record r : recovered) {
+            log.ack(r.getId());
+        }
+        assertEquals(0, log.getPendingCount());
+        log.close();
+        assertEquals(0, dir.list().length);
+    }
+
+    @Test
+    public void testRotationDeletesAckedSegments() throws Exception {
+        SegmentLog log = new SegmentLog(dir, 64, 1024 * 1024);
+        for (int i = 0; i < 20; i++) {
+            log.ack(log.append(record(i)));
+        }
+        // Only the segment being written to is left.
+        assertEquals(1, dir.list().length);
+
+        long pending = log.append(record(20));
+        for (int i = 21; i < 40; i++) {
+            log.ack(log.append(record(i)));
+        }
+        // Later segments are kept while an older one has a pending record.
+        assertTrue(dir.list().length > 2);
+        log.ack(pending);
+        assertEquals(1, dir.list().length);
+        log.close();
+    }
+
+    @Test
+    public void testTornWriteIgnored() throws Exception {
+        SegmentLog log = new SegmentLog(dir, 1024, 1024 * 1024);
+        log.append(record(0));
+        log.append(record(1));
+        log.close();
+
+        // Cut the last record short, as if the process died while writing it.
+        File segment = dir.listFiles()[0];
+        RandomAccessFile f = new RandomAccessFile(segment, "rw");
+        f.setLength(f.length() - 3);
+        f.close();
+
+        log = new SegmentLog(dir, 1024, 1024 * 1024);
+        List<SegmentLog.Record> recovered = log.getRecovered();
+        assertEquals(1, recovered.size());
+        assertArrayEquals(record(0), recovered.get(0).getData());
+        log.close();
+    }
+
+    @Test
+    public void testMaxTotalBytesDropsOldest() throws Exception {
+        SegmentLog log = new SegmentLog(dir, 64, 200);
+        for (int i = 0; i < 40; i++) {
+            log.append(record(i));
+        }
+        assertTrue(log.getPendingCount() < 40);
+        log.close();
+
+        log = new SegmentLog(dir, 64, 200);
+        List<SegmentLog.Record> recovered = log.getRecovered();
+        assertEquals(log.getPendingCount(), recovered.size());
+        assertArrayEquals(record(39), recovered.get(recovered.size() - 1).getData());
+        log.close();
+    }
+}